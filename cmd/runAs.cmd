@@ -4,7 +4,7 @@ IF "%~1" EQU "" GOTO INVALID_ARGS
 IF "%~2" EQU "" GOTO INVALID_ARGS
 IF "%~3" EQU "" GOTO INVALID_ARGS
 IF "%~4" EQU "" GOTO INVALID_ARGS
-IF "%~5" NEQ "" GOTO INVALID_ARGS
+IF "%~5" NEQ "" IF "%~5" NEQ "skipTempFilesCheck" GOTO INVALID_ARGS
 
 REM Define OS bitness
 "%~dp0x86\JetBrains.runAs.exe" -t -l:errors
@@ -37,6 +37,8 @@ IF %EXIT_CODE% EQU 64 (
 	SET CMD_PATH="cmd.exe"
 )
 
+IF "%~5" EQU "skipTempFilesCheck" GOTO RUN_AS_USER
+
 REM Check an agent will be able to remove temporary files
 SET RUNAS_TMP_FILE=runAs-%RANDOM%-%RANDOM%.tmp
 PUSHD %TMP%
@@ -52,6 +54,7 @@ IF EXIST %RUNAS_TMP_FILE% (
 set RUNAS_TMP_FILE=
 POPD
 
+:RUN_AS_USER
 REM Run as user
 %RUN_AS_PATH% -i:auto -l:errors "-p:%~4" "-c:%~1" -b:-10000 %CMD_PATH% /C "%~2"
 
@@ -67,5 +70,5 @@ EXIT /B %EXIT_CODE%
 
 :INVALID_ARGS
 @ECHO Invalid arguments.
-@ECHO Usage: runAs.cmd settings_file_name command_file_name bitness password
+@ECHO Usage: runAs.cmd settings_file_name command_file_name bitness password [skipTempFilesCheck]
 @EXIT -1
\ No newline at end of file
@@ -1,7 +1,14 @@
 #!/bin/bash
 
-# runAs (settings_file_name, command, bitness, password)
-if [ $# -eq 4 ];
+# runAs (settings_file_name, command, bitness, password[, flags])
+# flags are comma separated, the agent passes them when it has done these checks itself:
+# skipTempFilesCheck - the temp directory was checked
+# preAuthenticated - the user and the password were checked
+# authOnly - check the user and the password only
+# sudo - run the command via "sudo -n -E", the agent user has NOPASSWD and SETENV sudoers rule for the user,
+#        for instance "agent ALL=(user) NOPASSWD:SETENV: ALL", the environment and PATH of the build are kept like su does,
+#        the password is not checked, so the agent passes it only when teamcity.runAs.sudoMode.enabled is true
+if [[ $# -eq 4 || ( $# -eq 5 && "$1" != "runAs" && "$1" != "su" ) ]];
 then
 	# unquote args
 	eval "argsFile="$1""
@@ -13,8 +20,18 @@ then
 	if [[ "$EUID" -eq 0 ]];
 	then
 		# auth
-		su -c "\"${0}\" auth \"$password\"" "$args"
-		authCode=$?
+		if [[ ",$5," == *",preAuthenticated,"* ]];
+		then
+			authCode=0
+		else
+			su -c "\"${0}\" auth \"$password\"" "$args"
+			authCode=$?
+		fi
+
+		if [[ ",$5," == *",authOnly,"* ]];
+		then
+			exit $authCode
+		fi
 
 		if [ "$authCode" = "0" ];
 		then
@@ -49,32 +66,50 @@ then
 	fi
 
 	# if not root
-	# Check an agent will be able to remove temporary files
-	tmpScriptFile=$(mktemp)
-	tmpFile=$tmpScriptFile.tmp
-
-	cp -f "${0}" "$tmpScriptFile"
-	chmod a+rwx "$tmpScriptFile"
-	chmod a+rwx "$TMPDIR"
-	echo "#!/bin/bash" > "$tmpScriptFile"
-	echo "echo . > \"$tmpFile\"" >> "$tmpScriptFile"
-
-	# create temp file
-	"${0}" runAs "$args" "$tmpScriptFile" "$password" arg5
-
-	# try remove
-	rm "$tmpFile" &>/dev/null
-
-	if [ -f "$tmpFile" ]; then
-	  rm "$tmpScriptFile" &>/dev/null
-	  echo "##teamcity[message text='Incorrect runAs configuration: agent won't be able to remove temporary files created by the build step, see teamcity-agent.log for details .' status='ERROR']"
-	  exit 1
-	else
-	  # forcible remove tmp file
-	  echo "#!/bin/bash" > "$tmpScriptFile"
-	  echo "rm \"$tmpFile\" &>/dev/null" >> "$tmpScriptFile"
-	  "${0}" runAs "$args" "$tmpScriptFile" "$password" arg5
-	  rm "$tmpScriptFile" &>/dev/null
+	# su checks the password when it runs the command
+	if [[ ",$5," == *",authOnly,"* ]];
+	then
+		exit 0
+	fi
+
+	if [[ ",$5," != *",skipTempFilesCheck,"* ]];
+	then
+		# Check an agent will be able to remove temporary files
+		tmpScriptFile=$(mktemp)
+		tmpFile=$tmpScriptFile.tmp
+
+		cp -f "${0}" "$tmpScriptFile"
+		chmod a+rwx "$tmpScriptFile"
+		chmod a+rwx "$TMPDIR"
+		echo "#!/bin/bash" > "$tmpScriptFile"
+		echo "echo . > \"$tmpFile\"" >> "$tmpScriptFile"
+
+		# create temp file
+		"${0}" runAs "$args" "$tmpScriptFile" "$password" arg5
+
+		# try remove
+		rm "$tmpFile" &>/dev/null
+
+		if [ -f "$tmpFile" ]; then
+		  rm "$tmpScriptFile" &>/dev/null
+		  echo "##teamcity[message text='Incorrect runAs configuration: agent won't be able to remove temporary files created by the build step, see teamcity-agent.log for details .' status='ERROR']"
+		  exit 1
+		else
+		  # forcible remove tmp file
+		  echo "#!/bin/bash" > "$tmpScriptFile"
+		  echo "rm \"$tmpFile\" &>/dev/null" >> "$tmpScriptFile"
+		  "${0}" runAs "$args" "$tmpScriptFile" "$password" arg5
+		  rm "$tmpScriptFile" &>/dev/null
+		fi
+	fi
+
+	# the agent user has NOPASSWD sudoers rule for the user, so socat and the password are not required,
+	# sudo resets the environment and replaces PATH by secure_path, so they are passed explicitly,
+	# the agent checks this invocation in SudoAccessServiceImpl
+	if [[ ",$5," == *",sudo,"* ]];
+	then
+		sudo -n -E -u "$args" -- /usr/bin/env "PATH=$PATH" "$command"
+		exit $?
 	fi
 
 	# Run as user
@@ -136,6 +171,18 @@ then
 	# runAs without ROOT
 	if [ "$1" = "runAs" ];
 	then
+		args="$2"
+		command="$3"
+		password="$4"
+
+		# su is driven via a pseudo-terminal by the agent's launcher, it sends the password on the prompt and waits for su,
+		# socat is used when the pseudo-terminal cannot be created by script from util-linux
+		if [ -n "$RUN_AS_LAUNCHER_CLASSPATH" ] && script -V &>/dev/null;
+		then
+			printf '%s\n' "$password" | "$RUN_AS_LAUNCHER_JAVA" -cp "$RUN_AS_LAUNCHER_CLASSPATH" jetbrains.buildServer.runAs.agent.RunAsPtyLauncher "$command" "$args"
+			exit $?
+		fi
+
 		# check installed socat
 		socat -h &>/dev/null
 		socatExitCode=$?
@@ -145,10 +192,6 @@ then
 			exit 255
 		fi
 
-		args="$2"
-		command="$3"
-		password="$4"
-
 		tmpFile=$(mktemp)
 		chmod a+rw "$tmpFile"
 
@@ -1,7 +1,14 @@
 #!/bin/bash
 
-# runAs (settings_file_name, command, bitness, password)
-if [ $# -eq 4 ];
+# runAs (settings_file_name, command, bitness, password[, flags])
+# flags are comma separated, the agent passes them when it has done these checks itself:
+# skipTempFilesCheck - the temp directory was checked
+# preAuthenticated - the user and the password were checked
+# authOnly - check the user and the password only
+# sudo - run the command via "sudo -n -E", the agent user has NOPASSWD and SETENV sudoers rule for the user,
+#        for instance "agent ALL=(user) NOPASSWD:SETENV: ALL", the environment and PATH of the build are kept like su does,
+#        the password is not checked, so the agent passes it only when teamcity.runAs.sudoMode.enabled is true
+if [[ $# -eq 4 || ( $# -eq 5 && "$1" != "runAs" && "$1" != "su" ) ]];
 then
 	# unquote args
 	eval "argsFile="$1""
@@ -16,8 +23,18 @@ then
 	if [[ "$EUID" -eq 0 ]];
 	then
 		# auth
-		su -c "\"${0}\" auth \"$password\"" "$args"
-		authCode=$?
+		if [[ ",$5," == *",preAuthenticated,"* ]];
+		then
+			authCode=0
+		else
+			su -c "\"${0}\" auth \"$password\"" "$args"
+			authCode=$?
+		fi
+
+		if [[ ",$5," == *",authOnly,"* ]];
+		then
+			exit $authCode
+		fi
 
 		if [ "$authCode" = "0" ];
 		then
@@ -31,38 +48,56 @@ then
 	fi
 
 	# if not root
-	# Check an agent will be able to remove temporary files
-	tmpScriptFile=$(mktemp "$TMPDIR"/XXXXXXXX)
-	tmpFile=$tmpScriptFile.tmp
+	# su checks the password when it runs the command
+	if [[ ",$5," == *",authOnly,"* ]];
+	then
+		exit 0
+	fi
 
-	echo "#!/bin/bash" > "$tmpScriptFile"
-	echo "touch \"$tmpFile\"" >> "$tmpScriptFile"
-	chmod a+rwx "$tmpScriptFile"
+	if [[ ",$5," != *",skipTempFilesCheck,"* ]];
+	then
+		# Check an agent will be able to remove temporary files
+		tmpScriptFile=$(mktemp "$TMPDIR"/XXXXXXXX)
+		tmpFile=$tmpScriptFile.tmp
 
-	# Create temp file under the runAs user
-	"${0}" runAs "$args" "$tmpScriptFile" "$password" arg5 &>/dev/null
-	exitCode=$?
+		echo "#!/bin/bash" > "$tmpScriptFile"
+		echo "touch \"$tmpFile\"" >> "$tmpScriptFile"
+		chmod a+rwx "$tmpScriptFile"
 
-	if [ "$exitCode" != "0" ];
-	then
-	  echo "##teamcity[message text='User \"$args\" has no required permissions for target directory|n \"$TMPDIR\".|n Make sure this user has permissions to write and to execute files in the target directory (rwx)|n and to search (X) in all its parent directories' status='ERROR']"
-	  exit 255
+		# Create temp file under the runAs user
+		"${0}" runAs "$args" "$tmpScriptFile" "$password" arg5 &>/dev/null
+		exitCode=$?
+
+		if [ "$exitCode" != "0" ];
+		then
+		  echo "##teamcity[message text='User \"$args\" has no required permissions for target directory|n \"$TMPDIR\".|n Make sure this user has permissions to write and to execute files in the target directory (rwx)|n and to search (X) in all its parent directories' status='ERROR']"
+		  exit 255
+		fi
+
+		# check that agent won't be able to remove temporary files created by the build step
+		rm "$tmpFile" &>/dev/null
+
+		if [ -f "$tmpFile" ]; then
+		  rm "$tmpScriptFile" &>/dev/null
+		  echo "##teamcity[message text='Incorrect runAs configuration: agent won't be able to remove temporary files created by the build step, see teamcity-agent.log for details .' status='ERROR']"
+		  exit 1
+		else
+		  # forcible remove tmp file
+		  echo "#!/bin/bash" > "$tmpScriptFile"
+		  echo "rm \"$tmpFile\" &>/dev/null" >> "$tmpScriptFile"
+		  chmod a+rwx "$tmpScriptFile"
+		  "${0}" runAs "$args" "$tmpScriptFile" "$password" arg5 &>/dev/null
+		  rm "$tmpScriptFile" &>/dev/null
+		fi
 	fi
 
-	# check that agent won't be able to remove temporary files created by the build step
-	rm "$tmpFile" &>/dev/null
-
-	if [ -f "$tmpFile" ]; then
-	  rm "$tmpScriptFile" &>/dev/null
-	  echo "##teamcity[message text='Incorrect runAs configuration: agent won't be able to remove temporary files created by the build step, see teamcity-agent.log for details .' status='ERROR']"
-	  exit 1
-	else
-	  # forcible remove tmp file
-	  echo "#!/bin/bash" > "$tmpScriptFile"
-	  echo "rm \"$tmpFile\" &>/dev/null" >> "$tmpScriptFile"
-	  chmod a+rwx "$tmpScriptFile"
-	  "${0}" runAs "$args" "$tmpScriptFile" "$password" arg5 &>/dev/null
-	  rm "$tmpScriptFile" &>/dev/null
+	# the agent user has NOPASSWD sudoers rule for the user, so socat and the password are not required,
+	# sudo resets the environment and replaces PATH by secure_path, so they are passed explicitly,
+	# the agent checks this invocation in SudoAccessServiceImpl
+	if [[ ",$5," == *",sudo,"* ]];
+	then
+		sudo -n -E -u "$args" -- /usr/bin/env "PATH=$PATH" "$command"
+		exit $?
 	fi
 
     # Run as user
@@ -3,6 +3,7 @@
 package jetbrains.buildServer.runAs.agent;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
@@ -31,9 +32,10 @@ public class AccessControlList implements Iterable<AccessControlEntry> {
     return myAccessControlEntries.hashCode();
   }
 
+  // parsed ACLs are shared, so they are not modifiable
   @Override
   public Iterator<AccessControlEntry> iterator() {
-    return myAccessControlEntries.iterator();
+    return Collections.unmodifiableList(myAccessControlEntries).iterator();
   }
 
 
@@ -0,0 +1,8 @@
+package jetbrains.buildServer.runAs.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+public interface AccessControlListCompiler {
+  @NotNull
+  AccessControlList compile(@NotNull final AccessControlList accessControlList);
+}
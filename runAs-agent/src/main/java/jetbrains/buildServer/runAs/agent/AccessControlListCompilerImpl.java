@@ -0,0 +1,143 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.nio.file.Path;
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class AccessControlListCompilerImpl implements AccessControlListCompiler {
+  private static final Logger LOG = Logger.getInstance(AccessControlListCompilerImpl.class.getName());
+
+  @NotNull
+  @Override
+  public AccessControlList compile(@NotNull final AccessControlList accessControlList) {
+    final List<Item> items = new ArrayList<Item>();
+    final PathTrie<Item> trie = new PathTrie<Item>();
+    int count = 0;
+    for (AccessControlEntry entry: accessControlList) {
+      count++;
+      if(AntPattern.isPattern(entry.getFile())) {
+        // a pattern could affect any file under its root, so it is kept as is and it separates entries under the root
+        final Item item = new Item(items.size(), entry, AntPattern.compile(entry.getFile().toPath()).getRoot(), true, true);
+        items.add(item);
+        trie.add(item.myPath, item);
+        continue;
+      }
+
+      final Path path = PathTrie.getPath(entry.getFile());
+      final boolean isRecursive = entry.getPermissions().contains(AccessPermissions.Recursive);
+      final Item lastItem = findLastOverlappedItem(trie, path, isRecursive);
+      if(lastItem != null) {
+        if (lastItem.canMerge(entry, path, isRecursive)) {
+          if(LOG.isDebugEnabled()) {
+            LOG.debug("Merge " + entry + " into " + lastItem.getEntry());
+          }
+
+          lastItem.merge(entry);
+          continue;
+        }
+
+        if (lastItem.covers(entry, path)) {
+          if(LOG.isDebugEnabled()) {
+            LOG.debug("Skip " + entry + " because it is covered by " + lastItem.getEntry());
+          }
+
+          continue;
+        }
+      }
+
+      final Item item = new Item(items.size(), entry, path, isRecursive, false);
+      items.add(item);
+      trie.add(path, item);
+    }
+
+    final List<AccessControlEntry> entries = new ArrayList<AccessControlEntry>();
+    for (Item item: items) {
+      entries.add(item.getEntry());
+    }
+
+    if(entries.size() < count) {
+      LOG.info("ACL was compiled, " + (count - entries.size()) + " of " + count + " entries were removed");
+    }
+
+    return new AccessControlList(entries);
+  }
+
+  // only the last entry affecting the same files could absorb a new one, other entries are separated by it
+  @Nullable
+  private static Item findLastOverlappedItem(@NotNull final PathTrie<Item> trie, @NotNull final Path path, final boolean isRecursive) {
+    Item lastItem = null;
+    for (Item item: trie.getAncestorsOrSelf(path)) {
+      if((item.myIsRecursive || item.myPath.equals(path)) && (lastItem == null || item.myIndex > lastItem.myIndex)) {
+        lastItem = item;
+      }
+    }
+
+    if(isRecursive) {
+      for (Item item: trie.getDescendants(path)) {
+        if(lastItem == null || item.myIndex > lastItem.myIndex) {
+          lastItem = item;
+        }
+      }
+    }
+
+    return lastItem;
+  }
+
+  private static class Item {
+    private final int myIndex;
+    private final AccessControlEntry myEntry;
+    private final Path myPath;
+    private final boolean myIsRecursive;
+    private final boolean myIsPattern;
+    private final EnumSet<AccessPermissions> myPermissions;
+    private boolean myIsMerged;
+
+    Item(final int index, @NotNull final AccessControlEntry entry, @NotNull final Path path, final boolean isRecursive, final boolean isPattern) {
+      myIndex = index;
+      myEntry = entry;
+      myPath = path;
+      myIsRecursive = isRecursive;
+      myIsPattern = isPattern;
+      myPermissions = EnumSet.copyOf(entry.getPermissions());
+    }
+
+    @NotNull
+    AccessControlEntry getEntry() {
+      if(!myIsMerged) {
+        return myEntry;
+      }
+
+      return new AccessControlEntry(myEntry.getFile(), myEntry.getAccount(), EnumSet.copyOf(myPermissions), myEntry.getScope());
+    }
+
+    boolean canMerge(@NotNull final AccessControlEntry entry, @NotNull final Path path, final boolean isRecursive) {
+      return !myIsPattern
+        && myPath.equals(path)
+        && myIsRecursive == isRecursive
+        && myEntry.getAccount().equals(entry.getAccount())
+        && myEntry.getScope() == entry.getScope()
+        && !AccessCoverage.hasConflicts(myPermissions, entry.getPermissions());
+    }
+
+    void merge(@NotNull final AccessControlEntry entry) {
+      myPermissions.addAll(entry.getPermissions());
+      myIsMerged = true;
+    }
+
+    boolean covers(@NotNull final AccessControlEntry entry, @NotNull final Path path) {
+      // a scope with a greater ordinal is applied more often
+      if(myIsPattern || myEntry.getScope().ordinal() < entry.getScope().ordinal() || !myEntry.getAccount().equals(entry.getAccount())) {
+        return false;
+      }
+
+      // the last overlapped item could be a recursive descendant of the entry, it never covers its ancestor
+      if(!path.startsWith(myPath)) {
+        return false;
+      }
+
+      return AccessCoverage.covers(myPath, myPermissions, path, entry.getPermissions());
+    }
+  }
+}
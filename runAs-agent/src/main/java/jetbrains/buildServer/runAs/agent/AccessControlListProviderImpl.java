@@ -3,10 +3,8 @@
 package jetbrains.buildServer.runAs.agent;
 
 import com.intellij.openapi.diagnostic.Logger;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.EnumSet;
-import java.util.List;
+import java.io.File;
+import java.util.*;
 import jetbrains.buildServer.dotNet.buildRunner.agent.TextParser;
 import jetbrains.buildServer.runAs.common.Constants;
 import jetbrains.buildServer.util.StringUtil;
@@ -15,11 +13,36 @@ import org.jetbrains.annotations.Nullable;
 
 public class AccessControlListProviderImpl implements AccessControlListProvider {
   @NotNull private static final Logger LOG = Logger.getInstance(AccessControlListProviderImpl.class.getName());
+  private static final int MAX_CACHED_USERS = 16;
+  private static final EnumSet<AccessPermissions> OurReadExecute = EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantExecute, AccessPermissions.Recursive);
+  private static final EnumSet<AccessPermissions> OurFullAccess = EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.GrantExecute, AccessPermissions.Recursive);
+  private static final EnumSet<AccessPermissions> OurNoAccess = EnumSet.of(AccessPermissions.DenyRead, AccessPermissions.DenyWrite, AccessPermissions.DenyExecute, AccessPermissions.Recursive);
+  @NotNull private static final DefaultAce[] OurDefaultAcl = new DefaultAce[] {
+    new DefaultAce(WellKnownPaths.Work, true, EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Global),
+    new DefaultAce(WellKnownPaths.Tools, true, OurReadExecute, AccessControlScope.Global),
+    new DefaultAce(WellKnownPaths.Plugins, true, OurReadExecute, AccessControlScope.Global),
+    new DefaultAce(WellKnownPaths.Lib, true, OurReadExecute, AccessControlScope.Global),
+    new DefaultAce(WellKnownPaths.Config, false, OurNoAccess, AccessControlScope.Build),
+    new DefaultAce(WellKnownPaths.Checkout, false, OurFullAccess, AccessControlScope.Build),
+    new DefaultAce(WellKnownPaths.Log, false, OurNoAccess, AccessControlScope.Step),
+    new DefaultAce(WellKnownPaths.System, false, OurFullAccess, AccessControlScope.Step),
+    new DefaultAce(WellKnownPaths.AgentTemp, false, OurFullAccess, AccessControlScope.Step),
+    new DefaultAce(WellKnownPaths.BuildTemp, false, OurFullAccess, AccessControlScope.Step),
+    new DefaultAce(WellKnownPaths.GlobalTemp, false, OurReadExecute, AccessControlScope.Step)
+  };
   @NotNull private final PathsService myPathsService;
   @NotNull private final TextParser<AccessControlList> myFileAccessParser;
   @NotNull private final AgentParametersService myAgentParametersService;
   @NotNull private final ProfileParametersService myProfileParametersService;
-  @Nullable private List<AccessControlEntry> myDefaultAcl;
+  @Nullable private Map<WellKnownPaths, File> myDefaultAclPaths;
+  @NotNull private List<AccessControlEntry> myDefaultAclForAll = Collections.emptyList();
+  // the least recently used users are evicted
+  @NotNull private final Map<String, List<AccessControlEntry>> myDefaultAcls = new LinkedHashMap<String, List<AccessControlEntry>>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, List<AccessControlEntry>> eldest) {
+      return size() > MAX_CACHED_USERS;
+    }
+  };
 
   public AccessControlListProviderImpl(
     @NotNull final PathsService pathsService,
@@ -63,23 +86,72 @@ public class AccessControlListProviderImpl implements AccessControlListProvider
     }
   }
 
-  private List<AccessControlEntry> getDefaultAcl(@NotNull final String username)
+  // the cache is valid while the agent paths are the same, for instance until the checkout directory is changed
+  @NotNull
+  private synchronized List<AccessControlEntry> getDefaultAcl(@NotNull final String username)
   {
-    if(myDefaultAcl == null) {
-      myDefaultAcl = Arrays.asList(
-        new AccessControlEntry(myPathsService.getPath(WellKnownPaths.Work), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Global),
-        new AccessControlEntry(myPathsService.getPath(WellKnownPaths.Tools), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Global),
-        new AccessControlEntry(myPathsService.getPath(WellKnownPaths.Plugins), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Global),
-        new AccessControlEntry(myPathsService.getPath(WellKnownPaths.Lib), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Global),
-        new AccessControlEntry(myPathsService.getPath(WellKnownPaths.Config), AccessControlAccount.forUser(username), EnumSet.of(AccessPermissions.DenyRead, AccessPermissions.DenyWrite, AccessPermissions.DenyExecute, AccessPermissions.Recursive), AccessControlScope.Build),
-        new AccessControlEntry(myPathsService.getPath(WellKnownPaths.Checkout), AccessControlAccount.forUser(username), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Build),
-        new AccessControlEntry(myPathsService.getPath(WellKnownPaths.Log), AccessControlAccount.forUser(username), EnumSet.of(AccessPermissions.DenyRead, AccessPermissions.DenyWrite, AccessPermissions.DenyExecute, AccessPermissions.Recursive), AccessControlScope.Step),
-        new AccessControlEntry(myPathsService.getPath(WellKnownPaths.System), AccessControlAccount.forUser(username), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Step),
-        new AccessControlEntry(myPathsService.getPath(WellKnownPaths.AgentTemp), AccessControlAccount.forUser(username), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Step),
-        new AccessControlEntry(myPathsService.getPath(WellKnownPaths.BuildTemp), AccessControlAccount.forUser(username), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Step),
-        new AccessControlEntry(myPathsService.getPath(WellKnownPaths.GlobalTemp), AccessControlAccount.forUser(username), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Step));
+    final Map<WellKnownPaths, File> paths = new EnumMap<WellKnownPaths, File>(WellKnownPaths.class);
+    for (DefaultAce defaultAce: OurDefaultAcl) {
+      paths.put(defaultAce.myPath, myPathsService.getPath(defaultAce.myPath));
+    }
+
+    if(!paths.equals(myDefaultAclPaths)) {
+      myDefaultAclPaths = paths;
+      myDefaultAclForAll = createDefaultAclForAll(paths);
+      myDefaultAcls.clear();
+    }
+
+    List<AccessControlEntry> defaultAcl = myDefaultAcls.get(username);
+    if(defaultAcl == null) {
+      defaultAcl = new ArrayList<AccessControlEntry>(myDefaultAclForAll);
+      defaultAcl.addAll(createDefaultAclForUser(paths, username));
+      defaultAcl = Collections.unmodifiableList(defaultAcl);
+      myDefaultAcls.put(username, defaultAcl);
+    }
+
+    return defaultAcl;
+  }
+
+  @NotNull
+  private static List<AccessControlEntry> createDefaultAclForAll(@NotNull final Map<WellKnownPaths, File> paths) {
+    final List<AccessControlEntry> acl = new ArrayList<AccessControlEntry>();
+    for (DefaultAce defaultAce: OurDefaultAcl) {
+      if(defaultAce.myIsForAll) {
+        acl.add(new AccessControlEntry(paths.get(defaultAce.myPath), AccessControlAccount.forAll(), EnumSet.copyOf(defaultAce.myPermissions), defaultAce.myScope));
+      }
     }
 
-    return myDefaultAcl;
+    return acl;
+  }
+
+  @NotNull
+  private static List<AccessControlEntry> createDefaultAclForUser(@NotNull final Map<WellKnownPaths, File> paths, @NotNull final String username) {
+    final List<AccessControlEntry> acl = new ArrayList<AccessControlEntry>();
+    for (DefaultAce defaultAce: OurDefaultAcl) {
+      if(!defaultAce.myIsForAll) {
+        acl.add(new AccessControlEntry(paths.get(defaultAce.myPath), AccessControlAccount.forUser(username), EnumSet.copyOf(defaultAce.myPermissions), defaultAce.myScope));
+      }
+    }
+
+    return acl;
+  }
+
+  // the default entry for a well known path, it is granted for all users or for the runAs user
+  private static class DefaultAce {
+    @NotNull private final WellKnownPaths myPath;
+    private final boolean myIsForAll;
+    @NotNull private final EnumSet<AccessPermissions> myPermissions;
+    @NotNull private final AccessControlScope myScope;
+
+    DefaultAce(
+      @NotNull final WellKnownPaths path,
+      final boolean isForAll,
+      @NotNull final EnumSet<AccessPermissions> permissions,
+      @NotNull final AccessControlScope scope) {
+      myPath = path;
+      myIsForAll = isForAll;
+      myPermissions = permissions;
+      myScope = scope;
+    }
   }
-}
\ No newline at end of file
+}
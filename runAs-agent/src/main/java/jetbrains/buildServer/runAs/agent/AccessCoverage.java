@@ -0,0 +1,52 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+
+class AccessCoverage {
+  private static final Map<AccessPermissions, EnumSet<AccessPermissions>> OurConflictingGrants = new HashMap<AccessPermissions, EnumSet<AccessPermissions>>();
+
+  static {
+    // a grant which is applied after a deny could restore some of denied permissions, "rX" for instance restores "x" for directories
+    OurConflictingGrants.put(AccessPermissions.DenyRead, EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantExecute));
+    OurConflictingGrants.put(AccessPermissions.DenyWrite, EnumSet.of(AccessPermissions.GrantWrite));
+    OurConflictingGrants.put(AccessPermissions.DenyExecute, EnumSet.of(AccessPermissions.GrantExecute, AccessPermissions.GrantRead));
+  }
+
+  private AccessCoverage() {
+  }
+
+  static boolean hasConflicts(@NotNull final EnumSet<AccessPermissions> denies, @NotNull final EnumSet<AccessPermissions> grants) {
+    for (AccessPermissions deny: denies) {
+      final EnumSet<AccessPermissions> conflictingGrants = OurConflictingGrants.get(deny);
+      if(conflictingGrants == null) {
+        continue;
+      }
+
+      for (AccessPermissions grant: grants) {
+        if(conflictingGrants.contains(grant)) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  // true when applying the other permissions after these ones changes nothing
+  static boolean covers(
+    @NotNull final Path path,
+    @NotNull final EnumSet<AccessPermissions> permissions,
+    @NotNull final Path otherPath,
+    @NotNull final EnumSet<AccessPermissions> otherPermissions) {
+    final boolean isRecursive = permissions.contains(AccessPermissions.Recursive);
+    if(path.equals(otherPath) ? otherPermissions.contains(AccessPermissions.Recursive) && !isRecursive : !isRecursive || !otherPath.startsWith(path)) {
+      return false;
+    }
+
+    return permissions.containsAll(otherPermissions) && !hasConflicts(permissions, otherPermissions);
+  }
+}
@@ -0,0 +1,88 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+import org.jetbrains.annotations.NotNull;
+
+// Ant-like patterns of paths: "*" and "?" match chars inside a name, "**" matches any number of directories
+class AntPattern {
+  private static final String ANY_DIRECTORIES = "**";
+  @NotNull private final Path myRoot;
+  @NotNull private final Pattern myPattern;
+
+  private AntPattern(@NotNull final Path root, @NotNull final Pattern pattern) {
+    myRoot = root;
+    myPattern = pattern;
+  }
+
+  static boolean isPattern(@NotNull final File file) {
+    final String path = file.getPath();
+    return path.indexOf('*') >= 0 || path.indexOf('?') >= 0;
+  }
+
+  @NotNull
+  static AntPattern compile(@NotNull final Path pattern) {
+    final Path absolutePattern = pattern.toAbsolutePath().normalize();
+    // the root is the longest path without wildcards, only it is walked
+    Path root = absolutePattern.getRoot();
+    int index = 0;
+    for (; index < absolutePattern.getNameCount(); index++) {
+      final Path name = absolutePattern.getName(index);
+      if(isPattern(name.toFile())) {
+        break;
+      }
+
+      root = root.resolve(name);
+    }
+
+    final StringBuilder regex = new StringBuilder();
+    final String rootStr = root.toString();
+    regex.append(Pattern.quote(rootStr.endsWith(File.separator) ? rootStr.substring(0, rootStr.length() - 1) : rootStr));
+    final String separator = Pattern.quote(File.separator);
+    final String notSeparator = "[^" + separator + "]";
+    for (; index < absolutePattern.getNameCount(); index++) {
+      final String name = absolutePattern.getName(index).toString();
+      if(ANY_DIRECTORIES.equals(name)) {
+        regex.append("(?:").append(separator).append(notSeparator).append("+)*");
+        continue;
+      }
+
+      regex.append(separator);
+      final StringBuilder literal = new StringBuilder();
+      for (char ch: name.toCharArray()) {
+        if(ch != '*' && ch != '?') {
+          literal.append(ch);
+          continue;
+        }
+
+        if(literal.length() > 0) {
+          regex.append(Pattern.quote(literal.toString()));
+          literal.setLength(0);
+        }
+
+        regex.append(notSeparator).append(ch == '*' ? "*" : "");
+      }
+
+      if(literal.length() > 0) {
+        regex.append(Pattern.quote(literal.toString()));
+      }
+    }
+
+    return new AntPattern(root, Pattern.compile(regex.toString()));
+  }
+
+  @NotNull
+  Path getRoot() {
+    return myRoot;
+  }
+
+  boolean matches(@NotNull final Path path) {
+    return myPattern.matcher(path.toString()).matches();
+  }
+
+  @Override
+  public String toString() {
+    return myPattern.pattern();
+  }
+}
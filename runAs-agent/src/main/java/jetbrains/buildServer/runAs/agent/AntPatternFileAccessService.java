@@ -0,0 +1,144 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+// Resolves Ant-like patterns for services which apply literal paths only, like chmod and icacls.
+// Matched files are passed to the service in batches during the walk, so large match sets are not kept in memory.
+public class AntPatternFileAccessService implements FileAccessService {
+  private static final Logger LOG = Logger.getInstance(AntPatternFileAccessService.class.getName());
+  static final int BATCH_SIZE = 256;
+  private final FileAccessService myFileAccessService;
+  private final FileTreeWalker myFileTreeWalker;
+
+  public AntPatternFileAccessService(
+    @NotNull final FileAccessService fileAccessService,
+    @NotNull final FileTreeWalker fileTreeWalker) {
+    myFileAccessService = fileAccessService;
+    myFileTreeWalker = fileTreeWalker;
+  }
+
+  @Override
+  public Iterable<Result<AccessControlEntry, Boolean>> setAccess(@NotNull final AccessControlList accessControlList) {
+    final List<Result<AccessControlEntry, Boolean>> results = new ArrayList<Result<AccessControlEntry, Boolean>>();
+    // literal entries between patterns keep the order of changes
+    final List<AccessControlEntry> literalEntries = new ArrayList<AccessControlEntry>();
+    for (AccessControlEntry ace: accessControlList) {
+      if(!AntPattern.isPattern(ace.getFile())) {
+        literalEntries.add(ace);
+        continue;
+      }
+
+      applyLiteralEntries(literalEntries, results);
+      literalEntries.clear();
+      results.add(applyPattern(ace));
+    }
+
+    applyLiteralEntries(literalEntries, results);
+    return results;
+  }
+
+  private void applyLiteralEntries(@NotNull final List<AccessControlEntry> entries, @NotNull final List<Result<AccessControlEntry, Boolean>> results) {
+    if(entries.isEmpty()) {
+      return;
+    }
+
+    for (Result<AccessControlEntry, Boolean> result: myFileAccessService.setAccess(new AccessControlList(new ArrayList<AccessControlEntry>(entries)))) {
+      results.add(result);
+    }
+  }
+
+  @NotNull
+  private Result<AccessControlEntry, Boolean> applyPattern(@NotNull final AccessControlEntry entry) {
+    final AntPattern pattern = AntPattern.compile(entry.getFile().toPath());
+    // the walk visits all files under the root, so matched directories are not changed recursively
+    final EnumSet<AccessPermissions> permissions = EnumSet.copyOf(entry.getPermissions());
+    permissions.remove(AccessPermissions.Recursive);
+    final Batch batch = new Batch(entry);
+    final Path root = pattern.getRoot();
+    boolean isSuccessful;
+    try {
+      // like the walker does, the root is resolved, so paths are matched against the original root
+      final Path realRoot = Files.isSymbolicLink(root) ? root.toRealPath() : root;
+      isSuccessful = myFileTreeWalker.walk(realRoot, new FileTreeVisitor() {
+        @Override
+        public void visit(@NotNull final Path file, @NotNull final BasicFileAttributes attributes) {
+          final Path path = root.resolve(realRoot.relativize(file));
+          if(pattern.matches(path)) {
+            batch.add(new AccessControlEntry(path.toFile(), entry.getAccount(), permissions, entry.getScope()));
+          }
+        }
+
+        @Override
+        public void visitFailed(@NotNull final Path file, @NotNull final IOException error) {
+          LOG.warn("Cannot apply " + entry + " to \"" + file + "\": " + error.getMessage());
+        }
+      });
+    }
+    catch (IOException ex) {
+      LOG.warn("Cannot apply " + entry + ": " + ex.getMessage());
+      isSuccessful = false;
+    }
+
+    batch.apply();
+    if(LOG.isDebugEnabled()) {
+      LOG.debug("\"" + pattern + "\" was applied to " + entry + ": " + batch.getStatistics());
+    }
+
+    return new FileAccessResult(entry, isSuccessful && batch.isSuccessful(), batch.getStatistics());
+  }
+
+  // the walker visits files in parallel, so matched entries are collected and applied under the lock
+  private class Batch {
+    private final AccessControlEntry myEntry;
+    private final List<AccessControlEntry> myEntries = new ArrayList<AccessControlEntry>();
+    private final FileAccessStatistics myStatistics = new FileAccessStatistics();
+    private boolean myIsSuccessful = true;
+
+    Batch(@NotNull final AccessControlEntry entry) {
+      myEntry = entry;
+    }
+
+    synchronized void add(@NotNull final AccessControlEntry entry) {
+      myEntries.add(entry);
+      if(myEntries.size() >= BATCH_SIZE) {
+        apply();
+      }
+    }
+
+    synchronized void apply() {
+      if(myEntries.isEmpty()) {
+        return;
+      }
+
+      for (Result<AccessControlEntry, Boolean> result: myFileAccessService.setAccess(new AccessControlList(new ArrayList<AccessControlEntry>(myEntries)))) {
+        // the service changes each passed file
+        final boolean isApplied = result.isSuccessful() && Boolean.TRUE.equals(result.getValue());
+        if(!isApplied) {
+          LOG.warn("Cannot apply " + myEntry + " to \"" + result.getContext().getFile() + "\"");
+          myIsSuccessful = false;
+        }
+
+        myStatistics.onExamined(isApplied);
+      }
+
+      myEntries.clear();
+    }
+
+    synchronized boolean isSuccessful() {
+      return myIsSuccessful;
+    }
+
+    @NotNull
+    synchronized FileAccessStatistics getStatistics() {
+      return myStatistics;
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.util.concurrent.CompletableFuture;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import org.jetbrains.annotations.NotNull;
+
+public interface AsyncCommandLineExecutor {
+  // the result is completed exceptionally by the ExecutionException or by the TimeoutException,
+  // cancellation of the result interrupts the execution
+  @NotNull
+  CompletableFuture<ExecResult> runProcessAsync(@NotNull final CommandLineSetup commandLineSetup, final int executionTimeoutSeconds);
+}
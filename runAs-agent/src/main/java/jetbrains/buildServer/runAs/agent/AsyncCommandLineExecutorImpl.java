@@ -0,0 +1,144 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import jetbrains.buildServer.runAs.common.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// Runs commands on the bounded pool, the timeout of a command is started when the command is started
+public class AsyncCommandLineExecutorImpl implements AsyncCommandLineExecutor {
+  private static final Logger LOG = Logger.getInstance(AsyncCommandLineExecutorImpl.class.getName());
+  static final int DEFAULT_PARALLELISM = 4;
+  private final CommandLineExecutor myCommandLineExecutor;
+  @Nullable private final BuildAgentConfiguration myBuildAgentConfiguration;
+  private final int myParallelism;
+  private ExecutorService myExecutor;
+  private ScheduledExecutorService myScheduler;
+
+  public AsyncCommandLineExecutorImpl(
+    @NotNull final CommandLineExecutor commandLineExecutor,
+    @NotNull final BuildAgentConfiguration buildAgentConfiguration) {
+    myCommandLineExecutor = commandLineExecutor;
+    myBuildAgentConfiguration = buildAgentConfiguration;
+    myParallelism = DEFAULT_PARALLELISM;
+  }
+
+  AsyncCommandLineExecutorImpl(
+    @NotNull final CommandLineExecutor commandLineExecutor,
+    final int parallelism) {
+    myCommandLineExecutor = commandLineExecutor;
+    myBuildAgentConfiguration = null;
+    myParallelism = parallelism;
+  }
+
+  @NotNull
+  @Override
+  public CompletableFuture<ExecResult> runProcessAsync(@NotNull final CommandLineSetup commandLineSetup, final int executionTimeoutSeconds) {
+    final ProcessTask processTask = new ProcessTask(commandLineSetup, executionTimeoutSeconds);
+    final FutureTask<Void> task = new FutureTask<Void>(processTask, null);
+    processTask.setTask(task);
+    processTask.getResult().whenComplete(new BiConsumer<ExecResult, Throwable>() {
+      @Override
+      public void accept(final ExecResult execResult, final Throwable error) {
+        if(processTask.getResult().isCancelled()) {
+          task.cancel(true);
+        }
+      }
+    });
+
+    getExecutor().execute(task);
+    return processTask.getResult();
+  }
+
+  @NotNull
+  private synchronized ExecutorService getExecutor() {
+    if(myExecutor == null) {
+      final int parallelism = myBuildAgentConfiguration != null
+        ? ParameterUtils.parseInt(myBuildAgentConfiguration.getConfigurationParameters().get(Constants.RUN_AS_EXEC_PARALLELISM), myParallelism)
+        : myParallelism;
+
+      final int poolSize = Math.max(parallelism, 1);
+      LOG.info("Commands are executed by " + poolSize + " threads");
+      myExecutor = Executors.newFixedThreadPool(poolSize, new DaemonThreadFactory("runAs exec"));
+      myScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("runAs exec timeout"));
+    }
+
+    return myExecutor;
+  }
+
+  @NotNull
+  private synchronized ScheduledExecutorService getScheduler() {
+    getExecutor();
+    return myScheduler;
+  }
+
+  private class ProcessTask implements Runnable {
+    private final CommandLineSetup myCommandLineSetup;
+    private final int myExecutionTimeoutSeconds;
+    private final CompletableFuture<ExecResult> myResult = new CompletableFuture<ExecResult>();
+    private volatile Future<?> myTask;
+
+    ProcessTask(@NotNull final CommandLineSetup commandLineSetup, final int executionTimeoutSeconds) {
+      myCommandLineSetup = commandLineSetup;
+      myExecutionTimeoutSeconds = executionTimeoutSeconds;
+    }
+
+    @NotNull
+    CompletableFuture<ExecResult> getResult() {
+      return myResult;
+    }
+
+    void setTask(@NotNull final Future<?> task) {
+      myTask = task;
+    }
+
+    @Override
+    public void run() {
+      // it was cancelled while it was waiting in the queue
+      if(myResult.isDone()) {
+        return;
+      }
+
+      final ScheduledFuture<?> timeout = getScheduler().schedule(new Runnable() {
+        @Override
+        public void run() {
+          if(myResult.completeExceptionally(new TimeoutException("Timeout " + myExecutionTimeoutSeconds + " seconds is expired for " + myCommandLineSetup))) {
+            myTask.cancel(true);
+          }
+        }
+      }, myExecutionTimeoutSeconds, TimeUnit.SECONDS);
+
+      try {
+        myResult.complete(myCommandLineExecutor.runProcess(myCommandLineSetup, myExecutionTimeoutSeconds));
+      }
+      catch (Exception ex) {
+        myResult.completeExceptionally(ex);
+      }
+      finally {
+        timeout.cancel(false);
+      }
+    }
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final String myName;
+    private final AtomicInteger myCount = new AtomicInteger();
+
+    DaemonThreadFactory(@NotNull final String name) {
+      myName = name;
+    }
+
+    @Override
+    public Thread newThread(@NotNull final Runnable runnable) {
+      final Thread thread = new Thread(runnable, myName + " " + myCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package jetbrains.buildServer.runAs.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+public interface AuthenticationCache {
+  boolean isAuthenticated(@NotNull final String user, @NotNull final String password);
+
+  void setAuthenticated(@NotNull final String user, @NotNull final String password);
+
+  void invalidate(@NotNull final String user);
+}
@@ -0,0 +1,58 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.jetbrains.annotations.NotNull;
+
+// Keeps users, which passwords were checked during the agent session.
+// Passwords are kept in memory only as salted hashes, the salt is generated for each agent session.
+public class AuthenticationCacheImpl implements AuthenticationCache {
+  private static final Charset OurCharset = Charset.forName("UTF-8");
+  private static final int SALT_SIZE = 32;
+  private final byte[] mySalt = new byte[SALT_SIZE];
+  private final HashMap<String, byte[]> myHashes = new HashMap<String, byte[]>();
+
+  public AuthenticationCacheImpl() {
+    new SecureRandom().nextBytes(mySalt);
+  }
+
+  @Override
+  public synchronized boolean isAuthenticated(@NotNull final String user, @NotNull final String password) {
+    final byte[] hash = myHashes.get(user);
+    return hash != null && MessageDigest.isEqual(hash, getHash(user, password));
+  }
+
+  @Override
+  public synchronized void setAuthenticated(@NotNull final String user, @NotNull final String password) {
+    myHashes.put(user, getHash(user, password));
+  }
+
+  @Override
+  public synchronized void invalidate(@NotNull final String user) {
+    final byte[] hash = myHashes.remove(user);
+    if(hash != null) {
+      Arrays.fill(hash, (byte)0);
+    }
+  }
+
+  @NotNull
+  private byte[] getHash(@NotNull final String user, @NotNull final String password) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+
+    digest.update(mySalt);
+    digest.update(user.getBytes(OurCharset));
+    // the separator does not allow to get the same hash for other pairs of a user and a password
+    digest.update((byte)0);
+    return digest.digest(password.getBytes(OurCharset));
+  }
+}
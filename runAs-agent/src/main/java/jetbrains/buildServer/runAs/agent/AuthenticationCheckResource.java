@@ -0,0 +1,95 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.dotNet.buildRunner.agent.BuildStartException;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineExecutionContext;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import org.jetbrains.annotations.NotNull;
+
+// Checks the user and the password once per agent session, so runAs scripts do not run "su ... auth" for each step
+public class AuthenticationCheckResource implements CommandLineResource {
+  private static final Logger LOG = Logger.getInstance(AuthenticationCheckResource.class.getName());
+  private static final int EXECUTION_TIMEOUT_SECONDS = 60;
+  private final AuthenticationCache myAuthenticationCache;
+  private final CommandLineExecutor myCommandLineExecutor;
+  private final String myUser;
+  private final String myPassword;
+  private final CommandLineSetup myAuthSetup;
+
+  public AuthenticationCheckResource(
+    @NotNull final AuthenticationCache authenticationCache,
+    @NotNull final CommandLineExecutor commandLineExecutor,
+    @NotNull final String user,
+    @NotNull final String password,
+    @NotNull final CommandLineSetup authSetup) {
+    myAuthenticationCache = authenticationCache;
+    myCommandLineExecutor = commandLineExecutor;
+    myUser = user;
+    myPassword = password;
+    myAuthSetup = authSetup;
+  }
+
+  @Override
+  public void publishBeforeBuild(@NotNull final CommandLineExecutionContext commandLineExecutionContext) {
+    if(myAuthenticationCache.isAuthenticated(myUser, myPassword)) {
+      return;
+    }
+
+    final ExecResult result;
+    try {
+      result = myCommandLineExecutor.runProcess(myAuthSetup, EXECUTION_TIMEOUT_SECONDS);
+    }
+    catch (ExecutionException ex) {
+      myAuthenticationCache.invalidate(myUser);
+      throw new BuildStartException("Cannot check credentials of user \"" + myUser + "\": " + ex.getMessage());
+    }
+
+    final int exitCode = result != null ? result.getExitCode() : -1;
+    if(exitCode != 0) {
+      myAuthenticationCache.invalidate(myUser);
+      if(result != null) {
+        LOG.warn("Authentication of user \"" + myUser + "\" has finished with exit code " + exitCode + ", stderr: " + result.getStderr());
+      }
+
+      throw new BuildStartException("Authentication failure for user \"" + myUser + "\"");
+    }
+
+    myAuthenticationCache.setAuthenticated(myUser, myPassword);
+  }
+
+  @NotNull
+  CommandLineSetup getAuthSetup() {
+    return myAuthSetup;
+  }
+
+  @Override
+  public void publishAfterBuild(@NotNull final CommandLineExecutionContext commandLineExecutionContext) {
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) return true;
+    if (!(o instanceof AuthenticationCheckResource)) return false;
+
+    final AuthenticationCheckResource that = (AuthenticationCheckResource)o;
+
+    if (!myUser.equals(that.myUser)) return false;
+    if (!myPassword.equals(that.myPassword)) return false;
+    return myAuthSetup.equals(that.myAuthSetup);
+  }
+
+  @Override
+  public int hashCode() {
+    return myUser.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return LogUtils.toString(
+      "AuthenticationCheck",
+      myUser);
+  }
+}
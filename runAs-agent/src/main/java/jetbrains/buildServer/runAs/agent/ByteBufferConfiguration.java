@@ -0,0 +1,155 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// Parses UTF-8 lines in one pass over bytes, it skips the same lines as ConfigurationImpl:
+// empty lines, comments, lines without a key and lines with less than 2 characters after '='
+public class ByteBufferConfiguration implements Configuration {
+  private static final Charset OurCharset = Charset.forName("UTF-8");
+  private final HashMap<Object, Object> myMap = new HashMap<Object, Object>();
+
+  @Override
+  public void load(@NotNull final ByteArrayInputStream stream) throws IOException {
+    final byte[] bytes = new byte[stream.available()];
+    final int size = stream.read(bytes, 0, bytes.length);
+    load(ByteBuffer.wrap(bytes, 0, Math.max(size, 0)));
+  }
+
+  public void load(@NotNull final File file) throws IOException {
+    load(read(file));
+  }
+
+  public void load(@NotNull final ByteBuffer buffer) {
+    myMap.clear();
+    final ByteBuffer heapBuffer = buffer.hasArray() ? buffer : copy(buffer);
+    final byte[] bytes = heapBuffer.array();
+    final int end = heapBuffer.arrayOffset() + heapBuffer.limit();
+    int lineStart = heapBuffer.arrayOffset() + heapBuffer.position();
+    while (lineStart < end) {
+      int lineEnd = lineStart;
+      while (lineEnd < end && bytes[lineEnd] != '\n' && bytes[lineEnd] != '\r') {
+        lineEnd++;
+      }
+
+      parseLine(bytes, lineStart, lineEnd);
+      // "\r\n" is a single line separator
+      lineStart = lineEnd < end - 1 && bytes[lineEnd] == '\r' && bytes[lineEnd + 1] == '\n' ? lineEnd + 2 : lineEnd + 1;
+    }
+  }
+
+  @Override
+  public int size() {
+    return myMap.size();
+  }
+
+  @NotNull
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    return myMap.entrySet();
+  }
+
+  @Nullable
+  @Override
+  public String getProperty(@NotNull final String key) {
+    return (String)myMap.get(key);
+  }
+
+  @NotNull
+  static ByteBuffer read(@NotNull final File file) throws IOException {
+    final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      final long size = channel.size();
+      if(size > Integer.MAX_VALUE) {
+        throw new IOException("File \"" + file + "\" is too large");
+      }
+
+      final ByteBuffer buffer = ByteBuffer.allocate((int)size);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+      }
+
+      buffer.flip();
+      return buffer;
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  private void parseLine(@NotNull final byte[] bytes, final int lineStart, final int lineEnd) {
+    // all bytes trimmed by String.trim() are single byte characters in UTF-8
+    final int start = skipWhitespacesForward(bytes, lineStart, lineEnd);
+    final int end = skipWhitespacesBackward(bytes, start, lineEnd);
+    if(start == end || bytes[start] == '#') {
+      return;
+    }
+
+    int separator = start;
+    while (separator < end && bytes[separator] != '=') {
+      separator++;
+    }
+
+    if(separator == start || separator == end || getCharsCount(bytes, separator + 1, end) < 2) {
+      return;
+    }
+
+    final int keyEnd = skipWhitespacesBackward(bytes, start, separator);
+    final int valueStart = skipWhitespacesForward(bytes, separator + 1, end);
+    myMap.put(new String(bytes, start, keyEnd - start, OurCharset), new String(bytes, valueStart, end - valueStart, OurCharset));
+  }
+
+  private static int skipWhitespacesForward(@NotNull final byte[] bytes, final int start, final int end) {
+    int index = start;
+    while (index < end && isWhitespace(bytes[index])) {
+      index++;
+    }
+
+    return index;
+  }
+
+  private static int skipWhitespacesBackward(@NotNull final byte[] bytes, final int start, final int end) {
+    int index = end;
+    while (index > start && isWhitespace(bytes[index - 1])) {
+      index--;
+    }
+
+    return index;
+  }
+
+  private static boolean isWhitespace(final byte value) {
+    return value >= 0 && value <= ' ';
+  }
+
+  // the count of UTF-16 chars like String.length() does
+  private static int getCharsCount(@NotNull final byte[] bytes, final int start, final int end) {
+    int count = 0;
+    for (int index = start; index < end; index++) {
+      final int value = bytes[index] & 0xFF;
+      if((value & 0xC0) == 0x80) {
+        continue;
+      }
+
+      count += (value & 0xF8) == 0xF0 ? 2 : 1;
+    }
+
+    return count;
+  }
+
+  @NotNull
+  private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+    final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+    copy.put(buffer.duplicate());
+    copy.flip();
+    return copy;
+  }
+}
@@ -0,0 +1,43 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.nio.file.Path;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+class CachedAccessControlEntry {
+  @NotNull private final Path myPath;
+  @NotNull private final AccessControlEntry myEntry;
+  @Nullable private final String myStamp;
+  private final long myTimestamp;
+
+  CachedAccessControlEntry(
+    @NotNull final Path path,
+    @NotNull final AccessControlEntry entry,
+    @Nullable final String stamp,
+    final long timestamp) {
+    myPath = path;
+    myEntry = entry;
+    myStamp = stamp;
+    myTimestamp = timestamp;
+  }
+
+  @NotNull
+  Path getPath() {
+    return myPath;
+  }
+
+  @NotNull
+  AccessControlEntry getEntry() {
+    return myEntry;
+  }
+
+  // the stamp of the file when the entry was cached, null when the file was not available
+  @Nullable
+  String getStamp() {
+    return myStamp;
+  }
+
+  long getTimestamp() {
+    return myTimestamp;
+  }
+}
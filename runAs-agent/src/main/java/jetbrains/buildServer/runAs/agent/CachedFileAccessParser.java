@@ -0,0 +1,61 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.dotNet.buildRunner.agent.TextParser;
+import org.jetbrains.annotations.NotNull;
+
+// ACL strings are almost the same for each build step, so parsed ACLs are reused
+// invalid ACL strings are not cached, so the parser throws for each of them
+public class CachedFileAccessParser implements TextParser<AccessControlList> {
+  private static final Logger LOG = Logger.getInstance(CachedFileAccessParser.class.getName());
+  private static final int MAX_CACHED_ACLS = 64;
+  @NotNull private final TextParser<AccessControlList> myFileAccessParser;
+  private final AtomicLong myHitCount = new AtomicLong();
+  private final AtomicLong myMissCount = new AtomicLong();
+  // the least recently used ACLs are evicted
+  private final Map<String, AccessControlList> myAcls = new LinkedHashMap<String, AccessControlList>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, AccessControlList> eldest) {
+      return size() > MAX_CACHED_ACLS;
+    }
+  };
+
+  public CachedFileAccessParser(@NotNull final TextParser<AccessControlList> fileAccessParser) {
+    myFileAccessParser = fileAccessParser;
+  }
+
+  @NotNull
+  @Override
+  public AccessControlList parse(@NotNull final String aclString) {
+    synchronized (myAcls) {
+      final AccessControlList acl = myAcls.get(aclString);
+      if(acl != null) {
+        myHitCount.incrementAndGet();
+        return acl;
+      }
+    }
+
+    myMissCount.incrementAndGet();
+    final AccessControlList acl = myFileAccessParser.parse(aclString);
+    synchronized (myAcls) {
+      myAcls.put(aclString, acl);
+    }
+
+    if(LOG.isDebugEnabled()) {
+      LOG.debug("ACL cache hits: " + getHitCount() + ", misses: " + getMissCount());
+    }
+
+    return acl;
+  }
+
+  public long getHitCount() {
+    return myHitCount.get();
+  }
+
+  public long getMissCount() {
+    return myMissCount.get();
+  }
+}
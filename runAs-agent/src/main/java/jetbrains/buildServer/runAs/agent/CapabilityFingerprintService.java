@@ -0,0 +1,10 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import org.jetbrains.annotations.NotNull;
+
+public interface CapabilityFingerprintService {
+  // a fingerprint is changed when the plugin binaries, the tools or the OS are changed
+  @NotNull
+  String getFingerprint(@NotNull final File binDirectory, @NotNull final String... toolNames);
+}
@@ -0,0 +1,119 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class CapabilityFingerprintServiceImpl implements CapabilityFingerprintService {
+  private static final Charset OurCharset = Charset.forName("UTF-8");
+  private static final String[] OurWindowsExtensions = new String[] {"", ".exe", ".com"};
+  private static final String[] OurExtensions = new String[] {""};
+  @NotNull private final Environment myEnvironment;
+
+  public CapabilityFingerprintServiceImpl(@NotNull final Environment environment) {
+    myEnvironment = environment;
+  }
+
+  @NotNull
+  @Override
+  public String getFingerprint(@NotNull final File binDirectory, @NotNull final String... toolNames) {
+    final StringBuilder content = new StringBuilder();
+    content.append(System.getProperty("os.name")).append('\n');
+    content.append(System.getProperty("os.version")).append('\n');
+    content.append(System.getProperty("os.arch")).append('\n');
+
+    final List<Path> files = new ArrayList<Path>();
+    collectFiles(binDirectory.toPath(), files);
+    Collections.sort(files);
+    for (Path file: files) {
+      appendFile(content, file);
+    }
+
+    for (String toolName: toolNames) {
+      final Path tool = tryFindTool(toolName);
+      if(tool != null) {
+        appendFile(content, tool);
+      }
+      else {
+        content.append(toolName).append(" is not found\n");
+      }
+    }
+
+    return getHash(content.toString());
+  }
+
+  private static void collectFiles(@NotNull final Path directory, @NotNull final List<Path> files) {
+    final File[] children = directory.toFile().listFiles();
+    if(children == null) {
+      return;
+    }
+
+    for (File child: children) {
+      if(child.isDirectory()) {
+        collectFiles(child.toPath(), files);
+      }
+      else {
+        files.add(child.toPath());
+      }
+    }
+  }
+
+  private static void appendFile(@NotNull final StringBuilder content, @NotNull final Path file) {
+    content.append(file.toAbsolutePath());
+    try {
+      final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      content.append('\t').append(attributes.lastModifiedTime().toMillis()).append('\t').append(attributes.size());
+    }
+    catch (IOException ignored) {
+      content.append("\tnot available");
+    }
+
+    content.append('\n');
+  }
+
+  @Nullable
+  private Path tryFindTool(@NotNull final String toolName) {
+    final String path = System.getenv("PATH");
+    if(path == null) {
+      return null;
+    }
+
+    final String[] extensions = myEnvironment.getOperationSystem() == OperationSystem.Windows ? OurWindowsExtensions : OurExtensions;
+    for (String directory: path.split(File.pathSeparator)) {
+      if(directory.isEmpty()) {
+        continue;
+      }
+
+      for (String extension: extensions) {
+        final File tool = new File(directory, toolName + extension);
+        if(tool.isFile()) {
+          return tool.toPath();
+        }
+      }
+    }
+
+    return null;
+  }
+
+  @NotNull
+  private static String getHash(@NotNull final String content) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return String.format("%064x", new BigInteger(1, digest.digest(content.getBytes(OurCharset))));
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import jetbrains.buildServer.ExecResult;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// Capability check started in the background, it is awaited until the deadline shared by all probes
+class CapabilityProbe {
+  private static final Logger LOG = Logger.getInstance(CapabilityProbe.class.getName());
+  private final String myName;
+  private final CompletableFuture<ExecResult> myFuture;
+  private final long myStartTime;
+
+  CapabilityProbe(@NotNull final String name, @NotNull final CompletableFuture<ExecResult> future) {
+    myName = name;
+    myFuture = future;
+    myStartTime = System.nanoTime();
+    myFuture.whenComplete(new BiConsumer<ExecResult, Throwable>() {
+      @Override
+      public void accept(final ExecResult execResult, final Throwable error) {
+        LOG.info("Probe \"" + myName + "\" " + getState(error) + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - myStartTime) + " ms");
+      }
+    });
+  }
+
+  @NotNull
+  String getName() {
+    return myName;
+  }
+
+  @NotNull
+  ProbeState await(final long deadlineNanos) {
+    try {
+      myFuture.get(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+      return ProbeState.Supported;
+    }
+    catch (ExecutionException ex) {
+      return getState(ex.getCause());
+    }
+    catch (TimeoutException ex) {
+      LOG.warn("Probe \"" + myName + "\" did not finish in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - myStartTime) + " ms");
+      return ProbeState.Unknown;
+    }
+    catch (CancellationException ex) {
+      return ProbeState.Unknown;
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return ProbeState.Unknown;
+    }
+  }
+
+  // available after the probe is supported
+  @Nullable
+  ExecResult getResult() {
+    return myFuture.getNow(null);
+  }
+
+  void cancel() {
+    myFuture.cancel(true);
+  }
+
+  @NotNull
+  private static ProbeState getState(@Nullable final Throwable error) {
+    if(error == null) {
+      return ProbeState.Supported;
+    }
+
+    final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    // a command which was not finished in time says nothing about the capability
+    return cause instanceof TimeoutException || cause instanceof CancellationException ? ProbeState.Unknown : ProbeState.NotSupported;
+  }
+}
@@ -0,0 +1,86 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+class ChmodBatch {
+  @NotNull private final String myMode;
+  private final boolean myIsRecursive;
+  @NotNull private final List<AccessControlEntry> myEntries = new ArrayList<AccessControlEntry>();
+  @NotNull private final List<File> myFiles = new ArrayList<File>();
+  private int myArgsLength;
+
+  ChmodBatch(@NotNull final String mode, final boolean isRecursive) {
+    myMode = mode;
+    myIsRecursive = isRecursive;
+    myArgsLength = mode.length() + 1 + (isRecursive ? 3 : 0);
+  }
+
+  @NotNull
+  String getMode() {
+    return myMode;
+  }
+
+  boolean isRecursive() {
+    return myIsRecursive;
+  }
+
+  @NotNull
+  List<AccessControlEntry> getEntries() {
+    return Collections.unmodifiableList(myEntries);
+  }
+
+  @NotNull
+  List<File> getFiles() {
+    return Collections.unmodifiableList(myFiles);
+  }
+
+  int getArgsLength() {
+    return myArgsLength;
+  }
+
+  void add(@NotNull final AccessControlEntry entry, @NotNull final File file) {
+    myEntries.add(entry);
+    myFiles.add(file);
+    myArgsLength += file.getPath().length() + 1;
+  }
+
+  boolean overlaps(@NotNull final File file) {
+    for (File batchFile: myFiles) {
+      if(isAncestorOrSelf(batchFile, file) || isAncestorOrSelf(file, batchFile)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  boolean overlaps(@NotNull final ChmodBatch batch) {
+    for (File file: batch.myFiles) {
+      if(overlaps(file)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return LogUtils.toString(
+      "ChmodBatch",
+      new LinkedHashMap<String, Object>() {{
+        this.put("Mode", myMode);
+        this.put("IsRecursive", myIsRecursive);
+        this.put("Files", LogUtils.toString(myFiles));
+      }});
+  }
+
+  private static boolean isAncestorOrSelf(@NotNull final File ancestor, @NotNull final File file) {
+    return file.toPath().normalize().startsWith(ancestor.toPath().normalize());
+  }
+}
@@ -0,0 +1,58 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+class ChmodBatchPlanner {
+  // far below ARG_MAX, which also includes the environment
+  static final int DEFAULT_MAX_ARGS_LENGTH = 64 * 1024;
+  private final int myMaxArgsLength;
+
+  ChmodBatchPlanner(final int maxArgsLength) {
+    myMaxArgsLength = maxArgsLength;
+  }
+
+  @NotNull
+  List<ChmodBatch> plan(@NotNull final AccessControlList accessControlList) {
+    final List<ChmodBatch> batches = new ArrayList<ChmodBatch>();
+    for (AccessControlEntry entry: accessControlList) {
+      final File file = entry.getFile().getAbsoluteFile();
+      final boolean isRecursive = entry.getPermissions().contains(AccessPermissions.Recursive);
+      for (PosixAccessMode mode: PosixAccessMode.create(entry)) {
+        final ChmodBatch batch = findBatch(batches, mode.getMode(), isRecursive, file);
+        if(batch != null) {
+          batch.add(entry, file);
+          continue;
+        }
+
+        final ChmodBatch newBatch = new ChmodBatch(mode.getMode(), isRecursive);
+        newBatch.add(entry, file);
+        batches.add(newBatch);
+      }
+    }
+
+    return batches;
+  }
+
+  private ChmodBatch findBatch(@NotNull final List<ChmodBatch> batches, @NotNull final String mode, final boolean isRecursive, @NotNull final File file) {
+    // a mode could be moved to a previous batch only when it does not overlap with modes between them
+    for (int index = batches.size() - 1; index >= 0; index--) {
+      final ChmodBatch batch = batches.get(index);
+      if(batch.isRecursive() == isRecursive && batch.getMode().equals(mode)) {
+        if(batch.getArgsLength() + file.getPath().length() + 1 <= myMaxArgsLength) {
+          return batch;
+        }
+
+        continue;
+      }
+
+      if(batch.overlaps(file)) {
+        return null;
+      }
+    }
+
+    return null;
+  }
+}
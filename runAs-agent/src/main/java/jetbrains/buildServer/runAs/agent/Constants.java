@@ -7,5 +7,7 @@ public class Constants {
     public static final String ICACLS_TOOL_NAME = "ICACLS";
     public static final String CHMOD_TOOL_NAME = "chmod";
     public static final String SU_TOOL_NAME = "su";
+    public static final String SOCAT_TOOL_NAME = "socat";
+    public static final String SUDO_TOOL_NAME = "sudo";
     public static final String RUN_AS_WIN32_TOOL_NAME = "JetBrains.runAs.exe";
 }
\ No newline at end of file
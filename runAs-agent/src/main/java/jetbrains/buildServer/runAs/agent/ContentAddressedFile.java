@@ -0,0 +1,161 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import jetbrains.buildServer.dotNet.buildRunner.agent.BuildStartException;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineExecutionContext;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
+import jetbrains.buildServer.dotNet.buildRunner.agent.FileService;
+import org.jetbrains.annotations.NotNull;
+
+// The file named by its content, it is written once and is reused by other steps and builds with the same content.
+// The file is reused only when the agent owns it and its directory, nobody else could write them
+// and the content is not changed, otherwise it is written again.
+public class ContentAddressedFile implements CommandLineResource {
+  private static final Logger LOG = Logger.getInstance(ContentAddressedFile.class.getName());
+  private static final String TEMP_FILE_EXT = ".tmp";
+  // other users need to traverse the directory to run commands, but they could not list or change it
+  private static final Set<PosixFilePermission> OurDirectoryPermissions = PosixFilePermissions.fromString("rwx--x--x");
+  private final FileService myFileService;
+  private final File myFile;
+  private final String myContent;
+  private final boolean myIsExecutable;
+
+  public ContentAddressedFile(
+    @NotNull final FileService fileService,
+    @NotNull final File file,
+    @NotNull final String content,
+    final boolean isExecutable) {
+    myFileService = fileService;
+    myFile = file;
+    myContent = content;
+    myIsExecutable = isExecutable;
+  }
+
+  @NotNull
+  public File getFile() {
+    return myFile;
+  }
+
+  @Override
+  public void publishBeforeBuild(@NotNull final CommandLineExecutionContext commandLineExecutionContext) {
+    if(isTrusted()) {
+      LOG.debug("\"" + myFile + "\" is reused");
+      return;
+    }
+
+    final File directory = myFile.getParentFile();
+    File tempFile = null;
+    try {
+      createDirectory(directory);
+      // the file is written completely before it could be found by other steps
+      tempFile = File.createTempFile(myFile.getName(), TEMP_FILE_EXT, directory);
+      myFileService.writeAllTextFile(myContent, tempFile);
+      //noinspection ResultOfMethodCallIgnored
+      tempFile.setWritable(false, false);
+      //noinspection ResultOfMethodCallIgnored
+      tempFile.setWritable(true, true);
+      if(myIsExecutable) {
+        // the file could be written again during the build when the permission is already granted and cached
+        //noinspection ResultOfMethodCallIgnored
+        tempFile.setExecutable(true, false);
+      }
+
+      try {
+        Files.move(tempFile.toPath(), myFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (AtomicMoveNotSupportedException ex) {
+        Files.move(tempFile.toPath(), myFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    catch (IOException ex) {
+      throw new BuildStartException("Cannot create \"" + myFile + "\": " + ex.getMessage());
+    }
+    finally {
+      if(tempFile != null) {
+        //noinspection ResultOfMethodCallIgnored
+        tempFile.delete();
+      }
+    }
+  }
+
+  private boolean isTrusted() {
+    final Path file = myFile.toPath();
+    final Path directory = file.getParent();
+    // permissions are checked on POSIX only, so files are written for each step on other systems
+    if(directory == null || !Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS) || Files.getFileAttributeView(file, PosixFileAttributeView.class) == null) {
+      return false;
+    }
+
+    try {
+      if(!isWritableByAgentOnly(directory) || !isWritableByAgentOnly(file)) {
+        LOG.warn("\"" + myFile + "\" or its directory could be changed by other users, it is written again");
+        return false;
+      }
+
+      return myContent.equals(myFileService.readAllTextFile(myFile));
+    }
+    catch (IOException ex) {
+      LOG.debug("Cannot check \"" + myFile + "\": " + ex.getMessage());
+      return false;
+    }
+  }
+
+  private static boolean isWritableByAgentOnly(@NotNull final Path path) throws IOException {
+    final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+    if(permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+      return false;
+    }
+
+    final String agentUser = System.getProperty("user.name");
+    return Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(agentUser));
+  }
+
+  private static void createDirectory(@NotNull final File directory) throws IOException {
+    if(!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create the directory \"" + directory + "\"");
+    }
+
+    // permissions of the existing directory could be changed, so they are applied each time
+    if(Files.getFileAttributeView(directory.toPath(), PosixFileAttributeView.class) != null) {
+      Files.setPosixFilePermissions(directory.toPath(), OurDirectoryPermissions);
+    }
+  }
+
+  @Override
+  public void publishAfterBuild(@NotNull final CommandLineExecutionContext commandLineExecutionContext) {
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) return true;
+    if (!(o instanceof ContentAddressedFile)) return false;
+
+    final ContentAddressedFile that = (ContentAddressedFile)o;
+
+    if (myIsExecutable != that.myIsExecutable) return false;
+    if (!myFile.equals(that.myFile)) return false;
+    return myContent.equals(that.myContent);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = myFile.hashCode();
+    result = 31 * result + myContent.hashCode();
+    result = 31 * result + (myIsExecutable ? 1 : 0);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return LogUtils.toString(
+      "ContentAddressedFile",
+      myFile);
+  }
+}
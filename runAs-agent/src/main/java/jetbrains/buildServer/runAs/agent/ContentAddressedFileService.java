@@ -0,0 +1,14 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import org.jetbrains.annotations.NotNull;
+
+public interface ContentAddressedFileService {
+  // Returns the directory for such files, it is outside of all directories granted to runAs users
+  @NotNull
+  File getDirectory();
+
+  // Returns the file in the directory, which name depends on the content and the extension only
+  @NotNull
+  File getFile(@NotNull final File directory, @NotNull final String content, @NotNull final String extension);
+}
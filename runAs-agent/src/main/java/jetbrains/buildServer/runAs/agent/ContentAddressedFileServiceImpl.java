@@ -0,0 +1,88 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.jetbrains.annotations.NotNull;
+
+// Names files by HMAC of their content, the key is generated for each agent session,
+// so names do not disclose the content and could not be predicted by other users.
+// Files are placed next to the build temp directory, because the default ACL grants the build temp directory
+// to the runAs user recursively, and are not removed with it, so files of previous sessions are removed once.
+public class ContentAddressedFileServiceImpl implements ContentAddressedFileService {
+  private static final Logger LOG = Logger.getInstance(ContentAddressedFileServiceImpl.class.getName());
+  static final String DIRECTORY_NAME = "runAs";
+  private static final Charset OurCharset = Charset.forName("UTF-8");
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final int KEY_SIZE = 32;
+  private static final int NAME_BYTES = 16;
+  private static final char[] OurHexChars = "0123456789abcdef".toCharArray();
+  private final PathsService myPathsService;
+  private final Mac myMac;
+  private boolean myIsCleaned;
+
+  public ContentAddressedFileServiceImpl(@NotNull final PathsService pathsService) {
+    myPathsService = pathsService;
+    final byte[] key = new byte[KEY_SIZE];
+    new SecureRandom().nextBytes(key);
+    try {
+      myMac = Mac.getInstance(ALGORITHM);
+      myMac.init(new SecretKeySpec(key, ALGORITHM));
+    }
+    catch (GeneralSecurityException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  @NotNull
+  @Override
+  public File getDirectory() {
+    final File buildTempDirectory = myPathsService.getPath(WellKnownPaths.BuildTemp).getAbsoluteFile();
+    final File parentDirectory = buildTempDirectory.getParentFile();
+    final File directory = new File(parentDirectory != null ? parentDirectory : buildTempDirectory, DIRECTORY_NAME);
+    synchronized (myMac) {
+      if(!myIsCleaned) {
+        myIsCleaned = true;
+        clean(directory);
+      }
+    }
+
+    return directory;
+  }
+
+  @NotNull
+  @Override
+  public File getFile(@NotNull final File directory, @NotNull final String content, @NotNull final String extension) {
+    final byte[] hash;
+    synchronized (myMac) {
+      hash = myMac.doFinal(content.getBytes(OurCharset));
+    }
+
+    final StringBuilder name = new StringBuilder(NAME_BYTES * 2 + extension.length());
+    for (int index = 0; index < NAME_BYTES; index++) {
+      name.append(OurHexChars[(hash[index] >> 4) & 0xF]);
+      name.append(OurHexChars[hash[index] & 0xF]);
+    }
+
+    name.append(extension);
+    return new File(directory, name.toString());
+  }
+
+  // names depend on the session key, so files of previous sessions are never reused
+  private static void clean(@NotNull final File directory) {
+    final File[] files = directory.listFiles();
+    if(files == null) {
+      return;
+    }
+
+    for (File file: files) {
+      if(!file.delete()) {
+        LOG.debug("Cannot delete \"" + file + "\"");
+      }
+    }
+  }
+}
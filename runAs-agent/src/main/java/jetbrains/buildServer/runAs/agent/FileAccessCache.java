@@ -6,4 +6,10 @@ import org.jetbrains.annotations.NotNull;
 
 public interface FileAccessCache {
   boolean tryAddEntry(@NotNull final AccessControlEntry acl);
+
+  // the entry was applied in another scope, so cached entries do not cover its files anymore
+  void invalidate(@NotNull final AccessControlEntry acl);
+
+  // the result of applying the entry which was added by tryAddEntry
+  void setApplied(@NotNull final AccessControlEntry acl, final boolean isSuccessful);
 }
\ No newline at end of file
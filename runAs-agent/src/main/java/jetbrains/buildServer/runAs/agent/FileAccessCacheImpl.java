@@ -8,14 +8,36 @@ import org.jetbrains.annotations.NotNull;
 public class FileAccessCacheImpl implements FileAccessCache, FileAccessCacheManager {
   @SuppressWarnings("SpellCheckingInspection")
   private final HashSet<AccessControlEntry> myAcls = new HashSet<AccessControlEntry>();
+  private final FileAccessCacheStatistics myStatistics = new FileAccessCacheStatistics();
 
   @Override
   public boolean tryAddEntry(@NotNull final AccessControlEntry acl) {
-    return myAcls.add(acl);
+    if(myAcls.add(acl)) {
+      myStatistics.onMiss();
+      return true;
+    }
+
+    myStatistics.onHit();
+    return false;
+  }
+
+  // only the same entries are skipped, so other entries do not change them
+  @Override
+  public void invalidate(@NotNull final AccessControlEntry acl) {
+  }
+
+  @Override
+  public void setApplied(@NotNull final AccessControlEntry acl, final boolean isSuccessful) {
   }
 
   @Override
   public void reset() {
     myAcls.clear();
   }
+
+  @NotNull
+  @Override
+  public FileAccessCacheStatistics getStatistics() {
+    return myStatistics;
+  }
 }
\ No newline at end of file
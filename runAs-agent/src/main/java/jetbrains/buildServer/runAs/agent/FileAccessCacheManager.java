@@ -2,6 +2,11 @@
 
 package jetbrains.buildServer.runAs.agent;
 
+import org.jetbrains.annotations.NotNull;
+
 public interface FileAccessCacheManager {
   void reset();
-}
\ No newline at end of file
+
+  @NotNull
+  FileAccessCacheStatistics getStatistics();
+}
@@ -0,0 +1,46 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FileAccessCacheStatistics {
+  private final AtomicLong myHitCount = new AtomicLong();
+  private final AtomicLong myMissCount = new AtomicLong();
+  private final AtomicLong myStaleCount = new AtomicLong();
+
+  public void onHit() {
+    myHitCount.incrementAndGet();
+  }
+
+  public void onMiss() {
+    myMissCount.incrementAndGet();
+  }
+
+  // an entry was found, but it was invalidated by the file stamp or the TTL
+  public void onStale() {
+    myStaleCount.incrementAndGet();
+  }
+
+  public long getHitCount() {
+    return myHitCount.get();
+  }
+
+  public long getMissCount() {
+    return myMissCount.get();
+  }
+
+  public long getStaleCount() {
+    return myStaleCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return LogUtils.toString(
+      "FileAccessCacheStatistics",
+      new LinkedHashMap<String, Object>() {{
+        this.put("Hits", getHitCount());
+        this.put("Misses", getMissCount());
+        this.put("Stale", getStaleCount());
+      }});
+  }
+}
@@ -0,0 +1,204 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// Append-only file of access control entries, each line is "checksum\tstamp\ttimestamp\tfile\taccountType\tuserName\tpermissions\tscope"
+class FileAccessJournal {
+  private static final Logger LOG = Logger.getInstance(FileAccessJournal.class.getName());
+  private static final Charset OurCharset = Charset.forName("UTF-8");
+  private static final String PERMISSIONS_SEPARATOR = ",";
+  private static final int FIELDS_COUNT = 7;
+  private final File myFile;
+
+  FileAccessJournal(@NotNull final File file) {
+    myFile = file;
+  }
+
+  @NotNull
+  File getFile() {
+    return myFile;
+  }
+
+  // corrupted records are skipped, so the journal could be rewritten by the valid ones
+  @NotNull
+  ReadResult read() {
+    final List<CachedAccessControlEntry> records = new ArrayList<CachedAccessControlEntry>();
+    int linesCount = 0;
+    if(!myFile.exists()) {
+      return new ReadResult(records, linesCount);
+    }
+
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(myFile), OurCharset));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        linesCount++;
+        final CachedAccessControlEntry record = tryParse(line);
+        if(record == null) {
+          LOG.warn("Skipping corrupted record " + linesCount + " in \"" + myFile + "\"");
+          continue;
+        }
+
+        records.add(record);
+      }
+    }
+    catch (IOException ex) {
+      LOG.warn("Cannot read \"" + myFile + "\": " + ex.getMessage());
+      // the rest of the journal is treated as corrupted
+      linesCount++;
+    }
+    finally {
+      close(reader);
+    }
+
+    return new ReadResult(records, linesCount);
+  }
+
+  void append(@NotNull final CachedAccessControlEntry record) throws IOException {
+    write(format(record) + "\n", true);
+  }
+
+  void rewrite(@NotNull final Iterable<CachedAccessControlEntry> records) throws IOException {
+    final StringBuilder content = new StringBuilder();
+    for (CachedAccessControlEntry record: records) {
+      content.append(format(record)).append('\n');
+    }
+
+    final File tempFile = new File(myFile.getPath() + ".tmp");
+    write(tempFile, content.toString(), false);
+    Files.move(tempFile.toPath(), myFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void write(@NotNull final String content, final boolean append) throws IOException {
+    write(myFile, content, append);
+  }
+
+  private static void write(@NotNull final File file, @NotNull final String content, final boolean append) throws IOException {
+    final File dir = file.getParentFile();
+    if(dir != null) {
+      OwnerOnlyDirectory.create(dir);
+    }
+
+    Writer writer = null;
+    try {
+      writer = new OutputStreamWriter(new FileOutputStream(file, append), OurCharset);
+      writer.write(content);
+    }
+    finally {
+      close(writer);
+    }
+  }
+
+  @NotNull
+  static String format(@NotNull final CachedAccessControlEntry record) {
+    final AccessControlEntry entry = record.getEntry();
+    final StringBuilder permissions = new StringBuilder();
+    for (AccessPermissions permission: entry.getPermissions()) {
+      if(permissions.length() > 0) {
+        permissions.append(PERMISSIONS_SEPARATOR);
+      }
+
+      permissions.append(permission.name());
+    }
+
+    final String stamp = record.getStamp();
+    final String content = LineFields.join(Arrays.asList(
+      stamp != null ? stamp : "",
+      Long.toString(record.getTimestamp()),
+      record.getPath().toString(),
+      entry.getAccount().getTargetType().name(),
+      entry.getAccount().getUserName(),
+      permissions.toString(),
+      entry.getScope().name()));
+
+    return getChecksum(content) + LineFields.SEPARATOR + content;
+  }
+
+  @Nullable
+  static CachedAccessControlEntry tryParse(@NotNull final String line) {
+    final int checksumEnd = line.indexOf(LineFields.SEPARATOR);
+    if(checksumEnd < 0) {
+      return null;
+    }
+
+    final String content = line.substring(checksumEnd + 1);
+    if(!line.substring(0, checksumEnd).equals(getChecksum(content))) {
+      return null;
+    }
+
+    try {
+      final List<String> fields = LineFields.split(content);
+      if(fields.size() != FIELDS_COUNT) {
+        return null;
+      }
+
+      final String stamp = fields.get(0);
+      final long timestamp = Long.parseLong(fields.get(1));
+      final File file = new File(fields.get(2));
+      final AccessControlAccountType accountType = AccessControlAccountType.valueOf(fields.get(3));
+      final AccessControlAccount account = accountType == AccessControlAccountType.User ? AccessControlAccount.forUser(fields.get(4)) : AccessControlAccount.forAll();
+      final EnumSet<AccessPermissions> permissions = EnumSet.noneOf(AccessPermissions.class);
+      for (String permission: fields.get(5).split(PERMISSIONS_SEPARATOR)) {
+        if(!permission.isEmpty()) {
+          permissions.add(AccessPermissions.valueOf(permission));
+        }
+      }
+
+      final AccessControlScope scope = AccessControlScope.valueOf(fields.get(6));
+      return new CachedAccessControlEntry(PathTrie.getPath(file), new AccessControlEntry(file, account, permissions, scope), stamp.isEmpty() ? null : stamp, timestamp);
+    }
+    catch (IllegalArgumentException ignored) {
+      return null;
+    }
+  }
+
+  @NotNull
+  private static String getChecksum(@NotNull final String content) {
+    final CRC32 crc = new CRC32();
+    crc.update(content.getBytes(OurCharset));
+    return Long.toHexString(crc.getValue());
+  }
+
+  private static void close(@Nullable final Closeable closeable) {
+    if(closeable == null) {
+      return;
+    }
+
+    try {
+      closeable.close();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  static class ReadResult {
+    @NotNull private final List<CachedAccessControlEntry> myRecords;
+    private final int myLinesCount;
+
+    ReadResult(@NotNull final List<CachedAccessControlEntry> records, final int linesCount) {
+      myRecords = records;
+      myLinesCount = linesCount;
+    }
+
+    @NotNull
+    List<CachedAccessControlEntry> getRecords() {
+      return myRecords;
+    }
+
+    int getLinesCount() {
+      return myLinesCount;
+    }
+  }
+}
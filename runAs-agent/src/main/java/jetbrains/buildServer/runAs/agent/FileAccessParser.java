@@ -1,5 +1,3 @@
-
-
 package jetbrains.buildServer.runAs.agent;
 
 import com.intellij.openapi.diagnostic.Logger;
@@ -7,15 +5,15 @@ import com.intellij.openapi.util.text.StringUtil;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.EnumSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import jetbrains.buildServer.dotNet.buildRunner.agent.BuildStartException;
 import jetbrains.buildServer.dotNet.buildRunner.agent.TextParser;
 import org.jetbrains.annotations.NotNull;
 
+// Parses ACL entries like "ru+rwx,dir1,dir2;a-w,dir3" in a single pass over chars.
+// It accepts the same strings as the regular expression "\s*([gbsrcua\s]+)\s*([\+\-rwx\s]+)\s*,(.+)" with find()
+// applied to each entry, trailing empty entries and paths are ignored like String.split() does.
 public class FileAccessParser implements TextParser<AccessControlList> {
   private static final Logger LOG = Logger.getInstance(FileAccessParser.class.getName());
-  private static final Pattern OutAccessPattern = Pattern.compile("\\s*([gbsrcua\\s]+)\\s*([\\+\\-rwx\\s]+)\\s*,(.+)", Pattern.CASE_INSENSITIVE);
 
   @NotNull
   @Override
@@ -25,113 +23,293 @@ public class FileAccessParser implements TextParser<AccessControlList> {
       return new AccessControlList(accessControlEntries);
     }
 
-    final String[] entries = aclString.split(";");
-    for (String aclEntryStr: entries) {
-      final Matcher aclMatch = OutAccessPattern.matcher(aclEntryStr);
-      if(!aclMatch.find() || aclMatch.groupCount() != 3) {
-        throw new BuildStartException(String.format("Invalid ACL specification \"%s\"", aclEntryStr));
+    int end = aclString.length();
+    while (end > 0 && aclString.charAt(end - 1) == ';') {
+      end--;
+    }
+
+    int entryStart = 0;
+    while (entryStart < end) {
+      int entryEnd = indexOf(aclString, ';', entryStart, end);
+      if(entryEnd < 0) {
+        entryEnd = end;
       }
 
-      final String targetStr = aclMatch.group(1).toLowerCase().trim();
-      final String permissionsStr = aclMatch.group(2).toLowerCase().trim();
-      final String antPatternsStr = aclMatch.group(3).trim();
+      parseEntry(aclString, entryStart, entryEnd, accessControlEntries);
+      entryStart = entryEnd + 1;
+    }
 
-      final EnumSet<AccessPermissions> permissions = EnumSet.noneOf(AccessPermissions.class);
-      AccessControlScope scope = AccessControlScope.Step;
-      AccessControlAccount account = null;
-      for(char targetChar: targetStr.toCharArray()) {
-        switch (targetChar) {
-          case ' ':
-            break;
+    final AccessControlList acl = new AccessControlList(accessControlEntries);
+    if(LOG.isDebugEnabled()) {
+      LOG.debug("parse: \"" + aclString + "\" as " + acl);
+    }
 
-          case 'g':
-            scope = AccessControlScope.Global;
-            break;
+    return acl;
+  }
 
-          case 'b':
-            scope = AccessControlScope.Build;
-            break;
+  private static void parseEntry(@NotNull final String str, final int start, final int end, @NotNull final ArrayList<AccessControlEntry> accessControlEntries) {
+    // the first comma with a path after it, which has targets and permissions before it
+    int from = start;
+    int comma;
+    int targetsStart;
+    while (true) {
+      comma = indexOf(str, ',', from, end);
+      if(comma < 0) {
+        throw createInvalidEntryException(str, start, end);
+      }
 
-          case 's':
-            scope = AccessControlScope.Step;
-            break;
+      if(comma + 1 < end && !isLineTerminator(str.charAt(comma + 1))) {
+        targetsStart = findTargetsStart(str, from, comma);
+        if(targetsStart >= 0) {
+          break;
+        }
+      }
 
-          case 'r':
-            permissions.add(AccessPermissions.Recursive);
-            break;
+      from = comma + 1;
+    }
 
-          case 'u':
-            account = AccessControlAccount.forUser("");
-            break;
+    // targets are followed by permissions, chars like 'r' and spaces are allowed in both of them
+    int permissionsStart = comma - 1;
+    for (int index = targetsStart; index < comma; index++) {
+      if(isPermissionOnly(str.charAt(index))) {
+        permissionsStart = index;
+        break;
+      }
+    }
 
-          case 'a':
-            account = AccessControlAccount.forAll();
-            break;
+    int nonWhitespaceStart = targetsStart;
+    while (nonWhitespaceStart < comma && isWhitespace(str.charAt(nonWhitespaceStart))) {
+      nonWhitespaceStart++;
+    }
 
-          default:
-            throw new BuildStartException(String.format("Invalid ACL specification \"%s\"", aclEntryStr));
-        }
+    if(permissionsStart <= nonWhitespaceStart) {
+      throw createInvalidEntryException(str, start, end);
+    }
+
+    final EnumSet<AccessPermissions> permissions = EnumSet.noneOf(AccessPermissions.class);
+    AccessControlScope scope = AccessControlScope.Step;
+    AccessControlAccount account = null;
+    final int targetsEnd = trimEnd(str, targetsStart, permissionsStart);
+    for (int index = trimStart(str, targetsStart, permissionsStart); index < targetsEnd; index++) {
+      switch (str.charAt(index)) {
+        case ' ':
+          break;
+
+        case 'g':
+        case 'G':
+          scope = AccessControlScope.Global;
+          break;
+
+        case 'b':
+        case 'B':
+          scope = AccessControlScope.Build;
+          break;
+
+        case 's':
+        case 'S':
+          scope = AccessControlScope.Step;
+          break;
+
+        case 'r':
+        case 'R':
+          permissions.add(AccessPermissions.Recursive);
+          break;
+
+        case 'u':
+        case 'U':
+          account = AccessControlAccount.forUser("");
+          break;
+
+        case 'a':
+        case 'A':
+          account = AccessControlAccount.forAll();
+          break;
+
+        default:
+          throw createInvalidEntryException(str, start, end);
       }
+    }
+
+    if(account == null) {
+      throw createInvalidEntryException(str, start, end);
+    }
+
+    boolean allow = true;
+    final int permissionsEnd = trimEnd(str, permissionsStart, comma);
+    for (int index = trimStart(str, permissionsStart, comma); index < permissionsEnd; index++) {
+      switch (str.charAt(index)) {
+        case ' ':
+        case '+':
+          allow = true;
+          break;
+
+        case '-':
+          allow = false;
+          break;
+
+        case 'r':
+        case 'R':
+          permissions.add(allow ? AccessPermissions.GrantRead : AccessPermissions.DenyRead);
+          break;
+
+        case 'w':
+        case 'W':
+          permissions.add(allow ? AccessPermissions.GrantWrite : AccessPermissions.DenyWrite);
+          break;
 
-      if(account == null) {
-        throw new BuildStartException(String.format("Invalid ACL specification \"%s\"", aclEntryStr));
+        case 'x':
+        case 'X':
+          permissions.add(allow ? AccessPermissions.GrantExecute : AccessPermissions.DenyExecute);
+          break;
+
+        default:
+          throw createInvalidEntryException(str, start, end);
       }
+    }
 
-      boolean allow = true;
-      for(char permissionChar: permissionsStr.toCharArray()) {
-        switch (permissionChar) {
-          case ' ':
-          case '+':
-            allow = true;
-            break;
-
-          case '-':
-            allow = false;
-            break;
-
-          case 'r':
-            if(allow) {
-              permissions.add(AccessPermissions.GrantRead);
-            }
-            else {
-              permissions.add(AccessPermissions.DenyRead);
-            }
-            break;
-
-          case 'w':
-            if(allow) {
-              permissions.add(AccessPermissions.GrantWrite);
-            }
-            else {
-              permissions.add(AccessPermissions.DenyWrite);
-            }
-            break;
-
-          case 'x':
-            if(allow) {
-              permissions.add(AccessPermissions.GrantExecute);
-            }
-            else {
-              permissions.add(AccessPermissions.DenyExecute);
-            }
-            break;
-
-          default:
-            throw new BuildStartException(String.format("Invalid ACL specification \"%s\"", aclEntryStr));
-        }
+    // paths are up to the end of the line
+    int pathsEnd = comma + 1;
+    while (pathsEnd < end && !isLineTerminator(str.charAt(pathsEnd))) {
+      pathsEnd++;
+    }
+
+    final int pathsStart = trimStart(str, comma + 1, pathsEnd);
+    pathsEnd = trimEnd(str, pathsStart, pathsEnd);
+    if(indexOf(str, ',', pathsStart, pathsEnd) >= 0) {
+      while (pathsEnd > pathsStart && str.charAt(pathsEnd - 1) == ',') {
+        pathsEnd--;
+      }
+    }
+    else if(pathsStart == pathsEnd) {
+      accessControlEntries.add(new AccessControlEntry(new File(""), account, permissions, scope));
+      return;
+    }
+
+    int pathStart = pathsStart;
+    while (pathStart < pathsEnd) {
+      int pathEnd = indexOf(str, ',', pathStart, pathsEnd);
+      if(pathEnd < 0) {
+        pathEnd = pathsEnd;
+      }
+
+      final int pathTrimmedStart = trimStart(str, pathStart, pathEnd);
+      final String path = str.substring(pathTrimmedStart, trimEnd(str, pathTrimmedStart, pathEnd));
+      accessControlEntries.add(new AccessControlEntry(new File(path), account, permissions, scope));
+      pathStart = pathEnd + 1;
+    }
+  }
+
+  // Returns the leftmost position where targets and permissions ending with the comma could start or -1
+  private static int findTargetsStart(@NotNull final String str, final int from, final int comma) {
+    int start = comma;
+    int lastTargetOnly = -1;
+    int lastPermissionOnlyBeforeTarget = -1;
+    while (start > from) {
+      final char ch = str.charAt(start - 1);
+      if(!isTarget(ch) && !isPermission(ch)) {
+        break;
       }
 
-      for (String pathItem: antPatternsStr.split(",")) {
-          final File path = new File(pathItem.trim());
-          accessControlEntries.add(new AccessControlEntry(path, account, permissions, scope));
+      start--;
+      if(lastTargetOnly < 0) {
+        if(isTargetOnly(ch)) {
+          lastTargetOnly = start;
         }
+      }
+      else {
+        if(lastPermissionOnlyBeforeTarget < 0 && isPermissionOnly(ch)) {
+          lastPermissionOnlyBeforeTarget = start;
+        }
+      }
     }
 
-    final AccessControlList acl = new AccessControlList(accessControlEntries);
-    if(LOG.isDebugEnabled()) {
-      LOG.debug("parse: \"" + aclString + "\" as " + acl);
+    // at least one target and one permission char, targets could not be after permissions
+    if(comma - start < 2 || lastTargetOnly == comma - 1) {
+      return -1;
     }
 
-    return acl;
+    if(lastTargetOnly >= 0) {
+      return Math.max(start, lastPermissionOnlyBeforeTarget + 1);
+    }
+
+    while (start < comma - 1 && isPermissionOnly(str.charAt(start))) {
+      start++;
+    }
+
+    return start < comma - 1 ? start : -1;
+  }
+
+  private static int indexOf(@NotNull final String str, final char ch, final int start, final int end) {
+    for (int index = start; index < end; index++) {
+      if(str.charAt(index) == ch) {
+        return index;
+      }
+    }
+
+    return -1;
+  }
+
+  // the same as String.trim()
+  private static int trimStart(@NotNull final String str, final int start, final int end) {
+    int index = start;
+    while (index < end && str.charAt(index) <= ' ') {
+      index++;
+    }
+
+    return index;
+  }
+
+  private static int trimEnd(@NotNull final String str, final int start, final int end) {
+    int index = end;
+    while (index > start && str.charAt(index - 1) <= ' ') {
+      index--;
+    }
+
+    return index;
+  }
+
+  private static boolean isTarget(final char ch) {
+    switch (ch) {
+      case 'g': case 'b': case 's': case 'r': case 'c': case 'u': case 'a':
+      case 'G': case 'B': case 'S': case 'R': case 'C': case 'U': case 'A':
+        return true;
+
+      default:
+        return isWhitespace(ch);
+    }
+  }
+
+  private static boolean isPermission(final char ch) {
+    switch (ch) {
+      case '+': case '-': case 'r': case 'w': case 'x':
+      case 'R': case 'W': case 'X':
+        return true;
+
+      default:
+        return isWhitespace(ch);
+    }
+  }
+
+  private static boolean isTargetOnly(final char ch) {
+    return isTarget(ch) && !isPermission(ch);
+  }
+
+  private static boolean isPermissionOnly(final char ch) {
+    return isPermission(ch) && !isTarget(ch);
+  }
+
+  // the same as \s
+  private static boolean isWhitespace(final char ch) {
+    return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+  }
+
+  // the same as chars which are not matched by .
+  private static boolean isLineTerminator(final char ch) {
+    return ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029';
+  }
+
+  @NotNull
+  private static BuildStartException createInvalidEntryException(@NotNull final String str, final int start, final int end) {
+    return new BuildStartException(String.format("Invalid ACL specification \"%s\"", str.substring(start, end)));
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,25 @@
+package jetbrains.buildServer.runAs.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+public class FileAccessResult extends Result<AccessControlEntry, Boolean> {
+  @NotNull private final FileAccessStatistics myStatistics;
+
+  public FileAccessResult(
+    @NotNull final AccessControlEntry entry,
+    @NotNull final Boolean value,
+    @NotNull final FileAccessStatistics statistics) {
+    super(entry, value);
+    myStatistics = statistics;
+  }
+
+  @NotNull
+  public FileAccessStatistics getStatistics() {
+    return myStatistics;
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + " " + myStatistics;
+  }
+}
@@ -0,0 +1,50 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+
+public class FileAccessStatistics {
+  private final AtomicLong myExaminedCount = new AtomicLong();
+  private final AtomicLong myChangedCount = new AtomicLong();
+  private final AtomicLong mySkippedCount = new AtomicLong();
+
+  public void onExamined(final boolean isChanged) {
+    myExaminedCount.incrementAndGet();
+    if(isChanged) {
+      myChangedCount.incrementAndGet();
+    }
+    else {
+      mySkippedCount.incrementAndGet();
+    }
+  }
+
+  public void add(@NotNull final FileAccessStatistics statistics) {
+    myExaminedCount.addAndGet(statistics.getExaminedCount());
+    myChangedCount.addAndGet(statistics.getChangedCount());
+    mySkippedCount.addAndGet(statistics.getSkippedCount());
+  }
+
+  public long getExaminedCount() {
+    return myExaminedCount.get();
+  }
+
+  public long getChangedCount() {
+    return myChangedCount.get();
+  }
+
+  public long getSkippedCount() {
+    return mySkippedCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return LogUtils.toString(
+      "FileAccessStatistics",
+      new LinkedHashMap<String, Object>() {{
+        this.put("Examined", getExaminedCount());
+        this.put("Changed", getChangedCount());
+        this.put("Skipped", getSkippedCount());
+      }});
+  }
+}
@@ -0,0 +1,11 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.nio.file.Path;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public interface FileStampService {
+  // a stamp is changed when the file is replaced or its content is modified
+  @Nullable
+  String tryGetStamp(@NotNull final Path path);
+}
@@ -0,0 +1,27 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class FileStampServiceImpl implements FileStampService {
+  @Nullable
+  @Override
+  public String tryGetStamp(@NotNull final Path path) {
+    final BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    }
+    catch (IOException ignored) {
+      return null;
+    }
+
+    // the file key contains the device and the inode when it is supported
+    final Object fileKey = attributes.fileKey();
+    final String identity = fileKey != null ? fileKey.toString() : Long.toString(attributes.creationTime().toMillis());
+    return identity + ":" + attributes.lastModifiedTime().toMillis();
+  }
+}
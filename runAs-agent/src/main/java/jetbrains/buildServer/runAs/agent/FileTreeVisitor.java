@@ -0,0 +1,12 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.jetbrains.annotations.NotNull;
+
+public interface FileTreeVisitor {
+  void visit(@NotNull Path path, @NotNull BasicFileAttributes attributes) throws IOException;
+
+  void visitFailed(@NotNull Path path, @NotNull IOException error);
+}
@@ -0,0 +1,9 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.jetbrains.annotations.NotNull;
+
+public interface FileTreeWalker {
+  boolean walk(@NotNull Path root, @NotNull FileTreeVisitor visitor) throws IOException;
+}
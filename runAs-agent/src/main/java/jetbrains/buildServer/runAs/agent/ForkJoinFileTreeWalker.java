@@ -0,0 +1,207 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jetbrains.buildServer.runAs.common.Constants;
+import org.jetbrains.annotations.NotNull;
+
+public class ForkJoinFileTreeWalker implements FileTreeWalker {
+  private static final Logger LOG = Logger.getInstance(ForkJoinFileTreeWalker.class.getName());
+  static final int FILES_PER_TASK = 256;
+  private final AgentParametersService myAgentParametersService;
+  // walks in progress for each pool, a replaced pool is shut down when its last walk has finished
+  private final Map<ForkJoinPool, Integer> myWalks = new HashMap<ForkJoinPool, Integer>();
+  private ForkJoinPool myPool;
+
+  public ForkJoinFileTreeWalker(@NotNull final AgentParametersService agentParametersService) {
+    myAgentParametersService = agentParametersService;
+  }
+
+  @Override
+  public boolean walk(@NotNull final Path root, @NotNull final FileTreeVisitor visitor) throws IOException {
+    // like chmod -R the root is resolved, but symbolic links inside the tree are skipped
+    final Path realRoot = Files.isSymbolicLink(root) ? root.toRealPath() : root;
+    // POSIX attributes are read by the same system call, so visitors do not need to read them again
+    final Class<? extends BasicFileAttributes> attributesClass = Files.getFileStore(realRoot).supportsFileAttributeView(PosixFileAttributeView.class) ? PosixFileAttributes.class : BasicFileAttributes.class;
+    final BasicFileAttributes attributes = Files.readAttributes(realRoot, attributesClass);
+    if(!attributes.isDirectory()) {
+      visitor.visit(realRoot, attributes);
+      return true;
+    }
+
+    final AtomicBoolean hasErrors = new AtomicBoolean(false);
+    final ForkJoinPool pool = acquirePool();
+    try {
+      pool.invoke(new DirectoryTask(realRoot, attributes, new WalkContext(attributesClass, visitor, hasErrors)));
+    }
+    finally {
+      releasePool(pool);
+    }
+
+    return !hasErrors.get();
+  }
+
+  @NotNull
+  private synchronized ForkJoinPool acquirePool() {
+    final int parallelism = getParallelism();
+    if(myPool == null || myPool.getParallelism() != parallelism) {
+      if(myPool != null && !myWalks.containsKey(myPool)) {
+        myPool.shutdown();
+      }
+
+      LOG.info("Create the pool to walk file trees, parallelism: " + parallelism);
+      myPool = new ForkJoinPool(parallelism);
+    }
+
+    final Integer walks = myWalks.get(myPool);
+    myWalks.put(myPool, walks == null ? 1 : walks + 1);
+    return myPool;
+  }
+
+  private synchronized void releasePool(@NotNull final ForkJoinPool pool) {
+    final int walks = myWalks.get(pool) - 1;
+    if(walks > 0) {
+      myWalks.put(pool, walks);
+      return;
+    }
+
+    myWalks.remove(pool);
+    if(pool != myPool) {
+      pool.shutdown();
+    }
+  }
+
+  private int getParallelism() {
+    final int defaultParallelism = Runtime.getRuntime().availableProcessors();
+    final int parallelism = ParameterUtils.parseInt(myAgentParametersService.tryGetConfigParameter(Constants.RUN_AS_ACL_PARALLELISM), defaultParallelism);
+    if(parallelism < 1) {
+      LOG.warn("Invalid value of \"" + Constants.RUN_AS_ACL_PARALLELISM + "\": " + parallelism + ", using " + defaultParallelism);
+      return defaultParallelism;
+    }
+
+    return parallelism;
+  }
+
+  private static class WalkContext {
+    private final Class<? extends BasicFileAttributes> myAttributesClass;
+    private final FileTreeVisitor myVisitor;
+    private final AtomicBoolean myHasErrors;
+
+    WalkContext(@NotNull final Class<? extends BasicFileAttributes> attributesClass, @NotNull final FileTreeVisitor visitor, @NotNull final AtomicBoolean hasErrors) {
+      myAttributesClass = attributesClass;
+      myVisitor = visitor;
+      myHasErrors = hasErrors;
+    }
+
+    @NotNull
+    BasicFileAttributes readAttributes(@NotNull final Path path) throws IOException {
+      return Files.readAttributes(path, myAttributesClass, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    void visit(@NotNull final Path path, @NotNull final BasicFileAttributes attributes) {
+      try {
+        myVisitor.visit(path, attributes);
+      }
+      catch (IOException ex) {
+        visitFailed(path, ex);
+      }
+    }
+
+    void visitFailed(@NotNull final Path path, @NotNull final IOException error) {
+      myHasErrors.set(true);
+      myVisitor.visitFailed(path, error);
+    }
+  }
+
+  private static class DirectoryTask extends RecursiveAction {
+    private final Path myDirectory;
+    private final BasicFileAttributes myAttributes;
+    private final WalkContext myContext;
+
+    DirectoryTask(@NotNull final Path directory, @NotNull final BasicFileAttributes attributes, @NotNull final WalkContext context) {
+      myDirectory = directory;
+      myAttributes = attributes;
+      myContext = context;
+    }
+
+    @Override
+    protected void compute() {
+      // the directory is processed before its content like chmod -R does, so granted permissions allow to list it
+      myContext.visit(myDirectory, myAttributes);
+      final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+      List<Path> files = new ArrayList<Path>();
+      List<BasicFileAttributes> filesAttributes = new ArrayList<BasicFileAttributes>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(myDirectory)) {
+        for (Path path: stream) {
+          final BasicFileAttributes attributes;
+          try {
+            attributes = myContext.readAttributes(path);
+          }
+          catch (IOException ex) {
+            myContext.visitFailed(path, ex);
+            continue;
+          }
+
+          if(attributes.isSymbolicLink()) {
+            continue;
+          }
+
+          if(attributes.isDirectory()) {
+            tasks.add(new DirectoryTask(path, attributes, myContext));
+            continue;
+          }
+
+          files.add(path);
+          filesAttributes.add(attributes);
+          if(files.size() == FILES_PER_TASK) {
+            tasks.add(new FilesTask(files, filesAttributes, myContext));
+            files = new ArrayList<Path>();
+            filesAttributes = new ArrayList<BasicFileAttributes>();
+          }
+        }
+      }
+      catch (IOException ex) {
+        myContext.visitFailed(myDirectory, ex);
+      }
+
+      if(!files.isEmpty()) {
+        tasks.add(new FilesTask(files, filesAttributes, myContext));
+      }
+
+      invokeAll(tasks);
+    }
+  }
+
+  private static class FilesTask extends RecursiveAction {
+    private final List<Path> myFiles;
+    private final List<BasicFileAttributes> myAttributes;
+    private final WalkContext myContext;
+
+    FilesTask(@NotNull final List<Path> files, @NotNull final List<BasicFileAttributes> attributes, @NotNull final WalkContext context) {
+      myFiles = files;
+      myAttributes = attributes;
+      myContext = context;
+    }
+
+    @Override
+    protected void compute() {
+      for (int index = 0; index < myFiles.size(); index++) {
+        myContext.visit(myFiles.get(index), myAttributes.get(index));
+      }
+    }
+  }
+}
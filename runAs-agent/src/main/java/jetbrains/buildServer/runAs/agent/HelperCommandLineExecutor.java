@@ -0,0 +1,96 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import jetbrains.buildServer.runAs.common.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// Runs commands in the long-lived helper process instead of starting a new process from the agent each time
+public class HelperCommandLineExecutor implements CommandLineExecutor {
+  private static final Logger LOG = Logger.getInstance(HelperCommandLineExecutor.class.getName());
+  // the helper applies the timeout itself, this one is for the case when the helper hangs
+  private static final int RESPONSE_TIMEOUT_GAP_SECONDS = 30;
+  private final CommandLineExecutor myCommandLineExecutor;
+  private final HelperLauncher myHelperLauncher;
+  private final BuildAgentConfiguration myBuildAgentConfiguration;
+  private HelperConnection myConnection;
+
+  public HelperCommandLineExecutor(
+    @NotNull final CommandLineExecutor commandLineExecutor,
+    @NotNull final HelperLauncher helperLauncher,
+    @NotNull final BuildAgentConfiguration buildAgentConfiguration) {
+    myCommandLineExecutor = commandLineExecutor;
+    myHelperLauncher = helperLauncher;
+    myBuildAgentConfiguration = buildAgentConfiguration;
+  }
+
+  @Nullable
+  @Override
+  public ExecResult runProcess(@NotNull final CommandLineSetup commandLineSetup, final int executionTimeoutSeconds) throws ExecutionException {
+    // agent parameters are used because commands are executed outside of builds as well
+    if(!ParameterUtils.parseBoolean(myBuildAgentConfiguration.getConfigurationParameters().get(Constants.RUN_AS_HELPER_ENABLED), false)) {
+      return myCommandLineExecutor.runProcess(commandLineSetup, executionTimeoutSeconds);
+    }
+
+    final HelperConnection connection = tryGetConnection();
+    if(connection == null) {
+      return myCommandLineExecutor.runProcess(commandLineSetup, executionTimeoutSeconds);
+    }
+
+    if(LOG.isDebugEnabled()) {
+      LOG.debug("Exec via the helper: " + LogUtils.toString(commandLineSetup));
+    }
+
+    try {
+      return connection.send(commandLineSetup, executionTimeoutSeconds).get(executionTimeoutSeconds + RESPONSE_TIMEOUT_GAP_SECONDS, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionException(ex.getMessage());
+    }
+    catch (TimeoutException ex) {
+      LOG.warn("The helper does not respond, it is restarted");
+      connection.close();
+      throw new ExecutionException("The helper does not respond");
+    }
+    catch (java.util.concurrent.ExecutionException ex) {
+      final Throwable cause = ex.getCause();
+      if(cause instanceof HelperConnection.HelperException) {
+        throw new ExecutionException(cause.getMessage());
+      }
+
+      // commands for permissions could be repeated safely
+      LOG.warn("The helper was terminated, executing the command directly: " + (cause != null ? cause.getMessage() : ex.getMessage()));
+      return myCommandLineExecutor.runProcess(commandLineSetup, executionTimeoutSeconds);
+    }
+  }
+
+  @Nullable
+  private synchronized HelperConnection tryGetConnection() {
+    if(myConnection != null) {
+      if(myConnection.isAlive()) {
+        return myConnection;
+      }
+
+      LOG.warn("The helper was terminated, restarting it");
+      myConnection = null;
+    }
+
+    try {
+      myConnection = new HelperConnection(myHelperLauncher.launch());
+      LOG.info("The helper was started");
+      return myConnection;
+    }
+    catch (IOException ex) {
+      LOG.warn("Cannot start the helper: " + ex.getMessage());
+      return null;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import org.jetbrains.annotations.NotNull;
+
+// Sends requests to the helper process without waiting for previous responses,
+// requests sent concurrently are written to the pipe as one batch
+class HelperConnection {
+  private static final Logger LOG = Logger.getInstance(HelperConnection.class.getName());
+  private final Process myProcess;
+  private final Writer myWriter;
+  private final Map<String, CompletableFuture<ExecResult>> myRequests = new ConcurrentHashMap<String, CompletableFuture<ExecResult>>();
+  private final Queue<String> myPendingRequests = new ConcurrentLinkedQueue<String>();
+  private final AtomicLong myLastId = new AtomicLong();
+  private volatile boolean myIsClosed;
+
+  HelperConnection(@NotNull final Process process) {
+    myProcess = process;
+    myWriter = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), RunAsHelper.OurCharset));
+    final Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        readResponses();
+      }
+    }, "runAs helper reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  boolean isAlive() {
+    return !myIsClosed && myProcess.isAlive();
+  }
+
+  @NotNull
+  CompletableFuture<ExecResult> send(@NotNull final CommandLineSetup commandLineSetup, final int executionTimeoutSeconds) {
+    final String id = Long.toString(myLastId.incrementAndGet());
+    final CompletableFuture<ExecResult> future = new CompletableFuture<ExecResult>();
+    myRequests.put(id, future);
+    // the connection could be closed concurrently, then pending requests could be missed by close()
+    if(myIsClosed) {
+      myRequests.remove(id);
+      future.completeExceptionally(new IOException("The helper was terminated"));
+      return future;
+    }
+
+    final List<String> fields = new ArrayList<String>();
+    fields.add(id);
+    fields.add(Integer.toString(executionTimeoutSeconds));
+    fields.add(commandLineSetup.getToolPath());
+    for (CommandLineArgument arg: commandLineSetup.getArgs()) {
+      fields.add(arg.getValue());
+    }
+
+    myPendingRequests.add(LineFields.join(fields));
+    try {
+      writePendingRequests();
+    }
+    catch (IOException ex) {
+      LOG.warn("Cannot send a request to the helper: " + ex.getMessage());
+      close();
+    }
+
+    return future;
+  }
+
+  // the thread holding the writer writes requests of all waiting threads and flushes once,
+  // so waiting threads could find their requests already sent
+  private void writePendingRequests() throws IOException {
+    synchronized (myWriter) {
+      boolean hasRequests = false;
+      String request;
+      while ((request = myPendingRequests.poll()) != null) {
+        myWriter.write(request);
+        myWriter.write('\n');
+        hasRequests = true;
+      }
+
+      if(hasRequests) {
+        myWriter.flush();
+      }
+    }
+  }
+
+  void close() {
+    myIsClosed = true;
+    myProcess.destroy();
+    for (String id: myRequests.keySet()) {
+      final CompletableFuture<ExecResult> future = myRequests.remove(id);
+      if(future != null) {
+        future.completeExceptionally(new IOException("The helper was terminated"));
+      }
+    }
+  }
+
+  private void readResponses() {
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(myProcess.getInputStream(), RunAsHelper.OurCharset));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        onResponse(line);
+      }
+    }
+    catch (IOException ex) {
+      LOG.warn("Cannot read a response of the helper: " + ex.getMessage());
+    }
+    finally {
+      close();
+    }
+  }
+
+  private void onResponse(@NotNull final String line) {
+    final List<String> fields;
+    try {
+      fields = LineFields.split(line);
+    }
+    catch (IllegalArgumentException ex) {
+      LOG.warn("Invalid response of the helper: " + line);
+      return;
+    }
+
+    final CompletableFuture<ExecResult> future = myRequests.remove(fields.get(0));
+    if(future == null) {
+      LOG.warn("Unexpected response of the helper: " + line);
+      return;
+    }
+
+    if(fields.size() == 5 && RunAsHelper.STATUS_OK.equals(fields.get(1))) {
+      final ExecResult result = new ExecResult();
+      try {
+        result.setExitCode(Integer.parseInt(fields.get(2)));
+      }
+      catch (NumberFormatException ex) {
+        future.completeExceptionally(new HelperException("Invalid exit code " + fields.get(2)));
+        return;
+      }
+
+      result.setStdout(fields.get(3));
+      result.setStderr(fields.get(4));
+      future.complete(result);
+      return;
+    }
+
+    future.completeExceptionally(new HelperException(fields.size() > 2 ? fields.get(2) : line));
+  }
+
+  static class HelperException extends Exception {
+    HelperException(@NotNull final String message) {
+      super(message);
+    }
+  }
+}
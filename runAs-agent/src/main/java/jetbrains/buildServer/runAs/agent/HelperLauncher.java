@@ -0,0 +1,10 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.IOException;
+import org.jetbrains.annotations.NotNull;
+
+public interface HelperLauncher {
+  // starts a process, which speaks the protocol of RunAsHelper over stdin and stdout
+  @NotNull
+  Process launch() throws IOException;
+}
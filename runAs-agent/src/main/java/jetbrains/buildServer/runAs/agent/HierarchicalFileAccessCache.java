@@ -0,0 +1,230 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.runAs.common.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class HierarchicalFileAccessCache implements FileAccessCache, FileAccessCacheManager {
+  private static final Logger LOG = Logger.getInstance(HierarchicalFileAccessCache.class.getName());
+  private static final int MIN_BARRIERS_LIMIT = 64;
+  private final PathTrie<CachedAccessControlEntry> myEntries = new PathTrie<CachedAccessControlEntry>();
+  // the order of cached entries and barriers, an ancestor does not cover files under a barrier which was set after it
+  private final Map<CachedAccessControlEntry, Long> mySequences = new HashMap<CachedAccessControlEntry, Long>();
+  // failed entries are not applied again during the session, but they do not cover other entries
+  private final Set<CachedAccessControlEntry> myFailedEntries = new HashSet<CachedAccessControlEntry>();
+  private final PathTrie<Barrier> myBarriers = new PathTrie<Barrier>();
+  private final Map<Path, Barrier> myBarriersByPath = new HashMap<Path, Barrier>();
+  // barriers are pruned when their number exceeds the limit, it is doubled after pruning
+  private int myBarriersLimit = MIN_BARRIERS_LIMIT;
+  private long mySequence;
+  private final FileAccessCacheStatistics myStatistics = new FileAccessCacheStatistics();
+  private final FileStampService myFileStampService;
+  private final AgentParametersService myAgentParametersService;
+
+  public HierarchicalFileAccessCache(
+    @NotNull final FileStampService fileStampService,
+    @NotNull final AgentParametersService agentParametersService) {
+    myFileStampService = fileStampService;
+    myAgentParametersService = agentParametersService;
+  }
+
+  @Override
+  public boolean tryAddEntry(@NotNull final AccessControlEntry acl) {
+    return tryAddEntry(acl, System.currentTimeMillis()) != null;
+  }
+
+  // returns the new cached entry or null when the access is set by a valid cached entry
+  @Nullable
+  synchronized CachedAccessControlEntry tryAddEntry(@NotNull final AccessControlEntry acl, final long timestamp) {
+    final Path path = PathTrie.getPath(acl.getFile());
+    final long ttl = TimeUnit.SECONDS.toMillis(ParameterUtils.parseInt(myAgentParametersService.tryGetConfigParameter(Constants.RUN_AS_ACL_CACHE_TTL), 0));
+    // each file is checked by the single stat call
+    final Map<Path, String> stamps = new HashMap<Path, String>();
+    boolean isStale = false;
+    for (CachedAccessControlEntry cachedEntry: myEntries.getAncestorsOrSelf(path)) {
+      if(!cachedEntry.getEntry().getAccount().equals(acl.getAccount()) || !AccessCoverage.covers(cachedEntry.getPath(), cachedEntry.getEntry().getPermissions(), path, acl.getPermissions())) {
+        continue;
+      }
+
+      // the same entry is skipped like the exact match cache does, but other entries could be changed by barriers
+      if(!cachedEntry.getEntry().equals(acl) && (myFailedEntries.contains(cachedEntry) || hasBarrier(cachedEntry, path, acl.getPermissions().contains(AccessPermissions.Recursive)))) {
+        continue;
+      }
+
+      if(isValid(cachedEntry, timestamp, ttl, stamps)) {
+        myStatistics.onHit();
+        return null;
+      }
+
+      if(LOG.isDebugEnabled()) {
+        LOG.debug(cachedEntry.getEntry() + " is stale");
+      }
+
+      remove(cachedEntry);
+      isStale = true;
+    }
+
+    if(isStale) {
+      myStatistics.onStale();
+    }
+    else {
+      myStatistics.onMiss();
+    }
+
+    // the new entry changes files under cached ancestors which do not cover it
+    setBarrier(path);
+    final CachedAccessControlEntry newEntry = new CachedAccessControlEntry(path, acl, getStamp(path, stamps), timestamp);
+    addEntry(newEntry);
+    return newEntry;
+  }
+
+  // adds the entry without checks, it is validated on the next access
+  synchronized void addEntry(@NotNull final CachedAccessControlEntry entry) {
+    myEntries.add(entry.getPath(), entry);
+    mySequences.put(entry, ++mySequence);
+  }
+
+  @Override
+  public synchronized void invalidate(@NotNull final AccessControlEntry acl) {
+    setBarrier(PathTrie.getPath(acl.getFile()));
+  }
+
+  @Override
+  public synchronized void setApplied(@NotNull final AccessControlEntry acl, final boolean isSuccessful) {
+    if(isSuccessful) {
+      return;
+    }
+
+    final Path path = PathTrie.getPath(acl.getFile());
+    for (CachedAccessControlEntry cachedEntry: myEntries.getAncestorsOrSelf(path)) {
+      if(cachedEntry.getPath().equals(path) && cachedEntry.getEntry().equals(acl)) {
+        myFailedEntries.add(cachedEntry);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void reset() {
+    myEntries.clear();
+    mySequences.clear();
+    myFailedEntries.clear();
+    myBarriers.clear();
+    myBarriersByPath.clear();
+    myBarriersLimit = MIN_BARRIERS_LIMIT;
+  }
+
+  @NotNull
+  @Override
+  public FileAccessCacheStatistics getStatistics() {
+    return myStatistics;
+  }
+
+  private void remove(@NotNull final CachedAccessControlEntry entry) {
+    myEntries.remove(entry.getPath(), entry);
+    mySequences.remove(entry);
+    myFailedEntries.remove(entry);
+  }
+
+  private void setBarrier(@NotNull final Path path) {
+    Barrier barrier = myBarriersByPath.get(path);
+    if(barrier == null) {
+      barrier = new Barrier(path);
+      myBarriersByPath.put(path, barrier);
+      myBarriers.add(path, barrier);
+    }
+
+    barrier.mySequence = ++mySequence;
+    if(myBarriersByPath.size() > myBarriersLimit) {
+      pruneBarriers();
+      myBarriersLimit = Math.max(MIN_BARRIERS_LIMIT, 2 * myBarriersByPath.size());
+    }
+  }
+
+  // the global cache is not reset, so barriers are removed when they could not hide any cached entry
+  private void pruneBarriers() {
+    for (Iterator<Barrier> barrierIterator = myBarriersByPath.values().iterator(); barrierIterator.hasNext(); ) {
+      final Barrier barrier = barrierIterator.next();
+      if(!hidesEntries(barrier)) {
+        barrierIterator.remove();
+        myBarriers.remove(barrier.myPath, barrier);
+      }
+    }
+
+    if(LOG.isDebugEnabled()) {
+      LOG.debug(myBarriersByPath.size() + " barriers are kept after pruning");
+    }
+  }
+
+  // true when some entry cached before the barrier could cover its path
+  private boolean hidesEntries(@NotNull final Barrier barrier) {
+    for (CachedAccessControlEntry cachedEntry: myEntries.getAncestorsOrSelf(barrier.myPath)) {
+      if(mySequences.get(cachedEntry) < barrier.mySequence
+        && (cachedEntry.getPath().equals(barrier.myPath) || cachedEntry.getEntry().getPermissions().contains(AccessPermissions.Recursive))) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  int getBarriersCount() {
+    return myBarriersByPath.size();
+  }
+
+  // true when some entry was applied to the files of the path after the cached entry
+  private boolean hasBarrier(@NotNull final CachedAccessControlEntry cachedEntry, @NotNull final Path path, final boolean isRecursive) {
+    final long sequence = mySequences.get(cachedEntry);
+    final List<Barrier> barriers = myBarriers.getAncestorsOrSelf(path);
+    if(isRecursive) {
+      barriers.addAll(myBarriers.getDescendants(path));
+    }
+
+    for (Barrier barrier: barriers) {
+      if(barrier.mySequence > sequence && barrier.myPath.startsWith(cachedEntry.getPath())) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private boolean isValid(@NotNull final CachedAccessControlEntry entry, final long timestamp, final long ttl, @NotNull final Map<Path, String> stamps) {
+    if(ttl > 0 && timestamp - entry.getTimestamp() >= ttl) {
+      return false;
+    }
+
+    final String stamp = getStamp(entry.getPath(), stamps);
+    return stamp == null ? entry.getStamp() == null : stamp.equals(entry.getStamp());
+  }
+
+  @Nullable
+  private String getStamp(@NotNull final Path path, @NotNull final Map<Path, String> stamps) {
+    if(stamps.containsKey(path)) {
+      return stamps.get(path);
+    }
+
+    final String stamp = myFileStampService.tryGetStamp(path);
+    stamps.put(path, stamp);
+    return stamp;
+  }
+
+  private static class Barrier {
+    private final Path myPath;
+    // barriers are pruned when their number exceeds the limit, it is doubled after pruning
+  private int myBarriersLimit = MIN_BARRIERS_LIMIT;
+  private long mySequence;
+
+    Barrier(@NotNull final Path path) {
+      myPath = path;
+    }
+  }
+}
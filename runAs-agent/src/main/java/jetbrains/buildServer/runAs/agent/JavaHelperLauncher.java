@@ -0,0 +1,25 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import org.jetbrains.annotations.NotNull;
+
+public class JavaHelperLauncher implements HelperLauncher {
+  @NotNull
+  @Override
+  public Process launch() throws IOException {
+    final File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+    final File classPath;
+    try {
+      classPath = new File(RunAsHelper.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+    catch (URISyntaxException ex) {
+      throw new IOException(ex.getMessage());
+    }
+
+    return new ProcessBuilder(java.getPath(), "-cp", classPath.getPath(), RunAsHelper.class.getName())
+      .redirectError(ProcessBuilder.Redirect.INHERIT)
+      .start();
+  }
+}
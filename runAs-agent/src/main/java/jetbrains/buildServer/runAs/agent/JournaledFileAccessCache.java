@@ -0,0 +1,175 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+// Keeps global entries between agent restarts, an entry is restored only when the stamp of its file was not changed.
+// The journal is in the agent configuration directory, which is denied for runAs users by the default ACL,
+// so build steps could not add records to skip global entries in next sessions.
+public class JournaledFileAccessCache implements FileAccessCache, FileAccessCacheManager {
+  private static final Logger LOG = Logger.getInstance(JournaledFileAccessCache.class.getName());
+  static final String JOURNAL_DIRECTORY_NAME = "runAs";
+  static final String JOURNAL_FILE_NAME = "globalAccessCache.journal";
+  // the last record for the same entry replaces previous ones
+  private final Map<AccessControlEntry, CachedAccessControlEntry> myRecords = new LinkedHashMap<AccessControlEntry, CachedAccessControlEntry>();
+  // records are journaled only when their entries were applied successfully
+  private final Map<AccessControlEntry, CachedAccessControlEntry> myPendingRecords = new HashMap<AccessControlEntry, CachedAccessControlEntry>();
+  private final HierarchicalFileAccessCache myCache;
+  private final PathsService myPathsService;
+  private final FileStampService myFileStampService;
+  private final Executor myExecutor;
+  private FileAccessJournal myJournal;
+
+  public JournaledFileAccessCache(
+    @NotNull final PathsService pathsService,
+    @NotNull final FileStampService fileStampService,
+    @NotNull final AgentParametersService agentParametersService) {
+    this(pathsService, fileStampService, agentParametersService, Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "runAs access cache journal");
+        thread.setDaemon(true);
+        return thread;
+      }
+    }));
+  }
+
+  // all journal writes are done by the single thread in the order of submission
+  JournaledFileAccessCache(
+    @NotNull final PathsService pathsService,
+    @NotNull final FileStampService fileStampService,
+    @NotNull final AgentParametersService agentParametersService,
+    @NotNull final Executor executor) {
+    myCache = new HierarchicalFileAccessCache(fileStampService, agentParametersService);
+    myPathsService = pathsService;
+    myFileStampService = fileStampService;
+    myExecutor = executor;
+  }
+
+  @Override
+  public synchronized boolean tryAddEntry(@NotNull final AccessControlEntry acl) {
+    getJournal();
+    final CachedAccessControlEntry record = myCache.tryAddEntry(acl, System.currentTimeMillis());
+    if(record == null) {
+      return false;
+    }
+
+    if(record.getStamp() != null) {
+      myPendingRecords.put(acl, record);
+    }
+
+    return true;
+  }
+
+  @Override
+  public synchronized void invalidate(@NotNull final AccessControlEntry acl) {
+    myCache.invalidate(acl);
+  }
+
+  @Override
+  public synchronized void setApplied(@NotNull final AccessControlEntry acl, final boolean isSuccessful) {
+    final FileAccessJournal journal = getJournal();
+    myCache.setApplied(acl, isSuccessful);
+    final CachedAccessControlEntry record = myPendingRecords.remove(acl);
+    if(record == null || !isSuccessful) {
+      return;
+    }
+
+    myRecords.remove(acl);
+    myRecords.put(acl, record);
+    myExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          journal.append(record);
+        }
+        catch (IOException ex) {
+          LOG.warn("Cannot append to \"" + journal.getFile() + "\": " + ex.getMessage());
+        }
+      }
+    });
+  }
+
+  @Override
+  public synchronized void reset() {
+    final FileAccessJournal journal = getJournal();
+    myCache.reset();
+    myRecords.clear();
+    myPendingRecords.clear();
+    compact(journal);
+  }
+
+  @NotNull
+  @Override
+  public FileAccessCacheStatistics getStatistics() {
+    return myCache.getStatistics();
+  }
+
+  @NotNull
+  private FileAccessJournal getJournal() {
+    if(myJournal != null) {
+      return myJournal;
+    }
+
+    final File journalFile = new File(new File(myPathsService.getPath(WellKnownPaths.Config), JOURNAL_DIRECTORY_NAME), JOURNAL_FILE_NAME);
+    myJournal = new FileAccessJournal(journalFile);
+    final FileAccessJournal.ReadResult readResult = myJournal.read();
+    final Map<AccessControlEntry, CachedAccessControlEntry> records = new LinkedHashMap<AccessControlEntry, CachedAccessControlEntry>();
+    for (CachedAccessControlEntry record: readResult.getRecords()) {
+      records.remove(record.getEntry());
+      records.put(record.getEntry(), record);
+    }
+
+    for (CachedAccessControlEntry record: records.values()) {
+      final Path path = record.getPath();
+      final String stamp = record.getStamp();
+      if(stamp == null || !stamp.equals(myFileStampService.tryGetStamp(path))) {
+        if(LOG.isDebugEnabled()) {
+          LOG.debug("Skip " + record.getEntry() + " because \"" + path + "\" was changed");
+        }
+
+        continue;
+      }
+
+      myCache.addEntry(record);
+      myRecords.put(record.getEntry(), record);
+    }
+
+    if(readResult.getLinesCount() > 0) {
+      LOG.info(myRecords.size() + " of " + readResult.getLinesCount() + " entries were restored from \"" + journalFile + "\"");
+    }
+
+    // stale, corrupted and duplicated records are removed
+    if(readResult.getLinesCount() > myRecords.size()) {
+      compact(myJournal);
+    }
+
+    return myJournal;
+  }
+
+  private void compact(@NotNull final FileAccessJournal journal) {
+    final List<CachedAccessControlEntry> records = new ArrayList<CachedAccessControlEntry>(myRecords.values());
+    myExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          journal.rewrite(records);
+        }
+        catch (IOException ex) {
+          LOG.warn("Cannot compact \"" + journal.getFile() + "\": " + ex.getMessage());
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,101 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+// Tab separated fields of a single line, tabs, line breaks and back slashes inside fields are escaped.
+// It depends on JDK only, because it is used by the helper process as well.
+final class LineFields {
+  static final char SEPARATOR = '\t';
+
+  private LineFields() {
+  }
+
+  @NotNull
+  static String join(@NotNull final List<String> fields) {
+    final StringBuilder sb = new StringBuilder();
+    for (int index = 0; index < fields.size(); index++) {
+      if(index > 0) {
+        sb.append(SEPARATOR);
+      }
+
+      escape(sb, fields.get(index));
+    }
+
+    return sb.toString();
+  }
+
+  @NotNull
+  static List<String> split(@NotNull final String line) throws IllegalArgumentException {
+    final List<String> fields = new ArrayList<String>();
+    final StringBuilder field = new StringBuilder();
+    for (int index = 0; index < line.length(); index++) {
+      final char ch = line.charAt(index);
+      if(ch == SEPARATOR) {
+        fields.add(field.toString());
+        field.setLength(0);
+        continue;
+      }
+
+      if(ch != '\\') {
+        field.append(ch);
+        continue;
+      }
+
+      if(++index == line.length()) {
+        throw new IllegalArgumentException("Invalid escape sequence");
+      }
+
+      switch (line.charAt(index)) {
+        case '\\':
+          field.append('\\');
+          break;
+
+        case 't':
+          field.append('\t');
+          break;
+
+        case 'n':
+          field.append('\n');
+          break;
+
+        case 'r':
+          field.append('\r');
+          break;
+
+        default:
+          throw new IllegalArgumentException("Invalid escape sequence");
+      }
+    }
+
+    fields.add(field.toString());
+    return fields;
+  }
+
+  private static void escape(@NotNull final StringBuilder sb, @NotNull final String str) {
+    for (int index = 0; index < str.length(); index++) {
+      final char ch = str.charAt(index);
+      switch (ch) {
+        case '\\':
+          sb.append("\\\\");
+          break;
+
+        case '\t':
+          sb.append("\\t");
+          break;
+
+        case '\n':
+          sb.append("\\n");
+          break;
+
+        case '\r':
+          sb.append("\\r");
+          break;
+
+        default:
+          sb.append(ch);
+      }
+    }
+  }
+}
@@ -4,15 +4,18 @@ package jetbrains.buildServer.runAs.agent;
 
 import com.intellij.execution.ExecutionException;
 import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
 import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
 import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
-import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -21,137 +24,157 @@ import static jetbrains.buildServer.runAs.agent.Constants.CHMOD_TOOL_NAME;
 public class LinuxFileAccessService implements FileAccessService {
   private static final Logger LOG = Logger.getInstance(LinuxFileAccessService.class.getName());
   private static final int EXECUTION_TIMEOUT_SECONDS = 600;
-  private final CommandLineExecutor myCommandLineExecutor;
+  private final AsyncCommandLineExecutor myAsyncCommandLineExecutor;
+  private final ChmodBatchPlanner myChmodBatchPlanner;
 
-  public LinuxFileAccessService(@NotNull final CommandLineExecutor commandLineExecutor) {
-    myCommandLineExecutor = commandLineExecutor;
+  public LinuxFileAccessService(@NotNull final AsyncCommandLineExecutor asyncCommandLineExecutor) {
+    myAsyncCommandLineExecutor = asyncCommandLineExecutor;
+    myChmodBatchPlanner = new ChmodBatchPlanner(ChmodBatchPlanner.DEFAULT_MAX_ARGS_LENGTH);
   }
 
   public Iterable<Result<AccessControlEntry, Boolean>> setAccess(@NotNull final AccessControlList accessControlList) {
-    List<Result<AccessControlEntry, Boolean>> results = new ArrayList<Result<AccessControlEntry, Boolean>>();
-    for (AccessControlEntry ace: accessControlList) {
-      for (Result<AccessControlEntry, Boolean> result: tryApplyAccess(ace)) {
-        results.add(result);
+    final List<ChmodBatch> batches = myChmodBatchPlanner.plan(accessControlList);
+    final List<CompletableFuture<List<Result<AccessControlEntry, Boolean>>>> futures = new ArrayList<CompletableFuture<List<Result<AccessControlEntry, Boolean>>>>();
+    for (int index = 0; index < batches.size(); index++) {
+      final ChmodBatch batch = batches.get(index);
+      // a batch is started after all previous batches changing the same files, other batches are executed concurrently
+      final List<CompletableFuture<?>> dependencies = new ArrayList<CompletableFuture<?>>();
+      for (int prevIndex = 0; prevIndex < index; prevIndex++) {
+        if(batches.get(prevIndex).overlaps(batch)) {
+          dependencies.add(futures.get(prevIndex));
+        }
       }
+
+      futures.add(
+        CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[dependencies.size()]))
+          .thenCompose(new Function<Void, CompletableFuture<List<Result<AccessControlEntry, Boolean>>>>() {
+            @Override
+            public CompletableFuture<List<Result<AccessControlEntry, Boolean>>> apply(final Void ignored) {
+              return execChmod(batch);
+            }
+          }));
+    }
+
+    final List<Result<AccessControlEntry, Boolean>> results = new ArrayList<Result<AccessControlEntry, Boolean>>();
+    for (CompletableFuture<List<Result<AccessControlEntry, Boolean>>> future: futures) {
+      results.addAll(future.join());
     }
 
     return results;
   }
 
   @NotNull
-  private Iterable<Result<AccessControlEntry, Boolean>> tryApplyAccess(final AccessControlEntry entry) {
-    List<Result<AccessControlEntry, Boolean>> results = new ArrayList<Result<AccessControlEntry, Boolean>>();
-    final EnumSet<AccessPermissions> permissions = entry.getPermissions();
-    if(permissions.size() == 0) {
-      return results;
-    }
+  private CompletableFuture<List<Result<AccessControlEntry, Boolean>>> execChmod(@NotNull final ChmodBatch batch)
+  {
+    return runChmod(batch, batch.getFiles()).handle(
+      new BiFunction<ExecResult, Throwable, CompletableFuture<List<Result<AccessControlEntry, Boolean>>>>() {
+        @Override
+        public CompletableFuture<List<Result<AccessControlEntry, Boolean>>> apply(final ExecResult result, final Throwable error) {
+          // chmod does not report which file failed, so entries of a failed batch are applied one by one to get the result of each entry
+          if(error == null && result != null && result.getExitCode() != 0 && batch.getEntries().size() > 1) {
+            LOG.warn(result.toString());
+            LOG.info("chmod has failed for " + batch.getEntries().size() + " entries, they are applied one by one");
+            return execChmodForEachEntry(batch);
+          }
+
+          return CompletableFuture.completedFuture(getResults(batch.getEntries(), result, error));
+        }
+      }).thenCompose(new Function<CompletableFuture<List<Result<AccessControlEntry, Boolean>>>, CompletableFuture<List<Result<AccessControlEntry, Boolean>>>>() {
+        @Override
+        public CompletableFuture<List<Result<AccessControlEntry, Boolean>>> apply(final CompletableFuture<List<Result<AccessControlEntry, Boolean>>> results) {
+          return results;
+        }
+      });
+  }
 
-    final AccessControlAccount account = entry.getAccount();
-    ArrayList<String> permissionsList = new ArrayList<String>();
-    if (permissions.contains(AccessPermissions.GrantRead)) {
-      permissionsList.add("rX");
+  @NotNull
+  private CompletableFuture<List<Result<AccessControlEntry, Boolean>>> execChmodForEachEntry(@NotNull final ChmodBatch batch)
+  {
+    final List<AccessControlEntry> entries = batch.getEntries();
+    final List<File> files = batch.getFiles();
+    final List<CompletableFuture<List<Result<AccessControlEntry, Boolean>>>> futures = new ArrayList<CompletableFuture<List<Result<AccessControlEntry, Boolean>>>>();
+    for (int index = 0; index < entries.size(); index++) {
+      final List<AccessControlEntry> entry = Collections.singletonList(entries.get(index));
+      futures.add(runChmod(batch, Collections.singletonList(files.get(index))).handle(
+        new BiFunction<ExecResult, Throwable, List<Result<AccessControlEntry, Boolean>>>() {
+          @Override
+          public List<Result<AccessControlEntry, Boolean>> apply(final ExecResult result, final Throwable error) {
+            return getResults(entry, result, error);
+          }
+        }));
     }
 
-    if (permissions.contains(AccessPermissions.GrantWrite)) {
-      permissionsList.add("w");
-    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(
+      new Function<Void, List<Result<AccessControlEntry, Boolean>>>() {
+        @Override
+        public List<Result<AccessControlEntry, Boolean>> apply(final Void ignored) {
+          final List<Result<AccessControlEntry, Boolean>> results = new ArrayList<Result<AccessControlEntry, Boolean>>();
+          for (CompletableFuture<List<Result<AccessControlEntry, Boolean>>> future: futures) {
+            results.addAll(future.join());
+          }
+
+          return results;
+        }
+      });
+  }
 
-    if (permissions.contains(AccessPermissions.GrantExecute)) {
-      permissionsList.add("x");
+  @NotNull
+  private CompletableFuture<ExecResult> runChmod(@NotNull final ChmodBatch batch, @NotNull final List<File> files)
+  {
+    final ArrayList<CommandLineArgument> args = new ArrayList<CommandLineArgument>();
+    if (batch.isRecursive()) {
+      args.add(new CommandLineArgument("-R", CommandLineArgument.Type.PARAMETER));
+    }
+    args.add(new CommandLineArgument(batch.getMode(), CommandLineArgument.Type.PARAMETER));
+    for (File file: files) {
+      args.add(new CommandLineArgument(file.getPath(), CommandLineArgument.Type.PARAMETER));
     }
 
-    if(permissionsList.size() > 0)
-    {
-      switch (account.getTargetType()) {
-        case User:
-          permissionsList.add(0, "a+");
-          break;
-
-        case All:
-          permissionsList.add(0, "a+");
-          break;
+    final CommandLineSetup chmodCommandLineSetup = new CommandLineSetup(CHMOD_TOOL_NAME, args, Collections.<CommandLineResource>emptyList());
+    return myAsyncCommandLineExecutor.runProcessAsync(chmodCommandLineSetup, EXECUTION_TIMEOUT_SECONDS);
+  }
 
-        default:
-          throw new IllegalStateException("Unknown AccessControlAccountType: " + account.getTargetType());
+  @NotNull
+  private List<Result<AccessControlEntry, Boolean>> getResults(@NotNull final List<AccessControlEntry> entries, @Nullable final ExecResult result, @Nullable final Throwable error) {
+    final List<Result<AccessControlEntry, Boolean>> results = new ArrayList<Result<AccessControlEntry, Boolean>>();
+    if(error != null) {
+      final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      final Exception exception;
+      if(cause instanceof ExecutionException) {
+        LOG.error(cause);
+        exception = (ExecutionException)cause;
       }
-
-      final Result<AccessControlEntry, Boolean> result = tryExecChmod(entry, permissionsList);
-      if(result != null) {
-        results.add(result);
+      else {
+        LOG.warn(cause);
+        exception = cause instanceof Exception ? (Exception)cause : new ExecutionException(String.valueOf(cause.getMessage()));
       }
 
-      permissionsList.clear();
-    }
-
-    if (permissions.contains(AccessPermissions.DenyRead)) {
-      permissionsList.add("r");
-    }
-
-    if (permissions.contains(AccessPermissions.DenyWrite)) {
-      permissionsList.add("w");
-    }
-
-    if (permissions.contains(AccessPermissions.DenyExecute)) {
-      permissionsList.add("x");
-    }
-
-    if(permissionsList.size() > 0)
-    {
-      switch (account.getTargetType()) {
-        case User:
-          permissionsList.add(0, "go-");
-          break;
-
-        case All:
-          permissionsList.add(0, "a-");
-          break;
+      for (AccessControlEntry entry: entries) {
+        results.add(new Result<AccessControlEntry, Boolean>(entry, exception));
       }
 
-      final Result<AccessControlEntry, Boolean> result = tryExecChmod(entry, permissionsList);
-      if(result != null) {
-        results.add(result);
-      }
+      return results;
     }
 
-    return results;
-  }
-
-  @Nullable
-  private Result<AccessControlEntry, Boolean> tryExecChmod(@NotNull final AccessControlEntry entry, @NotNull final Iterable<String> chmodPermissions)
-  {
-    final String chmodPermissionsStr = StringUtil.join("", chmodPermissions);
-    if(StringUtil.isEmptyOrSpaces(chmodPermissionsStr)) {
-      return null;
+    if(result == null) {
+      return results;
     }
 
-    final ArrayList<CommandLineArgument> args = new ArrayList<CommandLineArgument>();
-    if (entry.getPermissions().contains(AccessPermissions.Recursive)) {
-      args.add(new CommandLineArgument("-R", CommandLineArgument.Type.PARAMETER));
+    final boolean isSuccessful = processResult(result);
+    for (AccessControlEntry entry: entries) {
+      results.add(new Result<AccessControlEntry, Boolean>(entry, isSuccessful));
     }
-    args.add(new CommandLineArgument(chmodPermissionsStr, CommandLineArgument.Type.PARAMETER));
-    args.add(new CommandLineArgument(entry.getFile().getAbsolutePath(), CommandLineArgument.Type.PARAMETER));
-    final CommandLineSetup chmodCommandLineSetup = new CommandLineSetup(CHMOD_TOOL_NAME, args, Collections.<CommandLineResource>emptyList());
-    try {
-      final ExecResult result = myCommandLineExecutor.runProcess(chmodCommandLineSetup, EXECUTION_TIMEOUT_SECONDS);
-      if(result == null) {
-        return null;
-      }
 
-      return processResult(entry, result);
-    }
-    catch (ExecutionException e) {
-      LOG.error(e);
-      return new Result<AccessControlEntry, Boolean>(entry, e);
-    }
+    return results;
   }
 
-  private Result<AccessControlEntry, Boolean> processResult(@NotNull final AccessControlEntry entry, @NotNull final ExecResult result) {
+  private boolean processResult(@NotNull final ExecResult result) {
     if(result.getExitCode() != 0) {
       final String resultStr = result.toString();
       LOG.warn(resultStr);
-      return new Result<AccessControlEntry, Boolean>(entry, false);
+      return false;
     }
 
-    return new Result<AccessControlEntry, Boolean>(entry, true);
+    return true;
   }
-}
\ No newline at end of file
+}
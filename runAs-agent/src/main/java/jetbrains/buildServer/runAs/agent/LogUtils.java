@@ -3,6 +3,8 @@
 package jetbrains.buildServer.runAs.agent;
 
 import java.util.Map;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
 import jetbrains.buildServer.util.*;
 import jetbrains.buildServer.util.Converter;
 import org.jetbrains.annotations.NotNull;
@@ -53,4 +55,21 @@ public class LogUtils {
           }))
       );
   }
-}
\ No newline at end of file
+
+  // the command line to log, secret arguments are masked
+  @NotNull
+  public static String toString(@NotNull final CommandLineSetup commandLineSetup) {
+    final StringBuilder commandLine = new StringBuilder(quote(commandLineSetup.getToolPath()));
+    for (CommandLineArgument arg: commandLineSetup.getArgs()) {
+      commandLine.append(' ');
+      commandLine.append(arg instanceof SecretCommandLineArgument ? SecretCommandLineArgument.MASK : quote(arg.getValue()));
+    }
+
+    return commandLine.toString();
+  }
+
+  @NotNull
+  private static String quote(@NotNull final String arg) {
+    return arg.isEmpty() || arg.contains(" ") || arg.contains("\t") ? "\"" + arg + "\"" : arg;
+  }
+}
@@ -0,0 +1,34 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import org.jetbrains.annotations.NotNull;
+
+// The directory for the agent state, only the agent has access to it
+class OwnerOnlyDirectory {
+  private OwnerOnlyDirectory() {
+  }
+
+  static void create(@NotNull final File dir) throws IOException {
+    if(dir.exists()) {
+      return;
+    }
+
+    if(!dir.mkdirs()) {
+      throw new IOException("Cannot create the directory \"" + dir + "\"");
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    dir.setReadable(false, false);
+    //noinspection ResultOfMethodCallIgnored
+    dir.setWritable(false, false);
+    //noinspection ResultOfMethodCallIgnored
+    dir.setExecutable(false, false);
+    //noinspection ResultOfMethodCallIgnored
+    dir.setReadable(true, true);
+    //noinspection ResultOfMethodCallIgnored
+    dir.setWritable(true, true);
+    //noinspection ResultOfMethodCallIgnored
+    dir.setExecutable(true, true);
+  }
+}
@@ -21,4 +21,17 @@ public class ParameterUtils {
 
     return defaultValue;
   }
+
+  public static int parseInt(@Nullable final String intStr, final int defaultValue) {
+    if(StringUtil.isEmptyOrSpaces(intStr)) {
+      return defaultValue;
+    }
+
+    try {
+      return Integer.parseInt(intStr.trim());
+    }
+    catch (NumberFormatException ignored) {
+      return defaultValue;
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,114 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+class PathTrie<T> {
+  private final Node<T> myRoot = new Node<T>();
+
+  void add(@NotNull final Path path, @NotNull final T value) {
+    Node<T> node = myRoot;
+    for (Path name: getNames(path)) {
+      Node<T> child = node.myChildren.get(name);
+      if(child == null) {
+        child = new Node<T>();
+        node.myChildren.put(name, child);
+      }
+
+      node = child;
+    }
+
+    node.myValues.add(value);
+  }
+
+  boolean remove(@NotNull final Path path, @NotNull final T value) {
+    final Node<T> node = find(path);
+    return node != null && node.myValues.remove(value);
+  }
+
+  @NotNull
+  List<T> getAncestorsOrSelf(@NotNull final Path path) {
+    final List<T> values = new ArrayList<T>();
+    Node<T> node = myRoot;
+    values.addAll(node.myValues);
+    for (Path name: getNames(path)) {
+      node = node.myChildren.get(name);
+      if(node == null) {
+        break;
+      }
+
+      values.addAll(node.myValues);
+    }
+
+    return values;
+  }
+
+  @NotNull
+  List<T> getDescendants(@NotNull final Path path) {
+    final List<T> values = new ArrayList<T>();
+    final Node<T> node = find(path);
+    if(node != null) {
+      for (Node<T> child: node.myChildren.values()) {
+        collect(child, values);
+      }
+    }
+
+    return values;
+  }
+
+  void clear() {
+    myRoot.myChildren.clear();
+    myRoot.myValues.clear();
+  }
+
+  @Nullable
+  private Node<T> find(@NotNull final Path path) {
+    Node<T> node = myRoot;
+    for (Path name: getNames(path)) {
+      node = node.myChildren.get(name);
+      if(node == null) {
+        return null;
+      }
+    }
+
+    return node;
+  }
+
+  private static <T> void collect(@NotNull final Node<T> node, @NotNull final List<T> values) {
+    values.addAll(node.myValues);
+    for (Node<T> child: node.myChildren.values()) {
+      collect(child, values);
+    }
+  }
+
+  @NotNull
+  static Path getPath(@NotNull final File file) {
+    return file.getAbsoluteFile().toPath().normalize();
+  }
+
+  @NotNull
+  private static List<Path> getNames(@NotNull final Path path) {
+    final List<Path> names = new ArrayList<Path>();
+    final Path root = path.getRoot();
+    if(root != null) {
+      names.add(root);
+    }
+
+    for (Path name: path) {
+      names.add(name);
+    }
+
+    return names;
+  }
+
+  private static class Node<T> {
+    private final Map<Path, Node<T>> myChildren = new HashMap<Path, Node<T>>();
+    private final List<T> myValues = new ArrayList<T>();
+  }
+}
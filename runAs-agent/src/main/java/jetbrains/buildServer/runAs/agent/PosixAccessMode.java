@@ -0,0 +1,147 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import org.jetbrains.annotations.NotNull;
+
+class PosixAccessMode {
+  private static final Set<PosixFilePermission> OurExecutePermissions = EnumSet.of(PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.OTHERS_EXECUTE);
+  @NotNull private final String myMode;
+  @NotNull private final Set<PosixFilePermission> myPermissionsToAdd;
+  @NotNull private final Set<PosixFilePermission> myPermissionsToRemove;
+  private final boolean myIsConditionalExecute;
+
+  private PosixAccessMode(
+    @NotNull final String mode,
+    @NotNull final Set<PosixFilePermission> permissionsToAdd,
+    @NotNull final Set<PosixFilePermission> permissionsToRemove,
+    final boolean isConditionalExecute) {
+    myMode = mode;
+    myPermissionsToAdd = permissionsToAdd;
+    myPermissionsToRemove = permissionsToRemove;
+    myIsConditionalExecute = isConditionalExecute;
+  }
+
+  @NotNull
+  static List<PosixAccessMode> create(@NotNull final AccessControlEntry entry) {
+    final List<PosixAccessMode> modes = new ArrayList<PosixAccessMode>();
+    final EnumSet<AccessPermissions> permissions = entry.getPermissions();
+    final AccessControlAccount account = entry.getAccount();
+
+    final StringBuilder grantMode = new StringBuilder();
+    final Set<PosixFilePermission> permissionsToAdd = EnumSet.noneOf(PosixFilePermission.class);
+    if (permissions.contains(AccessPermissions.GrantRead)) {
+      grantMode.append("rX");
+      permissionsToAdd.addAll(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.GROUP_READ, PosixFilePermission.OTHERS_READ));
+    }
+
+    if (permissions.contains(AccessPermissions.GrantWrite)) {
+      grantMode.append("w");
+      permissionsToAdd.addAll(EnumSet.of(PosixFilePermission.OWNER_WRITE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE));
+    }
+
+    if (permissions.contains(AccessPermissions.GrantExecute)) {
+      grantMode.append("x");
+      permissionsToAdd.addAll(OurExecutePermissions);
+    }
+
+    if(grantMode.length() > 0) {
+      switch (account.getTargetType()) {
+        case User:
+        case All:
+          grantMode.insert(0, "a+");
+          break;
+
+        default:
+          throw new IllegalStateException("Unknown AccessControlAccountType: " + account.getTargetType());
+      }
+
+      modes.add(new PosixAccessMode(grantMode.toString(), permissionsToAdd, EnumSet.noneOf(PosixFilePermission.class), permissions.contains(AccessPermissions.GrantRead)));
+    }
+
+    final StringBuilder denyMode = new StringBuilder();
+    final Set<PosixFilePermission> permissionsToRemove = EnumSet.noneOf(PosixFilePermission.class);
+    final boolean forAll = account.getTargetType() == AccessControlAccountType.All;
+    if (permissions.contains(AccessPermissions.DenyRead)) {
+      denyMode.append("r");
+      permissionsToRemove.addAll(select(forAll, PosixFilePermission.OWNER_READ, PosixFilePermission.GROUP_READ, PosixFilePermission.OTHERS_READ));
+    }
+
+    if (permissions.contains(AccessPermissions.DenyWrite)) {
+      denyMode.append("w");
+      permissionsToRemove.addAll(select(forAll, PosixFilePermission.OWNER_WRITE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE));
+    }
+
+    if (permissions.contains(AccessPermissions.DenyExecute)) {
+      denyMode.append("x");
+      permissionsToRemove.addAll(select(forAll, PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.OTHERS_EXECUTE));
+    }
+
+    if(denyMode.length() > 0) {
+      denyMode.insert(0, forAll ? "a-" : "go-");
+      modes.add(new PosixAccessMode(denyMode.toString(), EnumSet.noneOf(PosixFilePermission.class), permissionsToRemove, false));
+    }
+
+    return modes;
+  }
+
+  @NotNull
+  String getMode() {
+    return myMode;
+  }
+
+  @NotNull
+  Set<PosixFilePermission> apply(@NotNull final Set<PosixFilePermission> permissions, final boolean isDirectory) {
+    final Set<PosixFilePermission> newPermissions = permissions.isEmpty() ? EnumSet.noneOf(PosixFilePermission.class) : EnumSet.copyOf(permissions);
+    newPermissions.addAll(myPermissionsToAdd);
+    // "X" sets execute bits only for directories and for files which are executable for somebody before the change
+    if(myIsConditionalExecute && (isDirectory || containsAny(permissions, OurExecutePermissions))) {
+      newPermissions.addAll(OurExecutePermissions);
+    }
+
+    newPermissions.removeAll(myPermissionsToRemove);
+    return newPermissions;
+  }
+
+  private static boolean containsAny(@NotNull final Set<PosixFilePermission> permissions, @NotNull final Set<PosixFilePermission> expectedPermissions) {
+    for (PosixFilePermission permission: expectedPermissions) {
+      if(permissions.contains(permission)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  @NotNull
+  private static Set<PosixFilePermission> select(final boolean forAll, @NotNull final PosixFilePermission owner, @NotNull final PosixFilePermission group, @NotNull final PosixFilePermission others) {
+    if(forAll) {
+      return EnumSet.of(owner, group, others);
+    }
+
+    return EnumSet.of(group, others);
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    final PosixAccessMode that = (PosixAccessMode)o;
+
+    return myMode.equals(that.myMode);
+  }
+
+  @Override
+  public int hashCode() {
+    return myMode.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return myMode;
+  }
+}
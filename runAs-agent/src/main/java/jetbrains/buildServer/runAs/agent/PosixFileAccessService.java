@@ -0,0 +1,392 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.*;
+import jetbrains.buildServer.runAs.common.Constants;
+import org.jetbrains.annotations.NotNull;
+
+public class PosixFileAccessService implements FileAccessService {
+  private static final Logger LOG = Logger.getInstance(PosixFileAccessService.class.getName());
+  private static final String POSIX_VIEW_NAME = "posix";
+  private static final String UNIX_VIEW_NAME = "unix";
+  private static final String UNIX_MODE_ATTRIBUTE = "unix:mode";
+  private static final int PERMISSION_BITS = 0777;
+  // the order of bits in the mode, from the highest to the lowest
+  private static final PosixFilePermission[] OurModePermissions = new PosixFilePermission[] {
+    PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
+    PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_EXECUTE,
+    PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_EXECUTE };
+  private static final boolean OurIsUnixViewSupported = FileSystems.getDefault().supportedFileAttributeViews().contains(UNIX_VIEW_NAME);
+  private final FileAccessService myFallbackFileAccessService;
+  private final FileTreeWalker myFileTreeWalker;
+  private final AgentParametersService myAgentParametersService;
+
+  public PosixFileAccessService(
+    @NotNull final FileAccessService fallbackFileAccessService,
+    @NotNull final FileTreeWalker fileTreeWalker,
+    @NotNull final AgentParametersService agentParametersService) {
+    myFallbackFileAccessService = fallbackFileAccessService;
+    myFileTreeWalker = fileTreeWalker;
+    myAgentParametersService = agentParametersService;
+  }
+
+  public Iterable<Result<AccessControlEntry, Boolean>> setAccess(@NotNull final AccessControlList accessControlList) {
+    if(!FileSystems.getDefault().supportedFileAttributeViews().contains(POSIX_VIEW_NAME)) {
+      LOG.info("POSIX file attributes are not supported, using the fallback service");
+      return myFallbackFileAccessService.setAccess(accessControlList);
+    }
+
+    // permissions are written only when they differ from the current ones
+    final boolean isDiffEnabled = ParameterUtils.parseBoolean(myAgentParametersService.tryGetConfigParameter(Constants.RUN_AS_ACL_DIFF_ENABLED), true);
+    final List<Result<AccessControlEntry, Boolean>> results = new ArrayList<Result<AccessControlEntry, Boolean>>();
+    // consecutive patterns are resolved together, literal entries between them keep the order of changes
+    final List<AccessControlEntry> patternEntries = new ArrayList<AccessControlEntry>();
+    for (AccessControlEntry ace: accessControlList) {
+      if(AntPattern.isPattern(ace.getFile())) {
+        patternEntries.add(ace);
+        continue;
+      }
+
+      applyPatterns(patternEntries, isDiffEnabled, results);
+      patternEntries.clear();
+      final Path path = ace.getFile().getAbsoluteFile().toPath();
+      if(!isSupported(path)) {
+        LOG.info("POSIX file attributes are not supported for \"" + path + "\", using the fallback service");
+        for (Result<AccessControlEntry, Boolean> result: myFallbackFileAccessService.setAccess(new AccessControlList(Collections.singletonList(ace)))) {
+          results.add(result);
+        }
+
+        continue;
+      }
+
+      for (PosixAccessMode mode: PosixAccessMode.create(ace)) {
+        results.add(tryApplyAccess(ace, path, mode, isDiffEnabled));
+      }
+    }
+
+    applyPatterns(patternEntries, isDiffEnabled, results);
+    return results;
+  }
+
+  private void applyPatterns(@NotNull final List<AccessControlEntry> entries, final boolean isDiffEnabled, @NotNull final List<Result<AccessControlEntry, Boolean>> results) {
+    // patterns with overlapping roots are resolved by a single walk
+    final List<PatternGroup> groups = new ArrayList<PatternGroup>();
+    for (int index = 0; index < entries.size(); index++) {
+      PatternGroup group = new PatternGroup(new PatternItem(index, entries.get(index)));
+      for (Iterator<PatternGroup> groupIterator = groups.iterator(); groupIterator.hasNext(); ) {
+        final PatternGroup otherGroup = groupIterator.next();
+        if(otherGroup.overlaps(group)) {
+          group = otherGroup.merge(group);
+          groupIterator.remove();
+        }
+      }
+
+      groups.add(group);
+    }
+
+    for (PatternGroup group: groups) {
+      if(!isSupported(group.getRoot())) {
+        LOG.info("POSIX file attributes are not supported for \"" + group.getRoot() + "\", using the fallback service");
+        for (Result<AccessControlEntry, Boolean> result: myFallbackFileAccessService.setAccess(new AccessControlList(group.getEntries()))) {
+          results.add(result);
+        }
+
+        continue;
+      }
+
+      results.addAll(tryApplyAccess(group, isDiffEnabled));
+    }
+  }
+
+  @NotNull
+  private List<Result<AccessControlEntry, Boolean>> tryApplyAccess(@NotNull final PatternGroup group, final boolean isDiffEnabled) {
+    if(LOG.isDebugEnabled()) {
+      LOG.debug("Apply " + group);
+    }
+
+    final Path root = group.getRoot();
+    boolean isSuccessful;
+    try {
+      // like the walker does, the root is resolved, so paths are matched against the original root
+      final Path realRoot = Files.isSymbolicLink(root) ? root.toRealPath() : root;
+      isSuccessful = myFileTreeWalker.walk(realRoot, new FileTreeVisitor() {
+        @Override
+        public void visit(@NotNull final Path file, @NotNull final BasicFileAttributes attributes) throws IOException {
+          final Path path = root.resolve(realRoot.relativize(file));
+          Set<PosixFilePermission> permissions = null;
+          Set<PosixFilePermission> newPermissions = null;
+          // matched entries are applied in their order, so the file is changed once
+          for (PatternItem item: group.getItems()) {
+            if(!item.matches(path)) {
+              continue;
+            }
+
+            if(permissions == null) {
+              final PosixFileAttributes posixAttributes = attributes instanceof PosixFileAttributes ? (PosixFileAttributes)attributes : Files.readAttributes(file, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+              permissions = posixAttributes.permissions();
+              newPermissions = permissions;
+            }
+
+            for (PosixAccessMode mode: item.getModes()) {
+              final Set<PosixFilePermission> modePermissions = mode.apply(newPermissions, attributes.isDirectory());
+              item.getStatistics().onExamined(!isDiffEnabled || !modePermissions.equals(newPermissions));
+              newPermissions = modePermissions;
+            }
+          }
+
+          if(permissions != null && (!isDiffEnabled || !newPermissions.equals(permissions))) {
+            setPermissions(file, newPermissions);
+          }
+        }
+
+        @Override
+        public void visitFailed(@NotNull final Path file, @NotNull final IOException error) {
+          LOG.warn("Cannot apply " + group + " to \"" + file + "\": " + error.getMessage());
+        }
+      });
+    }
+    catch (IOException ex) {
+      LOG.warn("Cannot apply " + group + ": " + ex.getMessage());
+      isSuccessful = false;
+    }
+    catch (RuntimeException ex) {
+      LOG.error(ex);
+      final List<Result<AccessControlEntry, Boolean>> results = new ArrayList<Result<AccessControlEntry, Boolean>>();
+      for (PatternItem item: group.getItems()) {
+        results.add(new Result<AccessControlEntry, Boolean>(item.getEntry(), ex));
+      }
+
+      return results;
+    }
+
+    final List<Result<AccessControlEntry, Boolean>> results = new ArrayList<Result<AccessControlEntry, Boolean>>();
+    for (PatternItem item: group.getItems()) {
+      if(LOG.isDebugEnabled()) {
+        LOG.debug("\"" + item.getPattern() + "\" was applied to " + item.getEntry() + ": " + item.getStatistics());
+      }
+
+      results.add(new FileAccessResult(item.getEntry(), isSuccessful, item.getStatistics()));
+    }
+
+    return results;
+  }
+
+  @NotNull
+  private Result<AccessControlEntry, Boolean> tryApplyAccess(@NotNull final AccessControlEntry entry, @NotNull final Path path, @NotNull final PosixAccessMode mode, final boolean isDiffEnabled) {
+    if(LOG.isDebugEnabled()) {
+      LOG.debug("Apply \"" + mode + "\" to " + entry);
+    }
+
+    final FileAccessStatistics statistics = new FileAccessStatistics();
+    try {
+      final boolean isSuccessful;
+      if (entry.getPermissions().contains(AccessPermissions.Recursive)) {
+        isSuccessful = applyRecursively(path, mode, isDiffEnabled, statistics);
+      }
+      else {
+        // like the walker does, the path is resolved, then the resolved file is changed without following links
+        final Path realPath = Files.isSymbolicLink(path) ? path.toRealPath() : path;
+        applyAccess(realPath, Files.readAttributes(realPath, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS), mode, isDiffEnabled, statistics);
+        isSuccessful = true;
+      }
+
+      if(LOG.isDebugEnabled()) {
+        LOG.debug("\"" + mode + "\" was applied to " + entry + ": " + statistics);
+      }
+
+      return new FileAccessResult(entry, isSuccessful, statistics);
+    }
+    catch (IOException ex) {
+      LOG.warn("Cannot apply \"" + mode + "\" to \"" + path + "\": " + ex.getMessage());
+      return new FileAccessResult(entry, false, statistics);
+    }
+    catch (RuntimeException ex) {
+      LOG.error(ex);
+      return new Result<AccessControlEntry, Boolean>(entry, ex);
+    }
+  }
+
+  private boolean applyRecursively(@NotNull final Path path, @NotNull final PosixAccessMode mode, final boolean isDiffEnabled, @NotNull final FileAccessStatistics statistics) throws IOException {
+    return myFileTreeWalker.walk(path, new FileTreeVisitor() {
+      @Override
+      public void visit(@NotNull final Path file, @NotNull final BasicFileAttributes attributes) throws IOException {
+        final PosixFileAttributes posixAttributes = attributes instanceof PosixFileAttributes ? (PosixFileAttributes)attributes : Files.readAttributes(file, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        applyAccess(file, posixAttributes, mode, isDiffEnabled, statistics);
+      }
+
+      @Override
+      public void visitFailed(@NotNull final Path file, @NotNull final IOException error) {
+        LOG.warn("Cannot apply \"" + mode + "\" to \"" + file + "\": " + error.getMessage());
+      }
+    });
+  }
+
+  private static void applyAccess(
+    @NotNull final Path path,
+    @NotNull final PosixFileAttributes attributes,
+    @NotNull final PosixAccessMode mode,
+    final boolean isDiffEnabled,
+    @NotNull final FileAccessStatistics statistics) throws IOException {
+    final Set<PosixFilePermission> permissions = attributes.permissions();
+    final Set<PosixFilePermission> newPermissions = mode.apply(permissions, attributes.isDirectory());
+    if(isDiffEnabled && newPermissions.equals(permissions)) {
+      statistics.onExamined(false);
+      return;
+    }
+
+    setPermissions(path, newPermissions);
+    statistics.onExamined(true);
+  }
+
+  // chmod keeps setuid, setgid and sticky bits, but Files.setPosixFilePermissions clears them and follows symbolic links,
+  // so the full mode is written without following links when a file is replaced by a link during the walk
+  private static void setPermissions(@NotNull final Path path, @NotNull final Set<PosixFilePermission> permissions) throws IOException {
+    if(!OurIsUnixViewSupported) {
+      Files.setPosixFilePermissions(path, permissions);
+      return;
+    }
+
+    final int mode = (Integer)Files.getAttribute(path, UNIX_MODE_ATTRIBUTE, LinkOption.NOFOLLOW_LINKS);
+    final int newMode = (mode & ~PERMISSION_BITS) | toMode(permissions);
+    try {
+      Files.setAttribute(path, UNIX_MODE_ATTRIBUTE, newMode, LinkOption.NOFOLLOW_LINKS);
+    }
+    catch (AccessDeniedException ex) {
+      // the file is opened for reading to change it without following links, so a file without the read permission is changed by its path
+      if(Files.isSymbolicLink(path)) {
+        throw ex;
+      }
+
+      Files.setAttribute(path, UNIX_MODE_ATTRIBUTE, newMode);
+    }
+  }
+
+  private static int toMode(@NotNull final Set<PosixFilePermission> permissions) {
+    int mode = 0;
+    for (PosixFilePermission permission: OurModePermissions) {
+      mode <<= 1;
+      if(permissions.contains(permission)) {
+        mode |= 1;
+      }
+    }
+
+    return mode;
+  }
+
+  private static boolean isSupported(@NotNull final Path path) {
+    try {
+      return Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class);
+    }
+    catch (IOException ignored) {
+      // a missing path fails later in the same way as chmod does
+      return true;
+    }
+  }
+
+  private static class PatternItem {
+    private final int myIndex;
+    @NotNull private final AccessControlEntry myEntry;
+    @NotNull private final AntPattern myPattern;
+    @NotNull private final List<PosixAccessMode> myModes;
+    @NotNull private final FileAccessStatistics myStatistics = new FileAccessStatistics();
+
+    PatternItem(final int index, @NotNull final AccessControlEntry entry) {
+      myIndex = index;
+      myEntry = entry;
+      myPattern = AntPattern.compile(entry.getFile().toPath());
+      myModes = PosixAccessMode.create(entry);
+    }
+
+    @NotNull
+    AccessControlEntry getEntry() {
+      return myEntry;
+    }
+
+    @NotNull
+    AntPattern getPattern() {
+      return myPattern;
+    }
+
+    @NotNull
+    List<PosixAccessMode> getModes() {
+      return myModes;
+    }
+
+    @NotNull
+    FileAccessStatistics getStatistics() {
+      return myStatistics;
+    }
+
+    boolean matches(@NotNull final Path path) {
+      return myPattern.matches(path);
+    }
+  }
+
+  // Patterns under the same root, items are ordered like entries in ACL
+  private static class PatternGroup {
+    @NotNull private final Path myRoot;
+    @NotNull private final List<PatternItem> myItems;
+
+    PatternGroup(@NotNull final PatternItem item) {
+      this(item.getPattern().getRoot(), Collections.singletonList(item));
+    }
+
+    private PatternGroup(@NotNull final Path root, @NotNull final List<PatternItem> items) {
+      myRoot = root;
+      myItems = items;
+    }
+
+    @NotNull
+    Path getRoot() {
+      return myRoot;
+    }
+
+    @NotNull
+    List<PatternItem> getItems() {
+      return myItems;
+    }
+
+    @NotNull
+    List<AccessControlEntry> getEntries() {
+      final List<AccessControlEntry> entries = new ArrayList<AccessControlEntry>();
+      for (PatternItem item: myItems) {
+        entries.add(item.getEntry());
+      }
+
+      return entries;
+    }
+
+    boolean overlaps(@NotNull final PatternGroup group) {
+      return myRoot.startsWith(group.myRoot) || group.myRoot.startsWith(myRoot);
+    }
+
+    @NotNull
+    PatternGroup merge(@NotNull final PatternGroup group) {
+      final List<PatternItem> items = new ArrayList<PatternItem>(myItems);
+      items.addAll(group.myItems);
+      Collections.sort(items, new Comparator<PatternItem>() {
+        @Override
+        public int compare(final PatternItem item1, final PatternItem item2) {
+          return Integer.compare(item1.myIndex, item2.myIndex);
+        }
+      });
+
+      return new PatternGroup(myRoot.startsWith(group.myRoot) ? group.myRoot : myRoot, items);
+    }
+
+    @Override
+    public String toString() {
+      return "patterns " + getEntries() + " under \"" + myRoot + "\"";
+    }
+  }
+}
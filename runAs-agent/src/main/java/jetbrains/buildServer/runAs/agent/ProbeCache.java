@@ -0,0 +1,11 @@
+package jetbrains.buildServer.runAs.agent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public interface ProbeCache {
+  @Nullable
+  ProbeState tryGetState(@NotNull final String fingerprint);
+
+  void setState(@NotNull final String fingerprint, @NotNull final ProbeState state);
+}
@@ -0,0 +1,113 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// Keeps the result of capability probes between agent restarts,
+// the file is in the agent configuration directory, which is denied for runAs users by the default ACL
+public class ProbeCacheImpl implements ProbeCache {
+  private static final Logger LOG = Logger.getInstance(ProbeCacheImpl.class.getName());
+  static final String CACHE_DIRECTORY_NAME = "runAs";
+  static final String CACHE_FILE_NAME = "probes.properties";
+  private static final String FINGERPRINT_KEY = "fingerprint";
+  private static final String STATE_KEY = "state";
+  @NotNull private final PathsService myPathsService;
+  @Nullable private File myFile;
+
+  public ProbeCacheImpl(@NotNull final PathsService pathsService) {
+    myPathsService = pathsService;
+  }
+
+  @Nullable
+  @Override
+  public synchronized ProbeState tryGetState(@NotNull final String fingerprint) {
+    final File file = getFile();
+    if(!file.exists()) {
+      return null;
+    }
+
+    final Properties properties = new Properties();
+    InputStream stream = null;
+    try {
+      stream = new FileInputStream(file);
+      properties.load(stream);
+    }
+    catch (IOException ex) {
+      LOG.warn("Cannot read \"" + file + "\": " + ex.getMessage());
+      return null;
+    }
+    finally {
+      close(stream);
+    }
+
+    if(!fingerprint.equals(properties.getProperty(FINGERPRINT_KEY))) {
+      return null;
+    }
+
+    try {
+      final ProbeState state = ProbeState.valueOf(properties.getProperty(STATE_KEY, ""));
+      // the unknown state is not a result of probes
+      return state != ProbeState.Unknown ? state : null;
+    }
+    catch (IllegalArgumentException ignored) {
+      return null;
+    }
+  }
+
+  @Override
+  public synchronized void setState(@NotNull final String fingerprint, @NotNull final ProbeState state) {
+    if(state == ProbeState.Unknown) {
+      return;
+    }
+
+    final Properties properties = new Properties();
+    properties.setProperty(FINGERPRINT_KEY, fingerprint);
+    properties.setProperty(STATE_KEY, state.name());
+
+    final File file = getFile();
+    final File tempFile = new File(file.getPath() + ".tmp");
+    OutputStream stream = null;
+    try {
+      OwnerOnlyDirectory.create(file.getParentFile());
+
+      stream = new FileOutputStream(tempFile);
+      properties.store(stream, null);
+      stream.close();
+      stream = null;
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (IOException ex) {
+      LOG.warn("Cannot write \"" + file + "\": " + ex.getMessage());
+    }
+    finally {
+      close(stream);
+    }
+  }
+
+  // the agent configuration directory is not changed during the session, so the file is resolved once
+  @NotNull
+  private File getFile() {
+    if(myFile == null) {
+      myFile = new File(new File(myPathsService.getPath(WellKnownPaths.Config), CACHE_DIRECTORY_NAME), CACHE_FILE_NAME);
+    }
+
+    return myFile;
+  }
+
+  private static void close(@Nullable final Closeable closeable) {
+    if(closeable == null) {
+      return;
+    }
+
+    try {
+      closeable.close();
+    }
+    catch (IOException ignored) {
+    }
+  }
+}
@@ -0,0 +1,8 @@
+package jetbrains.buildServer.runAs.agent;
+
+enum ProbeState {
+  Supported,
+  NotSupported,
+  // the probe did not finish before the deadline
+  Unknown
+}
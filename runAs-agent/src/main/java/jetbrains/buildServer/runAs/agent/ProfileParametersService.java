@@ -9,9 +9,18 @@ import org.jetbrains.annotations.Nullable;
 public interface ProfileParametersService {
   void load();
 
+  // profiles are reloaded in the background when files in the directory are changed
+  void startWatching(@Nullable final String credentialsDirectory);
+
+  void stopWatching();
+
   @NotNull
   Set<String> getProfiles();
 
+  // values are unscrambled on first access
   @Nullable
   String tryGetProperty(@NotNull final String profile, @NotNull final String key);
+
+  // unscrambled values are not kept after a build
+  void releaseSecrets();
 }
\ No newline at end of file
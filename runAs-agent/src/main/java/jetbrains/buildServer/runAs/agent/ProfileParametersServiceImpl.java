@@ -3,13 +3,20 @@
 package jetbrains.buildServer.runAs.agent;
 
 import com.intellij.openapi.diagnostic.Logger;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import jetbrains.buildServer.dotNet.buildRunner.agent.FileService;
 import jetbrains.buildServer.runAs.common.Constants;
 import jetbrains.buildServer.util.StringUtil;
@@ -18,29 +25,53 @@ import org.jetbrains.annotations.Nullable;
 
 public class ProfileParametersServiceImpl implements ProfileParametersService {
   private static final Logger LOG = Logger.getInstance(ProfileParametersServiceImpl.class.getName());
-  private final Map<String, Configuration> myProfiles = new HashMap<String, Configuration>();
+  // copy-on-write snapshot, it is replaced as a whole, so readers never see partially loaded profiles
+  private volatile Map<String, Profile> myProfiles = Collections.emptyMap();
+  private Map<File, ProfileFile> myIndex = Collections.emptyMap();
   private final AgentParametersService myAgentParametersService;
   private final PathsService myPathsService;
   private final FileService myFileService;
   private final CryptographicService myCryptographicService;
+  private final boolean myIsWatchingEnabled;
+  private Watcher myWatcher;
 
   public ProfileParametersServiceImpl(
     @NotNull final AgentParametersService runnerParametersService,
     @NotNull final PathsService pathsService,
     @NotNull final FileService fileService,
     @NotNull final CryptographicService cryptographicService) {
+    this(runnerParametersService, pathsService, fileService, cryptographicService, true);
+  }
+
+  ProfileParametersServiceImpl(
+    @NotNull final AgentParametersService runnerParametersService,
+    @NotNull final PathsService pathsService,
+    @NotNull final FileService fileService,
+    @NotNull final CryptographicService cryptographicService,
+    final boolean isWatchingEnabled) {
     myAgentParametersService = runnerParametersService;
     myPathsService = pathsService;
     myFileService = fileService;
     myCryptographicService = cryptographicService;
+    myIsWatchingEnabled = isWatchingEnabled;
   }
 
   @Override
   public void load() {
-    myProfiles.clear();
-    final String credentialsDirectoryStr = myAgentParametersService.tryGetConfigParameter(jetbrains.buildServer.runAs.common.Constants.CREDENTIALS_DIRECTORY);
+    startWatching(myAgentParametersService.tryGetConfigParameter(Constants.CREDENTIALS_DIRECTORY));
+  }
+
+  // when the directory is watched already, profiles are up to date and nothing is read here
+  @Override
+  public synchronized void startWatching(@Nullable final String credentialsDirectoryStr) {
+    if(myWatcher != null && myWatcher.isAlive() && credentialsDirectoryStr != null && credentialsDirectoryStr.equals(myWatcher.getCredentialsDirectoryStr())) {
+      return;
+    }
+
+    stopWatching();
     if(StringUtil.isEmptyOrSpaces(credentialsDirectoryStr)) {
       LOG.info("Configuration parameter \"" + Constants.CREDENTIALS_DIRECTORY + "\" was not defined, skipping runAs plugin initialization");
+      clear();
       return;
     }
 
@@ -60,12 +91,58 @@ public class ProfileParametersServiceImpl implements ProfileParametersService {
 
     if(!myFileService.exists(credentialsDirectory) || !myFileService.isDirectory(credentialsDirectory)) {
       LOG.error("Credentials directory \"" + credentialsDirectory + "\" was not found");
+      clear();
       return;
     }
 
-    for(File propertyFiles: myFileService.listFiles(credentialsDirectory)) {
-      load(propertyFiles);
+    // the watcher is started before loading, so changes made during loading are not missed
+    if(myIsWatchingEnabled) {
+      try {
+        myWatcher = new Watcher(credentialsDirectoryStr, credentialsDirectory);
+        myWatcher.start();
+      }
+      catch (IOException ex) {
+        LOG.warn("Cannot watch the credentials directory \"" + credentialsDirectory + "\", it is loaded at each build start: " + ex.getMessage());
+        myWatcher = null;
+      }
+    }
+
+    reload(credentialsDirectory);
+  }
+
+  @Override
+  public synchronized void stopWatching() {
+    if(myWatcher != null) {
+      myWatcher.close();
+      myWatcher = null;
+    }
+  }
+
+  private synchronized void reload(@NotNull final File credentialsDirectory) {
+    // only added and changed files are loaded, removed files are dropped with the previous index
+    final Map<File, ProfileFile> index = new HashMap<File, ProfileFile>();
+    final Map<String, Profile> profiles = new HashMap<String, Profile>();
+    int loadedCount = 0;
+    for(File propertyFile: myFileService.listFiles(credentialsDirectory)) {
+      final ProfileFile prevProfileFile = myIndex.get(propertyFile);
+      final ProfileFile profileFile = load(propertyFile, prevProfileFile);
+      if(profileFile != prevProfileFile) {
+        loadedCount++;
+      }
+
+      if(profileFile.isIndexed()) {
+        index.put(propertyFile, profileFile);
+      }
+
+      profiles.put(propertyFile.getName(), profileFile.getProfile());
+    }
+
+    if(LOG.isDebugEnabled()) {
+      LOG.debug(loadedCount + " of " + profiles.size() + " credentials files were read from \"" + credentialsDirectory + "\"");
     }
+
+    myIndex = index;
+    myProfiles = Collections.unmodifiableMap(profiles);
   }
 
   @NotNull
@@ -76,51 +153,231 @@ public class ProfileParametersServiceImpl implements ProfileParametersService {
 
   @Nullable
   public String tryGetProperty(@NotNull final String profile, @NotNull final String key) {
-    Configuration properties = myProfiles.get(profile);
+    final Map<String, Profile> profiles = myProfiles;
+    Profile properties = profiles.get(profile);
     if(properties == null) {
-      properties = myProfiles.get(profile + ".properties");
+      properties = profiles.get(profile + ".properties");
       if(properties == null) {
         return null;
       }
     }
 
-    return properties.getProperty(key);
+    return properties.tryGetProperty(key);
+  }
+
+  @Override
+  public void releaseSecrets() {
+    for (Profile profile: myProfiles.values()) {
+      profile.releaseSecrets();
+    }
   }
 
-  private Configuration CreateConfiguration()
+  private ByteBufferConfiguration CreateConfiguration()
   {
-    return new ConfigurationImpl();
+    return new ByteBufferConfiguration();
   }
 
-  private void load(@NotNull final File propertyFile) {
-    Configuration properties = CreateConfiguration();
+  private void clear() {
+    myIndex = Collections.emptyMap();
+    myProfiles = Collections.emptyMap();
+  }
+
+  @NotNull
+  private ProfileFile load(@NotNull final File propertyFile, @Nullable final ProfileFile prevProfileFile) {
+    final BasicFileAttributes attributes = tryReadAttributes(propertyFile);
+    if(attributes != null && prevProfileFile != null && prevProfileFile.isSameFile(attributes)) {
+      return prevProfileFile;
+    }
+
+    ByteBufferConfiguration properties = CreateConfiguration();
     try {
       if(LOG.isDebugEnabled()) {
         LOG.debug("Loading credentials from \"" + propertyFile + "\"");
       }
-      final ByteArrayInputStream stream = new ByteArrayInputStream(myFileService.readAllTextFile(propertyFile).getBytes(StandardCharsets.UTF_8));
-      properties.load(stream);
-
-      for(Map.Entry<Object, Object> entry: properties.entrySet())
-      {
-        if(!(entry.getValue() instanceof String))
-        {
-          continue;
-        }
-
-        final String decryptedString = myCryptographicService.unscramble((String)entry.getValue());
-        entry.setValue(decryptedString);
+      // the content is read once and is parsed directly from bytes
+      final ByteBuffer content = ByteBufferConfiguration.read(propertyFile);
+      final String hash = getHash(content);
+      // the file was touched only, so it is not parsed again
+      if(attributes != null && prevProfileFile != null && hash.equals(prevProfileFile.getHash())) {
+        return new ProfileFile(attributes, hash, prevProfileFile.getProfile());
       }
 
+      // values are kept scrambled here, they are unscrambled on demand
+      properties.load(content);
 
       if(LOG.isDebugEnabled()) {
         LOG.debug(properties.size() + " properties were loaded from \"" + propertyFile + "\"");
       }
+
+      final Profile profile = new Profile(properties, myCryptographicService);
+      return attributes != null ? new ProfileFile(attributes, hash, profile) : new ProfileFile(profile);
     }
     catch (IOException ex){
       LOG.error("Error occurred during loading property file \"" + propertyFile + "\"", ex);
     }
 
-    myProfiles.put(propertyFile.getName(), properties);
+    // it is not indexed to be loaded again next time
+    return new ProfileFile(new Profile(properties, myCryptographicService));
+  }
+
+  @Nullable
+  private static BasicFileAttributes tryReadAttributes(@NotNull final File file) {
+    try {
+      return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+    catch (IOException ignored) {
+      return null;
+    }
+  }
+
+  @NotNull
+  private static String getHash(@NotNull final ByteBuffer content) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(content.duplicate());
+      return new BigInteger(1, digest.digest()).toString(16);
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  // Reloads changed profiles on the daemon thread, it is stopped when the watch service is closed
+  private class Watcher extends Thread {
+    // events of a bulk change are handled by a single reload
+    private static final long QUIET_PERIOD_MILLIS = 100;
+    @NotNull private final String myCredentialsDirectoryStr;
+    @NotNull private final File myCredentialsDirectory;
+    @NotNull private final WatchService myWatchService;
+
+    Watcher(@NotNull final String credentialsDirectoryStr, @NotNull final File credentialsDirectory) throws IOException {
+      super("runAs credentials watcher");
+      setDaemon(true);
+      myCredentialsDirectoryStr = credentialsDirectoryStr;
+      myCredentialsDirectory = credentialsDirectory;
+      myWatchService = credentialsDirectory.toPath().getFileSystem().newWatchService();
+      try {
+        credentialsDirectory.toPath().register(myWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      }
+      catch (IOException ex) {
+        myWatchService.close();
+        throw ex;
+      }
+    }
+
+    @NotNull
+    String getCredentialsDirectoryStr() {
+      return myCredentialsDirectoryStr;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          WatchKey key = myWatchService.take();
+          while (key != null) {
+            key.pollEvents();
+            if(!key.reset()) {
+              LOG.warn("Credentials directory \"" + myCredentialsDirectory + "\" is not available anymore");
+              return;
+            }
+
+            key = myWatchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+          }
+
+          reload(myCredentialsDirectory);
+        }
+      }
+      catch (ClosedWatchServiceException ignored) {
+      }
+      catch (InterruptedException ignored) {
+      }
+      finally {
+        close();
+      }
+    }
+
+    void close() {
+      try {
+        myWatchService.close();
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
+  // Unscrambles values of the parsed profile on first access and remembers them until secrets are released
+  private static class Profile {
+    @NotNull private final Configuration myConfiguration;
+    @NotNull private final CryptographicService myCryptographicService;
+    private final Map<String, String> mySecrets = new ConcurrentHashMap<String, String>();
+
+    Profile(@NotNull final Configuration configuration, @NotNull final CryptographicService cryptographicService) {
+      myConfiguration = configuration;
+      myCryptographicService = cryptographicService;
+    }
+
+    @Nullable
+    String tryGetProperty(@NotNull final String key) {
+      final String secret = mySecrets.get(key);
+      if(secret != null) {
+        return secret;
+      }
+
+      final String scrambledValue = myConfiguration.getProperty(key);
+      if(scrambledValue == null) {
+        return null;
+      }
+
+      final String value = myCryptographicService.unscramble(scrambledValue);
+      if(value != null) {
+        mySecrets.put(key, value);
+      }
+
+      return value;
+    }
+
+    void releaseSecrets() {
+      mySecrets.clear();
+    }
+  }
+
+  private static class ProfileFile {
+    private final long myLastModified;
+    private final long mySize;
+    @Nullable private final String myHash;
+    @NotNull private final Profile myProfile;
+
+    ProfileFile(@NotNull final BasicFileAttributes attributes, @NotNull final String hash, @NotNull final Profile profile) {
+      myLastModified = attributes.lastModifiedTime().toMillis();
+      mySize = attributes.size();
+      myHash = hash;
+      myProfile = profile;
+    }
+
+    ProfileFile(@NotNull final Profile profile) {
+      myLastModified = -1;
+      mySize = -1;
+      myHash = null;
+      myProfile = profile;
+    }
+
+    boolean isIndexed() {
+      return myHash != null;
+    }
+
+    boolean isSameFile(@NotNull final BasicFileAttributes attributes) {
+      return isIndexed() && myLastModified == attributes.lastModifiedTime().toMillis() && mySize == attributes.size();
+    }
+
+    @Nullable
+    String getHash() {
+      return myHash;
+    }
+
+    @NotNull
+    Profile getProfile() {
+      return myProfile;
+    }
   }
-}
\ No newline at end of file
+}
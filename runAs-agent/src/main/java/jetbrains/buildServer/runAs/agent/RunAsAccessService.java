@@ -4,4 +4,7 @@ package jetbrains.buildServer.runAs.agent;
 
 public interface RunAsAccessService {
   boolean getIsRunAsEnabled();
+
+  // the agent user could run commands as other users via "sudo -n" without a password
+  boolean getIsSudoEnabled();
 }
\ No newline at end of file
@@ -0,0 +1,146 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+
+// Long-lived helper process, which runs commands on behalf of the agent.
+// Each line of stdin is a request "id\ttimeoutSeconds\ttool\targ1\targ2...",
+// each line of stdout is a response "id\tok\texitCode\tstdout\tstderr" or "id\terror\tmessage".
+// Requests are executed concurrently, so responses could be in any order.
+// It depends on JDK only, because it is started with the plugin classes only.
+public class RunAsHelper {
+  static final String STATUS_OK = "ok";
+  static final String STATUS_ERROR = "error";
+  static final Charset OurCharset = Charset.forName("UTF-8");
+  private static final int DEFAULT_PARALLELISM = 4;
+  private final Writer myWriter;
+
+  RunAsHelper(@NotNull final Writer writer) {
+    myWriter = writer;
+  }
+
+  public static void main(@NotNull final String[] args) throws IOException, InterruptedException {
+    final int parallelism = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PARALLELISM;
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, OurCharset));
+    final RunAsHelper helper = new RunAsHelper(new BufferedWriter(new OutputStreamWriter(System.out, OurCharset)));
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.max(parallelism, 1));
+    try {
+      String line;
+      // the helper is stopped when the agent closes stdin
+      while ((line = reader.readLine()) != null) {
+        final String request = line;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            helper.process(request);
+          }
+        });
+      }
+    }
+    finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  void process(@NotNull final String request) {
+    final List<String> fields;
+    try {
+      fields = LineFields.split(request);
+    }
+    catch (IllegalArgumentException ex) {
+      // ids are not escaped, so the agent gets the error instead of waiting for the timeout
+      final int idEnd = request.indexOf('\t');
+      write(Arrays.asList(idEnd >= 0 ? request.substring(0, idEnd) : request, STATUS_ERROR, "Invalid request: " + ex.getMessage()));
+      return;
+    }
+
+    if(fields.size() < 3) {
+      write(Arrays.asList(fields.get(0), STATUS_ERROR, "Invalid request"));
+      return;
+    }
+
+    final String id = fields.get(0);
+    try {
+      final int timeoutSeconds = Integer.parseInt(fields.get(1));
+      final Process process = new ProcessBuilder(fields.subList(2, fields.size())).start();
+      process.getOutputStream().close();
+      final StreamReader stdoutReader = new StreamReader(process.getInputStream());
+      final StreamReader stderrReader = new StreamReader(process.getErrorStream());
+      stdoutReader.start();
+      stderrReader.start();
+      if(!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+        write(Arrays.asList(id, STATUS_ERROR, "Timeout " + timeoutSeconds + " seconds is expired"));
+        return;
+      }
+
+      stdoutReader.join();
+      stderrReader.join();
+      write(Arrays.asList(id, STATUS_OK, Integer.toString(process.exitValue()), stdoutReader.getContent(), stderrReader.getContent()));
+    }
+    catch (Exception ex) {
+      write(Arrays.asList(id, STATUS_ERROR, String.valueOf(ex.getMessage())));
+    }
+  }
+
+  private void write(@NotNull final List<String> response) {
+    synchronized (myWriter) {
+      try {
+        myWriter.write(LineFields.join(response));
+        myWriter.write('\n');
+        myWriter.flush();
+      }
+      catch (IOException ignored) {
+        // the agent is not listening anymore
+      }
+    }
+  }
+
+  @NotNull
+  private static String read(@NotNull final InputStream stream) throws IOException {
+    final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    int size;
+    try {
+      while ((size = stream.read(buffer)) >= 0) {
+        content.write(buffer, 0, size);
+      }
+    }
+    finally {
+      stream.close();
+    }
+
+    return new String(content.toByteArray(), OurCharset);
+  }
+
+  private static class StreamReader extends Thread {
+    private final InputStream myStream;
+    private volatile String myContent = "";
+
+    StreamReader(@NotNull final InputStream stream) {
+      myStream = stream;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        myContent = read(myStream);
+      }
+      catch (IOException ignored) {
+      }
+    }
+
+    @NotNull
+    String getContent() {
+      return myContent;
+    }
+  }
+}
@@ -62,7 +62,7 @@ public class RunAsLoggerImpl implements RunAsLogger {
     cmd.setExePath(runAsCommandLineSetup.getToolPath());
     for(final CommandLineArgument arg: runAsCommandLineSetup.getArgs())
     {
-      cmd.addParameter(arg.getValue());
+      cmd.addParameter(replacePassword && arg instanceof SecretCommandLineArgument ? SecretCommandLineArgument.MASK : arg.getValue());
     }
 
     return cmd;
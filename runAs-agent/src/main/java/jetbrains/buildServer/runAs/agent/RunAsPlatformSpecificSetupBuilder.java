@@ -3,27 +3,41 @@
 package jetbrains.buildServer.runAs.agent;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import jetbrains.buildServer.agent.BuildAgentSystemInfo;
 import jetbrains.buildServer.dotNet.buildRunner.agent.*;
 import jetbrains.buildServer.runAs.common.Constants;
+import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 
 public class RunAsPlatformSpecificSetupBuilder implements CommandLineSetupBuilder {
   static final String TOOL_FILE_NAME = "runAs";
   static final String ARGS_EXT = ".args";
+  static final String ENV_TOOL_PATH = "/usr/bin/env";
+  // flags of runAs scripts
+  static final String SKIP_TEMP_FILES_CHECK_FLAG = "skipTempFilesCheck";
+  static final String PRE_AUTHENTICATED_FLAG = "preAuthenticated";
+  static final String AUTH_ONLY_FLAG = "authOnly";
+  static final String SUDO_FLAG = "sudo";
+  static final String PROBE_FILE_PREFIX = "probe_";
   private final UserCredentialsService myUserCredentialsService;
   private final RunnerParametersService myRunnerParametersService;
   private final FileService myFileService;
   private final BuildAgentSystemInfo myBuildAgentSystemInfo;
   private final AccessControlListProvider myAccessControlListProvider;
-  private final ResourcePublisher myBeforeBuildPublisher;
+  private final AccessControlListCompiler myAccessControlListCompiler;
   private final AccessControlResource myAccessControlResource;
   private final ResourceGenerator<UserCredentials> myUserCredentialsGenerator;
   private final ResourceGenerator<RunAsParams> myRunAsCmdGenerator;
   private final FileAccessService myFileAccessService;
   private final RunAsLogger myRunAsLogger;
   private final RunAsAccessService myRunAsAccessService;
+  private final TempFilesCheckCache myTempFilesCheckCache;
+  private final AuthenticationCache myAuthenticationCache;
+  private final ContentAddressedFileService myContentAddressedFileService;
+  private final SudoAccessService mySudoAccessService;
+  private final CommandLineExecutor myCommandLineExecutor;
   private final Converter<String, String> myArgumentConverter;
   private final String myCommandFileExtension;
 
@@ -33,13 +47,18 @@ public class RunAsPlatformSpecificSetupBuilder implements CommandLineSetupBuilde
     @NotNull final FileService fileService,
     @NotNull final BuildAgentSystemInfo buildAgentSystemInfo,
     @NotNull final AccessControlListProvider accessControlListProvider,
-    @NotNull final ResourcePublisher beforeBuildPublisher,
+    @NotNull final AccessControlListCompiler accessControlListCompiler,
     @NotNull final AccessControlResource accessControlResource,
     @NotNull final ResourceGenerator<UserCredentials> userCredentialsGenerator,
     @NotNull final ResourceGenerator<RunAsParams> runAsCmdGenerator,
     @NotNull final FileAccessService fileAccessService,
     @NotNull final RunAsLogger runAsLogger,
     @NotNull final RunAsAccessService runAsAccessService,
+    @NotNull final TempFilesCheckCache tempFilesCheckCache,
+    @NotNull final AuthenticationCache authenticationCache,
+    @NotNull final ContentAddressedFileService contentAddressedFileService,
+    @NotNull final SudoAccessService sudoAccessService,
+    @NotNull final CommandLineExecutor commandLineExecutor,
     @NotNull final Converter<String, String> argumentConverter,
     @NotNull final String commandFileExtension) {
     myUserCredentialsService = userCredentialsService;
@@ -47,13 +66,18 @@ public class RunAsPlatformSpecificSetupBuilder implements CommandLineSetupBuilde
     myFileService = fileService;
     myBuildAgentSystemInfo = buildAgentSystemInfo;
     myAccessControlListProvider = accessControlListProvider;
-    myBeforeBuildPublisher = beforeBuildPublisher;
+    myAccessControlListCompiler = accessControlListCompiler;
     myAccessControlResource = accessControlResource;
     myUserCredentialsGenerator = userCredentialsGenerator;
     myRunAsCmdGenerator = runAsCmdGenerator;
     myFileAccessService = fileAccessService;
     myRunAsLogger = runAsLogger;
     myRunAsAccessService = runAsAccessService;
+    myTempFilesCheckCache = tempFilesCheckCache;
+    myAuthenticationCache = authenticationCache;
+    myContentAddressedFileService = contentAddressedFileService;
+    mySudoAccessService = sudoAccessService;
+    myCommandLineExecutor = commandLineExecutor;
     myArgumentConverter = argumentConverter;
     myCommandFileExtension = commandFileExtension;
   }
@@ -75,9 +99,14 @@ public class RunAsPlatformSpecificSetupBuilder implements CommandLineSetupBuilde
     final ArrayList<CommandLineResource> resources = new ArrayList<CommandLineResource>();
     resources.addAll(commandLineSetup.getResources());
 
+    // Files are named by their content, so steps with the same settings and command reuse them with granted permissions
+    final File tempDirectory = myFileService.getTempDirectory().getAbsoluteFile();
+    final File filesDirectory = myContentAddressedFileService.getDirectory();
+
     // Settings
-    final File settingsFile = myFileService.getTempFileName(ARGS_EXT);
-    resources.add(new CommandLineFile(myBeforeBuildPublisher, settingsFile.getAbsoluteFile(), myUserCredentialsGenerator.create(userCredentials)));
+    final String settings = myUserCredentialsGenerator.create(userCredentials);
+    final File settingsFile = myContentAddressedFileService.getFile(filesDirectory, settings, ARGS_EXT);
+    resources.add(new ContentAddressedFile(myFileService, settingsFile, settings, false));
 
     // Command
     List<CommandLineArgument> cmdLineArgs = new ArrayList<CommandLineArgument>();
@@ -86,35 +115,93 @@ public class RunAsPlatformSpecificSetupBuilder implements CommandLineSetupBuilde
 
     final RunAsParams params = new RunAsParams(cmdLineArgs);
 
-    final File commandFile = myFileService.getTempFileName(myCommandFileExtension);
-    resources.add(new CommandLineFile(myBeforeBuildPublisher, commandFile.getAbsoluteFile(), myRunAsCmdGenerator.create(params)));
+    final String command = myRunAsCmdGenerator.create(params);
+    final File commandFile = myContentAddressedFileService.getFile(filesDirectory, command, myCommandFileExtension);
+    resources.add(new ContentAddressedFile(myFileService, commandFile, command, true));
     final ArrayList<AccessControlEntry> acl = new ArrayList<AccessControlEntry>();
     for (AccessControlEntry ace: myAccessControlListProvider.getAcl(userCredentials)) {
       acl.add(ace);
     }
 
-    acl.add(new AccessControlEntry(commandFile, AccessControlAccount.forUser(userCredentials.getUser()), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Step));
+    // the command file is reused by steps on POSIX and is executable when it is written again,
+    // on Windows it is written for each step and gets permissions of the directory
+    final AccessControlScope commandFileScope = myRunnerParametersService.isRunningUnderWindows() ? AccessControlScope.Step : AccessControlScope.Build;
+    acl.add(new AccessControlEntry(commandFile, AccessControlAccount.forUser(userCredentials.getUser()), EnumSet.of(AccessPermissions.GrantExecute), commandFileScope));
 
     final File runAsToolPath = getTool();
     final AccessControlEntry runAsToolAce = new AccessControlEntry(runAsToolPath, AccessControlAccount.forUser(userCredentials.getUser()), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Build);
     acl.add(runAsToolAce);
 
-    myAccessControlResource.setAcl(new AccessControlList(acl));
+    myAccessControlResource.setAcl(myAccessControlListCompiler.compile(new AccessControlList(acl)));
     resources.add(myAccessControlResource);
 
-    final CommandLineSetup runAsCommandLineSetup = new CommandLineSetup(
-      runAsToolPath.getAbsolutePath(),
-      Arrays.asList(
-        new CommandLineArgument(settingsFile.getAbsolutePath(), CommandLineArgument.Type.PARAMETER),
-        new CommandLineArgument(commandFile.getAbsolutePath(), CommandLineArgument.Type.PARAMETER),
-        new CommandLineArgument(myBuildAgentSystemInfo.bitness().toString(), CommandLineArgument.Type.PARAMETER),
-        new CommandLineArgument(myArgumentConverter.convert(userCredentials.getPassword()), CommandLineArgument.Type.PARAMETER)),
-      resources);
+    final List<String> flags = new ArrayList<String>();
+    flags.add(SKIP_TEMP_FILES_CHECK_FLAG);
+    if(!myRunnerParametersService.isRunningUnderWindows()) {
+      // the agent checks the user and the password once per agent session, so runAs scripts skip this check
+      final CommandLineSetup authSetup = createRunAsSetup(runAsToolPath, settingsFile, commandFile, userCredentials, Collections.singletonList(AUTH_ONLY_FLAG), Collections.<CommandLineResource>emptyList());
+      resources.add(new AuthenticationCheckResource(myAuthenticationCache, myCommandLineExecutor, userCredentials.getUser(), userCredentials.getPassword(), authSetup));
+      flags.add(PRE_AUTHENTICATED_FLAG);
+      // runAs scripts run commands via "sudo -n" instead of su with a password, the password is not checked then
+      if(mySudoAccessService.isAllowed(userCredentials.getUser())) {
+        flags.add(SUDO_FLAG);
+      }
+    }
+
+    // the agent checks temporary files once per user and temp directory, so runAs scripts skip this check
+    final File probeFile = new File(tempDirectory, PROBE_FILE_PREFIX + commandFile.getName());
+    final CommandLineSetup probeSetup = createRunAsSetup(runAsToolPath, settingsFile, probeFile, userCredentials, flags, Collections.<CommandLineResource>emptyList());
+    resources.add(new TempFilesCheckResource(myTempFilesCheckCache, myCommandLineExecutor, userCredentials.getUser(), tempDirectory, probeFile, probeSetup));
 
+    final CommandLineSetup runAsCommandLineSetup = createRunAsSetup(runAsToolPath, settingsFile, commandFile, userCredentials, flags, resources);
     myRunAsLogger.LogRunAs(userCredentials, commandLineSetup, runAsCommandLineSetup);
     return Collections.singleton(runAsCommandLineSetup);
   }
 
+  @NotNull
+  private CommandLineSetup createRunAsSetup(
+    @NotNull final File runAsToolPath,
+    @NotNull final File settingsFile,
+    @NotNull final File commandFile,
+    @NotNull final UserCredentials userCredentials,
+    @NotNull final List<String> flags,
+    @NotNull final List<CommandLineResource> resources) {
+    final List<CommandLineArgument> runAsArgs = Arrays.asList(
+      new CommandLineArgument(settingsFile.getAbsolutePath(), CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument(commandFile.getAbsolutePath(), CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument(myBuildAgentSystemInfo.bitness().toString(), CommandLineArgument.Type.PARAMETER),
+      new SecretCommandLineArgument(myArgumentConverter.convert(userCredentials.getPassword())),
+      new CommandLineArgument(StringUtil.join(",", flags), CommandLineArgument.Type.PARAMETER));
+
+    return isPtyLauncher()
+      ? new CommandLineSetup(ENV_TOOL_PATH, getPtyLauncherArgs(runAsToolPath, runAsArgs), resources)
+      : new CommandLineSetup(runAsToolPath.getAbsolutePath(), runAsArgs, resources);
+  }
+
+  // runAs.sh passes the password to su via RunAsPtyLauncher when these environment variables are defined
+  private boolean isPtyLauncher() {
+    return !myRunnerParametersService.isRunningUnderWindows()
+      && Constants.RUN_AS_LAUNCHER_PTY.equalsIgnoreCase(myRunnerParametersService.tryGetConfigParameter(Constants.RUN_AS_LAUNCHER));
+  }
+
+  @NotNull
+  private static List<CommandLineArgument> getPtyLauncherArgs(@NotNull final File runAsToolPath, @NotNull final List<CommandLineArgument> runAsArgs) {
+    final File classPath;
+    try {
+      classPath = RunAsPtyLauncher.getClassPath();
+    }
+    catch (IOException ex) {
+      throw new BuildStartException("Cannot find the runAs launcher: " + ex.getMessage());
+    }
+
+    final List<CommandLineArgument> args = new ArrayList<CommandLineArgument>();
+    args.add(new CommandLineArgument(RunAsPtyLauncher.JAVA_ENV_VAR + "=" + RunAsPtyLauncher.getJava().getPath(), CommandLineArgument.Type.PARAMETER));
+    args.add(new CommandLineArgument(RunAsPtyLauncher.CLASSPATH_ENV_VAR + "=" + classPath.getPath(), CommandLineArgument.Type.PARAMETER));
+    args.add(new CommandLineArgument(runAsToolPath.getAbsolutePath(), CommandLineArgument.Type.PARAMETER));
+    args.addAll(runAsArgs);
+    return args;
+  }
+
   private File getTool() {
     final File path = new File(myRunnerParametersService.getToolPath(Constants.RUN_AS_TOOL_NAME), TOOL_FILE_NAME + myCommandFileExtension);
     myFileService.validatePath(path);
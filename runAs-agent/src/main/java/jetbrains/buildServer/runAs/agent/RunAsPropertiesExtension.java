@@ -2,16 +2,18 @@
 
 package jetbrains.buildServer.runAs.agent;
 
-import com.intellij.execution.ExecutionException;
 import com.intellij.openapi.diagnostic.Logger;
 import java.io.File;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.ExtensionHolder;
 import jetbrains.buildServer.agent.*;
 import jetbrains.buildServer.agent.config.AgentParametersSupplier;
 import jetbrains.buildServer.dotNet.buildRunner.agent.BuildRunnerContextProvider;
+import jetbrains.buildServer.dotNet.buildRunner.agent.BuildStartException;
 import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
 import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
 import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
@@ -21,6 +23,7 @@ import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.positioning.PositionAware;
 import jetbrains.buildServer.util.positioning.PositionConstraint;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import static jetbrains.buildServer.runAs.agent.Constants.*;
 import static jetbrains.buildServer.runAs.common.Constants.RUN_AS_TOOL_NAME;
@@ -30,37 +33,58 @@ public class RunAsPropertiesExtension extends AgentLifeCycleAdapter implements R
   private static final String TOOL_FILE_NAME_LINUX = "runAs.sh";
   private static final String TOOL_FILE_NAME_MAC = "runAs_mac.sh";
   private static final Logger LOG = Logger.getInstance(RunAsPropertiesExtension.class.getName());
-  private static final String[] OurProtectedParams = new String[]{Constants.PASSWORD, Constants.CONFIG_PASSWORD};
+  private static final int DEFAULT_PROBE_TIMEOUT_SECONDS = 30;
+  private static final int MAX_REFRESH_ATTEMPTS = 3;
   private static final CommandLineSetup OurIcaclsCmdLineSetup =
     new CommandLineSetup(ICACLS_TOOL_NAME, Collections.<CommandLineArgument>emptyList(), Collections.<CommandLineResource>emptyList());
   private static final CommandLineSetup OurChmodHelpCmdLineSetup =
     new CommandLineSetup(CHMOD_TOOL_NAME, Arrays.asList(new CommandLineArgument("--help", CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList());
   private static final CommandLineSetup OurSuCmdLineSetup =
     new CommandLineSetup(SU_TOOL_NAME, Arrays.asList(new CommandLineArgument("--help", CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList());
+  // lists sudoers rules only when the agent user has NOPASSWD rules
+  private static final CommandLineSetup OurSudoCmdLineSetup =
+    new CommandLineSetup(SUDO_TOOL_NAME, Arrays.asList(new CommandLineArgument("-n", CommandLineArgument.Type.PARAMETER), new CommandLineArgument("-l", CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList());
   @NotNull private final ToolProvidersRegistry myToolProvidersRegistry;
   @NotNull private final BuildRunnerContextProvider myBuildRunnerContextProvider;
-  @NotNull private final CommandLineExecutor myCommandLineExecutor;
+  @NotNull private final AsyncCommandLineExecutor myAsyncCommandLineExecutor;
   @NotNull private final ProfileParametersService myProfileParametersService;
+  @NotNull private final UserCredentialsService myUserCredentialsService;
   @NotNull private final FileAccessCacheManager myBuildFileAccessCacheManager;
+  @NotNull private final FileAccessCacheManager myGlobalFileAccessCacheManager;
   @NotNull private final Environment myEnvironment;
-  private boolean myIsRunAsEnabled;
+  @NotNull private final BuildAgentConfiguration myBuildAgentConfiguration;
+  @NotNull private final CapabilityFingerprintService myCapabilityFingerprintService;
+  @NotNull private final ProbeCache myProbeCache;
+  private final AtomicBoolean myIsRefreshing = new AtomicBoolean();
+  private volatile boolean myIsRunAsEnabled;
+  private volatile boolean myIsSudoEnabled;
   private boolean myIsHidingOfPropertyIsNotSupported;
 
   public RunAsPropertiesExtension(
     @NotNull final EventDispatcher<AgentLifeCycleListener> events,
     @NotNull final ToolProvidersRegistry toolProvidersRegistry,
     @NotNull final BuildRunnerContextProvider buildRunnerContextProvider,
-    @NotNull final CommandLineExecutor commandLineExecutor,
+    @NotNull final AsyncCommandLineExecutor asyncCommandLineExecutor,
     @NotNull final ProfileParametersService profileParametersService,
+    @NotNull final UserCredentialsService userCredentialsService,
     @NotNull final FileAccessCacheManager buildFileAccessCacheManager,
+    @NotNull final FileAccessCacheManager globalFileAccessCacheManager,
     @NotNull final Environment environment,
-    @NotNull final ExtensionHolder extensionHolder) {
+    @NotNull final ExtensionHolder extensionHolder,
+    @NotNull final BuildAgentConfiguration buildAgentConfiguration,
+    @NotNull final CapabilityFingerprintService capabilityFingerprintService,
+    @NotNull final ProbeCache probeCache) {
     myToolProvidersRegistry = toolProvidersRegistry;
     myBuildRunnerContextProvider = buildRunnerContextProvider;
-    myCommandLineExecutor = commandLineExecutor;
+    myAsyncCommandLineExecutor = asyncCommandLineExecutor;
     myProfileParametersService = profileParametersService;
+    myUserCredentialsService = userCredentialsService;
     myBuildFileAccessCacheManager = buildFileAccessCacheManager;
+    myGlobalFileAccessCacheManager = globalFileAccessCacheManager;
     myEnvironment = environment;
+    myBuildAgentConfiguration = buildAgentConfiguration;
+    myCapabilityFingerprintService = capabilityFingerprintService;
+    myProbeCache = probeCache;
     events.addListener(this);
     extensionHolder.registerExtension(AgentParametersSupplier.class, getClass().getName(), new RunAsPropertiesSnapshot());
   }
@@ -70,6 +94,11 @@ public class RunAsPropertiesExtension extends AgentLifeCycleAdapter implements R
     return myIsRunAsEnabled;
   }
 
+  @Override
+  public boolean getIsSudoEnabled() {
+    return myIsSudoEnabled;
+  }
+
   @NotNull
   @Override
   public String getOrderId() {
@@ -82,33 +111,57 @@ public class RunAsPropertiesExtension extends AgentLifeCycleAdapter implements R
     return PositionConstraint.first();
   }
 
+  @Override
+  public void agentStarted(@NotNull final BuildAgent agent) {
+    super.agentStarted(agent);
+    // profiles are prepared before the first build
+    myProfileParametersService.startWatching(myBuildAgentConfiguration.getConfigurationParameters().get(Constants.CREDENTIALS_DIRECTORY));
+  }
+
+  @Override
+  public void agentShutdown() {
+    myProfileParametersService.stopWatching();
+    super.agentShutdown();
+  }
+
   @Override
   public void buildStarted(@NotNull final AgentRunningBuild runningBuild) {
     myBuildRunnerContextProvider.initialize(((AgentRunningBuildEx)runningBuild).getCurrentRunnerContext());
-    protectProperties(runningBuild);
+    myProfileParametersService.load();
     super.buildStarted(runningBuild);
   }
 
+  @Override
+  public void beforeRunnerStart(@NotNull final BuildRunnerContext runner) {
+    super.beforeRunnerStart(runner);
+    myBuildRunnerContextProvider.initialize(runner);
+    protectPassword(runner.getBuild());
+  }
+
   @Override
   public void buildFinished(@NotNull final AgentRunningBuild build, @NotNull final BuildFinishedStatus buildStatus) {
     super.buildFinished(build, buildStatus);
+    LOG.info("Build access cache: " + myBuildFileAccessCacheManager.getStatistics() + ", global access cache: " + myGlobalFileAccessCacheManager.getStatistics());
     myBuildFileAccessCacheManager.reset();
+    myProfileParametersService.releaseSecrets();
   }
 
-  private void protectProperties(final @NotNull AgentRunningBuild runningBuild) {
-    myProfileParametersService.load();
-    final Set<String> propertySets = myProfileParametersService.getProfiles();
-    for (final String protectedPropertyName : OurProtectedParams) {
-      // Properties
-      for (String propertySet : propertySets) {
-        final String propertyValue = myProfileParametersService.tryGetProperty(propertySet, protectedPropertyName);
-        if (StringUtil.isEmptyOrSpaces(propertyValue)) {
-          continue;
-        }
+  // only the password of the step credentials is unscrambled, passwords of other profiles are not touched
+  private void protectPassword(final @NotNull AgentRunningBuild runningBuild) {
+    final UserCredentials userCredentials;
+    try {
+      userCredentials = myUserCredentialsService.tryGetUserCredentials();
+    }
+    catch (BuildStartException ex) {
+      // the build step reports invalid credentials
+      return;
+    }
 
-        protectProperty(runningBuild, propertyValue);
-      }
+    if(userCredentials == null || StringUtil.isEmptyOrSpaces(userCredentials.getPassword())) {
+      return;
     }
+
+    protectProperty(runningBuild, userCredentials.getPassword());
   }
 
   private void protectProperty(
@@ -158,6 +211,7 @@ public class RunAsPropertiesExtension extends AgentLifeCycleAdapter implements R
     @Override
     public Map<String, String> getParameters() {
       myIsRunAsEnabled = false;
+      myIsSudoEnabled = false;
 
       final ToolProvider toolProvider = myToolProvidersRegistry.findToolProvider(RUN_AS_TOOL_NAME);
       if (toolProvider == null) {
@@ -166,64 +220,161 @@ public class RunAsPropertiesExtension extends AgentLifeCycleAdapter implements R
       }
 
       final Map<String, String> parameters = new HashMap<>();
+      final String fingerprint = getFingerprint(toolProvider);
+      final ProbeState cachedState = myProbeCache.tryGetState(fingerprint);
+      if (cachedState != null) {
+        LOG.info("Cached result of capability probes is used: " + cachedState);
+        if (cachedState == ProbeState.Supported && myEnvironment.getOperationSystem() != OperationSystem.Windows && isSudoModeEnabled()) {
+          final int timeoutSeconds = getProbeTimeoutSeconds();
+          myIsSudoEnabled = isSudoEnabled(startSudoProbe(timeoutSeconds), System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds));
+        }
+
+        setState(parameters, cachedState);
+        refresh(toolProvider, fingerprint);
+        return parameters;
+      }
+
+      final ProbeState state = probe(toolProvider, true);
+      myProbeCache.setState(fingerprint, state);
+      setState(parameters, state);
+      if (state == ProbeState.Unknown) {
+        // the known state is reported when agent parameters are collected again
+        refresh(toolProvider, fingerprint);
+      }
+
+      return parameters;
+    }
+
+    // the state is published by agent parameters, so only the published probe changes the state of the extension
+    @NotNull
+    private ProbeState probe(@NotNull final ToolProvider toolProvider, final boolean isPublished) {
       switch (myEnvironment.getOperationSystem()) {
         case Windows:
-          onWindows(parameters, toolProvider);
-          break;
+          return onWindows(toolProvider);
 
         case Mac:
-          onLinuxBased(parameters, toolProvider, TOOL_FILE_NAME_MAC);
-          break;
+          return onLinuxBased(toolProvider, TOOL_FILE_NAME_MAC, isPublished);
 
-        case Other:
-          onLinuxBased(parameters, toolProvider, TOOL_FILE_NAME_LINUX);
-          break;
+        default:
+          return onLinuxBased(toolProvider, TOOL_FILE_NAME_LINUX, isPublished);
       }
-
-      return parameters;
     }
 
-    private void onLinuxBased(final @NotNull Map<String, String> parameters, final ToolProvider toolProvider, final String script) {
-      try {
-        myCommandLineExecutor.runProcess(OurChmodHelpCmdLineSetup, 600);
-      } catch (ExecutionException e) {
-        LOG.warn(CHMOD_TOOL_NAME + " is not supported");
-        return;
+    @NotNull
+    private String getFingerprint(@NotNull final ToolProvider toolProvider) {
+      final File binDirectory = new File(toolProvider.getPath(RUN_AS_TOOL_NAME));
+      if (myEnvironment.getOperationSystem() == OperationSystem.Windows) {
+        return myCapabilityFingerprintService.getFingerprint(binDirectory, ICACLS_TOOL_NAME);
       }
 
-      try {
-        myCommandLineExecutor.runProcess(OurSuCmdLineSetup, 600);
-      } catch (ExecutionException e) {
-        LOG.warn(SU_TOOL_NAME + " is not supported");
+      return myCapabilityFingerprintService.getFingerprint(binDirectory, CHMOD_TOOL_NAME, SU_TOOL_NAME, SOCAT_TOOL_NAME);
+    }
+
+    // the cached or unknown result is reported at once, probes are executed in the background to be ready
+    // for the next collection of agent parameters, the refreshed result is not applied until then,
+    // because agent parameters are not published again
+    private void refresh(@NotNull final ToolProvider toolProvider, @NotNull final String fingerprint) {
+      if (!myIsRefreshing.compareAndSet(false, true)) {
         return;
       }
 
+      final Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            // probes which were not finished in time are repeated after the timeout
+            for (int attempt = 1; attempt <= MAX_REFRESH_ATTEMPTS; attempt++) {
+              final ProbeState state = probe(toolProvider, false);
+              if (state != ProbeState.Unknown) {
+                myProbeCache.setState(fingerprint, state);
+                return;
+              }
+
+              if (attempt < MAX_REFRESH_ATTEMPTS) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(getProbeTimeoutSeconds()));
+              }
+            }
+
+            LOG.warn("RunAs state is still unknown after " + MAX_REFRESH_ATTEMPTS + " attempts");
+          }
+          catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+          }
+          finally {
+            myIsRefreshing.set(false);
+          }
+        }
+      }, "runAs probes refresh");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    @NotNull
+    private ProbeState onLinuxBased(final ToolProvider toolProvider, final String script, final boolean isPublished) {
       final File pathToRunAsScript = new File(toolProvider.getPath(RUN_AS_TOOL_NAME), script);
       final CommandLineSetup scriptCmd =
         new CommandLineSetup(pathToRunAsScript.getAbsolutePath(), Collections.<CommandLineArgument>emptyList(), Collections.<CommandLineResource>emptyList());
-      try {
-        final ExecResult res = myCommandLineExecutor.runProcess(scriptCmd, 600);
-        if (res.getExitCode() != 0) {
-          LOG.warn("RunAs is not supported");
-          return;
-        }
-      } catch (ExecutionException e) {
-        LOG.warn(CHMOD_TOOL_NAME + " is not supported");
-        return;
+
+      final int timeoutSeconds = getProbeTimeoutSeconds();
+      final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+      final CapabilityProbe scriptProbe = new CapabilityProbe(script, myAsyncCommandLineExecutor.runProcessAsync(scriptCmd, timeoutSeconds));
+      final CapabilityProbe sudoProbe = isPublished && isSudoModeEnabled() ? startSudoProbe(timeoutSeconds) : null;
+      final ProbeState state = await(
+        deadline,
+        new CapabilityProbe(CHMOD_TOOL_NAME, myAsyncCommandLineExecutor.runProcessAsync(OurChmodHelpCmdLineSetup, timeoutSeconds)),
+        new CapabilityProbe(SU_TOOL_NAME, myAsyncCommandLineExecutor.runProcessAsync(OurSuCmdLineSetup, timeoutSeconds)),
+        scriptProbe);
+
+      if (state != ProbeState.Supported) {
+        cancelSudoProbe(sudoProbe);
+        return state;
+      }
+
+      final ExecResult res = scriptProbe.getResult();
+      if (res == null || res.getExitCode() != 0) {
+        LOG.warn("RunAs is not supported");
+        cancelSudoProbe(sudoProbe);
+        return ProbeState.NotSupported;
+      }
+
+      if (sudoProbe != null) {
+        myIsSudoEnabled = isSudoEnabled(sudoProbe, deadline);
       }
 
-      myIsRunAsEnabled = true;
-      parameters.put(Constants.RUN_AS_ENABLED, Boolean.toString(true));
+      return ProbeState.Supported;
     }
 
-    private void onWindows(final @NotNull Map<String, String> parameters, final ToolProvider toolProvider) {
-      try {
-        myCommandLineExecutor.runProcess(OurIcaclsCmdLineSetup, 600);
-      } catch (ExecutionException e) {
-        LOG.warn(ICACLS_TOOL_NAME + " is not supported");
-        return;
+    private void cancelSudoProbe(@Nullable final CapabilityProbe sudoProbe) {
+      if (sudoProbe != null) {
+        sudoProbe.cancel();
       }
+    }
+
+    // runAs scripts do not check passwords in the sudo mode, so it is used only when it is enabled explicitly
+    private boolean isSudoModeEnabled() {
+      return ParameterUtils.parseBoolean(myBuildAgentConfiguration.getConfigurationParameters().get(Constants.RUN_AS_SUDO_MODE_ENABLED), false);
+    }
+
+    @NotNull
+    private CapabilityProbe startSudoProbe(final int timeoutSeconds) {
+      return new CapabilityProbe(SUDO_TOOL_NAME, myAsyncCommandLineExecutor.runProcessAsync(OurSudoCmdLineSetup, timeoutSeconds));
+    }
 
+    // sudo is optional, so its probe does not change the state of runAs
+    private boolean isSudoEnabled(@NotNull final CapabilityProbe sudoProbe, final long deadline) {
+      if (sudoProbe.await(deadline) != ProbeState.Supported) {
+        sudoProbe.cancel();
+        return false;
+      }
+
+      final ExecResult result = sudoProbe.getResult();
+      final boolean isSudoEnabled = result != null && result.getExitCode() == 0;
+      LOG.info("sudo without a password is " + (isSudoEnabled ? "enabled" : "not enabled"));
+      return isSudoEnabled;
+    }
+
+    @NotNull
+    private ProbeState onWindows(final ToolProvider toolProvider) {
       final String pathToRunAsPlugin = toolProvider.getPath(RUN_AS_TOOL_NAME);
       final String runAsToolPath = new File("x86", RUN_AS_WIN32_TOOL_NAME).getPath();
       final CommandLineSetup cmdLineSetup = new CommandLineSetup(
@@ -231,21 +382,90 @@ public class RunAsPropertiesExtension extends AgentLifeCycleAdapter implements R
         Arrays.asList(new CommandLineArgument("-t", CommandLineArgument.Type.PARAMETER)),
         Collections.<CommandLineResource>emptyList());
 
-      try {
-        final ExecResult result = myCommandLineExecutor.runProcess(cmdLineSetup, 600);
-        if (result != null) {
-          LOG.info(RUN_AS_WIN32_TOOL_NAME + " self-test exit code: " + result.getExitCode());
-          final int bitness = result.getExitCode();
-          if (bitness == 32 || bitness == 64) {
-            myIsRunAsEnabled = true;
-            parameters.put(Constants.RUN_AS_ENABLED, Boolean.toString(true));
-          } else {
-            LOG.warn("Invalid " + RUN_AS_WIN32_TOOL_NAME + " exit code: " + bitness);
-          }
+      final int timeoutSeconds = getProbeTimeoutSeconds();
+      final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+      final CapabilityProbe runAsProbe = new CapabilityProbe(RUN_AS_WIN32_TOOL_NAME, myAsyncCommandLineExecutor.runProcessAsync(cmdLineSetup, timeoutSeconds));
+      final ProbeState state = await(
+        deadline,
+        new CapabilityProbe(ICACLS_TOOL_NAME, myAsyncCommandLineExecutor.runProcessAsync(OurIcaclsCmdLineSetup, timeoutSeconds)),
+        runAsProbe);
+
+      if (state != ProbeState.Supported) {
+        return state;
+      }
+
+      final ExecResult result = runAsProbe.getResult();
+      if (result == null) {
+        return ProbeState.NotSupported;
+      }
+
+      LOG.info(RUN_AS_WIN32_TOOL_NAME + " self-test exit code: " + result.getExitCode());
+      final int bitness = result.getExitCode();
+      if (bitness == 32 || bitness == 64) {
+        return ProbeState.Supported;
+      }
+
+      LOG.warn("Invalid " + RUN_AS_WIN32_TOOL_NAME + " exit code: " + bitness);
+      return ProbeState.NotSupported;
+    }
+
+    // probes are executed concurrently and awaited in turn, the first not supported probe cancels the remaining ones
+    @NotNull
+    private ProbeState await(final long deadline, @NotNull final CapabilityProbe... probes) {
+      CapabilityProbe unknownProbe = null;
+      for (CapabilityProbe probe: probes) {
+        final ProbeState state = probe.await(deadline);
+        if (state == ProbeState.NotSupported) {
+          LOG.warn(probe.getName() + " is not supported");
+          cancel(probes);
+          return ProbeState.NotSupported;
         }
-      } catch (ExecutionException e) {
-        LOG.warn(RUN_AS_WIN32_TOOL_NAME + " is not supported");
+
+        if (state == ProbeState.Unknown && unknownProbe == null) {
+          unknownProbe = probe;
+        }
+      }
+
+      if (unknownProbe != null) {
+        LOG.warn("RunAs state is unknown, because " + unknownProbe.getName() + " was not checked in time");
+        cancel(probes);
+        return ProbeState.Unknown;
+      }
+
+      return ProbeState.Supported;
+    }
+
+    private void cancel(@NotNull final CapabilityProbe[] probes) {
+      for (CapabilityProbe probe: probes) {
+        probe.cancel();
       }
     }
+
+    private void setState(final @NotNull Map<String, String> parameters, @NotNull final ProbeState state) {
+      switch (state) {
+        case Supported:
+          myIsRunAsEnabled = true;
+          parameters.put(Constants.RUN_AS_ENABLED, Boolean.toString(true));
+          if (myIsSudoEnabled) {
+            parameters.put(Constants.RUN_AS_SUDO_ENABLED, Boolean.toString(true));
+          }
+
+          parameters.put(Constants.RUN_AS_STATE, Constants.RUN_AS_STATE_ENABLED);
+          break;
+
+        case NotSupported:
+          parameters.put(Constants.RUN_AS_STATE, Constants.RUN_AS_STATE_DISABLED);
+          break;
+
+        case Unknown:
+          parameters.put(Constants.RUN_AS_STATE, Constants.RUN_AS_STATE_UNKNOWN);
+          break;
+      }
+    }
+
+    private int getProbeTimeoutSeconds() {
+      final int timeoutSeconds = ParameterUtils.parseInt(myBuildAgentConfiguration.getConfigurationParameters().get(Constants.RUN_AS_PROBE_TIMEOUT), DEFAULT_PROBE_TIMEOUT_SECONDS);
+      return timeoutSeconds > 0 ? timeoutSeconds : DEFAULT_PROBE_TIMEOUT_SECONDS;
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,231 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+
+// Runs "su" in a pseudo-terminal created by "script", writes the password when su prompts for it
+// and waits for su to finish, it is used by runAs.sh instead of socat and polling loops.
+// Usage: RunAsPtyLauncher command args, the password is the first line of stdin.
+// It depends on JDK only, because it is started with the plugin classes only.
+// The start of a JVM costs about 80-100 ms per step, so it is used only when "teamcity.runAs.launcher" is "pty"
+// and runAs.sh uses socat when "script" is not installed.
+public class RunAsPtyLauncher {
+  static final String JAVA_ENV_VAR = "RUN_AS_LAUNCHER_JAVA";
+  static final String CLASSPATH_ENV_VAR = "RUN_AS_LAUNCHER_CLASSPATH";
+  static final int ERROR_EXIT_CODE = 255;
+  private static final long PROMPT_TIMEOUT_MILLIS = 5000;
+  // the prompt is matched by bytes, so ISO-8859-1 keeps the output as is
+  private static final Charset OurCharset = Charset.forName("ISO-8859-1");
+  // the fullwidth colon U+FF1A in UTF-8, it is used by CJK prompts
+  private static final byte[] OurFullwidthColon = new byte[] {(byte)0xEF, (byte)0xBC, (byte)0x9A};
+  private final OutputStream myOutput;
+  private final CountDownLatch myPromptLatch = new CountDownLatch(1);
+  private volatile boolean myHasPrompt;
+
+  RunAsPtyLauncher(@NotNull final OutputStream output) {
+    myOutput = output;
+  }
+
+  public static void main(@NotNull final String[] args) throws IOException, InterruptedException {
+    if(args.length != 2) {
+      System.err.println("Usage: RunAsPtyLauncher command args");
+      System.exit(ERROR_EXIT_CODE);
+    }
+
+    final ProcessBuilder processBuilder = new ProcessBuilder("script", "-qec", createSuCommand(args[0], args[1]), "/dev/null");
+    System.exit(new RunAsPtyLauncher(System.out).run(processBuilder, readLine(System.in), PROMPT_TIMEOUT_MILLIS));
+  }
+
+  @NotNull
+  static File getJava() {
+    return new File(new File(System.getProperty("java.home"), "bin"), "java");
+  }
+
+  @NotNull
+  static File getClassPath() throws IOException {
+    try {
+      return new File(RunAsPtyLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+    catch (URISyntaxException ex) {
+      throw new IOException(ex.getMessage());
+    }
+  }
+
+  // the same command as runAs.sh runs: su -c "\"$command\"" "$args"
+  @NotNull
+  static String createSuCommand(@NotNull final String command, @NotNull final String args) {
+    return "su -c " + quote("\"" + command + "\"") + " " + quote(args);
+  }
+
+  int run(@NotNull final ProcessBuilder processBuilder, @NotNull final byte[] password, final long promptTimeoutMillis) throws IOException, InterruptedException {
+    final Process process;
+    try {
+      process = processBuilder.redirectErrorStream(true).start();
+    }
+    catch (IOException ex) {
+      writeError("Cannot start \"" + processBuilder.command().get(0) + "\": " + ex.getMessage());
+      return ERROR_EXIT_CODE;
+    }
+
+    final Thread outputThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        pumpOutput(process.getInputStream());
+      }
+    }, "RunAsPtyLauncher output");
+    outputThread.setDaemon(true);
+    outputThread.start();
+
+    final OutputStream input = process.getOutputStream();
+    try {
+      // the latch is released by the prompt or by the end of output
+      if(!myPromptLatch.await(promptTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        process.destroy();
+        writeError("Error during sending password");
+        return ERROR_EXIT_CODE;
+      }
+
+      if(myHasPrompt) {
+        try {
+          input.write(password);
+          input.write('\n');
+          input.flush();
+        }
+        catch (IOException ignored) {
+          // su has finished without the password
+        }
+      }
+
+      // stdin is kept open until su finishes, because script stops the session on EOF
+      final int exitCode = process.waitFor();
+      outputThread.join();
+      return exitCode;
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  private void pumpOutput(@NotNull final InputStream output) {
+    final byte[] buffer = new byte[4096];
+    final ByteArrayOutputStream head = new ByteArrayOutputStream();
+    boolean skipPromptTail = false;
+    try {
+      int size;
+      while ((size = output.read(buffer)) >= 0) {
+        byte[] bytes = buffer;
+        int start = 0;
+        if(!myHasPrompt) {
+          head.write(buffer, 0, size);
+          bytes = head.toByteArray();
+          start = findPromptEnd(bytes);
+          if(start < 0) {
+            continue;
+          }
+
+          // the line with the prompt is not shown in the build log
+          write(bytes, 0, findLineStart(bytes, start));
+          size = bytes.length;
+          myHasPrompt = true;
+          myPromptLatch.countDown();
+          skipPromptTail = true;
+        }
+
+        if(skipPromptTail) {
+          // spaces after the prompt and the line break after the password
+          while (start < size && (bytes[start] == ' ' || bytes[start] == '\r')) {
+            start++;
+          }
+
+          if(start < size) {
+            if(bytes[start] == '\n') {
+              start++;
+            }
+
+            skipPromptTail = false;
+          }
+        }
+
+        write(bytes, start, size);
+      }
+
+      write(head.toByteArray(), 0, myHasPrompt ? 0 : head.size());
+    }
+    catch (IOException ignored) {
+    }
+    finally {
+      myPromptLatch.countDown();
+    }
+  }
+
+  private void write(@NotNull final byte[] bytes, final int start, final int end) throws IOException {
+    if(start < end) {
+      myOutput.write(bytes, start, end - start);
+      myOutput.flush();
+    }
+  }
+
+  private void writeError(@NotNull final String message) throws IOException {
+    final String text = "##teamcity[message text='" + message.replace("|", "||").replace("'", "|'") + "' status='ERROR']\n";
+    myOutput.write(text.getBytes(OurCharset));
+    myOutput.flush();
+  }
+
+  // the password is passed as bytes, so it is not changed by the default charset
+  @NotNull
+  private static byte[] readLine(@NotNull final InputStream stream) throws IOException {
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int value;
+    while ((value = stream.read()) >= 0 && value != '\n') {
+      line.write(value);
+    }
+
+    return line.toByteArray();
+  }
+
+  // the same prompts as grep "[Pp]assword:" in runAs.sh,
+  // localized prompts like "Passwort:" or "Mot de passe :" are the output ended by a colon without a line break
+  private static int findPromptEnd(@NotNull final byte[] bytes) {
+    final String text = new String(bytes, OurCharset);
+    int index = 0;
+    while ((index = text.indexOf("assword:", index + 1)) > 0) {
+      if(text.charAt(index - 1) == 'P' || text.charAt(index - 1) == 'p') {
+        return index + "assword:".length();
+      }
+    }
+
+    int end = bytes.length;
+    while (end > 0 && bytes[end - 1] == ' ') {
+      end--;
+    }
+
+    if(end > 0 && bytes[end - 1] == ':') {
+      return end;
+    }
+
+    if(end > OurFullwidthColon.length && Arrays.equals(Arrays.copyOfRange(bytes, end - OurFullwidthColon.length, end), OurFullwidthColon)) {
+      return end;
+    }
+
+    return -1;
+  }
+
+  private static int findLineStart(@NotNull final byte[] bytes, final int end) {
+    int index = end;
+    while (index > 0 && bytes[index - 1] != '\n') {
+      index--;
+    }
+
+    return index;
+  }
+
+  @NotNull
+  private static String quote(@NotNull final String str) {
+    return "'" + str.replace("'", "'\\''") + "'";
+  }
+}
@@ -51,6 +51,15 @@ public class ScopedFileAccessService implements FileAccessService {
           break;
       }
 
+      // the entry could change files under entries cached for other scopes
+      if(ace.getScope() != AccessControlScope.Global) {
+        myGlobalFileAccessCache.invalidate(ace);
+      }
+
+      if(ace.getScope() != AccessControlScope.Build) {
+        myBuildFileAccessCache.invalidate(ace);
+      }
+
       newAcl.add(ace);
     }
 
@@ -60,9 +69,23 @@ public class ScopedFileAccessService implements FileAccessService {
 
     List<Result<AccessControlEntry, Boolean>> results = new ArrayList<Result<AccessControlEntry, Boolean>>();
     boolean hasError = false;
+    FileAccessStatistics statistics = null;
     for (Result<AccessControlEntry, Boolean> result: myFileAccessService.setAccess(new AccessControlList(newAcl))) {
       results.add(result);
-      hasError |= !result.isSuccessful() || (result.getValue() != null && !result.getValue());
+      final boolean isSuccessful = result.isSuccessful() && (result.getValue() == null || result.getValue());
+      hasError |= !isSuccessful;
+      setApplied(result.getContext(), isSuccessful);
+      if(result instanceof FileAccessResult) {
+        if(statistics == null) {
+          statistics = new FileAccessStatistics();
+        }
+
+        statistics.add(((FileAccessResult)result).getStatistics());
+      }
+    }
+
+    if(statistics != null) {
+      LOG.info("Access was set: " + statistics);
     }
 
     if(hasError) {
@@ -72,4 +95,16 @@ public class ScopedFileAccessService implements FileAccessService {
 
     return results;
   }
+
+  private void setApplied(@NotNull final AccessControlEntry ace, final boolean isSuccessful) {
+    switch (ace.getScope()) {
+      case Global:
+        myGlobalFileAccessCache.setApplied(ace, isSuccessful);
+        break;
+
+      case Build:
+        myBuildFileAccessCache.setApplied(ace, isSuccessful);
+        break;
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package jetbrains.buildServer.runAs.agent;
+
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
+import org.jetbrains.annotations.NotNull;
+
+// The argument is passed to the process as is, but it is masked in logs, for instance the password of the runAs user
+public class SecretCommandLineArgument extends CommandLineArgument {
+  static final String MASK = "*****";
+
+  public SecretCommandLineArgument(@NotNull final String value) {
+    super(value, Type.PARAMETER);
+  }
+
+  @Override
+  public String toString() {
+    return MASK;
+  }
+}
@@ -0,0 +1,8 @@
+package jetbrains.buildServer.runAs.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+public interface SudoAccessService {
+  // Returns true when the agent user could run commands as the user via "sudo -n"
+  boolean isAllowed(@NotNull final String user);
+}
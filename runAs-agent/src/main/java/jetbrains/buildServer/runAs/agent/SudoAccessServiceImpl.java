@@ -0,0 +1,75 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.runAs.agent.Constants.SUDO_TOOL_NAME;
+
+// Checks NOPASSWD and SETENV sudoers rules for each user once per agent session, when the sudo mode is enabled for the agent
+// and sudo without a password was detected by probes.
+// The check runs sudo like runAs scripts do with "true" instead of the command file.
+public class SudoAccessServiceImpl implements SudoAccessService {
+  private static final Logger LOG = Logger.getInstance(SudoAccessServiceImpl.class.getName());
+  private static final int EXECUTION_TIMEOUT_SECONDS = 30;
+  static final String ENV_TOOL_PATH = "/usr/bin/env";
+  // sudoers rules do not depend on the PATH value, this one is enough to find "true"
+  static final String PATH_PROBE_VALUE = "/usr/bin:/bin";
+  private final RunAsAccessService myRunAsAccessService;
+  private final CommandLineExecutor myCommandLineExecutor;
+  private final HashMap<String, Boolean> myUsers = new HashMap<String, Boolean>();
+
+  public SudoAccessServiceImpl(
+    @NotNull final RunAsAccessService runAsAccessService,
+    @NotNull final CommandLineExecutor commandLineExecutor) {
+    myRunAsAccessService = runAsAccessService;
+    myCommandLineExecutor = commandLineExecutor;
+  }
+
+  @Override
+  public synchronized boolean isAllowed(@NotNull final String user) {
+    if(!myRunAsAccessService.getIsSudoEnabled()) {
+      return false;
+    }
+
+    final Boolean isAllowed = myUsers.get(user);
+    if(isAllowed != null) {
+      return isAllowed;
+    }
+
+    final CommandLineSetup sudoSetup = new CommandLineSetup(
+      SUDO_TOOL_NAME,
+      Arrays.asList(
+        new CommandLineArgument("-n", CommandLineArgument.Type.PARAMETER),
+        new CommandLineArgument("-E", CommandLineArgument.Type.PARAMETER),
+        new CommandLineArgument("-u", CommandLineArgument.Type.PARAMETER),
+        new CommandLineArgument(user, CommandLineArgument.Type.PARAMETER),
+        new CommandLineArgument("--", CommandLineArgument.Type.PARAMETER),
+        new CommandLineArgument(ENV_TOOL_PATH, CommandLineArgument.Type.PARAMETER),
+        new CommandLineArgument("PATH=" + PATH_PROBE_VALUE, CommandLineArgument.Type.PARAMETER),
+        new CommandLineArgument("true", CommandLineArgument.Type.PARAMETER)),
+      Collections.<CommandLineResource>emptyList());
+
+    final ExecResult result;
+    try {
+      result = myCommandLineExecutor.runProcess(sudoSetup, EXECUTION_TIMEOUT_SECONDS);
+    }
+    catch (ExecutionException ex) {
+      // it is checked again for the next step
+      LOG.warn("Cannot check sudo for user \"" + user + "\": " + ex.getMessage());
+      return false;
+    }
+
+    final boolean isAllowedForUser = result != null && result.getExitCode() == 0;
+    LOG.info("sudo without a password and with the environment is " + (isAllowedForUser ? "allowed" : "not allowed") + " for user \"" + user + "\"");
+    myUsers.put(user, isAllowedForUser);
+    return isAllowedForUser;
+  }
+}
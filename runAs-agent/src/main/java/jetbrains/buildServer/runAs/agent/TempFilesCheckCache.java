@@ -0,0 +1,10 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import org.jetbrains.annotations.NotNull;
+
+public interface TempFilesCheckCache {
+  boolean isChecked(@NotNull final String user, @NotNull final File tempDirectory);
+
+  void setChecked(@NotNull final String user, @NotNull final File tempDirectory);
+}
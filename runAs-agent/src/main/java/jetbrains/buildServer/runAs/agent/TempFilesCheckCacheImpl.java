@@ -0,0 +1,40 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.util.HashSet;
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+// Keeps pairs of a user and a temp directory, which were checked during the current build
+public class TempFilesCheckCacheImpl extends AgentLifeCycleAdapter implements TempFilesCheckCache {
+  private final HashSet<String> myCheckedKeys = new HashSet<String>();
+
+  public TempFilesCheckCacheImpl(@NotNull final EventDispatcher<AgentLifeCycleListener> events) {
+    events.addListener(this);
+  }
+
+  @Override
+  public synchronized boolean isChecked(@NotNull final String user, @NotNull final File tempDirectory) {
+    return myCheckedKeys.contains(getKey(user, tempDirectory));
+  }
+
+  @Override
+  public synchronized void setChecked(@NotNull final String user, @NotNull final File tempDirectory) {
+    myCheckedKeys.add(getKey(user, tempDirectory));
+  }
+
+  @Override
+  public synchronized void buildFinished(@NotNull final AgentRunningBuild build, @NotNull final BuildFinishedStatus buildStatus) {
+    myCheckedKeys.clear();
+    super.buildFinished(build, buildStatus);
+  }
+
+  @NotNull
+  private static String getKey(@NotNull final String user, @NotNull final File tempDirectory) {
+    return user + File.pathSeparator + tempDirectory.getAbsolutePath();
+  }
+}
@@ -0,0 +1,151 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.dotNet.buildRunner.agent.BuildStartException;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineExecutionContext;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import org.jetbrains.annotations.NotNull;
+
+// Checks that the agent will be able to remove temporary files created by the build step,
+// the probe runs once per user and temp directory during a build instead of running in runAs scripts for each step
+public class TempFilesCheckResource implements CommandLineResource {
+  private static final Logger LOG = Logger.getInstance(TempFilesCheckResource.class.getName());
+  static final String TEMP_FILE_EXT = ".tmp";
+  private static final String CMD_EXT = ".cmd";
+  private static final int EXECUTION_TIMEOUT_SECONDS = 60;
+  private static final int MAX_ERROR_LENGTH = 1000;
+  private static final Charset OurCharset = Charset.forName("UTF-8");
+  private final TempFilesCheckCache myTempFilesCheckCache;
+  private final CommandLineExecutor myCommandLineExecutor;
+  private final String myUser;
+  private final File myTempDirectory;
+  private final File myProbeFile;
+  private final CommandLineSetup myProbeSetup;
+
+  public TempFilesCheckResource(
+    @NotNull final TempFilesCheckCache tempFilesCheckCache,
+    @NotNull final CommandLineExecutor commandLineExecutor,
+    @NotNull final String user,
+    @NotNull final File tempDirectory,
+    @NotNull final File probeFile,
+    @NotNull final CommandLineSetup probeSetup) {
+    myTempFilesCheckCache = tempFilesCheckCache;
+    myCommandLineExecutor = commandLineExecutor;
+    myUser = user;
+    myTempDirectory = tempDirectory;
+    myProbeFile = probeFile;
+    myProbeSetup = probeSetup;
+  }
+
+  @Override
+  public void publishBeforeBuild(@NotNull final CommandLineExecutionContext commandLineExecutionContext) {
+    if(myTempFilesCheckCache.isChecked(myUser, myTempDirectory)) {
+      return;
+    }
+
+    final File tempFile = new File(myProbeFile.getPath() + TEMP_FILE_EXT);
+    final ExecResult result;
+    try {
+      // ensure runAs user has the read/write access for temp directory
+      setFullAccess(myTempDirectory);
+      Files.write(myProbeFile.toPath(), createProbe(tempFile).getBytes(OurCharset));
+      setFullAccess(myProbeFile);
+      result = myCommandLineExecutor.runProcess(myProbeSetup, EXECUTION_TIMEOUT_SECONDS);
+    }
+    catch (IOException ex) {
+      throw new BuildStartException("Cannot create \"" + myProbeFile + "\": " + ex.getMessage());
+    }
+    catch (ExecutionException ex) {
+      throw new BuildStartException("Cannot check temporary files of user \"" + myUser + "\": " + ex.getMessage());
+    }
+    finally {
+      //noinspection ResultOfMethodCallIgnored
+      myProbeFile.delete();
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    tempFile.delete();
+    if(tempFile.exists()) {
+      LOG.warn("Agent cannot remove \"" + tempFile + "\" created by user \"" + myUser + "\"");
+      throw new BuildStartException("Incorrect runAs configuration: agent won't be able to remove temporary files created by the build step, see teamcity-agent.log for details.");
+    }
+
+    final int exitCode = result != null ? result.getExitCode() : -1;
+    if(exitCode != 0) {
+      final String stderr = result != null && result.getStderr() != null ? result.getStderr().trim() : "";
+      if(result != null) {
+        LOG.warn("Temporary files check for user \"" + myUser + "\" has finished with exit code " + exitCode + ", stdout: " + result.getStdout() + ", stderr: " + stderr);
+      }
+
+      // the probe fails when the command could not be run as the user as well, for instance when su fails, so the reason is reported as is
+      throw new BuildStartException(
+        "Cannot check temporary files of user \"" + myUser + "\" in \"" + myTempDirectory + "\", the check has finished with exit code " + exitCode
+        + (stderr.isEmpty() ? "" : ": " + truncate(stderr))
+        + ", see teamcity-agent.log for details.");
+    }
+
+    myTempFilesCheckCache.setChecked(myUser, myTempDirectory);
+  }
+
+  @Override
+  public void publishAfterBuild(@NotNull final CommandLineExecutionContext commandLineExecutionContext) {
+  }
+
+  @NotNull
+  private String createProbe(@NotNull final File tempFile) {
+    if(myProbeFile.getName().endsWith(CMD_EXT)) {
+      return "@type nul > \"" + tempFile.getAbsolutePath() + "\"\r\n";
+    }
+
+    return "#!/bin/bash\necho . > \"" + tempFile.getAbsolutePath() + "\"\n";
+  }
+
+  @NotNull
+  private static String truncate(@NotNull final String text) {
+    return text.length() <= MAX_ERROR_LENGTH ? text : text.substring(0, MAX_ERROR_LENGTH) + "...";
+  }
+
+  private static void setFullAccess(@NotNull final File file) {
+    //noinspection ResultOfMethodCallIgnored
+    file.setReadable(true, false);
+    //noinspection ResultOfMethodCallIgnored
+    file.setWritable(true, false);
+    //noinspection ResultOfMethodCallIgnored
+    file.setExecutable(true, false);
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) return true;
+    if (!(o instanceof TempFilesCheckResource)) return false;
+
+    final TempFilesCheckResource that = (TempFilesCheckResource)o;
+
+    if (!myUser.equals(that.myUser)) return false;
+    if (!myTempDirectory.equals(that.myTempDirectory)) return false;
+    if (!myProbeFile.equals(that.myProbeFile)) return false;
+    return myProbeSetup.equals(that.myProbeSetup);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = myUser.hashCode();
+    result = 31 * result + myTempDirectory.hashCode();
+    result = 31 * result + myProbeFile.hashCode();
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return LogUtils.toString(
+      "TempFilesCheck",
+      myUser + ", " + myTempDirectory);
+  }
+}
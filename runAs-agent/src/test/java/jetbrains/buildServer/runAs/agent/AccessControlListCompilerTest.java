@@ -0,0 +1,201 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class AccessControlListCompilerTest {
+  private static final File ourDir = new File("dir");
+  private static final File ourSubDir = new File(ourDir, "subDir");
+  private static final File ourFile = new File(ourSubDir, "file");
+  private static final File ourOtherDir = new File("otherDir");
+
+  @DataProvider(name = "getCompileCases")
+  public Object[][] getCompileCases() {
+    return new Object[][] {
+      // empty
+      {
+        Collections.<AccessControlEntry>emptyList(),
+        Collections.<AccessControlEntry>emptyList()
+      },
+
+      // different paths
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Global),
+          new AccessControlEntry(ourOtherDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Global)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Global),
+          new AccessControlEntry(ourOtherDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Global))
+      },
+
+      // duplicates
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step))
+      },
+
+      // merge the same path and account
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Build),
+          new AccessControlEntry(ourOtherDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Build),
+          new AccessControlEntry(ourDir, AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantWrite, AccessPermissions.DenyExecute), AccessControlScope.Build)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.DenyExecute), AccessControlScope.Build),
+          new AccessControlEntry(ourOtherDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Build))
+      },
+
+      // do not merge different accounts, scopes and recursive flags
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Build),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantWrite), AccessControlScope.Build),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Step),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Step)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Build),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantWrite), AccessControlScope.Build),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Step),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Step))
+      },
+
+      // do not merge a grant after a conflicting deny
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyExecute), AccessControlScope.Step),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyExecute), AccessControlScope.Step),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step))
+      },
+
+      // merge a deny after a grant
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyExecute), AccessControlScope.Step)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.DenyExecute), AccessControlScope.Step))
+      },
+
+      // covered by a recursive ancestor
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.Recursive), AccessControlScope.Build),
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourFile, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantWrite), AccessControlScope.Build)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.Recursive), AccessControlScope.Build))
+      },
+
+      // not covered by an ancestor which is applied less often
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step))
+      },
+
+      // not covered by a not recursive ancestor
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step),
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step),
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step))
+      },
+
+      // not covered by an ancestor which denies a part of granted permissions
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.DenyRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.DenyRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step))
+      },
+
+      // a recursive descendant does not cover its recursive ancestor
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global)),
+        Arrays.asList(
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global))
+      },
+
+      // not covered when an overlapped entry is between them
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(ourFile, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step),
+          new AccessControlEntry(ourOtherDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(ourFile, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step),
+          new AccessControlEntry(ourOtherDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step),
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step))
+      },
+
+      // patterns are kept and they separate entries under their roots
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(new File(ourDir, "**/*.sh"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyRead), AccessControlScope.Step),
+          new AccessControlEntry(new File(ourDir, "**/*.sh"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyRead), AccessControlScope.Step),
+          new AccessControlEntry(ourFile, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step)),
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(new File(ourDir, "**/*.sh"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyRead), AccessControlScope.Step),
+          new AccessControlEntry(new File(ourDir, "**/*.sh"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyRead), AccessControlScope.Step),
+          new AccessControlEntry(ourFile, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step))
+      },
+    };
+  }
+
+  @Test(dataProvider = "getCompileCases")
+  public void shouldCompile(
+    @NotNull final List<AccessControlEntry> entries,
+    @NotNull final List<AccessControlEntry> expectedEntries) {
+    // Given
+    final AccessControlListCompiler instance = createInstance();
+
+    // When
+    final AccessControlList acl = instance.compile(new AccessControlList(entries));
+
+    // Then
+    then(acl).isEqualTo(new AccessControlList(expectedEntries));
+    final List<AccessControlScope> scopes = new ArrayList<AccessControlScope>();
+    for (AccessControlEntry entry: acl) {
+      scopes.add(entry.getScope());
+    }
+
+    final List<AccessControlScope> expectedScopes = new ArrayList<AccessControlScope>();
+    for (AccessControlEntry entry: expectedEntries) {
+      expectedScopes.add(entry.getScope());
+    }
+
+    then(scopes).isEqualTo(expectedScopes);
+  }
+
+  @NotNull
+  private AccessControlListCompiler createInstance()
+  {
+    return new AccessControlListCompilerImpl();
+  }
+}
@@ -213,6 +213,101 @@ public class AccessControlListProviderTest {
     then(actualAcl).isEqualTo(getExpectedAcl(isDefaultsAclEnabledStr, username, agentAcl, profileAcl));
   }
 
+  @Test
+  public void shouldGetDefaultAclForEachUser() {
+    // Given
+    myCtx.checking(new Expectations() {{
+      allowing(myAgentParametersService).tryGetConfigParameter(RUN_AS_ACL_DEFAULTS_ENABLED);
+      will(returnValue("true"));
+
+      allowing(myAgentParametersService).tryGetConfigParameter(RUN_AS_ACL);
+      will(returnValue(null));
+
+      allowing(myProfileParametersService).tryGetProperty(with(any(String.class)), with(RUN_AS_ACL));
+      will(returnValue(null));
+
+      allowing(myPathsService).getPath(with(any(WellKnownPaths.class)));
+      will(returnValue(new File("dir")));
+    }});
+
+    final AccessControlListProvider instance = createInstance();
+
+    // When
+    final AccessControlList acl1 = instance.getAcl(createUserCredentials("user1"));
+    final AccessControlList acl2 = instance.getAcl(createUserCredentials("user2"));
+    final AccessControlList acl1Again = instance.getAcl(createUserCredentials("user1"));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(acl1).isEqualTo(acl1Again);
+    then(acl1.equals(acl2)).isEqualTo(false);
+    then(getUsers(acl1)).containsExactly("user1");
+    then(getUsers(acl2)).containsExactly("user2");
+  }
+
+  @Test
+  public void shouldGetNewDefaultAclWhenCheckoutDirectoryIsChanged() {
+    // Given
+    myCtx.checking(new Expectations() {{
+      allowing(myAgentParametersService).tryGetConfigParameter(RUN_AS_ACL_DEFAULTS_ENABLED);
+      will(returnValue("true"));
+
+      allowing(myAgentParametersService).tryGetConfigParameter(RUN_AS_ACL);
+      will(returnValue(null));
+
+      allowing(myProfileParametersService).tryGetProperty(with(any(String.class)), with(RUN_AS_ACL));
+      will(returnValue(null));
+
+      oneOf(myPathsService).getPath(WellKnownPaths.Checkout);
+      will(returnValue(new File("checkout1")));
+
+      oneOf(myPathsService).getPath(WellKnownPaths.Checkout);
+      will(returnValue(new File("checkout2")));
+
+      allowing(myPathsService).getPath(with(any(WellKnownPaths.class)));
+      will(returnValue(new File("dir")));
+    }});
+
+    final AccessControlListProvider instance = createInstance();
+
+    // When
+    final AccessControlList acl1 = instance.getAcl(createUserCredentials("user"));
+    final AccessControlList acl2 = instance.getAcl(createUserCredentials("user"));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(getFiles(acl1)).contains(new File("checkout1"));
+    then(getFiles(acl2)).contains(new File("checkout2"));
+    then(getFiles(acl2)).doesNotContain(new File("checkout1"));
+  }
+
+  @NotNull
+  private static UserCredentials createUserCredentials(@NotNull final String username) {
+    return new UserCredentials("profile", username, "password", WindowsIntegrityLevel.Auto, LoggingLevel.Off, Collections.<CommandLineArgument>emptyList());
+  }
+
+  @NotNull
+  private static Set<String> getUsers(@NotNull final AccessControlList acl) {
+    final Set<String> users = new HashSet<String>();
+    for (AccessControlEntry ace: acl) {
+      if(ace.getAccount().getTargetType() == AccessControlAccountType.User) {
+        users.add(ace.getAccount().getUserName());
+      }
+    }
+
+    return users;
+  }
+
+  @NotNull
+  private static List<File> getFiles(@NotNull final AccessControlList acl) {
+    final List<File> files = new ArrayList<File>();
+    for (AccessControlEntry ace: acl) {
+      files.add(ace.getFile());
+    }
+
+    return files;
+  }
+
   @NotNull
   private AccessControlListProvider createInstance()
   {
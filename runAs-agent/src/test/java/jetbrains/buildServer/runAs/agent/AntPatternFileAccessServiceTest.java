@@ -0,0 +1,161 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class AntPatternFileAccessServiceTest {
+  private List<List<AccessControlEntry>> myCalls;
+  private Set<File> myFailedFiles;
+  private Path myRoot;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myCalls = new ArrayList<List<AccessControlEntry>>();
+    myFailedFiles = new HashSet<File>();
+    myRoot = Files.createTempDirectory("runAs");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    delete(myRoot.toFile());
+  }
+
+  @Test
+  public void shouldPassMatchedFilesInsteadOfPatterns() throws IOException {
+    // Given
+    final Path bin = Files.createDirectories(myRoot.resolve("dir").resolve("tool").resolve("bin"));
+    final Path script = Files.createFile(bin.resolve("run.sh"));
+    Files.createFile(bin.resolve("run.txt"));
+    final AccessControlEntry literalEntry1 = new AccessControlEntry(new File("file1"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step);
+    final AccessControlEntry patternEntry = new AccessControlEntry(myRoot.resolve("dir").resolve("**").resolve("*.sh").toFile(), AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Build);
+    final AccessControlEntry literalEntry2 = new AccessControlEntry(new File("file2"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step);
+    final FileAccessService instance = createInstance();
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> results = toList(instance.setAccess(new AccessControlList(Arrays.asList(literalEntry1, patternEntry, literalEntry2))));
+
+    // Then
+    then(myCalls.size()).isEqualTo(3);
+    then(myCalls.get(0)).containsExactly(literalEntry1);
+    then(myCalls.get(1)).containsExactly(new AccessControlEntry(script.toFile(), AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Build));
+    then(myCalls.get(2)).containsExactly(literalEntry2);
+    then(results.size()).isEqualTo(3);
+    then(results.get(1).getContext()).isEqualTo(patternEntry);
+    then(results.get(1).getValue()).isEqualTo(true);
+    then(((FileAccessResult)results.get(1)).getStatistics().getChangedCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void shouldPassMatchedFilesInBatches() throws IOException {
+    // Given
+    final Path dir = Files.createDirectories(myRoot.resolve("dir"));
+    final int count = AntPatternFileAccessService.BATCH_SIZE + 1;
+    for (int index = 0; index < count; index++) {
+      Files.createFile(dir.resolve("file" + index + ".sh"));
+    }
+
+    final FileAccessService instance = createInstance();
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> results = toList(instance.setAccess(new AccessControlList(Collections.singletonList(
+      new AccessControlEntry(dir.resolve("*.sh").toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Step)))));
+
+    // Then
+    then(myCalls.size()).isEqualTo(2);
+    then(myCalls.get(0).size()).isEqualTo(AntPatternFileAccessService.BATCH_SIZE);
+    then(myCalls.get(1).size()).isEqualTo(1);
+    then(results.size()).isEqualTo(1);
+    then(((FileAccessResult)results.get(0)).getStatistics().getChangedCount()).isEqualTo((long)count);
+  }
+
+  @Test
+  public void shouldReturnFalseWhenSomeMatchedFileWasNotChanged() throws IOException {
+    // Given
+    final Path dir = Files.createDirectories(myRoot.resolve("dir"));
+    Files.createFile(dir.resolve("run1.sh"));
+    final Path script = Files.createFile(dir.resolve("run2.sh"));
+    myFailedFiles.add(script.toFile());
+    final FileAccessService instance = createInstance();
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> results = toList(instance.setAccess(new AccessControlList(Collections.singletonList(
+      new AccessControlEntry(dir.resolve("*.sh").toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Step)))));
+
+    // Then
+    then(results.size()).isEqualTo(1);
+    then(results.get(0).getValue()).isEqualTo(false);
+  }
+
+  @Test
+  public void shouldReturnFalseWhenRootDoesNotExist() {
+    // Given
+    final FileAccessService instance = createInstance();
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> results = toList(instance.setAccess(new AccessControlList(Collections.singletonList(
+      new AccessControlEntry(myRoot.resolve("abc").resolve("*.sh").toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Step)))));
+
+    // Then
+    then(myCalls.size()).isEqualTo(0);
+    then(results.size()).isEqualTo(1);
+    then(results.get(0).getValue()).isEqualTo(false);
+  }
+
+  @NotNull
+  private FileAccessService createInstance() {
+    return new AntPatternFileAccessService(
+      new FileAccessService() {
+        @Override
+        public Iterable<Result<AccessControlEntry, Boolean>> setAccess(@NotNull final AccessControlList accessControlList) {
+          final List<AccessControlEntry> entries = new ArrayList<AccessControlEntry>();
+          final List<Result<AccessControlEntry, Boolean>> results = new ArrayList<Result<AccessControlEntry, Boolean>>();
+          for (AccessControlEntry entry: accessControlList) {
+            entries.add(entry);
+            results.add(new Result<AccessControlEntry, Boolean>(entry, !myFailedFiles.contains(entry.getFile())));
+          }
+
+          myCalls.add(entries);
+          return results;
+        }
+      },
+      new ForkJoinFileTreeWalker(new AgentParametersService() {
+        @Nullable
+        @Override
+        public String tryGetConfigParameter(@NotNull final String parameterName) {
+          return null;
+        }
+      }));
+  }
+
+  @NotNull
+  private static List<Result<AccessControlEntry, Boolean>> toList(@NotNull final Iterable<Result<AccessControlEntry, Boolean>> results) {
+    final List<Result<AccessControlEntry, Boolean>> list = new ArrayList<Result<AccessControlEntry, Boolean>>();
+    for (Result<AccessControlEntry, Boolean> result: results) {
+      list.add(result);
+    }
+
+    return list;
+  }
+
+  private static void delete(@NotNull final File file) {
+    final File[] files = file.listFiles();
+    if(files != null) {
+      for (File child: files) {
+        delete(child);
+      }
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+}
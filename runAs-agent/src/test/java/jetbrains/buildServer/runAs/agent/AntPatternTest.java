@@ -0,0 +1,77 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.nio.file.Path;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class AntPatternTest {
+  private static final File ourRoot = new File("root").getAbsoluteFile();
+
+  @DataProvider(name = "getMatchCases")
+  public Object[][] getMatchCases() {
+    return new Object[][] {
+      { "*.sh", "run.sh", true },
+      { "*.sh", "dir/run.sh", false },
+      { "*.sh", "run.txt", false },
+      { "run?.sh", "run1.sh", true },
+      { "run?.sh", "run.sh", false },
+      { "**/*.sh", "run.sh", true },
+      { "**/*.sh", "dir/subDir/run.sh", true },
+      { "**/bin/*.sh", "bin/run.sh", true },
+      { "**/bin/*.sh", "tool/bin/run.sh", true },
+      { "**/bin/*.sh", "tool/bin/sub/run.sh", false },
+      { "**/bin/*.sh", "tool/bin", false },
+      { "dir/**", "dir", true },
+      { "dir/**", "dir/a/b", true },
+      { "dir/**", "dir2/a", false },
+      { "dir/**/a", "dir/a", true },
+      { "a.b/*", "a.b/c", true },
+      { "a.b/*", "axb/c", false },
+      { "[a]/*", "[a]/c", true },
+    };
+  }
+
+  @Test(dataProvider = "getMatchCases")
+  public void shouldMatch(@NotNull final String pattern, @NotNull final String path, final boolean expectedMatches) {
+    // Given
+    final AntPattern instance = AntPattern.compile(new File(ourRoot, pattern).toPath());
+
+    // When
+    final boolean matches = instance.matches(new File(ourRoot, path).toPath());
+
+    // Then
+    then(matches).isEqualTo(expectedMatches);
+  }
+
+  @DataProvider(name = "getRootCases")
+  public Object[][] getRootCases() {
+    return new Object[][] {
+      { "*.sh", ourRoot },
+      { "dir/**/*.sh", new File(ourRoot, "dir") },
+      { "dir/sub?/a", new File(ourRoot, "dir") },
+      { "dir/../other/*", new File(ourRoot, "other") },
+    };
+  }
+
+  @Test(dataProvider = "getRootCases")
+  public void shouldGetRoot(@NotNull final String pattern, @NotNull final File expectedRoot) {
+    // Given
+
+    // When
+    final Path root = AntPattern.compile(new File(ourRoot, pattern).toPath()).getRoot();
+
+    // Then
+    then(root).isEqualTo(expectedRoot.toPath());
+  }
+
+  @Test
+  public void shouldDetectPatterns() {
+    then(AntPattern.isPattern(new File("dir/*.sh"))).isEqualTo(true);
+    then(AntPattern.isPattern(new File("dir/file?"))).isEqualTo(true);
+    then(AntPattern.isPattern(new File("dir/file"))).isEqualTo(false);
+  }
+}
@@ -0,0 +1,175 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.execution.ExecutionException;
+import java.util.Collections;
+import java.util.concurrent.*;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class AsyncCommandLineExecutorImplTest {
+  private Mockery myCtx;
+  private CommandLineExecutor myCommandLineExecutor;
+  private CommandLineSetup mySetup;
+
+  @BeforeMethod
+  public void setUp() {
+    myCtx = new Mockery();
+    myCommandLineExecutor = myCtx.mock(CommandLineExecutor.class);
+    mySetup = new CommandLineSetup("tool", Collections.<CommandLineArgument>emptyList(), Collections.<CommandLineResource>emptyList());
+  }
+
+  @Test
+  public void shouldRunProcess() throws Exception {
+    // Given
+    final AsyncCommandLineExecutor instance = createInstance(2);
+    final ExecResult expectedResult = new ExecResult();
+    myCtx.checking(new Expectations() {{
+      oneOf(myCommandLineExecutor).runProcess(mySetup, 10);
+      will(returnValue(expectedResult));
+    }});
+
+    // When
+    final ExecResult result = instance.runProcessAsync(mySetup, 10).get(10, TimeUnit.SECONDS);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result).isSameAs(expectedResult);
+  }
+
+  @Test
+  public void shouldCompleteExceptionallyWhenProcessCannotBeStarted() throws Exception {
+    // Given
+    final AsyncCommandLineExecutor instance = createInstance(2);
+    final ExecutionException error = new ExecutionException("some error");
+    myCtx.checking(new Expectations() {{
+      oneOf(myCommandLineExecutor).runProcess(mySetup, 10);
+      will(throwException(error));
+    }});
+
+    // When
+    Throwable actualError = null;
+    try {
+      instance.runProcessAsync(mySetup, 10).get(10, TimeUnit.SECONDS);
+    }
+    catch (java.util.concurrent.ExecutionException ex) {
+      actualError = ex.getCause();
+    }
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(actualError).isSameAs(error);
+  }
+
+  @Test
+  public void shouldCompleteExceptionallyAndInterruptWhenTimeoutIsExpired() throws Exception {
+    // Given
+    final AsyncCommandLineExecutor instance = createInstance(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    myCtx.checking(new Expectations() {{
+      oneOf(myCommandLineExecutor).runProcess(mySetup, 1);
+      will(sleep(interrupted));
+    }});
+
+    // When
+    Throwable actualError = null;
+    try {
+      instance.runProcessAsync(mySetup, 1).get(10, TimeUnit.SECONDS);
+    }
+    catch (java.util.concurrent.ExecutionException ex) {
+      actualError = ex.getCause();
+    }
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(actualError instanceof TimeoutException).isEqualTo(true);
+    then(interrupted.await(10, TimeUnit.SECONDS)).isEqualTo(true);
+  }
+
+  @Test
+  public void shouldInterruptProcessWhenCancelled() throws Exception {
+    // Given
+    final AsyncCommandLineExecutor instance = createInstance(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    final CommandLineSetup setup2 = new CommandLineSetup("tool2", Collections.<CommandLineArgument>emptyList(), Collections.<CommandLineResource>emptyList());
+    final ExecResult expectedResult = new ExecResult();
+    myCtx.checking(new Expectations() {{
+      oneOf(myCommandLineExecutor).runProcess(mySetup, 60);
+      will(sleep(interrupted));
+
+      oneOf(myCommandLineExecutor).runProcess(setup2, 60);
+      will(returnValue(expectedResult));
+    }});
+
+    // When
+    final CompletableFuture<ExecResult> future = instance.runProcessAsync(mySetup, 60);
+    final CompletableFuture<ExecResult> future2 = instance.runProcessAsync(setup2, 60);
+    Thread.sleep(100);
+    future.cancel(true);
+
+    // Then
+    then(interrupted.await(10, TimeUnit.SECONDS)).isEqualTo(true);
+    // the thread is available for next commands
+    then(future2.get(10, TimeUnit.SECONDS)).isSameAs(expectedResult);
+    myCtx.assertIsSatisfied();
+  }
+
+  @Test
+  public void shouldNotRunProcessWhenCancelledBeforeStart() throws Exception {
+    // Given
+    final AsyncCommandLineExecutor instance = createInstance(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    final CommandLineSetup setup2 = new CommandLineSetup("tool2", Collections.<CommandLineArgument>emptyList(), Collections.<CommandLineResource>emptyList());
+    myCtx.checking(new Expectations() {{
+      oneOf(myCommandLineExecutor).runProcess(mySetup, 60);
+      will(sleep(interrupted));
+
+      never(myCommandLineExecutor).runProcess(setup2, 60);
+    }});
+
+    // When
+    final CompletableFuture<ExecResult> future = instance.runProcessAsync(mySetup, 60);
+    final CompletableFuture<ExecResult> future2 = instance.runProcessAsync(setup2, 60);
+    future2.cancel(true);
+    Thread.sleep(100);
+    future.cancel(true);
+
+    // Then
+    then(interrupted.await(10, TimeUnit.SECONDS)).isEqualTo(true);
+    Thread.sleep(100);
+    myCtx.assertIsSatisfied();
+    then(future2.isCancelled()).isEqualTo(true);
+  }
+
+  @NotNull
+  private AsyncCommandLineExecutor createInstance(final int parallelism) {
+    return new AsyncCommandLineExecutorImpl(myCommandLineExecutor, parallelism);
+  }
+
+  @NotNull
+  private static CustomAction sleep(@NotNull final CountDownLatch interrupted) {
+    return new CustomAction("sleep") {
+      @Override
+      public Object invoke(final Invocation invocation) throws Throwable {
+        try {
+          Thread.sleep(60000);
+        }
+        catch (InterruptedException ex) {
+          interrupted.countDown();
+        }
+
+        return new ExecResult();
+      }
+    };
+  }
+}
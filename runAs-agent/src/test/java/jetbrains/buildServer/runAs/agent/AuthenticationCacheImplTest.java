@@ -0,0 +1,62 @@
+package jetbrains.buildServer.runAs.agent;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class AuthenticationCacheImplTest {
+  @Test
+  public void shouldAuthenticateWhenHasTheSamePassword() {
+    // Given
+    final AuthenticationCache instance = new AuthenticationCacheImpl();
+    instance.setAuthenticated("user", "abc");
+
+    // When
+
+    // Then
+    then(instance.isAuthenticated("user", "abc")).isTrue();
+    then(instance.isAuthenticated("user", "abcd")).isFalse();
+    then(instance.isAuthenticated("user2", "abc")).isFalse();
+  }
+
+  @Test
+  public void shouldNotMixUpUsersAndPasswords() {
+    // Given
+    final AuthenticationCache instance = new AuthenticationCacheImpl();
+    instance.setAuthenticated("ab", "c");
+
+    // When
+
+    // Then
+    then(instance.isAuthenticated("a", "bc")).isFalse();
+  }
+
+  @Test
+  public void shouldReplacePasswordWhenItWasChanged() {
+    // Given
+    final AuthenticationCache instance = new AuthenticationCacheImpl();
+    instance.setAuthenticated("user", "abc");
+
+    // When
+    instance.setAuthenticated("user", "xyz");
+
+    // Then
+    then(instance.isAuthenticated("user", "abc")).isFalse();
+    then(instance.isAuthenticated("user", "xyz")).isTrue();
+  }
+
+  @Test
+  public void shouldInvalidate() {
+    // Given
+    final AuthenticationCache instance = new AuthenticationCacheImpl();
+    instance.setAuthenticated("user", "abc");
+    instance.setAuthenticated("user2", "abc");
+
+    // When
+    instance.invalidate("user");
+
+    // Then
+    then(instance.isAuthenticated("user", "abc")).isFalse();
+    then(instance.isAuthenticated("user2", "abc")).isTrue();
+  }
+}
@@ -0,0 +1,114 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.util.Collections;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.dotNet.buildRunner.agent.BuildStartException;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineExecutionContext;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class AuthenticationCheckResourceTest {
+  private static final String USER = "nik";
+  private static final String PASSWORD = "abc";
+  private Mockery myCtx;
+  private AuthenticationCache myAuthenticationCache;
+  private CommandLineExecutor myCommandLineExecutor;
+  private CommandLineSetup myAuthSetup;
+
+  @BeforeMethod
+  public void setUp() {
+    myCtx = new Mockery();
+    myAuthenticationCache = myCtx.mock(AuthenticationCache.class);
+    myCommandLineExecutor = myCtx.mock(CommandLineExecutor.class);
+    myAuthSetup = new CommandLineSetup("runAs.sh", Collections.<CommandLineArgument>emptyList(), Collections.<CommandLineResource>emptyList());
+  }
+
+  @Test
+  public void shouldCheckCredentialsAndCacheResult() throws Exception {
+    // Given
+    myCtx.checking(new Expectations() {{
+      oneOf(myAuthenticationCache).isAuthenticated(USER, PASSWORD);
+      will(returnValue(false));
+
+      oneOf(myCommandLineExecutor).runProcess(myAuthSetup, 60);
+      will(returnValue(createResult(0)));
+
+      oneOf(myAuthenticationCache).setAuthenticated(USER, PASSWORD);
+    }});
+
+    final AuthenticationCheckResource instance = createInstance();
+
+    // When
+    instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+
+    // Then
+    myCtx.assertIsSatisfied();
+  }
+
+  @Test
+  public void shouldNotCheckCredentialsWhenAuthenticated() {
+    // Given
+    myCtx.checking(new Expectations() {{
+      oneOf(myAuthenticationCache).isAuthenticated(USER, PASSWORD);
+      will(returnValue(true));
+    }});
+
+    final AuthenticationCheckResource instance = createInstance();
+
+    // When
+    instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+
+    // Then
+    myCtx.assertIsSatisfied();
+  }
+
+  @Test
+  public void shouldInvalidateAndThrowBuildStartExceptionWhenAuthenticationFailed() throws Exception {
+    // Given
+    myCtx.checking(new Expectations() {{
+      oneOf(myAuthenticationCache).isAuthenticated(USER, PASSWORD);
+      will(returnValue(false));
+
+      oneOf(myCommandLineExecutor).runProcess(myAuthSetup, 60);
+      will(returnValue(createResult(1)));
+
+      oneOf(myAuthenticationCache).invalidate(USER);
+      never(myAuthenticationCache).setAuthenticated(USER, PASSWORD);
+    }});
+
+    final AuthenticationCheckResource instance = createInstance();
+
+    // When
+    BuildStartException actualException = null;
+    try {
+      instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+    }
+    catch (BuildStartException ex) {
+      actualException = ex;
+    }
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(actualException).isNotNull();
+  }
+
+  @NotNull
+  private AuthenticationCheckResource createInstance() {
+    return new AuthenticationCheckResource(myAuthenticationCache, myCommandLineExecutor, USER, PASSWORD, myAuthSetup);
+  }
+
+  @NotNull
+  private static ExecResult createResult(final int exitCode) {
+    final ExecResult result = new ExecResult();
+    result.setExitCode(exitCode);
+    return result;
+  }
+}
@@ -0,0 +1,134 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Random;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class ByteBufferConfigurationTest {
+  private static final Charset OurCharset = Charset.forName("UTF-8");
+
+  @DataProvider(name = "parsePropFiles")
+  public Object[][] getParsePropFilesCases() {
+    return new Object[][] {
+      { "key=val" },
+      { "key=val\nname=abc" },
+      { "" },
+      { "   " },
+      { "   \n   \n" },
+      { "  key  =  val\n   name= abc   " },
+      { "\n\nkey=val\n\n\n\n\n   \nname=abc\n\n\n" },
+      { "key=val=1=" },
+      { "key= \"val  \"" },
+      { " key = c:\\aa\\nn " },
+      { "key=val\n# name=abc" },
+      { "key=val\n name=#abc" },
+      { "# ### key=val\n name=# abc#" },
+      { "key=val\r\nname=abc\rother=xyz" },
+      { "=val\nkey=\nkey2=a\nkey3=ab\nkey4= a \nkey5 =ab" },
+      { "\tkey\t=\tval\t" },
+    };
+  }
+
+  @Test(dataProvider = "parsePropFiles")
+  public void shouldParseLikeConfigurationImpl(@NotNull final String data) throws IOException {
+    // Given
+    final ByteBufferConfiguration instance = new ByteBufferConfiguration();
+
+    // When
+    instance.load(ByteBuffer.wrap(data.getBytes(OurCharset)));
+
+    // Then
+    then(instance.entrySet()).isEqualTo(parseByConfigurationImpl(data).entrySet());
+  }
+
+  @Test
+  public void shouldParseRandomContentLikeConfigurationImpl() throws IOException {
+    // Given
+    final Random random = new Random(17);
+    final String alphabet = "ab #=\t\r\n \u0001";
+
+    for (int iteration = 0; iteration < 10000; iteration++) {
+      final StringBuilder data = new StringBuilder();
+      final int length = random.nextInt(40);
+      for (int index = 0; index < length; index++) {
+        data.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+
+      final ByteBufferConfiguration instance = new ByteBufferConfiguration();
+
+      // When
+      instance.load(ByteBuffer.wrap(data.toString().getBytes(OurCharset)));
+
+      // Then
+      then(instance.entrySet()).isEqualTo(parseByConfigurationImpl(data.toString()).entrySet());
+    }
+  }
+
+  @Test
+  public void shouldParseUtf8() {
+    // Given
+    final ByteBufferConfiguration instance = new ByteBufferConfiguration();
+
+    // When
+    instance.load(ByteBuffer.wrap("\u043a\u043b\u044e\u0447=\u0437\u043d\u0430\u0447\u0435\u043d\u0438\u0435\nkey=\u00e9\nkey2=\u00e9\u00e9\nkey3=\uD83D\uDE00".getBytes(OurCharset)));
+
+    // Then
+    // values are skipped when they are shorter than 2 chars
+    then(instance.entrySet()).isEqualTo(new HashMap<Object, Object>() {{
+      put("\u043a\u043b\u044e\u0447", "\u0437\u043d\u0430\u0447\u0435\u043d\u0438\u0435");
+      put("key2", "\u00e9\u00e9");
+      put("key3", "\uD83D\uDE00");
+    }}.entrySet());
+  }
+
+  @Test
+  public void shouldLoadFromFile() throws IOException {
+    // Given
+    final File file = File.createTempFile("runAs", ".properties");
+    try {
+      Files.write(file.toPath(), "key=val\n# comment=abc\nname=xyz".getBytes(OurCharset));
+      final ByteBufferConfiguration instance = new ByteBufferConfiguration();
+
+      // When
+      instance.load(file);
+
+      // Then
+      then(instance.size()).isEqualTo(2);
+      then(instance.getProperty("key")).isEqualTo("val");
+      then(instance.getProperty("name")).isEqualTo("xyz");
+    }
+    finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  @Test
+  public void shouldLoadFromStream() throws IOException {
+    // Given
+    final ByteBufferConfiguration instance = new ByteBufferConfiguration();
+
+    // When
+    instance.load(new ByteArrayInputStream(OurCharset.encode("key=val").array()));
+
+    // Then
+    then(instance.entrySet()).isEqualTo(new HashMap<Object, Object>() {{ put("key", "val"); }}.entrySet());
+  }
+
+  @NotNull
+  private static Configuration parseByConfigurationImpl(@NotNull final String data) throws IOException {
+    final Configuration configuration = new ConfigurationImpl();
+    configuration.load(new ByteArrayInputStream(data.getBytes(OurCharset)));
+    return configuration;
+  }
+}
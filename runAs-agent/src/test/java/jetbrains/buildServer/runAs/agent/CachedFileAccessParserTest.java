@@ -0,0 +1,107 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.EnumSet;
+import jetbrains.buildServer.dotNet.buildRunner.agent.BuildStartException;
+import jetbrains.buildServer.dotNet.buildRunner.agent.TextParser;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class CachedFileAccessParserTest {
+  private Mockery myCtx;
+  private TextParser<AccessControlList> myFileAccessParser;
+
+  @BeforeMethod
+  public void setUp() {
+    myCtx = new Mockery();
+    //noinspection unchecked
+    myFileAccessParser = (TextParser<AccessControlList>)myCtx.mock(TextParser.class);
+  }
+
+  @Test
+  public void shouldParseAclOnce() {
+    // Given
+    final AccessControlList acl = new AccessControlList(Arrays.asList(
+      new AccessControlEntry(new File("file"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Global)));
+    myCtx.checking(new Expectations() {{
+      oneOf(myFileAccessParser).parse("a+r,file");
+      will(returnValue(acl));
+    }});
+
+    final CachedFileAccessParser instance = createInstance();
+
+    // When
+    final AccessControlList acl1 = instance.parse("a+r,file");
+    final AccessControlList acl2 = instance.parse("a+r,file");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(acl1).isSameAs(acl);
+    then(acl2).isSameAs(acl);
+    then(instance.getHitCount()).isEqualTo(1);
+    then(instance.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldNotCacheInvalidAcl() {
+    // Given
+    myCtx.checking(new Expectations() {{
+      exactly(2).of(myFileAccessParser).parse("invalid");
+      will(throwException(new BuildStartException("Invalid ACL specification")));
+    }});
+
+    final CachedFileAccessParser instance = createInstance();
+
+    // When
+    int errors = 0;
+    for (int attempt = 0; attempt < 2; attempt++) {
+      try {
+        instance.parse("invalid");
+      }
+      catch (BuildStartException ignored) {
+        errors++;
+      }
+    }
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(errors).isEqualTo(2);
+    then(instance.getHitCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsedAcls() {
+    // Given
+    myCtx.checking(new Expectations() {{
+      exactly(2).of(myFileAccessParser).parse("acl0");
+      will(returnValue(new AccessControlList(Arrays.<AccessControlEntry>asList())));
+
+      allowing(myFileAccessParser).parse(with(any(String.class)));
+      will(returnValue(new AccessControlList(Arrays.<AccessControlEntry>asList())));
+    }});
+
+    final CachedFileAccessParser instance = createInstance();
+
+    // When
+    for (int index = 0; index <= 100; index++) {
+      instance.parse("acl" + index);
+    }
+
+    instance.parse("acl0");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(instance.getHitCount()).isEqualTo(0);
+  }
+
+  @NotNull
+  private CachedFileAccessParser createInstance() {
+    return new CachedFileAccessParser(myFileAccessParser);
+  }
+}
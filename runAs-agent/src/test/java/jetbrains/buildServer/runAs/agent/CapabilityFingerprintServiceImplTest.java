@@ -0,0 +1,93 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class CapabilityFingerprintServiceImplTest {
+  private Mockery myCtx;
+  private Environment myEnvironment;
+  private File myBinDirectory;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myCtx = new Mockery();
+    myEnvironment = myCtx.mock(Environment.class);
+    myBinDirectory = Files.createTempDirectory("runAs").toFile();
+    Files.write(new File(myBinDirectory, "runAs.sh").toPath(), "abc".getBytes("UTF-8"));
+    myCtx.checking(new Expectations() {{
+      allowing(myEnvironment).getOperationSystem();
+      will(returnValue(OperationSystem.Other));
+    }});
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    final File[] files = myBinDirectory.listFiles();
+    if(files != null) {
+      for (File file: files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    myBinDirectory.delete();
+  }
+
+  @Test
+  public void shouldProvideSameFingerprintWhenNothingWasChanged() {
+    // Given
+    final CapabilityFingerprintService instance = createInstance();
+
+    // When
+    final String fingerprint1 = instance.getFingerprint(myBinDirectory, "some_unknown_tool");
+    final String fingerprint2 = instance.getFingerprint(myBinDirectory, "some_unknown_tool");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(fingerprint1).isEqualTo(fingerprint2);
+  }
+
+  @Test
+  public void shouldChangeFingerprintWhenBinariesWereChanged() throws IOException {
+    // Given
+    final CapabilityFingerprintService instance = createInstance();
+    final String fingerprint = instance.getFingerprint(myBinDirectory);
+
+    // When
+    Files.write(new File(myBinDirectory, "runAs.sh").toPath(), "abcd".getBytes("UTF-8"));
+    final String newFingerprint = instance.getFingerprint(myBinDirectory);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(newFingerprint).isNotEqualTo(fingerprint);
+  }
+
+  @Test
+  public void shouldChangeFingerprintWhenToolsWereChanged() {
+    // Given
+    final CapabilityFingerprintService instance = createInstance();
+
+    // When
+    final String fingerprint1 = instance.getFingerprint(myBinDirectory, "some_unknown_tool");
+    final String fingerprint2 = instance.getFingerprint(myBinDirectory, "some_unknown_tool2");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(fingerprint1).isNotEqualTo(fingerprint2);
+  }
+
+  @NotNull
+  private CapabilityFingerprintService createInstance() {
+    return new CapabilityFingerprintServiceImpl(myEnvironment);
+  }
+}
@@ -0,0 +1,91 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.execution.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import jetbrains.buildServer.ExecResult;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class CapabilityProbeTest {
+  @DataProvider(name = "getProbeStateCases")
+  public Object[][] getProbeStateCases() {
+    return new Object[][] {
+      { completed(), ProbeState.Supported },
+      { failed(new ExecutionException("some error")), ProbeState.NotSupported },
+      { failed(new TimeoutException("timeout")), ProbeState.Unknown },
+      { new CompletableFuture<ExecResult>(), ProbeState.Unknown },
+    };
+  }
+
+  @Test(dataProvider = "getProbeStateCases")
+  public void shouldGetState(@NotNull final CompletableFuture<ExecResult> future, @NotNull final ProbeState expectedState) {
+    // Given
+    final CapabilityProbe instance = new CapabilityProbe("tool", future);
+
+    // When
+    final ProbeState state = instance.await(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+
+    // Then
+    then(state).isEqualTo(expectedState);
+  }
+
+  @Test
+  public void shouldNotWaitAfterDeadline() {
+    // Given
+    final CapabilityProbe instance = new CapabilityProbe("tool", new CompletableFuture<ExecResult>());
+
+    // When
+    final long startTime = System.nanoTime();
+    final ProbeState state = instance.await(startTime - 1);
+    final long duration = System.nanoTime() - startTime;
+
+    // Then
+    then(state).isEqualTo(ProbeState.Unknown);
+    then(duration < TimeUnit.SECONDS.toNanos(1)).isEqualTo(true);
+  }
+
+  @Test
+  public void shouldCancelExecution() {
+    // Given
+    final CompletableFuture<ExecResult> future = new CompletableFuture<ExecResult>();
+    final CapabilityProbe instance = new CapabilityProbe("tool", future);
+
+    // When
+    instance.cancel();
+
+    // Then
+    then(future.isCancelled()).isEqualTo(true);
+    then(instance.await(System.nanoTime())).isEqualTo(ProbeState.Unknown);
+  }
+
+  @Test
+  public void shouldProvideResultWhenSupported() {
+    // Given
+    final ExecResult result = new ExecResult();
+    final CapabilityProbe instance = new CapabilityProbe("tool", CompletableFuture.completedFuture(result));
+
+    // When
+    final ProbeState state = instance.await(System.nanoTime());
+
+    // Then
+    then(state).isEqualTo(ProbeState.Supported);
+    then(instance.getResult()).isSameAs(result);
+  }
+
+  @NotNull
+  private static CompletableFuture<ExecResult> completed() {
+    return CompletableFuture.completedFuture(new ExecResult());
+  }
+
+  @NotNull
+  private static CompletableFuture<ExecResult> failed(@NotNull final Exception error) {
+    final CompletableFuture<ExecResult> future = new CompletableFuture<ExecResult>();
+    future.completeExceptionally(error);
+    return future;
+  }
+}
@@ -0,0 +1,101 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class ChmodBatchPlannerTest {
+  private static final File ourDir = new File("dir").getAbsoluteFile();
+  private static final File ourSubDir = new File(ourDir, "subDir");
+  private static final File ourOtherDir = new File("otherDir").getAbsoluteFile();
+  private static final File ourFile = new File("file").getAbsoluteFile();
+
+  @DataProvider(name = "getPlanCases")
+  public Object[][] getPlanCases() {
+    return new Object[][] {
+      // same modes
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourOtherDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global)),
+        ChmodBatchPlanner.DEFAULT_MAX_ARGS_LENGTH,
+        Arrays.asList("-R a+rX " + ourDir + " " + ourOtherDir)
+      },
+
+      // recursive and not recursive
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourFile, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Global),
+          new AccessControlEntry(ourOtherDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global)),
+        ChmodBatchPlanner.DEFAULT_MAX_ARGS_LENGTH,
+        Arrays.asList("-R a+rX " + ourDir + " " + ourOtherDir, "a+rX " + ourFile)
+      },
+
+      // grant and deny
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.DenyWrite), AccessControlScope.Global),
+          new AccessControlEntry(ourOtherDir, AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.DenyWrite), AccessControlScope.Global)),
+        ChmodBatchPlanner.DEFAULT_MAX_ARGS_LENGTH,
+        Arrays.asList("a+rX " + ourDir + " " + ourOtherDir, "go-w " + ourDir + " " + ourOtherDir)
+      },
+
+      // overlapped modes
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyRead, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourOtherDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourSubDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global)),
+        ChmodBatchPlanner.DEFAULT_MAX_ARGS_LENGTH,
+        Arrays.asList("-R a+rX " + ourDir + " " + ourOtherDir, "-R a-r " + ourSubDir, "-R a+rX " + ourSubDir)
+      },
+
+      // max length
+      {
+        Arrays.asList(
+          new AccessControlEntry(ourDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourOtherDir, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global),
+          new AccessControlEntry(ourFile, AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global)),
+        "-R a+rX ".length() + ourDir.getPath().length() + 1 + ourOtherDir.getPath().length() + 1,
+        Arrays.asList("-R a+rX " + ourDir + " " + ourOtherDir, "-R a+rX " + ourFile)
+      },
+    };
+  }
+
+  @Test(dataProvider = "getPlanCases")
+  public void shouldPlanBatches(
+    @NotNull final List<AccessControlEntry> entries,
+    final int maxArgsLength,
+    @NotNull final List<String> expectedBatches) {
+    // Given
+    final ChmodBatchPlanner instance = new ChmodBatchPlanner(maxArgsLength);
+
+    // When
+    final List<ChmodBatch> batches = instance.plan(new AccessControlList(entries));
+
+    // Then
+    final List<String> actualBatches = new ArrayList<String>();
+    for (ChmodBatch batch: batches) {
+      final StringBuilder sb = new StringBuilder();
+      if(batch.isRecursive()) {
+        sb.append("-R ");
+      }
+
+      sb.append(batch.getMode());
+      for (File file: batch.getFiles()) {
+        sb.append(' ');
+        sb.append(file.getPath());
+      }
+
+      actualBatches.add(sb.toString());
+    }
+
+    then(actualBatches).isEqualTo(expectedBatches);
+  }
+}
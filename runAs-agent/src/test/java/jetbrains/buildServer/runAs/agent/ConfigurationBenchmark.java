@@ -0,0 +1,63 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+// Compares parsers of credentials profiles, it is not a part of the test suite
+// Run with -Dbenchmark.profiles=10000 -Dbenchmark.iterations=10
+public class ConfigurationBenchmark {
+  private static final Charset OurCharset = Charset.forName("UTF-8");
+
+  @Test
+  public void compareParsers() throws IOException {
+    final int profilesCount = Integer.getInteger("benchmark.profiles", 10000);
+    final int iterations = Integer.getInteger("benchmark.iterations", 10);
+    final byte[] content = createProfile().getBytes(OurCharset);
+
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      long start = System.nanoTime();
+      for (int index = 0; index < profilesCount; index++) {
+        new ConfigurationImpl().load(new ByteArrayInputStream(content));
+      }
+
+      final long scannerTime = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int index = 0; index < profilesCount; index++) {
+        new PropertiesToConfigurationAdapter().load(new ByteArrayInputStream(content));
+      }
+
+      final long propertiesTime = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int index = 0; index < profilesCount; index++) {
+        new ByteBufferConfiguration().load(ByteBuffer.wrap(content));
+      }
+
+      final long byteBufferTime = System.nanoTime() - start;
+      System.out.println("Iteration " + iteration + ": Scanner " + scannerTime / 1000000 + " ms, Properties " + propertiesTime / 1000000 + " ms, ByteBuffer " + byteBufferTime / 1000000 + " ms for " + profilesCount + " profiles");
+    }
+  }
+
+  @NotNull
+  private static String createProfile() {
+    // a typical profile with comments and a few additional properties
+    final StringBuilder profile = new StringBuilder();
+    profile.append("# runAs credentials\n");
+    profile.append("teamcity.runAs.username=user\n");
+    profile.append("teamcity.runAs.password=zxx775d03cbe80d301b\n");
+    profile.append("teamcity.runAs.additionalCommandArgs=\n");
+    profile.append("teamcity.runAs.windowsIntegrityLevel=auto\n");
+    profile.append("teamcity.runAs.loggingLevel=off\n");
+    for (int index = 0; index < 20; index++) {
+      profile.append("# property ").append(index).append("\r\n");
+      profile.append("  custom.property").append(index).append(" = value").append(index).append("  \r\n");
+    }
+
+    return profile.toString();
+  }
+}
@@ -0,0 +1,147 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class ContentAddressedFileServiceImplTest {
+  private static final File OurDirectory = new File("dir");
+  private Mockery myCtx;
+  private PathsService myPathsService;
+
+  @BeforeMethod
+  public void setUp() {
+    myCtx = new Mockery();
+    myPathsService = myCtx.mock(PathsService.class);
+  }
+
+  @Test
+  public void shouldReturnSameFileForSameContent() {
+    // Given
+    final ContentAddressedFileService instance = createInstance();
+
+    // When
+    final File file1 = instance.getFile(OurDirectory, "content", ".sh");
+    final File file2 = instance.getFile(OurDirectory, "content", ".sh");
+
+    // Then
+    then(file1).isEqualTo(file2);
+    then(file1.getParentFile()).isEqualTo(OurDirectory);
+    then(file1.getName().matches("[0-9a-f]{32}\\.sh")).isTrue();
+  }
+
+  @Test
+  public void shouldReturnDifferentFilesForDifferentContent() {
+    // Given
+    final ContentAddressedFileService instance = createInstance();
+
+    // When
+    final File file1 = instance.getFile(OurDirectory, "content1", ".sh");
+    final File file2 = instance.getFile(OurDirectory, "content2", ".sh");
+
+    // Then
+    then(file1).isNotEqualTo(file2);
+  }
+
+  @Test
+  public void shouldReturnDifferentFilesForDifferentExtensions() {
+    // Given
+    final ContentAddressedFileService instance = createInstance();
+
+    // When
+    final File file1 = instance.getFile(OurDirectory, "content", ".sh");
+    final File file2 = instance.getFile(OurDirectory, "content", ".args");
+
+    // Then
+    then(file1.getName().substring(0, 32)).isEqualTo(file2.getName().substring(0, 32));
+    then(file2.getName().endsWith(".args")).isTrue();
+  }
+
+  @Test
+  public void shouldReturnDifferentFilesForDifferentSessions() {
+    // Given
+    final ContentAddressedFileService instance1 = createInstance();
+    final ContentAddressedFileService instance2 = createInstance();
+
+    // When
+    final File file1 = instance1.getFile(OurDirectory, "content", ".sh");
+    final File file2 = instance2.getFile(OurDirectory, "content", ".sh");
+
+    // Then
+    then(file1).isNotEqualTo(file2);
+  }
+
+  @Test
+  public void shouldPlaceFilesOutsideBuildTempDirectory() throws IOException {
+    // Given
+    final File tempDirectory = Files.createTempDirectory("runAs").toFile();
+    final File buildTempDirectory = new File(tempDirectory, "buildTmp");
+    myCtx.checking(new Expectations() {{
+      allowing(myPathsService).getPath(WellKnownPaths.BuildTemp);
+      will(returnValue(buildTempDirectory));
+    }});
+
+    final ContentAddressedFileService instance = createInstance();
+
+    // When
+    final File directory = instance.getDirectory();
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(directory).isEqualTo(new File(tempDirectory, ContentAddressedFileServiceImpl.DIRECTORY_NAME));
+    delete(tempDirectory);
+  }
+
+  @Test
+  public void shouldRemoveFilesOfPreviousSessionsOnce() throws IOException {
+    // Given
+    final File tempDirectory = Files.createTempDirectory("runAs").toFile();
+    final File directory = new File(tempDirectory, ContentAddressedFileServiceImpl.DIRECTORY_NAME);
+    final File previousFile = new File(directory, "previous.sh");
+    final File currentFile = new File(directory, "current.sh");
+    //noinspection ResultOfMethodCallIgnored
+    directory.mkdirs();
+    Files.write(previousFile.toPath(), new byte[0]);
+    myCtx.checking(new Expectations() {{
+      allowing(myPathsService).getPath(WellKnownPaths.BuildTemp);
+      will(returnValue(new File(tempDirectory, "buildTmp")));
+    }});
+
+    final ContentAddressedFileService instance = createInstance();
+
+    // When
+    instance.getDirectory();
+    Files.write(currentFile.toPath(), new byte[0]);
+    instance.getDirectory();
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(previousFile.exists()).isFalse();
+    then(currentFile.exists()).isTrue();
+    delete(tempDirectory);
+  }
+
+  @NotNull
+  private ContentAddressedFileService createInstance() {
+    return new ContentAddressedFileServiceImpl(myPathsService);
+  }
+
+  private static void delete(@NotNull final File file) {
+    final File[] files = file.listFiles();
+    if(files != null) {
+      for (File child: files) {
+        delete(child);
+      }
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+}
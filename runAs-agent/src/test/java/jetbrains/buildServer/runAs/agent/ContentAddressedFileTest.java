@@ -0,0 +1,325 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
+import jetbrains.buildServer.dotNet.buildRunner.agent.BuildStartException;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineExecutionContext;
+import jetbrains.buildServer.dotNet.buildRunner.agent.FileService;
+import jetbrains.buildServer.dotNet.buildRunner.agent.TextParser;
+import jetbrains.buildServer.runAs.common.Constants;
+import jetbrains.buildServer.runAs.common.LoggingLevel;
+import jetbrains.buildServer.runAs.common.WindowsIntegrityLevel;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class ContentAddressedFileTest {
+  private Mockery myCtx;
+  private FileService myFileService;
+  private File myTempDirectory;
+  private File myFile;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myCtx = new Mockery();
+    myFileService = myCtx.mock(FileService.class);
+    myTempDirectory = Files.createTempDirectory("runAs").toFile();
+    myFile = new File(new File(myTempDirectory, "runAs"), "abc.sh");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    delete(myTempDirectory);
+  }
+
+  @Test
+  public void shouldWriteFileWhenItDoesNotExist() throws IOException {
+    // Given
+    myCtx.checking(new Expectations() {{
+      oneOf(myFileService).writeAllTextFile(with("content"), with(any(File.class)));
+      will(new CustomAction("write") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          final File file = (File)invocation.getParameter(1);
+          then(file.getParentFile()).isEqualTo(myFile.getParentFile());
+          then(file).isNotEqualTo(myFile);
+          Files.write(file.toPath(), ((String)invocation.getParameter(0)).getBytes("UTF-8"));
+          return null;
+        }
+      });
+    }});
+
+    final ContentAddressedFile instance = new ContentAddressedFile(myFileService, myFile, "content", false);
+
+    // When
+    instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+    instance.publishAfterBuild(new CommandLineExecutionContext(0));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(new String(Files.readAllBytes(myFile.toPath()), "UTF-8")).isEqualTo("content");
+    final File[] files = myFile.getParentFile().listFiles();
+    then(files).isNotNull();
+    //noinspection ConstantConditions
+    then(files.length).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldCreateDirectoryWritableByAgentOnly() throws IOException {
+    // Given
+    myCtx.checking(new Expectations() {{
+      oneOf(myFileService).writeAllTextFile(with("content"), with(any(File.class)));
+    }});
+
+    final ContentAddressedFile instance = new ContentAddressedFile(myFileService, myFile, "content", false);
+
+    // When
+    instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(myFile.getParentFile().toPath()))).isEqualTo("rwx--x--x");
+  }
+
+  @Test
+  public void shouldReuseFileWhenItExists() throws IOException {
+    // Given
+    createFile("content");
+    myCtx.checking(new Expectations() {{
+      allowing(myFileService).readAllTextFile(myFile);
+      will(returnValue("content"));
+
+      never(myFileService).writeAllTextFile(with(any(String.class)), with(any(File.class)));
+    }});
+
+    final ContentAddressedFile instance = new ContentAddressedFile(myFileService, myFile, "content", false);
+
+    // When
+    instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(myFile.exists()).isTrue();
+  }
+
+  @DataProvider(name = "untrustedFileCases")
+  public Object[][] getUntrustedFileCases() {
+    return new Object[][] {
+      { "changed", "rw-r--r--", "rwx--x--x" },
+      { "content", "rw-rw-rw-", "rwx--x--x" },
+      { "content", "rw-r--r--", "rwxrwxrwx" },
+    };
+  }
+
+  @Test(dataProvider = "untrustedFileCases")
+  public void shouldWriteFileAgainWhenItCouldBeChangedByOthers(@NotNull final String content, @NotNull final String filePermissions, @NotNull final String directoryPermissions) throws IOException {
+    // Given
+    createFile(content);
+    Files.setPosixFilePermissions(myFile.toPath(), PosixFilePermissions.fromString(filePermissions));
+    Files.setPosixFilePermissions(myFile.getParentFile().toPath(), PosixFilePermissions.fromString(directoryPermissions));
+    myCtx.checking(new Expectations() {{
+      allowing(myFileService).readAllTextFile(myFile);
+      will(returnValue(content));
+
+      oneOf(myFileService).writeAllTextFile(with("content"), with(any(File.class)));
+      will(new CustomAction("write") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          Files.write(((File)invocation.getParameter(1)).toPath(), ((String)invocation.getParameter(0)).getBytes("UTF-8"));
+          return null;
+        }
+      });
+    }});
+
+    final ContentAddressedFile instance = new ContentAddressedFile(myFileService, myFile, "content", false);
+
+    // When
+    instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(new String(Files.readAllBytes(myFile.toPath()), "UTF-8")).isEqualTo("content");
+    final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(myFile.toPath());
+    then(permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)).isFalse();
+  }
+
+  @Test
+  public void shouldApplyDirectoryPermissionsWhenDirectoryExists() throws IOException {
+    // Given
+    createFile("content");
+    Files.setPosixFilePermissions(myFile.getParentFile().toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+    myCtx.checking(new Expectations() {{
+      allowing(myFileService).readAllTextFile(myFile);
+      will(returnValue("content"));
+
+      oneOf(myFileService).writeAllTextFile(with("content"), with(any(File.class)));
+    }});
+
+    final ContentAddressedFile instance = new ContentAddressedFile(myFileService, myFile, "content", false);
+
+    // When
+    instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(myFile.getParentFile().toPath()))).isEqualTo("rwx--x--x");
+  }
+
+  @Test
+  public void shouldWriteExecutableFile() throws IOException {
+    // Given
+    myCtx.checking(new Expectations() {{
+      oneOf(myFileService).writeAllTextFile(with("content"), with(any(File.class)));
+    }});
+
+    final ContentAddressedFile instance = new ContentAddressedFile(myFileService, myFile, "content", true);
+
+    // When
+    instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(myFile.toPath());
+    then(permissions.contains(PosixFilePermission.OTHERS_EXECUTE)).isTrue();
+    then(permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)).isFalse();
+  }
+
+  @Test
+  public void shouldReuseFileByNextStepWhenDefaultAclIsApplied() throws IOException {
+    // Given
+    final Map<WellKnownPaths, File> paths = new EnumMap<WellKnownPaths, File>(WellKnownPaths.class);
+    for (WellKnownPaths path: WellKnownPaths.values()) {
+      paths.put(path, new File(myTempDirectory, path.name()));
+    }
+
+    paths.put(WellKnownPaths.AgentTemp, new File(new File(myTempDirectory, "temp"), "agentTmp"));
+    paths.put(WellKnownPaths.BuildTemp, new File(new File(myTempDirectory, "temp"), "buildTmp"));
+    paths.put(WellKnownPaths.GlobalTemp, new File(new File(myTempDirectory, "temp"), "globalTmp"));
+    for (File path: paths.values()) {
+      //noinspection ResultOfMethodCallIgnored
+      path.mkdirs();
+    }
+
+    final PathsService pathsService = myCtx.mock(PathsService.class);
+    final AgentParametersService agentParametersService = myCtx.mock(AgentParametersService.class);
+    final ProfileParametersService profileParametersService = myCtx.mock(ProfileParametersService.class);
+    //noinspection unchecked
+    final TextParser<AccessControlList> fileAccessParser = (TextParser<AccessControlList>)myCtx.mock(TextParser.class);
+    final FileAccessService fallbackFileAccessService = myCtx.mock(FileAccessService.class);
+    myCtx.checking(new Expectations() {{
+      allowing(pathsService).getPath(with(any(WellKnownPaths.class)));
+      will(new CustomAction("getPath") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          return paths.get((WellKnownPaths)invocation.getParameter(0));
+        }
+      });
+
+      allowing(agentParametersService).tryGetConfigParameter(Constants.RUN_AS_ACL_DEFAULTS_ENABLED);
+      will(returnValue("true"));
+
+      allowing(agentParametersService).tryGetConfigParameter(with(any(String.class)));
+      will(returnValue(null));
+
+      allowing(profileParametersService).tryGetProperty(with(any(String.class)), with(any(String.class)));
+      will(returnValue(null));
+
+      never(fallbackFileAccessService).setAccess(with(any(AccessControlList.class)));
+    }});
+
+    final ContentAddressedFileService contentAddressedFileService = new ContentAddressedFileServiceImpl(pathsService);
+    final File file = contentAddressedFileService.getFile(contentAddressedFileService.getDirectory(), "content", ".sh");
+    final AccessControlListProvider accessControlListProvider = new AccessControlListProviderImpl(pathsService, fileAccessParser, agentParametersService, profileParametersService);
+    final FileAccessService fileAccessService = new PosixFileAccessService(fallbackFileAccessService, new ForkJoinFileTreeWalker(agentParametersService), agentParametersService);
+    final UserCredentials userCredentials = new UserCredentials("profile", System.getProperty("user.name"), "password", WindowsIntegrityLevel.Auto, LoggingLevel.Off, Collections.<CommandLineArgument>emptyList());
+    myCtx.checking(new Expectations() {{
+      allowing(myFileService).readAllTextFile(file);
+      will(new CustomAction("read") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+        }
+      });
+
+      oneOf(myFileService).writeAllTextFile(with("content"), with(any(File.class)));
+      will(new CustomAction("write") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          Files.write(((File)invocation.getParameter(1)).toPath(), ((String)invocation.getParameter(0)).getBytes("UTF-8"));
+          return null;
+        }
+      });
+    }});
+
+    // When
+    for (int step = 0; step < 2; step++) {
+      new ContentAddressedFile(myFileService, file, "content", true).publishBeforeBuild(new CommandLineExecutionContext(step));
+      fileAccessService.setAccess(accessControlListProvider.getAcl(userCredentials));
+    }
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(new String(Files.readAllBytes(file.toPath()), "UTF-8")).isEqualTo("content");
+  }
+
+  @Test
+  public void shouldThrowBuildStartExceptionWhenCannotWriteFile() throws IOException {
+    // Given
+    myCtx.checking(new Expectations() {{
+      oneOf(myFileService).writeAllTextFile(with("content"), with(any(File.class)));
+      will(throwException(new IOException("error")));
+    }});
+
+    final ContentAddressedFile instance = new ContentAddressedFile(myFileService, myFile, "content", false);
+
+    // When
+    BuildStartException actualException = null;
+    try {
+      instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+    }
+    catch (BuildStartException ex) {
+      actualException = ex;
+    }
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(actualException).isNotNull();
+    then(myFile.exists()).isFalse();
+  }
+
+  private void createFile(@NotNull final String content) throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    myFile.getParentFile().mkdirs();
+    Files.setPosixFilePermissions(myFile.getParentFile().toPath(), PosixFilePermissions.fromString("rwx--x--x"));
+    Files.write(myFile.toPath(), content.getBytes("UTF-8"));
+    Files.setPosixFilePermissions(myFile.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+  }
+
+  private static void delete(@NotNull final File file) {
+    final File[] files = file.listFiles();
+    if(files != null) {
+      for (File child: files) {
+        delete(child);
+      }
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+}
@@ -0,0 +1,69 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.Test;
+
+// Compares the hierarchical cache including revalidation of cached entries with the hash set one, it is not a part of the test suite
+// Run with -Dbenchmark.entries=100000 -Dbenchmark.iterations=10
+public class FileAccessCacheBenchmark {
+  private static final int FILES_PER_DIRECTORY = 50;
+
+  @Test
+  public void compareCaches() {
+    final int entriesCount = Integer.getInteger("benchmark.entries", 100000);
+    final int iterations = Integer.getInteger("benchmark.iterations", 10);
+    final List<AccessControlEntry> entries = createEntries(entriesCount);
+    final AgentParametersService agentParametersService = new AgentParametersService() {
+      @Nullable
+      @Override
+      public String tryGetConfigParameter(@NotNull final String parameterName) {
+        return null;
+      }
+    };
+
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      final long hashSetTime = measure(new FileAccessCacheImpl(), entries);
+      final long trieTime = measure(new HierarchicalFileAccessCache(new FileStampServiceImpl(), agentParametersService), entries);
+      System.out.println("Iteration " + iteration + ": HashSet " + hashSetTime / 1000000 + " ms, trie " + trieTime / 1000000 + " ms for " + entries.size() + " entries");
+    }
+  }
+
+  private static long measure(@NotNull final FileAccessCache cache, @NotNull final List<AccessControlEntry> entries) {
+    final long start = System.nanoTime();
+    int added = 0;
+    // the second pass checks cached entries
+    for (int pass = 0; pass < 2; pass++) {
+      for (AccessControlEntry entry: entries) {
+        if (cache.tryAddEntry(entry)) {
+          added++;
+        }
+      }
+    }
+
+    final long time = System.nanoTime() - start;
+    System.out.println(cache.getClass().getSimpleName() + " added " + added + " entries");
+    return time;
+  }
+
+  @NotNull
+  private static List<AccessControlEntry> createEntries(final int count) {
+    final List<AccessControlEntry> entries = new ArrayList<AccessControlEntry>();
+    // recursive grants for top level directories and grants for files inside them like the default ACL does
+    final File root = new File("agent").getAbsoluteFile();
+    for (int index = 0; index < count; index++) {
+      final File dir = new File(new File(root, "dir" + index / FILES_PER_DIRECTORY / FILES_PER_DIRECTORY), "subDir" + index / FILES_PER_DIRECTORY);
+      if(index % FILES_PER_DIRECTORY == 0) {
+        entries.add(new AccessControlEntry(dir, AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantExecute, AccessPermissions.Recursive), AccessControlScope.Global));
+      }
+
+      entries.add(new AccessControlEntry(new File(dir, "file" + index), AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Global));
+    }
+
+    return entries;
+  }
+}
@@ -0,0 +1,57 @@
+package jetbrains.buildServer.runAs.agent;
+
+import jetbrains.buildServer.dotNet.buildRunner.agent.TextParser;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+// Compares the single pass ACL parser with the regular expression based one, it is not a part of the test suite
+// Run with -Dbenchmark.paths=10000 -Dbenchmark.iterations=10
+public class FileAccessParserBenchmark {
+  private static final int PATHS_PER_ENTRY = 100;
+
+  @Test
+  public void compareParsers() {
+    final int pathsCount = Integer.getInteger("benchmark.paths", 10000);
+    final int iterations = Integer.getInteger("benchmark.iterations", 10);
+    final String aclStr = createAcl(pathsCount);
+
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      final long regexTime = measure(new RegexFileAccessParser(), aclStr);
+      final long parserTime = measure(new FileAccessParser(), aclStr);
+      System.out.println("Iteration " + iteration + ": regex " + regexTime / 1000000 + " ms, single pass " + parserTime / 1000000 + " ms for " + pathsCount + " paths");
+    }
+  }
+
+  private static long measure(@NotNull final TextParser<AccessControlList> parser, @NotNull final String aclStr) {
+    final long start = System.nanoTime();
+    int count = 0;
+    for (int index = 0; index < 10; index++) {
+      for (AccessControlEntry ignored: parser.parse(aclStr)) {
+        count++;
+      }
+    }
+
+    final long time = System.nanoTime() - start;
+    System.out.println(parser.getClass().getSimpleName() + " parsed " + count + " entries");
+    return time;
+  }
+
+  @NotNull
+  private static String createAcl(final int pathsCount) {
+    // generated ACLs have many entries with many paths
+    final StringBuilder acl = new StringBuilder();
+    for (int index = 0; index < pathsCount; index++) {
+      if(index % PATHS_PER_ENTRY == 0) {
+        if(index > 0) {
+          acl.append(';');
+        }
+
+        acl.append(index % 2 == 0 ? " ru +rwx " : " a -w +r ");
+      }
+
+      acl.append(", ").append("agent/work/dir").append(index / PATHS_PER_ENTRY).append("/file").append(index);
+    }
+
+    return acl.toString();
+  }
+}
@@ -6,6 +6,7 @@ import com.intellij.execution.ExecutionException;
 import java.io.File;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.Random;
 import jetbrains.buildServer.dotNet.buildRunner.agent.BuildStartException;
 import jetbrains.buildServer.dotNet.buildRunner.agent.TextParser;
 import org.jetbrains.annotations.NotNull;
@@ -146,6 +147,90 @@ public class FileAccessParserTest {
     then(actualAcl).isEqualTo(expectedAcl);
   }
 
+  @DataProvider(name = "parseLikeRegexCases")
+  public Object[][] getParseLikeRegexCases() {
+    return new Object[][] {
+      { "zz u+r,dir1" },
+      { "u r,dir1" },
+      { "ur,dir1" },
+      { "u ,dir1" },
+      { "r+w,dir1" },
+      { "  +r,dir1" },
+      { "u+r,\ndir1" },
+      { "u+r,dir1\ndir2" },
+      { "u+r,,dir1,," },
+      { "u+r, , " },
+      { "u+r, ,a, " },
+      { "u+r,dir1;;a+w,dir2" },
+      { ";u+r,dir1" },
+      { "u+r,dir1;;;" },
+      { ";;;" },
+      { "u\t+r,dir1" },
+      { "u+\tr,dir1" },
+      { "U+RWX,dir1" },
+      { "+r,u+w,dir1" },
+      { "u+r,dir1,u-w,dir2" },
+      { "au-wx+r ,dir1" },
+      { "w,a+r,dir1" },
+      { "a,dir1" },
+    };
+  }
+
+  @Test(dataProvider = "parseLikeRegexCases")
+  public void shouldParseLikeRegexParser(@NotNull final String aclStr) {
+    // Given
+    final TextParser<AccessControlList> instance = createInstance();
+
+    // When
+
+    // Then
+    assertSameAsRegexParser(instance, aclStr);
+  }
+
+  @Test
+  public void shouldParseRandomAclLikeRegexParser() {
+    // Given
+    final TextParser<AccessControlList> instance = createInstance();
+    final Random random = new Random(17);
+    final String alphabet = "gbsrcuaGRU+-wxX ,;\t\r\n\u2028z/";
+
+    for (int iteration = 0; iteration < 100000; iteration++) {
+      final StringBuilder aclStr = new StringBuilder();
+      final int length = random.nextInt(30);
+      for (int index = 0; index < length; index++) {
+        aclStr.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+
+      // When
+
+      // Then
+      assertSameAsRegexParser(instance, aclStr.toString());
+    }
+  }
+
+  private static void assertSameAsRegexParser(@NotNull final TextParser<AccessControlList> instance, @NotNull final String aclStr) {
+    AccessControlList expectedAcl = null;
+    String expectedError = null;
+    try {
+      expectedAcl = new RegexFileAccessParser().parse(aclStr);
+    }
+    catch (BuildStartException ex) {
+      expectedError = ex.getMessage();
+    }
+
+    AccessControlList actualAcl = null;
+    String actualError = null;
+    try {
+      actualAcl = instance.parse(aclStr);
+    }
+    catch (BuildStartException ex) {
+      actualError = ex.getMessage();
+    }
+
+    // the ACL string is a part of the assertion message
+    then(Arrays.<Object>asList(aclStr, actualError, actualAcl)).isEqualTo(Arrays.<Object>asList(aclStr, expectedError, expectedAcl));
+  }
+
   @NotNull
   private TextParser<AccessControlList> createInstance()
   {
@@ -0,0 +1,41 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class FileStampServiceTest {
+  @Test
+  public void shouldChangeStampWhenFileIsModifiedOrReplaced() throws IOException {
+    // Given
+    final Path dir = Files.createTempDirectory("runAs");
+    final Path file = Files.createFile(dir.resolve("file"));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(1000000));
+    final FileStampService instance = new FileStampServiceImpl();
+
+    // When
+    final String stamp = instance.tryGetStamp(file);
+    final String sameStamp = instance.tryGetStamp(file);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(2000000));
+    final String modifiedStamp = instance.tryGetStamp(file);
+    final Path otherFile = Files.createFile(dir.resolve("otherFile"));
+    Files.delete(file);
+    Files.move(otherFile, file);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(2000000));
+    final String replacedStamp = instance.tryGetStamp(file);
+    Files.delete(file);
+    final String missingStamp = instance.tryGetStamp(file);
+    Files.delete(dir);
+
+    // Then
+    then(stamp).isNotNull();
+    then(sameStamp).isEqualTo(stamp);
+    then(modifiedStamp).isNotEqualTo(stamp);
+    then(replacedStamp).isNotEqualTo(modifiedStamp);
+    then(missingStamp).isNull();
+  }
+}
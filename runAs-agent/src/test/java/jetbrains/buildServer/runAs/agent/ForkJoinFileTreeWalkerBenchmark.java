@@ -0,0 +1,109 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.EnumSet;
+import jetbrains.buildServer.runAs.common.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+// Compares the parallel walker with single-threaded chmod -R, it is not a part of the test suite
+// Run with -Dbenchmark.files=500000 -Dbenchmark.parallelism=8 -Dbenchmark.iterations=5
+public class ForkJoinFileTreeWalkerBenchmark {
+  private static final int FILES_PER_DIRECTORY = 1000;
+  private static final int DIRECTORIES_PER_DIRECTORY = 25;
+  private Path myRoot;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    final int filesCount = Integer.getInteger("benchmark.files", 500000);
+    myRoot = Files.createTempDirectory("runAsBenchmark");
+    int directoryIndex = 0;
+    for (int fileIndex = 0; fileIndex < filesCount; fileIndex++) {
+      if(fileIndex % FILES_PER_DIRECTORY == 0) {
+        directoryIndex++;
+      }
+
+      final Path dir = myRoot.resolve("dir" + directoryIndex / DIRECTORIES_PER_DIRECTORY).resolve("dir" + directoryIndex);
+      if(fileIndex % FILES_PER_DIRECTORY == 0) {
+        Files.createDirectories(dir);
+      }
+
+      Files.createFile(dir.resolve("file" + fileIndex));
+    }
+
+    System.out.println("Generated " + filesCount + " files in " + myRoot);
+  }
+
+  @AfterClass
+  public void tearDown() throws IOException, InterruptedException {
+    if(myRoot != null) {
+      exec("rm", "-rf", myRoot.toString());
+    }
+  }
+
+  @Test
+  public void compareWithChmod() throws IOException, InterruptedException {
+    final int iterations = Integer.getInteger("benchmark.iterations", 5);
+    final String parallelism = System.getProperty("benchmark.parallelism");
+    final AgentParametersService agentParametersService = new AgentParametersService() {
+      @Nullable
+      @Override
+      public String tryGetConfigParameter(@NotNull final String parameterName) {
+        return Constants.RUN_AS_ACL_PARALLELISM.equals(parameterName) ? parallelism : null;
+      }
+    };
+
+    final FileAccessService posixFileAccessService = new PosixFileAccessService(
+      new LinuxFileAccessService(new AsyncCommandLineExecutorImpl(new CommandLineExecutorImpl(), AsyncCommandLineExecutorImpl.DEFAULT_PARALLELISM)),
+      new ForkJoinFileTreeWalker(agentParametersService),
+      agentParametersService);
+
+    final AccessControlList acl = new AccessControlList(Collections.singletonList(
+      new AccessControlEntry(myRoot.toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Global)));
+
+    long chmodTotal = 0;
+    long walkerTotal = 0;
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      exec("chmod", "-R", "go-rwx", myRoot.toString());
+      final long chmodStart = System.nanoTime();
+      exec("chmod", "-R", "a+rX", myRoot.toString());
+      final long chmodTime = System.nanoTime() - chmodStart;
+
+      exec("chmod", "-R", "go-rwx", myRoot.toString());
+      final long walkerStart = System.nanoTime();
+      for (Result<AccessControlEntry, Boolean> result: posixFileAccessService.setAccess(acl)) {
+        then(result.getValue()).isEqualTo(true);
+      }
+
+      final long walkerTime = System.nanoTime() - walkerStart;
+
+      // permissions are already set, so files are only examined
+      final long unchangedStart = System.nanoTime();
+      posixFileAccessService.setAccess(acl);
+      final long unchangedTime = System.nanoTime() - unchangedStart;
+      System.out.println("Iteration " + iteration + ": chmod -R " + chmodTime / 1000000 + " ms, walker " + walkerTime / 1000000 + " ms, walker on unchanged tree " + unchangedTime / 1000000 + " ms");
+      if(iteration > 0) {
+        chmodTotal += chmodTime;
+        walkerTotal += walkerTime;
+      }
+    }
+
+    if(iterations > 1) {
+      System.out.println("Average without warm up: chmod -R " + chmodTotal / (iterations - 1) / 1000000 + " ms, walker " + walkerTotal / (iterations - 1) / 1000000 + " ms");
+    }
+  }
+
+  private static void exec(@NotNull final String... args) throws IOException, InterruptedException {
+    final Process process = new ProcessBuilder(args).redirectErrorStream(true).redirectOutput(new File("/dev/null")).start();
+    then(process.waitFor()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,258 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.runAs.common.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class ForkJoinFileTreeWalkerTest {
+  private Mockery myCtx;
+  private AgentParametersService myAgentParametersService;
+  private Path myRoot;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myCtx = new Mockery();
+    myAgentParametersService = myCtx.mock(AgentParametersService.class);
+    myRoot = Files.createTempDirectory("runAs");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    delete(myRoot.toFile());
+  }
+
+  @DataProvider(name = "getParallelismCases")
+  public Object[][] getParallelismCases() {
+    return new Object[][] {
+      { null },
+      { "" },
+      { "1" },
+      { "4" },
+      { "0" },
+      { "abc" },
+    };
+  }
+
+  @Test(dataProvider = "getParallelismCases")
+  public void shouldVisitAllFilesAndDirectories(final String parallelism) throws IOException {
+    // Given
+    final Set<Path> expectedPaths = new HashSet<Path>();
+    expectedPaths.add(myRoot);
+    for (int dirIndex = 0; dirIndex < 3; dirIndex++) {
+      final Path dir = Files.createDirectories(myRoot.resolve("dir" + dirIndex).resolve("subDir"));
+      expectedPaths.add(dir.getParent());
+      expectedPaths.add(dir);
+      for (int fileIndex = 0; fileIndex < ForkJoinFileTreeWalker.FILES_PER_TASK + 10; fileIndex++) {
+        expectedPaths.add(Files.createFile(dir.resolve("file" + fileIndex)));
+      }
+    }
+
+    myCtx.checking(new Expectations() {{
+      allowing(myAgentParametersService).tryGetConfigParameter(Constants.RUN_AS_ACL_PARALLELISM);
+      will(returnValue(parallelism));
+    }});
+
+    final FileTreeWalker instance = createInstance();
+    final MyFileTreeVisitor visitor = new MyFileTreeVisitor();
+
+    // When
+    final boolean result = instance.walk(myRoot, visitor);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result).isEqualTo(true);
+    then(visitor.getPaths()).isEqualTo(expectedPaths);
+    then(visitor.getVisitsCount()).isEqualTo(expectedPaths.size());
+  }
+
+  @Test
+  public void shouldSkipSymbolicLinksInsideTree() throws IOException {
+    // Given
+    final Path target = Files.createDirectories(myRoot.resolve("target"));
+    Files.createFile(target.resolve("file"));
+    final Path dir = Files.createDirectories(myRoot.resolve("dir"));
+    final Path file = Files.createFile(dir.resolve("file"));
+    Files.createSymbolicLink(dir.resolve("link"), target);
+    final Path link = Files.createSymbolicLink(myRoot.resolve("link"), dir);
+    myCtx.checking(new Expectations() {{
+      allowing(myAgentParametersService).tryGetConfigParameter(Constants.RUN_AS_ACL_PARALLELISM);
+      will(returnValue("2"));
+    }});
+
+    final FileTreeWalker instance = createInstance();
+    final MyFileTreeVisitor visitor = new MyFileTreeVisitor();
+
+    // When
+    final boolean result = instance.walk(link, visitor);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result).isEqualTo(true);
+    then(visitor.getPaths()).isEqualTo(new HashSet<Path>(Arrays.asList(dir.toRealPath(), file.toRealPath())));
+  }
+
+  @Test
+  public void shouldVisitFile() throws IOException {
+    // Given
+    final Path file = Files.createFile(myRoot.resolve("file"));
+    final FileTreeWalker instance = createInstance();
+    final MyFileTreeVisitor visitor = new MyFileTreeVisitor();
+
+    // When
+    final boolean result = instance.walk(file, visitor);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result).isEqualTo(true);
+    then(visitor.getPaths()).isEqualTo(Collections.singleton(file));
+  }
+
+  @Test
+  public void shouldReturnFalseWhenVisitFailed() throws IOException {
+    // Given
+    final Path dir = Files.createDirectories(myRoot.resolve("dir"));
+    final Path file = Files.createFile(dir.resolve("file"));
+    myCtx.checking(new Expectations() {{
+      allowing(myAgentParametersService).tryGetConfigParameter(Constants.RUN_AS_ACL_PARALLELISM);
+      will(returnValue("2"));
+    }});
+
+    final FileTreeWalker instance = createInstance();
+    final MyFileTreeVisitor visitor = new MyFileTreeVisitor(file);
+
+    // When
+    final boolean result = instance.walk(dir, visitor);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result).isEqualTo(false);
+    then(visitor.getFailedPaths()).isEqualTo(Collections.singleton(file));
+  }
+
+  @Test
+  public void shouldWalkConcurrentlyWhenParallelismIsChanged() throws IOException, InterruptedException {
+    // Given
+    final Path dir = Files.createDirectories(myRoot.resolve("dir"));
+    Files.createFile(dir.resolve("file"));
+    final AtomicInteger calls = new AtomicInteger();
+    myCtx.checking(new Expectations() {{
+      allowing(myAgentParametersService).tryGetConfigParameter(Constants.RUN_AS_ACL_PARALLELISM);
+      will(new CustomAction("parallelism") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          return Integer.toString(1 + calls.incrementAndGet() % 2);
+        }
+      });
+    }});
+
+    final FileTreeWalker instance = createInstance();
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int threadIndex = 0; threadIndex < 8; threadIndex++) {
+      threads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int walkIndex = 0; walkIndex < 100; walkIndex++) {
+              if(!instance.walk(myRoot, new MyFileTreeVisitor())) {
+                errors.add(new IOException("Walk failed"));
+              }
+            }
+          }
+          catch (Throwable ex) {
+            errors.add(ex);
+          }
+        }
+      }));
+    }
+
+    // When
+    for (Thread thread: threads) {
+      thread.start();
+    }
+
+    for (Thread thread: threads) {
+      thread.join();
+    }
+
+    // Then
+    then(errors).isEmpty();
+  }
+
+  @NotNull
+  private FileTreeWalker createInstance()
+  {
+    return new ForkJoinFileTreeWalker(myAgentParametersService);
+  }
+
+  private static void delete(@NotNull final File file) {
+    final File[] files = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+    if(files != null) {
+      for (File child: files) {
+        delete(child);
+      }
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  private static class MyFileTreeVisitor implements FileTreeVisitor {
+    private final Set<Path> myPathsToFail;
+    private final Set<Path> myPaths = Collections.synchronizedSet(new HashSet<Path>());
+    private final Set<Path> myFailedPaths = Collections.synchronizedSet(new HashSet<Path>());
+    private int myVisitsCount;
+
+    MyFileTreeVisitor(@NotNull final Path... pathsToFail) {
+      myPathsToFail = new HashSet<Path>(Arrays.asList(pathsToFail));
+    }
+
+    @Override
+    public void visit(@NotNull final Path path, @NotNull final BasicFileAttributes attributes) throws IOException {
+      if(myPathsToFail.contains(path)) {
+        throw new IOException("Some error");
+      }
+
+      synchronized (this) {
+        myVisitsCount++;
+      }
+
+      myPaths.add(path);
+    }
+
+    @Override
+    public void visitFailed(@NotNull final Path path, @NotNull final IOException error) {
+      myFailedPaths.add(path);
+    }
+
+    @NotNull
+    Set<Path> getPaths() {
+      return new HashSet<Path>(myPaths);
+    }
+
+    @NotNull
+    Set<Path> getFailedPaths() {
+      return new HashSet<Path>(myFailedPaths);
+    }
+
+    synchronized int getVisitsCount() {
+      return myVisitsCount;
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.execution.ExecutionException;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import jetbrains.buildServer.runAs.common.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class HelperCommandLineExecutorTest {
+  private Mockery myCtx;
+  private CommandLineExecutor myCommandLineExecutor;
+  private BuildAgentConfiguration myBuildAgentConfiguration;
+  private Map<String, String> myParameters;
+  private MyHelperLauncher myHelperLauncher;
+
+  @BeforeMethod
+  public void setUp() {
+    myCtx = new Mockery();
+    myCommandLineExecutor = myCtx.mock(CommandLineExecutor.class);
+    myBuildAgentConfiguration = myCtx.mock(BuildAgentConfiguration.class);
+    myParameters = new HashMap<String, String>();
+    myParameters.put(Constants.RUN_AS_HELPER_ENABLED, "true");
+    myHelperLauncher = new MyHelperLauncher();
+    myCtx.checking(new Expectations() {{
+      allowing(myBuildAgentConfiguration).getConfigurationParameters();
+      will(returnValue(myParameters));
+    }});
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myHelperLauncher.destroyAll();
+  }
+
+  @Test
+  public void shouldRunCommandInHelper() throws ExecutionException {
+    // Given
+    final CommandLineExecutor instance = createInstance();
+
+    // When
+    final ExecResult result = instance.runProcess(createSetup("echo \"a\tb\"; echo err >&2; exit 3"), 60);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result).isNotNull();
+    //noinspection ConstantConditions
+    then(result.getExitCode()).isEqualTo(3);
+    then(result.getStdout()).isEqualTo("a\tb\n");
+    then(result.getStderr()).isEqualTo("err\n");
+    then(myHelperLauncher.getLaunchesCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldRunRequestsConcurrently() throws Exception {
+    // Given
+    final CommandLineExecutor instance = createInstance();
+    instance.runProcess(createSetup("exit 0"), 60);
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    final List<Future<ExecResult>> futures = new ArrayList<Future<ExecResult>>();
+
+    // When
+    final long start = System.currentTimeMillis();
+    for (int index = 0; index < 8; index++) {
+      final int requestIndex = index;
+      futures.add(executor.submit(new Callable<ExecResult>() {
+        @Override
+        public ExecResult call() throws Exception {
+          return instance.runProcess(createSetup("sleep 1; echo " + requestIndex), 60);
+        }
+      }));
+    }
+
+    final List<String> outputs = new ArrayList<String>();
+    for (Future<ExecResult> future: futures) {
+      outputs.add(future.get().getStdout());
+    }
+
+    final long duration = System.currentTimeMillis() - start;
+    executor.shutdown();
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(outputs).isEqualTo(Arrays.asList("0\n", "1\n", "2\n", "3\n", "4\n", "5\n", "6\n", "7\n"));
+    then(duration < 6000).isEqualTo(true);
+    then(myHelperLauncher.getLaunchesCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldRestartHelperWhenItWasTerminated() throws Exception {
+    // Given
+    final CommandLineExecutor instance = createInstance();
+    instance.runProcess(createSetup("exit 0"), 60);
+    final Process process = myHelperLauncher.getLastProcess();
+    process.destroy();
+    process.waitFor();
+
+    // When
+    final ExecResult result = instance.runProcess(createSetup("echo abc"), 60);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    //noinspection ConstantConditions
+    then(result.getStdout()).isEqualTo("abc\n");
+    then(myHelperLauncher.getLaunchesCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldRunCommandDirectlyWhenHelperWasTerminatedDuringRequest() throws ExecutionException {
+    // Given
+    final CommandLineExecutor instance = createInstance();
+    final CommandLineSetup setup = createSetup("kill -9 $PPID");
+    final ExecResult expectedResult = new ExecResult();
+    myCtx.checking(new Expectations() {{
+      oneOf(myCommandLineExecutor).runProcess(setup, 60);
+      will(returnValue(expectedResult));
+    }});
+
+    // When
+    final ExecResult result = instance.runProcess(setup, 60);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result).isSameAs(expectedResult);
+  }
+
+  @Test
+  public void shouldRunCommandDirectlyWhenHelperIsDisabled() throws ExecutionException {
+    // Given
+    myParameters.remove(Constants.RUN_AS_HELPER_ENABLED);
+    final CommandLineExecutor instance = createInstance();
+    final CommandLineSetup setup = createSetup("exit 0");
+    final ExecResult expectedResult = new ExecResult();
+    myCtx.checking(new Expectations() {{
+      oneOf(myCommandLineExecutor).runProcess(setup, 60);
+      will(returnValue(expectedResult));
+    }});
+
+    // When
+    final ExecResult result = instance.runProcess(setup, 60);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result).isSameAs(expectedResult);
+    then(myHelperLauncher.getLaunchesCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldRunCommandDirectlyWhenHelperCannotBeStarted() throws ExecutionException {
+    // Given
+    final CommandLineExecutor instance = new HelperCommandLineExecutor(
+      myCommandLineExecutor,
+      new HelperLauncher() {
+        @NotNull
+        @Override
+        public Process launch() throws IOException {
+          throw new IOException("Some error");
+        }
+      },
+      myBuildAgentConfiguration);
+
+    final CommandLineSetup setup = createSetup("exit 0");
+    final ExecResult expectedResult = new ExecResult();
+    myCtx.checking(new Expectations() {{
+      oneOf(myCommandLineExecutor).runProcess(setup, 60);
+      will(returnValue(expectedResult));
+    }});
+
+    // When
+    final ExecResult result = instance.runProcess(setup, 60);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result).isSameAs(expectedResult);
+  }
+
+  @Test(expectedExceptions = ExecutionException.class)
+  public void shouldThrowExceptionWhenCommandCannotBeStarted() throws ExecutionException {
+    // Given
+    final CommandLineExecutor instance = createInstance();
+
+    // When
+    instance.runProcess(new CommandLineSetup("some_unknown_tool", Collections.<CommandLineArgument>emptyList(), Collections.<CommandLineResource>emptyList()), 60);
+
+    // Then
+  }
+
+  @NotNull
+  private CommandLineExecutor createInstance()
+  {
+    return new HelperCommandLineExecutor(
+      myCommandLineExecutor,
+      myHelperLauncher,
+      myBuildAgentConfiguration);
+  }
+
+  @NotNull
+  private static CommandLineSetup createSetup(@NotNull final String script) {
+    return new CommandLineSetup(
+      "sh",
+      Arrays.asList(new CommandLineArgument("-c", CommandLineArgument.Type.PARAMETER), new CommandLineArgument(script, CommandLineArgument.Type.PARAMETER)),
+      Collections.<CommandLineResource>emptyList());
+  }
+
+  private static class MyHelperLauncher implements HelperLauncher {
+    private final HelperLauncher myHelperLauncher = new JavaHelperLauncher();
+    private final List<Process> myProcesses = new ArrayList<Process>();
+
+    @NotNull
+    @Override
+    public synchronized Process launch() throws IOException {
+      final Process process = myHelperLauncher.launch();
+      myProcesses.add(process);
+      return process;
+    }
+
+    synchronized int getLaunchesCount() {
+      return myProcesses.size();
+    }
+
+    synchronized Process getLastProcess() {
+      return myProcesses.get(myProcesses.size() - 1);
+    }
+
+    synchronized void destroyAll() {
+      for (Process process: myProcesses) {
+        process.destroy();
+      }
+    }
+  }
+}
@@ -0,0 +1,253 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.*;
+import jetbrains.buildServer.runAs.common.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class HierarchicalFileAccessCacheTest {
+  private Map<Path, String> myStamps;
+  private Map<String, String> myParameters;
+
+  @BeforeMethod
+  public void setUp() {
+    myStamps = new HashMap<Path, String>();
+    myParameters = new HashMap<String, String>();
+  }
+
+  @DataProvider(name = "cacheAccessControlEntryCases")
+  public Object[][] getCacheAccessControlEntryCases() {
+    return new Object[][] {
+      // for dup element with reset
+      {
+        Arrays.asList(
+          createAce("my_file", "user1", AccessPermissions.GrantRead),
+          createAce("my_file", "user1", AccessPermissions.GrantRead),
+          null,
+          createAce("my_file", "user1", AccessPermissions.GrantRead),
+          createAce("my_file", "user1", AccessPermissions.GrantRead)
+        ),
+        Arrays.asList(true, false, true, false)
+      },
+
+      // for recursive ancestor
+      {
+        Arrays.asList(
+          createAce("tools", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead, AccessPermissions.GrantWrite),
+          createAce("tools/foo", "user1", AccessPermissions.GrantRead),
+          createAce("tools/foo/bar", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead, AccessPermissions.GrantWrite),
+          createAce("tools2", "user1", AccessPermissions.GrantRead)
+        ),
+        Arrays.asList(true, false, false, true)
+      },
+
+      // for not recursive ancestor
+      {
+        Arrays.asList(
+          createAce("tools", "user1", AccessPermissions.GrantRead),
+          createAce("tools/foo", "user1", AccessPermissions.GrantRead),
+          createAce("tools", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead)
+        ),
+        Arrays.asList(true, true, true)
+      },
+
+      // for other account
+      {
+        Arrays.asList(
+          createAce("tools", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead),
+          createAce("tools/foo", "user2", AccessPermissions.GrantRead)
+        ),
+        Arrays.asList(true, true)
+      },
+
+      // for other permissions
+      {
+        Arrays.asList(
+          createAce("tools", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead),
+          createAce("tools/foo", "user1", AccessPermissions.GrantRead, AccessPermissions.GrantExecute),
+          createAce("tools/foo", "user1", AccessPermissions.GrantRead)
+        ),
+        Arrays.asList(true, true, false)
+      },
+
+      // for denied permissions, the deny is not covered by the ancestor after the grant was applied
+      {
+        Arrays.asList(
+          createAce("tools", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead, AccessPermissions.DenyRead),
+          createAce("tools/foo", "user1", AccessPermissions.GrantRead),
+          createAce("tools/foo", "user1", AccessPermissions.DenyRead),
+          createAce("tools/bar", "user1", AccessPermissions.DenyRead)
+        ),
+        Arrays.asList(true, true, true, false)
+      },
+
+      // for descendant
+      {
+        Arrays.asList(
+          createAce("tools/foo", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead),
+          createAce("tools", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead),
+          createAce("tools/foo", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead),
+          null,
+          createAce("tools/foo", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead)
+        ),
+        Arrays.asList(true, true, false, true)
+      },
+    };
+  }
+
+  @Test(dataProvider = "cacheAccessControlEntryCases")
+  public void shouldCacheAccessControlEntry(
+    @NotNull final Iterable<AccessControlEntry> accessControlEntries,
+    @NotNull final Iterable<Boolean> expectedResults) {
+    // Given
+    final HierarchicalFileAccessCache instance = createInstance();
+    final ArrayList<Boolean> actualResults = new ArrayList<Boolean>();
+
+    // When
+    for(AccessControlEntry ace: accessControlEntries) {
+      if(ace == null) {
+        instance.reset();
+        continue;
+      }
+
+      actualResults.add(instance.tryAddEntry(ace));
+    }
+
+    // Then
+    then(actualResults).isEqualTo(expectedResults);
+  }
+
+  @Test
+  public void shouldNotCoverFilesUnderInvalidatedPath() {
+    // Given
+    final HierarchicalFileAccessCache instance = createInstance();
+    final AccessControlEntry grantAll = createAce("co", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.GrantExecute);
+    final AccessControlEntry grantWrite = createAce("co/secret/x", "user1", AccessPermissions.GrantWrite);
+    final AccessControlEntry grantOther = createAce("co/other", "user1", AccessPermissions.GrantWrite);
+    instance.tryAddEntry(grantAll);
+
+    // When
+    instance.invalidate(createAce("co/secret", "user1", AccessPermissions.DenyWrite));
+    final boolean isGrantAllAdded = instance.tryAddEntry(grantAll);
+    final boolean isOtherAdded = instance.tryAddEntry(grantOther);
+    final boolean isGrantWriteAdded = instance.tryAddEntry(grantWrite);
+    final boolean isGrantWriteAddedAgain = instance.tryAddEntry(grantWrite);
+    final boolean isRecursiveAncestorAdded = instance.tryAddEntry(createAce("co/secret/..", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead));
+
+    // Then
+    then(isGrantAllAdded).isEqualTo(false);
+    then(isOtherAdded).isEqualTo(false);
+    then(isGrantWriteAdded).isEqualTo(true);
+    then(isGrantWriteAddedAgain).isEqualTo(false);
+    then(isRecursiveAncestorAdded).isEqualTo(true);
+  }
+
+  @Test
+  public void shouldKeepBarriersBoundedForManyBuilds() {
+    // Given
+    final HierarchicalFileAccessCache instance = createInstance();
+    final AccessControlEntry work = createAce("work", "user1", AccessPermissions.GrantRead);
+    final AccessControlEntry tools = createAce("tools", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead);
+    instance.tryAddEntry(work);
+    instance.tryAddEntry(tools);
+
+    // When
+    for (int build = 0; build < 10000; build++) {
+      instance.invalidate(createAce("work/checkout" + build, "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead, AccessPermissions.GrantWrite));
+      instance.invalidate(createAce("temp/buildTmp/command" + build + ".sh", "user1", AccessPermissions.GrantExecute));
+      instance.tryAddEntry(work);
+      instance.tryAddEntry(tools);
+    }
+
+    instance.invalidate(createAce("tools/foo", "user1", AccessPermissions.DenyRead));
+    final boolean isToolsFooAdded = instance.tryAddEntry(createAce("tools/foo", "user1", AccessPermissions.GrantRead));
+
+    // Then
+    then(instance.getBarriersCount() <= 2 * 64).isTrue();
+    then(isToolsFooAdded).isEqualTo(true);
+  }
+
+  @Test
+  public void shouldRefreshEntryWhenStampWasChanged() {
+    // Given
+    final HierarchicalFileAccessCache instance = createInstance();
+    myStamps.put(PathTrie.getPath(new File("plugins")), "stamp1");
+    instance.tryAddEntry(createAce("plugins", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead));
+
+    // When
+    final boolean isAddedBeforeChange = instance.tryAddEntry(createAce("plugins/foo", "user1", AccessPermissions.GrantRead));
+    myStamps.put(PathTrie.getPath(new File("plugins")), "stamp2");
+    final boolean isAddedAfterChange = instance.tryAddEntry(createAce("plugins/foo", "user1", AccessPermissions.GrantRead));
+    final boolean isAddedAgain = instance.tryAddEntry(createAce("plugins/foo", "user1", AccessPermissions.GrantRead));
+    final boolean isParentAdded = instance.tryAddEntry(createAce("plugins", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead));
+
+    // Then
+    then(isAddedBeforeChange).isEqualTo(false);
+    then(isAddedAfterChange).isEqualTo(true);
+    then(isAddedAgain).isEqualTo(false);
+    then(isParentAdded).isEqualTo(true);
+    then(instance.getStatistics().getHitCount()).isEqualTo(2L);
+    then(instance.getStatistics().getMissCount()).isEqualTo(2L);
+    then(instance.getStatistics().getStaleCount()).isEqualTo(1L);
+  }
+
+  @DataProvider(name = "ttlCases")
+  public Object[][] getTtlCases() {
+    return new Object[][] {
+      { null, 3600000L, false },
+      { "", 3600000L, false },
+      { "0", 3600000L, false },
+      { "abc", 3600000L, false },
+      { "60", 59999L, false },
+      { "60", 60000L, true },
+      { "60", 3600000L, true },
+    };
+  }
+
+  @Test(dataProvider = "ttlCases")
+  public void shouldRefreshEntryWhenTtlIsExpired(@Nullable final String ttl, final long age, final boolean expectedResult) {
+    // Given
+    myParameters.put(Constants.RUN_AS_ACL_CACHE_TTL, ttl);
+    final HierarchicalFileAccessCache instance = createInstance();
+    final AccessControlEntry ace = createAce("tools", "user1", AccessPermissions.Recursive, AccessPermissions.GrantRead);
+    instance.addEntry(new CachedAccessControlEntry(PathTrie.getPath(ace.getFile()), ace, null, System.currentTimeMillis() - age));
+
+    // When
+    final boolean result = instance.tryAddEntry(ace);
+
+    // Then
+    then(result).isEqualTo(expectedResult);
+    then(instance.getStatistics().getStaleCount()).isEqualTo(expectedResult ? 1L : 0L);
+  }
+
+  @NotNull
+  private HierarchicalFileAccessCache createInstance()
+  {
+    return new HierarchicalFileAccessCache(
+      new FileStampService() {
+        @Nullable
+        @Override
+        public String tryGetStamp(@NotNull final Path path) {
+          return myStamps.get(path);
+        }
+      },
+      new AgentParametersService() {
+        @Nullable
+        @Override
+        public String tryGetConfigParameter(@NotNull final String parameterName) {
+          return myParameters.get(parameterName);
+        }
+      });
+  }
+
+  private static AccessControlEntry createAce(@NotNull final String file, @NotNull final String user, @NotNull final AccessPermissions... permissions) {
+    return new AccessControlEntry(new File(file), AccessControlAccount.forUser(user), EnumSet.copyOf(Arrays.asList(permissions)), AccessControlScope.Global);
+  }
+}
@@ -0,0 +1,250 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class JournaledFileAccessCacheTest {
+  private Mockery myCtx;
+  private PathsService myPathsService;
+  private Map<Path, String> myStamps;
+  private File myConfigDirectory;
+  private File myJournalFile;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myCtx = new Mockery();
+    myPathsService = myCtx.mock(PathsService.class);
+    myStamps = new HashMap<Path, String>();
+    myConfigDirectory = Files.createTempDirectory("runAs").toFile();
+    myJournalFile = new File(new File(myConfigDirectory, JournaledFileAccessCache.JOURNAL_DIRECTORY_NAME), JournaledFileAccessCache.JOURNAL_FILE_NAME);
+    myCtx.checking(new Expectations() {{
+      allowing(myPathsService).getPath(WellKnownPaths.Config);
+      will(returnValue(myConfigDirectory));
+    }});
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    delete(myConfigDirectory);
+  }
+
+  @Test
+  public void shouldRestoreEntryWhenStampWasNotChanged() {
+    // Given
+    final AccessControlEntry ace = createAce("tools", AccessPermissions.Recursive, AccessPermissions.GrantRead);
+    setStamp("tools", "stamp1");
+    addEntry(createInstance(), ace);
+    final FileAccessCache instance = createInstance();
+
+    // When
+    final boolean isAdded = instance.tryAddEntry(createAce("tools/foo", AccessPermissions.GrantRead));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(isAdded).isEqualTo(false);
+  }
+
+  @Test
+  public void shouldNotRestoreEntryWhenStampWasChanged() {
+    // Given
+    final AccessControlEntry ace = createAce("tools", AccessPermissions.Recursive, AccessPermissions.GrantRead);
+    setStamp("tools", "stamp1");
+    addEntry(createInstance(), ace);
+    setStamp("tools", "stamp2");
+    final FileAccessCache instance = createInstance();
+
+    // When
+    final boolean isAdded = instance.tryAddEntry(ace);
+    instance.setApplied(ace, true);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(isAdded).isEqualTo(true);
+    then(readJournal().size()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldNotJournalEntryWhenStampIsNotAvailable() {
+    // Given
+    final AccessControlEntry ace = createAce("tools", AccessPermissions.Recursive, AccessPermissions.GrantRead);
+    addEntry(createInstance(), ace);
+    final FileAccessCache instance = createInstance();
+
+    // When
+    final boolean isAdded = instance.tryAddEntry(ace);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(isAdded).isEqualTo(true);
+    then(myJournalFile.exists()).isEqualTo(false);
+  }
+
+  @Test
+  public void shouldSkipCorruptedRecordsAndCompactJournal() throws IOException {
+    // Given
+    final AccessControlEntry ace1 = createAce("tools", AccessPermissions.Recursive, AccessPermissions.GrantRead);
+    final AccessControlEntry ace2 = createAce("lib", AccessPermissions.Recursive, AccessPermissions.GrantRead);
+    setStamp("tools", "stamp1");
+    setStamp("lib", "stamp2");
+    final JournaledFileAccessCache cache = createInstance();
+    addEntry(cache, ace1);
+    addEntry(cache, ace2);
+    final List<String> lines = readJournal();
+    final String corruptedRecord = lines.get(0).replace("stamp1", "stamp3");
+    Files.write(myJournalFile.toPath(), Arrays.asList("abc", corruptedRecord, lines.get(1), "", lines.get(1).substring(0, 10)), Charset.forName("UTF-8"));
+    final FileAccessCache instance = createInstance();
+
+    // When
+    final boolean isAdded1 = instance.tryAddEntry(ace1);
+    instance.setApplied(ace1, true);
+    final boolean isAdded2 = instance.tryAddEntry(ace2);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(isAdded1).isEqualTo(true);
+    then(isAdded2).isEqualTo(false);
+    final List<String> actualLines = readJournal();
+    then(actualLines.size()).isEqualTo(2);
+    then(actualLines.get(0)).isEqualTo(lines.get(1));
+    //noinspection ConstantConditions
+    then(FileAccessJournal.tryParse(actualLines.get(1)).getPath()).isEqualTo(PathTrie.getPath(ace1.getFile()));
+  }
+
+  @Test
+  public void shouldClearJournalWhenReset() {
+    // Given
+    final AccessControlEntry ace = createAce("tools", AccessPermissions.Recursive, AccessPermissions.GrantRead);
+    setStamp("tools", "stamp1");
+    final JournaledFileAccessCache cache = createInstance();
+    addEntry(cache, ace);
+
+    // When
+    cache.reset();
+    final boolean isAdded = createInstance().tryAddEntry(ace);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(isAdded).isEqualTo(true);
+  }
+
+  @Test
+  public void shouldNotJournalEntryWhenItWasNotApplied() {
+    // Given
+    final AccessControlEntry ace1 = createAce("tools", AccessPermissions.Recursive, AccessPermissions.GrantRead);
+    final AccessControlEntry ace2 = createAce("lib", AccessPermissions.Recursive, AccessPermissions.GrantRead);
+    setStamp("tools", "stamp1");
+    setStamp("lib", "stamp2");
+    final JournaledFileAccessCache cache = createInstance();
+    cache.tryAddEntry(ace1);
+    cache.setApplied(ace1, false);
+    cache.tryAddEntry(ace2);
+    final FileAccessCache instance = createInstance();
+
+    // When
+    final boolean isAddedInSameSession = cache.tryAddEntry(ace1);
+    final boolean isAdded1 = instance.tryAddEntry(ace1);
+    final boolean isAdded2 = instance.tryAddEntry(ace2);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(isAddedInSameSession).isEqualTo(false);
+    then(isAdded1).isEqualTo(true);
+    then(isAdded2).isEqualTo(true);
+    then(myJournalFile.exists()).isEqualTo(false);
+  }
+
+  @Test
+  public void shouldParseRecord() {
+    // Given
+    final AccessControlEntry ace = new AccessControlEntry(new File("my\tdir\\\nfile").getAbsoluteFile(), AccessControlAccount.forUser("user\\1"), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.DenyWrite), AccessControlScope.Global);
+    final CachedAccessControlEntry record = new CachedAccessControlEntry(PathTrie.getPath(ace.getFile()), ace, "(dev=1,ino=2):3", 12345L);
+
+    // When
+    final CachedAccessControlEntry actualRecord = FileAccessJournal.tryParse(FileAccessJournal.format(record));
+
+    // Then
+    then(actualRecord).isNotNull();
+    //noinspection ConstantConditions
+    then(actualRecord.getStamp()).isEqualTo(record.getStamp());
+    then(actualRecord.getTimestamp()).isEqualTo(12345L);
+    then(actualRecord.getPath()).isEqualTo(record.getPath());
+    then(actualRecord.getEntry()).isEqualTo(ace);
+    then(actualRecord.getEntry().getScope()).isEqualTo(AccessControlScope.Global);
+  }
+
+  @NotNull
+  private JournaledFileAccessCache createInstance()
+  {
+    return new JournaledFileAccessCache(
+      myPathsService,
+      new FileStampService() {
+        @Nullable
+        @Override
+        public String tryGetStamp(@NotNull final Path path) {
+          return myStamps.get(path);
+        }
+      },
+      new AgentParametersService() {
+        @Nullable
+        @Override
+        public String tryGetConfigParameter(@NotNull final String parameterName) {
+          return null;
+        }
+      },
+      new Executor() {
+        @Override
+        public void execute(@NotNull final Runnable command) {
+          command.run();
+        }
+      });
+  }
+
+  private static void addEntry(@NotNull final FileAccessCache cache, @NotNull final AccessControlEntry ace) {
+    cache.tryAddEntry(ace);
+    cache.setApplied(ace, true);
+  }
+
+  private void setStamp(@NotNull final String file, @NotNull final String stamp) {
+    myStamps.put(PathTrie.getPath(new File(file)), stamp);
+  }
+
+  @NotNull
+  private List<String> readJournal() {
+    try {
+      return Files.readAllLines(myJournalFile.toPath(), Charset.forName("UTF-8"));
+    }
+    catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static AccessControlEntry createAce(@NotNull final String file, @NotNull final AccessPermissions... permissions) {
+    return new AccessControlEntry(new File(file), AccessControlAccount.forUser("user1"), EnumSet.copyOf(Arrays.asList(permissions)), AccessControlScope.Global);
+  }
+
+  private static void delete(@NotNull final File file) {
+    final File[] files = file.listFiles();
+    if(files != null) {
+      for (File child: files) {
+        delete(child);
+      }
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+}
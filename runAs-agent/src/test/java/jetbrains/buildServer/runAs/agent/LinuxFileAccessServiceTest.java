@@ -7,6 +7,11 @@ import java.io.File;
 import java.util.*;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
 import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
@@ -126,6 +131,56 @@ public class LinuxFileAccessServiceTest {
           new CommandLineSetup(CHMOD_TOOL_NAME, Arrays.asList(new CommandLineArgument("a+x", CommandLineArgument.Type.PARAMETER), new CommandLineArgument(new File("my_file2").getAbsolutePath(), CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList())),
         Arrays.asList(false, false)},
 
+      // batch of the same modes
+      {
+        new AccessControlList(Arrays.asList(
+          new AccessControlEntry(new File("my_file"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(new File("my_file2"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Step),
+          new AccessControlEntry(new File("my_file3"), AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step))),
+        0,
+        null,
+        Arrays.asList(
+          new CommandLineSetup(CHMOD_TOOL_NAME, Arrays.asList(new CommandLineArgument("-R", CommandLineArgument.Type.PARAMETER), new CommandLineArgument("a+rX", CommandLineArgument.Type.PARAMETER), new CommandLineArgument(new File("my_file").getAbsolutePath(), CommandLineArgument.Type.PARAMETER), new CommandLineArgument(new File("my_file3").getAbsolutePath(), CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList()),
+          new CommandLineSetup(CHMOD_TOOL_NAME, Arrays.asList(new CommandLineArgument("a+x", CommandLineArgument.Type.PARAMETER), new CommandLineArgument(new File("my_file2").getAbsolutePath(), CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList())),
+        Arrays.asList(true, true, true)},
+
+      // batch of the same modes returns non zero exit code, so entries are applied one by one
+      {
+        new AccessControlList(Arrays.asList(
+          new AccessControlEntry(new File("my_file"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(new File("my_file2"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step))),
+        1,
+        null,
+        Arrays.asList(
+          new CommandLineSetup(CHMOD_TOOL_NAME, Arrays.asList(new CommandLineArgument("-R", CommandLineArgument.Type.PARAMETER), new CommandLineArgument("a+rX", CommandLineArgument.Type.PARAMETER), new CommandLineArgument(new File("my_file").getAbsolutePath(), CommandLineArgument.Type.PARAMETER), new CommandLineArgument(new File("my_file2").getAbsolutePath(), CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList()),
+          new CommandLineSetup(CHMOD_TOOL_NAME, Arrays.asList(new CommandLineArgument("-R", CommandLineArgument.Type.PARAMETER), new CommandLineArgument("a+rX", CommandLineArgument.Type.PARAMETER), new CommandLineArgument(new File("my_file").getAbsolutePath(), CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList()),
+          new CommandLineSetup(CHMOD_TOOL_NAME, Arrays.asList(new CommandLineArgument("-R", CommandLineArgument.Type.PARAMETER), new CommandLineArgument("a+rX", CommandLineArgument.Type.PARAMETER), new CommandLineArgument(new File("my_file2").getAbsolutePath(), CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList())),
+        Arrays.asList(false, false)},
+
+      // batch of the same modes throws an exception
+      {
+        new AccessControlList(Arrays.asList(
+          new AccessControlEntry(new File("my_file"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(new File("my_file2"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step))),
+        0,
+        new ExecutionException("some error"),
+        Arrays.asList(),
+        Arrays.asList(null, null)},
+
+      // overlapped modes are not reordered
+      {
+        new AccessControlList(Arrays.asList(
+          new AccessControlEntry(new File("my_dir"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(new File("my_dir", "sub_dir"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyRead, AccessPermissions.Recursive), AccessControlScope.Step),
+          new AccessControlEntry(new File(new File("my_dir", "sub_dir"), "file"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step))),
+        0,
+        null,
+        Arrays.asList(
+          new CommandLineSetup(CHMOD_TOOL_NAME, Arrays.asList(new CommandLineArgument("-R", CommandLineArgument.Type.PARAMETER), new CommandLineArgument("a+rX", CommandLineArgument.Type.PARAMETER), new CommandLineArgument(new File("my_dir").getAbsolutePath(), CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList()),
+          new CommandLineSetup(CHMOD_TOOL_NAME, Arrays.asList(new CommandLineArgument("-R", CommandLineArgument.Type.PARAMETER), new CommandLineArgument("a-r", CommandLineArgument.Type.PARAMETER), new CommandLineArgument(new File("my_dir", "sub_dir").getAbsolutePath(), CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList()),
+          new CommandLineSetup(CHMOD_TOOL_NAME, Arrays.asList(new CommandLineArgument("-R", CommandLineArgument.Type.PARAMETER), new CommandLineArgument("a+rX", CommandLineArgument.Type.PARAMETER), new CommandLineArgument(new File(new File("my_dir", "sub_dir"), "file").getAbsolutePath(), CommandLineArgument.Type.PARAMETER)), Collections.<CommandLineResource>emptyList())),
+        Arrays.asList(true, true, true)},
+
       // empty
       {
         new AccessControlList(Arrays.asList(
@@ -155,7 +210,7 @@ public class LinuxFileAccessServiceTest {
     @Nullable final List<Object> expectedResult) throws ExecutionException {
     // Given
     final FileAccessService instance = createInstance();
-    final ArrayList<CommandLineSetup> actualCommandLineSetups = new ArrayList<CommandLineSetup>();
+    final List<CommandLineSetup> actualCommandLineSetups = Collections.synchronizedList(new ArrayList<CommandLineSetup>());
 
     myCtx.checking(new Expectations() {{
       allowing(myCommandLineExecutor).runProcess(with(any(CommandLineSetup.class)), with(any(int.class)));
@@ -195,10 +250,162 @@ public class LinuxFileAccessServiceTest {
     then(actualResult).isEqualTo(expectedResult);
   }
 
+  @Test
+  public void shouldRunIndependentBatchesConcurrently() throws ExecutionException {
+    // Given
+    final AccessControlList accessControlList = new AccessControlList(Arrays.asList(
+      new AccessControlEntry(new File("my_file"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step),
+      new AccessControlEntry(new File("my_file2"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Step)));
+
+    final CountDownLatch latch = new CountDownLatch(2);
+    // mocks are not used because they serialize invocations
+    final FileAccessService instance = new LinuxFileAccessService(new AsyncCommandLineExecutorImpl(new CommandLineExecutor() {
+      @Override
+      public ExecResult runProcess(@NotNull final CommandLineSetup commandLineSetup, final int executionTimeoutSeconds) throws ExecutionException {
+        latch.countDown();
+        final ExecResult execResult = new ExecResult();
+        try {
+          // succeeds only when both batches are executed at the same time
+          execResult.setExitCode(latch.await(10, TimeUnit.SECONDS) ? 0 : 1);
+        }
+        catch (InterruptedException ex) {
+          throw new ExecutionException(ex.getMessage());
+        }
+
+        return execResult;
+      }
+    }, 2));
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> result = Lists.newArrayList(instance.setAccess(accessControlList));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result.size()).isEqualTo(2);
+    then(result.get(0).getContext().getFile()).isEqualTo(new File("my_file"));
+    then(result.get(0).getValue()).isEqualTo(true);
+    then(result.get(1).getContext().getFile()).isEqualTo(new File("my_file2"));
+    then(result.get(1).getValue()).isEqualTo(true);
+  }
+
+  @Test
+  public void shouldRunOverlappedBatchesSequentially() throws ExecutionException {
+    // Given
+    final AccessControlList accessControlList = new AccessControlList(Arrays.asList(
+      new AccessControlEntry(new File("my_dir"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step),
+      new AccessControlEntry(new File("my_dir", "sub_dir"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyRead, AccessPermissions.Recursive), AccessControlScope.Step),
+      new AccessControlEntry(new File(new File("my_dir", "sub_dir"), "file"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step)));
+
+    final List<String> actualModes = Collections.synchronizedList(new ArrayList<String>());
+    final AtomicInteger activeCount = new AtomicInteger();
+    final AtomicInteger maxActiveCount = new AtomicInteger();
+    final FileAccessService instance = new LinuxFileAccessService(new AsyncCommandLineExecutorImpl(new CommandLineExecutor() {
+      @Override
+      public ExecResult runProcess(@NotNull final CommandLineSetup commandLineSetup, final int executionTimeoutSeconds) throws ExecutionException {
+        final int count = activeCount.incrementAndGet();
+        synchronized (maxActiveCount) {
+          maxActiveCount.set(Math.max(maxActiveCount.get(), count));
+        }
+
+        try {
+          Thread.sleep(50);
+        }
+        catch (InterruptedException ex) {
+          throw new ExecutionException(ex.getMessage());
+        }
+
+        actualModes.add(commandLineSetup.getArgs().get(1).getValue());
+        activeCount.decrementAndGet();
+        return new ExecResult();
+      }
+    }, 4));
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> result = Lists.newArrayList(instance.setAccess(accessControlList));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result.size()).isEqualTo(3);
+    then(actualModes).isEqualTo(Arrays.asList("a+rX", "a-r", "a+rX"));
+    then(maxActiveCount.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldApplyEntriesOneByOneWhenBatchFails() throws ExecutionException {
+    // Given
+    final AccessControlList accessControlList = new AccessControlList(Arrays.asList(
+      new AccessControlEntry(new File("my_file"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step),
+      new AccessControlEntry(new File("bad_file"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step),
+      new AccessControlEntry(new File("my_file2"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step)));
+
+    final List<List<CommandLineArgument>> actualArgs = Collections.synchronizedList(new ArrayList<List<CommandLineArgument>>());
+    final FileAccessService instance = new LinuxFileAccessService(new AsyncCommandLineExecutorImpl(new CommandLineExecutor() {
+      @Override
+      public ExecResult runProcess(@NotNull final CommandLineSetup commandLineSetup, final int executionTimeoutSeconds) throws ExecutionException {
+        actualArgs.add(commandLineSetup.getArgs());
+        final ExecResult execResult = new ExecResult();
+        for (CommandLineArgument arg: commandLineSetup.getArgs()) {
+          if("bad_file".equals(new File(arg.getValue()).getName())) {
+            execResult.setExitCode(1);
+          }
+        }
+
+        return execResult;
+      }
+    }, 2));
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> result = Lists.newArrayList(instance.setAccess(accessControlList));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(actualArgs.size()).isEqualTo(4);
+    then(actualArgs.get(0).size()).isEqualTo(4);
+    then(result.size()).isEqualTo(3);
+    then(result.get(0).getContext().getFile()).isEqualTo(new File("my_file"));
+    then(result.get(0).getValue()).isEqualTo(true);
+    then(result.get(1).getContext().getFile()).isEqualTo(new File("bad_file"));
+    then(result.get(1).getValue()).isEqualTo(false);
+    then(result.get(2).getContext().getFile()).isEqualTo(new File("my_file2"));
+    then(result.get(2).getValue()).isEqualTo(true);
+  }
+
+  @Test
+  public void shouldReturnErrorWhenTimeoutIsExpired() throws ExecutionException {
+    // Given
+    final AsyncCommandLineExecutor asyncCommandLineExecutor = myCtx.mock(AsyncCommandLineExecutor.class);
+    final FileAccessService instance = new LinuxFileAccessService(asyncCommandLineExecutor);
+    final AccessControlList accessControlList = new AccessControlList(Arrays.asList(
+      new AccessControlEntry(new File("my_file"), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step)));
+
+    final CompletableFuture<ExecResult> execResult = new CompletableFuture<ExecResult>();
+    execResult.completeExceptionally(new TimeoutException("Timeout"));
+    myCtx.checking(new Expectations() {{
+      oneOf(asyncCommandLineExecutor).runProcessAsync(with(any(CommandLineSetup.class)), with(any(int.class)));
+      will(returnValue(execResult));
+    }});
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> result = Lists.newArrayList(instance.setAccess(accessControlList));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(result.size()).isEqualTo(1);
+    then(result.get(0).isSuccessful()).isEqualTo(false);
+    then(result.get(0).getError() instanceof TimeoutException).isEqualTo(true);
+  }
+
   @NotNull
   private FileAccessService createInstance()
+  {
+    // the single thread keeps the order of commands
+    return createInstance(1);
+  }
+
+  @NotNull
+  private FileAccessService createInstance(final int parallelism)
   {
     return new LinuxFileAccessService(
-      myCommandLineExecutor);
+      new AsyncCommandLineExecutorImpl(myCommandLineExecutor, parallelism));
   }
-}
\ No newline at end of file
+}
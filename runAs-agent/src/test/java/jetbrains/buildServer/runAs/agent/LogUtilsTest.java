@@ -0,0 +1,31 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.util.Arrays;
+import java.util.Collections;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class LogUtilsTest {
+  @Test
+  public void shouldMaskSecretArgumentsOfCommandLine() {
+    // Given
+    final CommandLineSetup setup = new CommandLineSetup(
+      "/agent/bin/runAs.sh",
+      Arrays.asList(
+        new CommandLineArgument("/tmp/my settings.args", CommandLineArgument.Type.PARAMETER),
+        new CommandLineArgument("64", CommandLineArgument.Type.PARAMETER),
+        new SecretCommandLineArgument("'my password'"),
+        new CommandLineArgument("", CommandLineArgument.Type.PARAMETER)),
+      Collections.<CommandLineResource>emptyList());
+
+    // When
+    final String commandLine = LogUtils.toString(setup);
+
+    // Then
+    then(commandLine).isEqualTo("/agent/bin/runAs.sh \"/tmp/my settings.args\" 64 ***** \"\"");
+  }
+}
@@ -0,0 +1,328 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import jetbrains.buildServer.runAs.common.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class PosixFileAccessServiceTest {
+  private Mockery myCtx;
+  private FileAccessService myFallbackFileAccessService;
+  private AgentParametersService myAgentParametersService;
+  private Map<String, String> myParameters;
+  private Path myRoot;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    if(!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      throw new SkipException("POSIX file attributes are not supported");
+    }
+
+    myCtx = new Mockery();
+    myFallbackFileAccessService = myCtx.mock(FileAccessService.class);
+    myAgentParametersService = myCtx.mock(AgentParametersService.class);
+    myParameters = new HashMap<String, String>();
+    myCtx.checking(new Expectations() {{
+      allowing(myAgentParametersService).tryGetConfigParameter(with(any(String.class)));
+      will(new CustomAction("tryGetConfigParameter") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          return myParameters.get((String)invocation.getParameter(0));
+        }
+      });
+    }});
+
+    myRoot = Files.createTempDirectory("runAs");
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    if(myRoot != null) {
+      delete(myRoot.toFile());
+    }
+  }
+
+  @DataProvider(name = "getSetPermissionsCases")
+  public Object[][] getSetPermissionsCases() {
+    return new Object[][] {
+      // a+rX for not executable file
+      { false, "rw-------", AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead), "rw-r--r--" },
+
+      // a+rX for executable file
+      { false, "rwx------", AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead), "rwxr-xr-x" },
+
+      // a+rX for directory
+      { true, "rw-------", AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), "rwxr-xr-x" },
+
+      // a+rXwx
+      { false, "r--------", AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.GrantExecute), "rwxrwxrwx" },
+
+      // a+w
+      { false, "r--r-----", AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantWrite), "rw-rw--w-" },
+
+      // a+x
+      { false, "rw-------", AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantExecute), "rwx--x--x" },
+
+      // go-rwx
+      { false, "rwxrwxrwx", AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.DenyRead, AccessPermissions.DenyWrite, AccessPermissions.DenyExecute), "rwx------" },
+
+      // a-w
+      { true, "rwxrwxrwx", AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyWrite), "r-xr-xr-x" },
+
+      // a+rX then go-r
+      { false, "rwx------", AccessControlAccount.forUser("user"), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.DenyRead), "rwx--x--x" },
+
+      // empty
+      { false, "rw-------", AccessControlAccount.forUser("user"), EnumSet.noneOf(AccessPermissions.class), "rw-------" },
+    };
+  }
+
+  @Test(dataProvider = "getSetPermissionsCases")
+  public void shouldSetPermissions(
+    final boolean isDirectory,
+    @NotNull final String initialPermissions,
+    @NotNull final AccessControlAccount account,
+    @NotNull final EnumSet<AccessPermissions> permissions,
+    @NotNull final String expectedPermissions) throws IOException {
+    // Given
+    final Path path = isDirectory ? Files.createDirectory(myRoot.resolve("dir")) : Files.createFile(myRoot.resolve("file"));
+    Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(initialPermissions));
+    final FileAccessService instance = createInstance();
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> results = toList(instance.setAccess(new AccessControlList(Collections.singletonList(new AccessControlEntry(path.toFile(), account, permissions, AccessControlScope.Step)))));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(path))).isEqualTo(expectedPermissions);
+    for (Result<AccessControlEntry, Boolean> result: results) {
+      then(result.getValue()).isEqualTo(true);
+    }
+  }
+
+  @Test
+  public void shouldSetPermissionsRecursively() throws IOException {
+    // Given
+    final Path dir = Files.createDirectories(myRoot.resolve("dir").resolve("subDir"));
+    final Path file = Files.createFile(dir.resolve("file"));
+    final Path script = Files.createFile(dir.resolve("script.sh"));
+    Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+    Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwx------"));
+    Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+    myParameters.put(Constants.RUN_AS_ACL_PARALLELISM, "2");
+    final FileAccessService instance = createInstance();
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> results = toList(instance.setAccess(new AccessControlList(Collections.singletonList(
+      new AccessControlEntry(myRoot.resolve("dir").toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step)))));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(results.size()).isEqualTo(1);
+    then(results.get(0).getValue()).isEqualTo(true);
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(dir))).isEqualTo("rwxr-xr-x");
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(file))).isEqualTo("rw-r--r--");
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(script))).isEqualTo("rwxr-xr-x");
+  }
+
+  @DataProvider(name = "getSpecialBitsCases")
+  public Object[][] getSpecialBitsCases() {
+    return new Object[][] {
+      // setgid
+      { 02700, false, 02755 },
+      { 02700, true, 02755 },
+
+      // sticky
+      { 01700, false, 01755 },
+      { 01700, true, 01755 },
+    };
+  }
+
+  @Test(dataProvider = "getSpecialBitsCases")
+  public void shouldKeepSpecialBits(final int initialMode, final boolean isRecursive, final int expectedMode) throws IOException {
+    // Given
+    if(!FileSystems.getDefault().supportedFileAttributeViews().contains("unix")) {
+      throw new SkipException("The unix:mode attribute is not supported");
+    }
+
+    final Path dir = Files.createDirectory(myRoot.resolve("dir"));
+    Files.setAttribute(dir, "unix:mode", initialMode);
+    final EnumSet<AccessPermissions> permissions = isRecursive ? EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive) : EnumSet.of(AccessPermissions.GrantRead);
+    final FileAccessService instance = createInstance();
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> results = toList(instance.setAccess(new AccessControlList(Collections.singletonList(
+      new AccessControlEntry(dir.toFile(), AccessControlAccount.forAll(), permissions, AccessControlScope.Step)))));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(results.get(0).getValue()).isEqualTo(true);
+    then(((Integer)Files.getAttribute(dir, "unix:mode")) & 07777).isEqualTo(expectedMode);
+  }
+
+  @DataProvider(name = "getDiffCases")
+  public Object[][] getDiffCases() {
+    return new Object[][] {
+      { null, 0L },
+      { "true", 0L },
+      { "false", 4L },
+    };
+  }
+
+  @Test(dataProvider = "getDiffCases")
+  public void shouldSkipFilesWhenPermissionsAreNotChanged(final String isDiffEnabled, final long expectedChangedCount) throws IOException {
+    // Given
+    final Path dir = Files.createDirectories(myRoot.resolve("dir").resolve("subDir"));
+    Files.createFile(dir.resolve("file"));
+    Files.createFile(dir.resolve("script.sh"));
+    myParameters.put(Constants.RUN_AS_ACL_DIFF_ENABLED, isDiffEnabled);
+    final FileAccessService instance = createInstance();
+    final AccessControlList acl = new AccessControlList(Collections.singletonList(
+      new AccessControlEntry(myRoot.resolve("dir").toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step)));
+    toList(instance.setAccess(acl));
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> results = toList(instance.setAccess(acl));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(results.size()).isEqualTo(1);
+    then(results.get(0).getValue()).isEqualTo(true);
+    final FileAccessStatistics statistics = ((FileAccessResult)results.get(0)).getStatistics();
+    then(statistics.getExaminedCount()).isEqualTo(4L);
+    then(statistics.getChangedCount()).isEqualTo(expectedChangedCount);
+    then(statistics.getSkippedCount()).isEqualTo(4L - expectedChangedCount);
+  }
+
+  @Test
+  public void shouldCountChangedFiles() throws IOException {
+    // Given
+    final Path dir = Files.createDirectories(myRoot.resolve("dir"));
+    final Path file = Files.createFile(dir.resolve("file"));
+    Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwxr-xr-x"));
+    Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+    final FileAccessService instance = createInstance();
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> results = toList(instance.setAccess(new AccessControlList(Collections.singletonList(
+      new AccessControlEntry(dir.toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.Recursive), AccessControlScope.Step)))));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(file))).isEqualTo("rw-r--r--");
+    final FileAccessStatistics statistics = ((FileAccessResult)results.get(0)).getStatistics();
+    then(statistics.getExaminedCount()).isEqualTo(2L);
+    then(statistics.getChangedCount()).isEqualTo(1L);
+    then(statistics.getSkippedCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void shouldReturnFalseWhenFileDoesNotExist() {
+    // Given
+    final FileAccessService instance = createInstance();
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> results = toList(instance.setAccess(new AccessControlList(Collections.singletonList(
+      new AccessControlEntry(myRoot.resolve("abc").toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step)))));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(results.size()).isEqualTo(1);
+    then(results.get(0).isSuccessful()).isEqualTo(true);
+    then(results.get(0).getValue()).isEqualTo(false);
+  }
+
+  @Test
+  public void shouldSetPermissionsByPatterns() throws IOException {
+    // Given
+    final Path bin = Files.createDirectories(myRoot.resolve("dir").resolve("tool").resolve("bin"));
+    final Path lib = Files.createDirectories(myRoot.resolve("dir").resolve("lib"));
+    final Path script = Files.createFile(bin.resolve("run.sh"));
+    final Path rootScript = Files.createFile(myRoot.resolve("dir").resolve("build.sh"));
+    final Path file = Files.createFile(bin.resolve("run.txt"));
+    final Path library = Files.createFile(lib.resolve("lib.so"));
+    for (Path path: Arrays.asList(script, rootScript, file, library)) {
+      Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+    }
+
+    final FileAccessService instance = createInstance();
+
+    // When
+    final List<Result<AccessControlEntry, Boolean>> results = toList(instance.setAccess(new AccessControlList(Arrays.asList(
+      new AccessControlEntry(myRoot.resolve("dir").resolve("**").resolve("bin").resolve("*.sh").toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Step),
+      new AccessControlEntry(myRoot.resolve("dir").resolve("l?b").resolve("*").toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead), AccessControlScope.Step)))));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(results.size()).isEqualTo(2);
+    then(results.get(0).getValue()).isEqualTo(true);
+    then(results.get(1).getValue()).isEqualTo(true);
+    then(((FileAccessResult)results.get(0)).getStatistics().getChangedCount()).isEqualTo(1L);
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(script))).isEqualTo("rwx--x--x");
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(rootScript))).isEqualTo("rw-------");
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(file))).isEqualTo("rw-------");
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(library))).isEqualTo("rw-r--r--");
+  }
+
+  @Test
+  public void shouldApplyMatchedPatternsInOrder() throws IOException {
+    // Given
+    final Path dir = Files.createDirectories(myRoot.resolve("dir"));
+    final Path script = Files.createFile(dir.resolve("run.sh"));
+    Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rw-------"));
+    final FileAccessService instance = createInstance();
+
+    // When
+    toList(instance.setAccess(new AccessControlList(Arrays.asList(
+      new AccessControlEntry(dir.resolve("*").toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.GrantRead, AccessPermissions.GrantWrite), AccessControlScope.Step),
+      new AccessControlEntry(myRoot.resolve("**").resolve("*.sh").toFile(), AccessControlAccount.forAll(), EnumSet.of(AccessPermissions.DenyWrite), AccessControlScope.Step)))));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(PosixFilePermissions.toString(Files.getPosixFilePermissions(script))).isEqualTo("r--r--r--");
+  }
+
+  @NotNull
+  private FileAccessService createInstance()
+  {
+    return new PosixFileAccessService(myFallbackFileAccessService, new ForkJoinFileTreeWalker(myAgentParametersService), myAgentParametersService);
+  }
+
+  @NotNull
+  private static List<Result<AccessControlEntry, Boolean>> toList(@NotNull final Iterable<Result<AccessControlEntry, Boolean>> results) {
+    final List<Result<AccessControlEntry, Boolean>> list = new ArrayList<Result<AccessControlEntry, Boolean>>();
+    for (Result<AccessControlEntry, Boolean> result: results) {
+      list.add(result);
+    }
+
+    return list;
+  }
+
+  private static void delete(@NotNull final File file) {
+    final File[] files = file.listFiles();
+    if(files != null) {
+      for (File child: files) {
+        delete(child);
+      }
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+}
@@ -0,0 +1,161 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class ProbeCacheImplTest {
+  private Mockery myCtx;
+  private PathsService myPathsService;
+  private File myConfigDirectory;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myCtx = new Mockery();
+    myPathsService = myCtx.mock(PathsService.class);
+    myConfigDirectory = Files.createTempDirectory("runAs").toFile();
+    myCtx.checking(new Expectations() {{
+      allowing(myPathsService).getPath(WellKnownPaths.Config);
+      will(returnValue(myConfigDirectory));
+    }});
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    delete(myConfigDirectory);
+  }
+
+  @Test
+  public void shouldRestoreStateWhenFingerprintWasNotChanged() {
+    // Given
+    createInstance().setState("abc", ProbeState.Supported);
+    final ProbeCache instance = createInstance();
+
+    // When
+    final ProbeState state = instance.tryGetState("abc");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(state).isEqualTo(ProbeState.Supported);
+  }
+
+  @Test
+  public void shouldNotRestoreStateWhenFingerprintWasChanged() {
+    // Given
+    createInstance().setState("abc", ProbeState.NotSupported);
+    final ProbeCache instance = createInstance();
+
+    // When
+    final ProbeState state = instance.tryGetState("xyz");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(state).isNull();
+  }
+
+  @Test
+  public void shouldNotStoreUnknownState() {
+    // Given
+    final ProbeCache instance = createInstance();
+    instance.setState("abc", ProbeState.Supported);
+
+    // When
+    instance.setState("abc", ProbeState.Unknown);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(instance.tryGetState("abc")).isEqualTo(ProbeState.Supported);
+  }
+
+  @Test
+  public void shouldNotRestoreStateWhenCacheIsCorrupted() throws IOException {
+    // Given
+    final File file = new File(new File(myConfigDirectory, ProbeCacheImpl.CACHE_DIRECTORY_NAME), ProbeCacheImpl.CACHE_FILE_NAME);
+    //noinspection ResultOfMethodCallIgnored
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), "fingerprint=abc\nstate=Something".getBytes("UTF-8"));
+    final ProbeCache instance = createInstance();
+
+    // When
+    final ProbeState state = instance.tryGetState("abc");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(state).isNull();
+  }
+
+  @Test
+  public void shouldResolveFileOnce() {
+    // Given
+    final Mockery ctx = new Mockery();
+    final PathsService pathsService = ctx.mock(PathsService.class);
+    ctx.checking(new Expectations() {{
+      oneOf(pathsService).getPath(WellKnownPaths.Config);
+      will(returnValue(myConfigDirectory));
+    }});
+
+    final ProbeCache instance = new ProbeCacheImpl(pathsService);
+
+    // When
+    instance.setState("abc", ProbeState.Supported);
+    instance.tryGetState("abc");
+    final ProbeState state = instance.tryGetState("abc");
+
+    // Then
+    ctx.assertIsSatisfied();
+    then(state).isEqualTo(ProbeState.Supported);
+  }
+
+  @Test
+  public void shouldCreateDirectoryForOwnerOnly() {
+    // Given
+    final ProbeCache instance = createInstance();
+
+    // When
+    instance.setState("abc", ProbeState.Supported);
+
+    // Then
+    myCtx.assertIsSatisfied();
+    final File dir = new File(myConfigDirectory, ProbeCacheImpl.CACHE_DIRECTORY_NAME);
+    then(dir.isDirectory()).isTrue();
+    if(dir.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      then(getPermissions(dir)).isEqualTo("rwx------");
+    }
+  }
+
+  @NotNull
+  private static String getPermissions(@NotNull final File file) {
+    try {
+      return PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath()));
+    }
+    catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @NotNull
+  private ProbeCache createInstance() {
+    return new ProbeCacheImpl(myPathsService);
+  }
+
+  private static void delete(@NotNull final File file) {
+    final File[] files = file.listFiles();
+    if(files != null) {
+      for (File child: files) {
+        delete(child);
+      }
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+}
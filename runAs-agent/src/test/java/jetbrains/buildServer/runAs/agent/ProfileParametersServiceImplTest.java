@@ -0,0 +1,368 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.dotNet.buildRunner.agent.FileService;
+import jetbrains.buildServer.runAs.common.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.util.NotImplementedException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class ProfileParametersServiceImplTest {
+  private Mockery myCtx;
+  private AgentParametersService myAgentParametersService;
+  private PathsService myPathsService;
+  private File myCredentialsDirectory;
+  private MyFileService myFileService;
+  private List<String> myUnscrambledValues;
+  private ProfileParametersService myWatchingInstance;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myCtx = new Mockery();
+    myAgentParametersService = myCtx.mock(AgentParametersService.class);
+    myPathsService = myCtx.mock(PathsService.class);
+    myCredentialsDirectory = Files.createTempDirectory("runAs").toFile();
+    myFileService = new MyFileService();
+    myUnscrambledValues = Collections.synchronizedList(new ArrayList<String>());
+    myCtx.checking(new Expectations() {{
+      allowing(myAgentParametersService).tryGetConfigParameter(Constants.CREDENTIALS_DIRECTORY);
+      will(returnValue(myCredentialsDirectory.getAbsolutePath()));
+    }});
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    if(myWatchingInstance != null) {
+      myWatchingInstance.stopWatching();
+      myWatchingInstance = null;
+    }
+
+    final File[] files = myCredentialsDirectory.listFiles();
+    if(files != null) {
+      for (File file: files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    myCredentialsDirectory.delete();
+  }
+
+  @Test
+  public void shouldLoadProfiles() throws IOException {
+    // Given
+    write("user1.properties", "teamcity.runAs.username=user1\nteamcity.runAs.password=pass1");
+    write("user2.properties", "teamcity.runAs.username=user2");
+    final ProfileParametersService instance = createInstance();
+
+    // When
+    instance.load();
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(instance.getProfiles().size()).isEqualTo(2);
+    then(instance.tryGetProperty("user1", "teamcity.runAs.password")).isEqualTo("pass1");
+    then(instance.tryGetProperty("user2.properties", "teamcity.runAs.username")).isEqualTo("user2");
+  }
+
+  @Test
+  public void shouldNotReadUnchangedFilesAgain() throws IOException {
+    // Given
+    write("user1.properties", "teamcity.runAs.username=user1");
+    write("user2.properties", "teamcity.runAs.username=user2");
+    final ProfileParametersService instance = createInstance();
+    instance.load();
+    instance.tryGetProperty("user1", "teamcity.runAs.username");
+    myUnscrambledValues.clear();
+
+    // When
+    instance.load();
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(instance.tryGetProperty("user1", "teamcity.runAs.username")).isEqualTo("user1");
+    then(myUnscrambledValues.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldReloadChangedFilesOnly() throws IOException {
+    // Given
+    write("user1.properties", "teamcity.runAs.username=user1");
+    write("user2.properties", "teamcity.runAs.username=user2");
+    final ProfileParametersService instance = createInstance();
+    instance.load();
+    instance.tryGetProperty("user1", "teamcity.runAs.username");
+    instance.tryGetProperty("user2", "teamcity.runAs.username");
+    myUnscrambledValues.clear();
+
+    // When
+    write("user2.properties", "teamcity.runAs.username=user22");
+    instance.load();
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(instance.tryGetProperty("user1", "teamcity.runAs.username")).isEqualTo("user1");
+    then(instance.tryGetProperty("user2", "teamcity.runAs.username")).isEqualTo("user22");
+    then(myUnscrambledValues).containsExactly("user22");
+  }
+
+  @Test
+  public void shouldNotParseTouchedFileAgain() throws IOException {
+    // Given
+    write("user1.properties", "teamcity.runAs.username=user1");
+    final ProfileParametersService instance = createInstance();
+    instance.load();
+    instance.tryGetProperty("user1", "teamcity.runAs.username");
+    myUnscrambledValues.clear();
+
+    // When
+    final File file = new File(myCredentialsDirectory, "user1.properties");
+    //noinspection ResultOfMethodCallIgnored
+    file.setLastModified(file.lastModified() + 10000);
+    instance.load();
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(instance.tryGetProperty("user1", "teamcity.runAs.username")).isEqualTo("user1");
+    then(myUnscrambledValues.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldNotUnscrambleValuesUntilTheyAreUsed() throws IOException {
+    // Given
+    write("user1.properties", "teamcity.runAs.username=user1\nteamcity.runAs.password=pass1");
+    write("user2.properties", "teamcity.runAs.username=user2\nteamcity.runAs.password=pass2");
+    final ProfileParametersService instance = createInstance();
+
+    // When
+    instance.load();
+    final String password = instance.tryGetProperty("user2", "teamcity.runAs.password");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(password).isEqualTo("pass2");
+    then(myUnscrambledValues).containsExactly("pass2");
+  }
+
+  @Test
+  public void shouldUnscrambleValueOnce() throws IOException {
+    // Given
+    write("user1.properties", "teamcity.runAs.password=pass1");
+    final ProfileParametersService instance = createInstance();
+    instance.load();
+
+    // When
+    instance.tryGetProperty("user1", "teamcity.runAs.password");
+    instance.tryGetProperty("user1", "teamcity.runAs.password");
+    instance.tryGetProperty("user1", "teamcity.runAs.username");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(myUnscrambledValues).containsExactly("pass1");
+  }
+
+  @Test
+  public void shouldUnscrambleValueAgainWhenSecretsWereReleased() throws IOException {
+    // Given
+    write("user1.properties", "teamcity.runAs.password=pass1");
+    final ProfileParametersService instance = createInstance();
+    instance.load();
+    instance.tryGetProperty("user1", "teamcity.runAs.password");
+
+    // When
+    instance.releaseSecrets();
+    final String password = instance.tryGetProperty("user1", "teamcity.runAs.password");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(password).isEqualTo("pass1");
+    then(myUnscrambledValues).containsExactly("pass1", "pass1");
+  }
+
+  @Test
+  public void shouldDropRemovedFiles() throws IOException {
+    // Given
+    write("user1.properties", "teamcity.runAs.username=user1");
+    write("user2.properties", "teamcity.runAs.username=user2");
+    final ProfileParametersService instance = createInstance();
+    instance.load();
+
+    // When
+    //noinspection ResultOfMethodCallIgnored
+    new File(myCredentialsDirectory, "user2.properties").delete();
+    instance.load();
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(instance.getProfiles().size()).isEqualTo(1);
+    then(instance.tryGetProperty("user2", "teamcity.runAs.username")).isNull();
+  }
+
+  @Test
+  public void shouldNotAccessFilesWhenDirectoryIsWatched() throws IOException {
+    // Given
+    write("user1.properties", "teamcity.runAs.username=user1");
+    final ProfileParametersService instance = createWatchingInstance();
+    instance.load();
+    instance.tryGetProperty("user1", "teamcity.runAs.username");
+    myUnscrambledValues.clear();
+    myFileService.resetAccessCount();
+
+    // When
+    instance.load();
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(myFileService.getAccessCount()).isEqualTo(0);
+    then(instance.tryGetProperty("user1", "teamcity.runAs.username")).isEqualTo("user1");
+    then(myUnscrambledValues.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldReloadChangedProfilesInBackground() throws IOException, InterruptedException {
+    // Given
+    write("user1.properties", "teamcity.runAs.username=user1");
+    final ProfileParametersService instance = createWatchingInstance();
+    instance.startWatching(myCredentialsDirectory.getAbsolutePath());
+
+    // When
+    write("user1.properties", "teamcity.runAs.username=user11");
+    write("user2.properties", "teamcity.runAs.username=user2");
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (System.currentTimeMillis() < deadline && (!"user11".equals(instance.tryGetProperty("user1", "teamcity.runAs.username")) || instance.getProfiles().size() != 2)) {
+      Thread.sleep(50);
+    }
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(instance.tryGetProperty("user1", "teamcity.runAs.username")).isEqualTo("user11");
+    then(instance.tryGetProperty("user2", "teamcity.runAs.username")).isEqualTo("user2");
+  }
+
+  @NotNull
+  private ProfileParametersService createInstance() {
+    return createInstance(false);
+  }
+
+  @NotNull
+  private ProfileParametersService createWatchingInstance() {
+    myWatchingInstance = createInstance(true);
+    return myWatchingInstance;
+  }
+
+  @NotNull
+  private ProfileParametersService createInstance(final boolean isWatchingEnabled) {
+    return new ProfileParametersServiceImpl(
+      myAgentParametersService,
+      myPathsService,
+      myFileService,
+      new CryptographicService() {
+        @Nullable
+        @Override
+        public String unscramble(@Nullable final String encryptedString) {
+          myUnscrambledValues.add(encryptedString);
+          return encryptedString;
+        }
+      },
+      isWatchingEnabled);
+  }
+
+  private void write(@NotNull final String fileName, @NotNull final String content) throws IOException {
+    final File file = new File(myCredentialsDirectory, fileName);
+    final long lastModified = file.lastModified();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    // the file system could have a low resolution of timestamps
+    //noinspection ResultOfMethodCallIgnored
+    file.setLastModified(Math.max(file.lastModified(), lastModified + 1000));
+  }
+
+  private static class MyFileService implements FileService {
+    private final AtomicInteger myAccessCount = new AtomicInteger();
+
+    int getAccessCount() {
+      return myAccessCount.get();
+    }
+
+    void resetAccessCount() {
+      myAccessCount.set(0);
+    }
+
+    @Override
+    public void validatePath(@NotNull final File file) {
+    }
+
+    @NotNull
+    @Override
+    public File getCheckoutDirectory() {
+      throw new NotImplementedException();
+    }
+
+    @NotNull
+    @Override
+    public File getTempDirectory() {
+      throw new NotImplementedException();
+    }
+
+    @NotNull
+    @Override
+    public File getTempFileName(@NotNull final String s) {
+      throw new NotImplementedException();
+    }
+
+    @NotNull
+    @Override
+    public File getRelativePath(@NotNull final File file, @NotNull final File file1) {
+      throw new NotImplementedException();
+    }
+
+    @Override
+    public boolean isDirectory(@NotNull final File file) {
+      myAccessCount.incrementAndGet();
+      return file.isDirectory();
+    }
+
+    @Override
+    public boolean exists(@NotNull final File file) {
+      myAccessCount.incrementAndGet();
+      return file.exists();
+    }
+
+    @Override
+    public boolean isAbsolute(@NotNull final File file) {
+      return file.isAbsolute();
+    }
+
+    @NotNull
+    @Override
+    public File[] listFiles(@NotNull final File file) {
+      myAccessCount.incrementAndGet();
+      final File[] files = file.listFiles();
+      return files != null ? files : new File[0];
+    }
+
+    @Override
+    public String readAllTextFile(@NotNull final File file) throws IOException {
+      throw new NotImplementedException();
+    }
+
+    @Override
+    public void writeAllTextFile(@NotNull final String s, @NotNull final File file) throws IOException {
+      throw new NotImplementedException();
+    }
+  }
+}
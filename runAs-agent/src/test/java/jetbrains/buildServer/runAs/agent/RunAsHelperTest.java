@@ -0,0 +1,35 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class RunAsHelperTest {
+  @Test
+  public void shouldReplyErrorWhenRequestHasInvalidEscape() {
+    // Given
+    final StringWriter writer = new StringWriter();
+    final RunAsHelper instance = new RunAsHelper(writer);
+
+    // When
+    instance.process("12\t60\tchmod\ta\\qb");
+
+    // Then
+    then(LineFields.split(writer.toString().trim())).isEqualTo(Arrays.asList("12", RunAsHelper.STATUS_ERROR, "Invalid request: Invalid escape sequence"));
+  }
+
+  @Test
+  public void shouldReplyErrorWhenRequestHasNoCommand() {
+    // Given
+    final StringWriter writer = new StringWriter();
+    final RunAsHelper instance = new RunAsHelper(writer);
+
+    // When
+    instance.process("12\t60");
+
+    // Then
+    then(LineFields.split(writer.toString().trim())).isEqualTo(Arrays.asList("12", RunAsHelper.STATUS_ERROR, "Invalid request"));
+  }
+}
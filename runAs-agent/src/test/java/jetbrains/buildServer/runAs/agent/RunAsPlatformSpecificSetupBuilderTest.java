@@ -12,6 +12,7 @@ import jetbrains.buildServer.runAs.common.LoggingLevel;
 import jetbrains.buildServer.runAs.common.WindowsIntegrityLevel;
 import jetbrains.buildServer.util.Bitness;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.api.Invocation;
@@ -26,7 +27,6 @@ public class RunAsPlatformSpecificSetupBuilderTest {
   private Mockery myCtx;
   private FileService myFileService;
   private RunAsLogger myRunAsLogger;
-  private ResourcePublisher myBeforeBuildPublisher;
   private ResourceGenerator<UserCredentials> myCredentialsGenerator;
   private CommandLineResource myCommandLineResource1;
   private CommandLineResource myCommandLineResource2;
@@ -36,8 +36,14 @@ public class RunAsPlatformSpecificSetupBuilderTest {
   private FileAccessService myFileAccessService;
   private RunnerParametersService myRunnerParametersService;
   private AccessControlListProvider myAccessControlListProvider;
+  private AccessControlListCompiler myAccessControlListCompiler;
   private BuildAgentSystemInfo myBuildAgentSystemInfo;
   private RunAsAccessService myRunAsAccessService;
+  private TempFilesCheckCache myTempFilesCheckCache;
+  private AuthenticationCache myAuthenticationCache;
+  private ContentAddressedFileService myContentAddressedFileService;
+  private SudoAccessService mySudoAccessService;
+  private CommandLineExecutor myCommandLineExecutor;
   private Converter<String, String> myArgumentConverter;
 
   @BeforeMethod
@@ -50,7 +56,7 @@ public class RunAsPlatformSpecificSetupBuilderTest {
     myFileService = myCtx.mock(FileService.class);
     myBuildAgentSystemInfo = myCtx.mock(BuildAgentSystemInfo.class);
     myAccessControlListProvider = myCtx.mock(AccessControlListProvider.class);
-    myBeforeBuildPublisher = myCtx.mock(ResourcePublisher.class);
+    myAccessControlListCompiler = myCtx.mock(AccessControlListCompiler.class);
     myAccessControlResource = myCtx.mock(AccessControlResource.class);
     //noinspection unchecked
     myCredentialsGenerator = (ResourceGenerator<UserCredentials>)myCtx.mock(ResourceGenerator.class, "WindowsSettingsGenerator");
@@ -61,15 +67,35 @@ public class RunAsPlatformSpecificSetupBuilderTest {
     myCommandLineResource2 = myCtx.mock(CommandLineResource.class, "Res2");
     myFileAccessService = myCtx.mock(FileAccessService.class);
     myRunAsAccessService = myCtx.mock(RunAsAccessService.class);
+    myTempFilesCheckCache = myCtx.mock(TempFilesCheckCache.class);
+    myAuthenticationCache = myCtx.mock(AuthenticationCache.class);
+    myContentAddressedFileService = myCtx.mock(ContentAddressedFileService.class);
+    mySudoAccessService = myCtx.mock(SudoAccessService.class);
+    myCommandLineExecutor = myCtx.mock(CommandLineExecutor.class);
     //noinspection unchecked
     myArgumentConverter = (Converter<String, String>)myCtx.mock(Converter.class);
   }
 
-  @Test()
-  public void shouldBuildSetup() throws IOException {
+  @DataProvider(name = "launcherCases")
+  public Object[][] getLauncherCases() {
+    return new Object[][] {
+      { null, false, false, false },
+      { Constants.RUN_AS_LAUNCHER_SOCAT, false, false, false },
+      { Constants.RUN_AS_LAUNCHER_PTY, false, true, false },
+      { "PTY", false, true, false },
+      { Constants.RUN_AS_LAUNCHER_PTY, true, false, false },
+      { null, false, false, true },
+      { null, true, false, true },
+    };
+  }
+
+  @Test(dataProvider = "launcherCases")
+  public void shouldBuildSetup(@Nullable final String launcher, final boolean isRunningUnderWindows, final boolean usePtyLauncher, final boolean isSudoAllowed) throws IOException {
     // Given
-    final File credentialsFile = new File("credentials");
-    final File cmdFile = new File("command");
+    final File tempDirectory = new File("temp").getAbsoluteFile();
+    final File filesDirectory = new File("runAs").getAbsoluteFile();
+    final File credentialsFile = new File(filesDirectory, "credentials");
+    final File cmdFile = new File(filesDirectory, "command");
     final String toolName = "my tool";
     final String runAsToolPath = "runAsPath";
     final File runAsTool = new File(runAsToolPath, RunAsPlatformSpecificSetupBuilder.TOOL_FILE_NAME + ".abc");
@@ -87,19 +113,23 @@ public class RunAsPlatformSpecificSetupBuilderTest {
     final List<CommandLineArgument> additionalArgs = Arrays.asList(new CommandLineArgument("arg1", CommandLineArgument.Type.PARAMETER), new CommandLineArgument("arg 2", CommandLineArgument.Type.PARAMETER));
     final UserCredentials userCredentials = new UserCredentials("profile", user, password, WindowsIntegrityLevel.Auto, LoggingLevel.Off, additionalArgs);
     final AccessControlList stepAcl = new AccessControlList(Arrays.asList(someAce));
-    final CommandLineSetup runAsCommandLineSetup = new CommandLineSetup(
-      runAsTool.getAbsolutePath(),
-      Arrays.asList(
-        new CommandLineArgument(credentialsFile.getAbsolutePath(), CommandLineArgument.Type.PARAMETER),
-        new CommandLineArgument(cmdFile.getAbsolutePath(), CommandLineArgument.Type.PARAMETER),
-        new CommandLineArgument("64", CommandLineArgument.Type.PARAMETER),
-        new CommandLineArgument("'" + password + "'", CommandLineArgument.Type.PARAMETER)),
-      Arrays.asList(
-        myCommandLineResource1,
-        myCommandLineResource2,
-        new CommandLineFile(myBeforeBuildPublisher, credentialsFile.getAbsoluteFile(), credentialsContent),
-        new CommandLineFile(myBeforeBuildPublisher, cmdFile.getAbsoluteFile(), cmdContent),
-        myAccessControlResource));
+    final AccessControlList compiledAcl = new AccessControlList(Arrays.asList(someAce));
+    final File probeFile = new File(tempDirectory, RunAsPlatformSpecificSetupBuilder.PROBE_FILE_PREFIX + cmdFile.getName());
+    final String flags = isRunningUnderWindows ? "skipTempFilesCheck" : (isSudoAllowed ? "skipTempFilesCheck,preAuthenticated,sudo" : "skipTempFilesCheck,preAuthenticated");
+    final CommandLineSetup probeSetup = createRunAsSetup(usePtyLauncher, runAsTool, credentialsFile, probeFile, password, flags, Collections.<CommandLineResource>emptyList());
+    final List<CommandLineResource> runAsResources = new ArrayList<CommandLineResource>(Arrays.asList(
+      myCommandLineResource1,
+      myCommandLineResource2,
+      new ContentAddressedFile(myFileService, credentialsFile, credentialsContent, false),
+      new ContentAddressedFile(myFileService, cmdFile, cmdContent, true),
+      myAccessControlResource));
+    if(!isRunningUnderWindows) {
+      final CommandLineSetup authSetup = createRunAsSetup(usePtyLauncher, runAsTool, credentialsFile, cmdFile, password, "authOnly", Collections.<CommandLineResource>emptyList());
+      runAsResources.add(new AuthenticationCheckResource(myAuthenticationCache, myCommandLineExecutor, user, password, authSetup));
+    }
+
+    runAsResources.add(new TempFilesCheckResource(myTempFilesCheckCache, myCommandLineExecutor, user, tempDirectory, probeFile, probeSetup));
+    final CommandLineSetup runAsCommandLineSetup = createRunAsSetup(usePtyLauncher, runAsTool, credentialsFile, cmdFile, password, flags, runAsResources);
 
     myCtx.checking(new Expectations() {{
       oneOf(myRunAsAccessService).getIsRunAsEnabled();
@@ -111,13 +141,19 @@ public class RunAsPlatformSpecificSetupBuilderTest {
       oneOf(myAccessControlListProvider).getAcl(userCredentials);
       will(returnValue(stepAcl));
 
-      oneOf(myFileService).getTempFileName(RunAsPlatformSpecificSetupBuilder.ARGS_EXT);
+      oneOf(myFileService).getTempDirectory();
+      will(returnValue(tempDirectory));
+
+      oneOf(myContentAddressedFileService).getDirectory();
+      will(returnValue(filesDirectory));
+
+      oneOf(myContentAddressedFileService).getFile(filesDirectory, credentialsContent, RunAsPlatformSpecificSetupBuilder.ARGS_EXT);
       will(returnValue(credentialsFile));
 
-      oneOf(myBuildAgentSystemInfo).bitness();
+      allowing(myBuildAgentSystemInfo).bitness();
       will(returnValue(Bitness.BIT64));
 
-      oneOf(myFileService).getTempFileName(".abc");
+      oneOf(myContentAddressedFileService).getFile(filesDirectory, cmdContent, ".abc");
       will(returnValue(cmdFile));
 
       oneOf(myCredentialsGenerator).create(with(userCredentials));
@@ -131,13 +167,25 @@ public class RunAsPlatformSpecificSetupBuilderTest {
 
       oneOf(myFileService).validatePath(runAsTool);
 
+      allowing(myRunnerParametersService).isRunningUnderWindows();
+      will(returnValue(isRunningUnderWindows));
+
+      allowing(myRunnerParametersService).tryGetConfigParameter(Constants.RUN_AS_LAUNCHER);
+      will(returnValue(launcher));
+
+      allowing(mySudoAccessService).isAllowed(user);
+      will(returnValue(isSudoAllowed));
+
       never(myFileAccessService).setAccess(with(any(AccessControlList.class)));
 
-      oneOf(myAccessControlResource).setAcl(
+      oneOf(myAccessControlListCompiler).compile(
         new AccessControlList(Arrays.asList(
           someAce,
-          new AccessControlEntry(cmdFile, AccessControlAccount.forUser(user), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Step),
+          new AccessControlEntry(cmdFile, AccessControlAccount.forUser(user), EnumSet.of(AccessPermissions.GrantExecute), isRunningUnderWindows ? AccessControlScope.Step : AccessControlScope.Build),
           new AccessControlEntry(runAsTool, AccessControlAccount.forUser(user), EnumSet.of(AccessPermissions.GrantExecute), AccessControlScope.Build))));
+      will(returnValue(compiledAcl));
+
+      oneOf(myAccessControlResource).setAcl(compiledAcl);
 
       oneOf(myRunAsLogger).LogRunAs(userCredentials, commandLineSetup, runAsCommandLineSetup);
 
@@ -159,6 +207,12 @@ public class RunAsPlatformSpecificSetupBuilderTest {
 
     myCtx.assertIsSatisfied();
     then(setup).isEqualTo(runAsCommandLineSetup);
+    then(LogUtils.toString(setup).contains("'" + password + "'")).isFalse();
+    for (CommandLineResource resource: setup.getResources()) {
+      if(resource instanceof AuthenticationCheckResource) {
+        then(LogUtils.toString(((AuthenticationCheckResource)resource).getAuthSetup()).contains("'" + password + "'")).isFalse();
+      }
+    }
   }
 
   @Test()
@@ -224,6 +278,34 @@ public class RunAsPlatformSpecificSetupBuilderTest {
     };
   }
 
+  @NotNull
+  private static CommandLineSetup createRunAsSetup(
+    final boolean usePtyLauncher,
+    @NotNull final File runAsTool,
+    @NotNull final File credentialsFile,
+    @NotNull final File cmdFile,
+    @NotNull final String password,
+    @NotNull final String flags,
+    @NotNull final List<CommandLineResource> resources) throws IOException {
+    final List<CommandLineArgument> runAsArgs = new ArrayList<CommandLineArgument>();
+    if(usePtyLauncher) {
+      runAsArgs.add(new CommandLineArgument(RunAsPtyLauncher.JAVA_ENV_VAR + "=" + RunAsPtyLauncher.getJava().getPath(), CommandLineArgument.Type.PARAMETER));
+      runAsArgs.add(new CommandLineArgument(RunAsPtyLauncher.CLASSPATH_ENV_VAR + "=" + RunAsPtyLauncher.getClassPath().getPath(), CommandLineArgument.Type.PARAMETER));
+      runAsArgs.add(new CommandLineArgument(runAsTool.getAbsolutePath(), CommandLineArgument.Type.PARAMETER));
+    }
+
+    runAsArgs.addAll(Arrays.asList(
+      new CommandLineArgument(credentialsFile.getAbsolutePath(), CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument(cmdFile.getAbsolutePath(), CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument("64", CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument("'" + password + "'", CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument(flags, CommandLineArgument.Type.PARAMETER)));
+    return new CommandLineSetup(
+      usePtyLauncher ? RunAsPlatformSpecificSetupBuilder.ENV_TOOL_PATH : runAsTool.getAbsolutePath(),
+      runAsArgs,
+      resources);
+  }
+
   @NotNull
   private CommandLineSetupBuilder createInstance()
   {
@@ -233,13 +315,18 @@ public class RunAsPlatformSpecificSetupBuilderTest {
       myFileService,
       myBuildAgentSystemInfo,
       myAccessControlListProvider,
-      myBeforeBuildPublisher,
+      myAccessControlListCompiler,
       myAccessControlResource,
       myCredentialsGenerator,
       myArgsGenerator,
       myFileAccessService,
       myRunAsLogger,
       myRunAsAccessService,
+      myTempFilesCheckCache,
+      myAuthenticationCache,
+      myContentAddressedFileService,
+      mySudoAccessService,
+      myCommandLineExecutor,
       myArgumentConverter,
       ".abc");
   }
@@ -0,0 +1,93 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class RunAsPtyLauncherTest {
+  private static final Charset OurCharset = Charset.forName("UTF-8");
+
+  @DataProvider(name = "runCases")
+  public Object[][] getRunCases() {
+    return new Object[][] {
+      { "printf 'Password: '; read p; echo \"got $p\"; exit 3", 3, "got secret\n" },
+      { "printf 'Pass'; sleep .2; printf 'word: \\r\\n'; read p; echo \"got $p\"", 0, "got secret\n" },
+      { "echo line1; printf 'password:'; read p; printf '\\n'; echo \"got $p\"", 0, "line1\ngot secret\n" },
+      { "echo line1; printf 'su: Password: '; read p; echo \"got $p\"", 0, "line1\ngot secret\n" },
+      { "echo no prompt; exit 2", 2, "no prompt\n" },
+      { "printf 'bassword'; exit 1", 1, "bassword" },
+      { "printf 'su: Authentication failure:\\n'; exit 1", 1, "su: Authentication failure:\n" },
+      { "printf 'Passwort: '; read p; echo \"got $p\"", 0, "got secret\n" },
+      { "printf 'Mot de passe : '; read p; echo \"got $p\"", 0, "got secret\n" },
+      { "printf '\\320\\237\\320\\260\\321\\200\\320\\276\\320\\273\\321\\214: '; read p; echo \"got $p\"", 0, "got secret\n" },
+      { "printf '\\345\\257\\206\\347\\240\\201\\357\\274\\232'; read p; echo \"got $p\"", 0, "got secret\n" },
+    };
+  }
+
+  @Test(dataProvider = "runCases")
+  public void shouldSendPasswordOnPrompt(@NotNull final String script, final int expectedExitCode, @NotNull final String expectedOutput) throws IOException, InterruptedException {
+    // Given
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final RunAsPtyLauncher instance = new RunAsPtyLauncher(output);
+
+    // When
+    final int exitCode = instance.run(new ProcessBuilder("sh", "-c", script), "secret".getBytes(OurCharset), 5000);
+
+    // Then
+    then(Arrays.<Object>asList(script, exitCode, new String(output.toByteArray(), OurCharset))).isEqualTo(Arrays.<Object>asList(script, expectedExitCode, expectedOutput));
+  }
+
+  @Test
+  public void shouldFailWhenHasNoPromptInTime() throws IOException, InterruptedException {
+    // Given
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final RunAsPtyLauncher instance = new RunAsPtyLauncher(output);
+
+    // When
+    final int exitCode = instance.run(new ProcessBuilder("sh", "-c", "sleep 10"), "secret".getBytes(OurCharset), 200);
+
+    // Then
+    then(exitCode).isEqualTo(RunAsPtyLauncher.ERROR_EXIT_CODE);
+    then(new String(output.toByteArray(), OurCharset)).isEqualTo("##teamcity[message text='Error during sending password' status='ERROR']\n");
+  }
+
+  @Test
+  public void shouldFailWhenCannotStartProcess() throws IOException, InterruptedException {
+    // Given
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final RunAsPtyLauncher instance = new RunAsPtyLauncher(output);
+
+    // When
+    final int exitCode = instance.run(new ProcessBuilder("runAs_unknown_tool"), "secret".getBytes(OurCharset), 200);
+
+    // Then
+    then(exitCode).isEqualTo(RunAsPtyLauncher.ERROR_EXIT_CODE);
+    then(new String(output.toByteArray(), OurCharset).startsWith("##teamcity[message text='Cannot start \"runAs_unknown_tool\"")).isTrue();
+  }
+
+  @DataProvider(name = "suCommandCases")
+  public Object[][] getSuCommandCases() {
+    return new Object[][] {
+      { "/tmp/cmd.sh", "user", "su -c '\"/tmp/cmd.sh\"' 'user'" },
+      { "/tmp/my cmd.sh", "user -l", "su -c '\"/tmp/my cmd.sh\"' 'user -l'" },
+      { "/tmp/it's.sh", "us'er", "su -c '\"/tmp/it'\\''s.sh\"' 'us'\\''er'" },
+    };
+  }
+
+  @Test(dataProvider = "suCommandCases")
+  public void shouldCreateSuCommand(@NotNull final String command, @NotNull final String args, @NotNull final String expectedSuCommand) {
+    // Given
+
+    // When
+    final String actualSuCommand = RunAsPtyLauncher.createSuCommand(command, args);
+
+    // Then
+    then(actualSuCommand).isEqualTo(expectedSuCommand);
+  }
+}
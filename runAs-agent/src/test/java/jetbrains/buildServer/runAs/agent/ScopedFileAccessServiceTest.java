@@ -4,6 +4,7 @@ package jetbrains.buildServer.runAs.agent;
 
 import com.intellij.execution.ExecutionException;
 import java.io.File;
+import java.nio.file.Path;
 import java.util.*;
 import jetbrains.buildServer.dotNet.buildRunner.agent.LoggerService;
 import jetbrains.buildServer.messages.serviceMessages.Message;
@@ -12,6 +13,7 @@ import org.assertj.core.util.Lists;
 import org.hamcrest.BaseMatcher;
 import org.hamcrest.Description;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.api.Invocation;
@@ -319,6 +321,89 @@ public class ScopedFileAccessServiceTest {
     myCtx.assertIsSatisfied();
   }
 
+  @Test
+  public void shouldApplyGrantUnderDeniedFilesOfCachedAncestor() throws ExecutionException {
+    // Given
+    final AccessControlEntry grantAll = new AccessControlEntry(new File("co"), AccessControlAccount.forUser("user1"), EnumSet.of(AccessPermissions.Recursive, AccessPermissions.GrantRead, AccessPermissions.GrantWrite, AccessPermissions.GrantExecute), AccessControlScope.Build);
+    final AccessControlEntry denyWrite = new AccessControlEntry(new File("co", "secret"), AccessControlAccount.forUser("user1"), EnumSet.of(AccessPermissions.DenyWrite), AccessControlScope.Step);
+    final AccessControlEntry grantWrite = new AccessControlEntry(new File(new File("co", "secret"), "x"), AccessControlAccount.forUser("user1"), EnumSet.of(AccessPermissions.GrantWrite), AccessControlScope.Build);
+    final List<AccessControlList> actualAccessControlLists = new ArrayList<AccessControlList>();
+    final FileAccessService instance = new ScopedFileAccessService(
+      myFileAccessService,
+      myLoggerService,
+      createHierarchicalCache(),
+      createHierarchicalCache());
+
+    myCtx.checking(new Expectations() {{
+      allowing(myFileAccessService).setAccess(with(any(AccessControlList.class)));
+      will(new CustomAction("setAccess") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          actualAccessControlLists.add((AccessControlList)invocation.getParameter(0));
+          return Lists.emptyList();
+        }
+      });
+    }});
+
+    // When
+    instance.setAccess(new AccessControlList(Arrays.asList(grantAll, denyWrite)));
+    instance.setAccess(new AccessControlList(Arrays.asList(grantAll, denyWrite, grantWrite)));
+    instance.setAccess(new AccessControlList(Arrays.asList(grantAll, denyWrite, grantWrite)));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(actualAccessControlLists).isEqualTo(Arrays.asList(
+      new AccessControlList(Arrays.asList(grantAll, denyWrite)),
+      new AccessControlList(Arrays.asList(denyWrite, grantWrite)),
+      new AccessControlList(Arrays.asList(denyWrite))));
+  }
+
+  @Test
+  public void shouldReportResultsToCaches() throws ExecutionException {
+    // Given
+    final AccessControlEntry globalAce = createAce("global_file", AccessControlScope.Global);
+    final AccessControlEntry buildAce = createAce("build_file", AccessControlScope.Build);
+    final AccessControlEntry stepAce = createAce("step_file", AccessControlScope.Step);
+    final FileAccessService instance = createInstance();
+
+    myCtx.checking(new Expectations() {{
+      allowing(myLoggerService).onMessage(with(any(ServiceMessage.class)));
+
+      oneOf(myFileAccessService).setAccess(new AccessControlList(Arrays.asList(globalAce, buildAce, stepAce)));
+      will(returnValue(Arrays.asList(
+        new Result<AccessControlEntry, Boolean>(globalAce, false),
+        new Result<AccessControlEntry, Boolean>(buildAce, new Exception("error")),
+        new Result<AccessControlEntry, Boolean>(stepAce, false))));
+    }});
+
+    // When
+    instance.setAccess(new AccessControlList(Arrays.asList(globalAce, buildAce, stepAce)));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(myGlobalFileAccessCache.getFailedAcls()).isEqualTo(Collections.singleton(globalAce));
+    then(myBuildFileAccessCache.getFailedAcls()).isEqualTo(Collections.singleton(buildAce));
+  }
+
+  @NotNull
+  private static HierarchicalFileAccessCache createHierarchicalCache() {
+    return new HierarchicalFileAccessCache(
+      new FileStampService() {
+        @Nullable
+        @Override
+        public String tryGetStamp(@NotNull final Path path) {
+          return null;
+        }
+      },
+      new AgentParametersService() {
+        @Nullable
+        @Override
+        public String tryGetConfigParameter(@NotNull final String parameterName) {
+          return null;
+        }
+      });
+  }
+
   @NotNull
   private FileAccessService createInstance()
   {
@@ -335,6 +420,7 @@ public class ScopedFileAccessServiceTest {
 
   private static class MyFileAccessCache implements FileAccessCache {
     private final HashSet<AccessControlEntry> myAcls = new HashSet<AccessControlEntry>();
+    private final HashSet<AccessControlEntry> myFailedAcls = new HashSet<AccessControlEntry>();
 
     int size() {
       return myAcls.size();
@@ -344,5 +430,21 @@ public class ScopedFileAccessServiceTest {
     public boolean tryAddEntry(@NotNull final AccessControlEntry acl) {
       return myAcls.add(acl);
     }
+
+    @Override
+    public void invalidate(@NotNull final AccessControlEntry acl) {
+    }
+
+    @Override
+    public void setApplied(@NotNull final AccessControlEntry acl, final boolean isSuccessful) {
+      if(!isSuccessful) {
+        myFailedAcls.add(acl);
+      }
+    }
+
+    @NotNull
+    Set<AccessControlEntry> getFailedAcls() {
+      return myFailedAcls;
+    }
   }
 }
\ No newline at end of file
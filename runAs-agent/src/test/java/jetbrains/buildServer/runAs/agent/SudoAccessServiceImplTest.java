@@ -0,0 +1,131 @@
+package jetbrains.buildServer.runAs.agent;
+
+import com.intellij.execution.ExecutionException;
+import java.util.Arrays;
+import java.util.Collections;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class SudoAccessServiceImplTest {
+  private static final CommandLineSetup OurSudoSetup = new CommandLineSetup(
+    "sudo",
+    Arrays.asList(
+      new CommandLineArgument("-n", CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument("-E", CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument("-u", CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument("nik", CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument("--", CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument("/usr/bin/env", CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument("PATH=/usr/bin:/bin", CommandLineArgument.Type.PARAMETER),
+      new CommandLineArgument("true", CommandLineArgument.Type.PARAMETER)),
+    Collections.<CommandLineResource>emptyList());
+  private Mockery myCtx;
+  private RunAsAccessService myRunAsAccessService;
+  private CommandLineExecutor myCommandLineExecutor;
+
+  @BeforeMethod
+  public void setUp() {
+    myCtx = new Mockery();
+    myRunAsAccessService = myCtx.mock(RunAsAccessService.class);
+    myCommandLineExecutor = myCtx.mock(CommandLineExecutor.class);
+  }
+
+  @DataProvider(name = "exitCodeCases")
+  public Object[][] getExitCodeCases() {
+    return new Object[][] {
+      { 0, true },
+      { 1, false },
+    };
+  }
+
+  @Test(dataProvider = "exitCodeCases")
+  public void shouldCheckUserOnce(final int exitCode, final boolean expectedIsAllowed) throws ExecutionException {
+    // Given
+    myCtx.checking(new Expectations() {{
+      allowing(myRunAsAccessService).getIsSudoEnabled();
+      will(returnValue(true));
+
+      oneOf(myCommandLineExecutor).runProcess(OurSudoSetup, 30);
+      will(returnValue(createResult(exitCode)));
+    }});
+
+    final SudoAccessService instance = createInstance();
+
+    // When
+    final boolean isAllowed = instance.isAllowed("nik");
+    final boolean isAllowedNextTime = instance.isAllowed("nik");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(isAllowed).isEqualTo(expectedIsAllowed);
+    then(isAllowedNextTime).isEqualTo(expectedIsAllowed);
+  }
+
+  @Test
+  public void shouldNotCheckUserWhenSudoIsNotEnabled() throws ExecutionException {
+    // Given
+    myCtx.checking(new Expectations() {{
+      allowing(myRunAsAccessService).getIsSudoEnabled();
+      will(returnValue(false));
+
+      never(myCommandLineExecutor).runProcess(OurSudoSetup, 30);
+    }});
+
+    final SudoAccessService instance = createInstance();
+
+    // When
+    final boolean isAllowed = instance.isAllowed("nik");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(isAllowed).isFalse();
+  }
+
+  @Test
+  public void shouldCheckUserAgainWhenCannotRunSudo() throws ExecutionException {
+    // Given
+    myCtx.checking(new Expectations() {{
+      allowing(myRunAsAccessService).getIsSudoEnabled();
+      will(returnValue(true));
+
+      oneOf(myCommandLineExecutor).runProcess(OurSudoSetup, 30);
+      will(throwException(new ExecutionException("error")));
+
+      oneOf(myCommandLineExecutor).runProcess(OurSudoSetup, 30);
+      will(returnValue(createResult(0)));
+    }});
+
+    final SudoAccessService instance = createInstance();
+
+    // When
+    final boolean isAllowed = instance.isAllowed("nik");
+    final boolean isAllowedNextTime = instance.isAllowed("nik");
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(isAllowed).isFalse();
+    then(isAllowedNextTime).isTrue();
+  }
+
+  @NotNull
+  private SudoAccessService createInstance() {
+    return new SudoAccessServiceImpl(myRunAsAccessService, myCommandLineExecutor);
+  }
+
+  @NotNull
+  private static ExecResult createResult(final int exitCode) {
+    final ExecResult result = new ExecResult();
+    result.setExitCode(exitCode);
+    return result;
+  }
+}
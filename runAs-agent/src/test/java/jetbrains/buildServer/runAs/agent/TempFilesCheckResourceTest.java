@@ -0,0 +1,200 @@
+package jetbrains.buildServer.runAs.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.dotNet.buildRunner.agent.BuildStartException;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineArgument;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineExecutionContext;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineResource;
+import jetbrains.buildServer.dotNet.buildRunner.agent.CommandLineSetup;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class TempFilesCheckResourceTest {
+  private static final String USER = "nik";
+  private Mockery myCtx;
+  private TempFilesCheckCache myTempFilesCheckCache;
+  private CommandLineExecutor myCommandLineExecutor;
+  private File myTempDirectory;
+  private File myProbeFile;
+  private File myTempFile;
+  private CommandLineSetup myProbeSetup;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myCtx = new Mockery();
+    myTempFilesCheckCache = myCtx.mock(TempFilesCheckCache.class);
+    myCommandLineExecutor = myCtx.mock(CommandLineExecutor.class);
+    myTempDirectory = Files.createTempDirectory("runAs").toFile();
+    myProbeFile = new File(myTempDirectory, "probe_command.sh");
+    myTempFile = new File(myProbeFile.getPath() + TempFilesCheckResource.TEMP_FILE_EXT);
+    myProbeSetup = new CommandLineSetup("runAs.sh", Collections.<CommandLineArgument>emptyList(), Collections.<CommandLineResource>emptyList());
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    delete(myTempDirectory);
+  }
+
+  @Test
+  public void shouldRunProbeAndCacheResult() throws Exception {
+    // Given
+    final String[] probe = new String[1];
+    myCtx.checking(new Expectations() {{
+      oneOf(myTempFilesCheckCache).isChecked(USER, myTempDirectory);
+      will(returnValue(false));
+
+      oneOf(myCommandLineExecutor).runProcess(myProbeSetup, 60);
+      will(new CustomAction("probe") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          probe[0] = new String(Files.readAllBytes(myProbeFile.toPath()), "UTF-8");
+          Files.write(myTempFile.toPath(), ".".getBytes("UTF-8"));
+          return createResult(0);
+        }
+      });
+
+      oneOf(myTempFilesCheckCache).setChecked(USER, myTempDirectory);
+    }});
+
+    final TempFilesCheckResource instance = createInstance();
+
+    // When
+    instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(probe[0]).isEqualTo("#!/bin/bash\necho . > \"" + myTempFile.getAbsolutePath() + "\"\n");
+    then(myProbeFile.exists()).isFalse();
+    then(myTempFile.exists()).isFalse();
+  }
+
+  @Test
+  public void shouldNotRunProbeWhenChecked() {
+    // Given
+    myCtx.checking(new Expectations() {{
+      oneOf(myTempFilesCheckCache).isChecked(USER, myTempDirectory);
+      will(returnValue(true));
+    }});
+
+    final TempFilesCheckResource instance = createInstance();
+
+    // When
+    instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(myProbeFile.exists()).isFalse();
+  }
+
+  @Test
+  public void shouldThrowBuildStartExceptionWhenCannotRemoveTempFile() throws Exception {
+    // Given
+    myCtx.checking(new Expectations() {{
+      oneOf(myTempFilesCheckCache).isChecked(USER, myTempDirectory);
+      will(returnValue(false));
+
+      oneOf(myCommandLineExecutor).runProcess(myProbeSetup, 60);
+      will(new CustomAction("probe") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          // a non-empty directory could not be removed by File.delete()
+          //noinspection ResultOfMethodCallIgnored
+          new File(myTempFile, "file").mkdirs();
+          return createResult(0);
+        }
+      });
+
+      never(myTempFilesCheckCache).setChecked(USER, myTempDirectory);
+    }});
+
+    final TempFilesCheckResource instance = createInstance();
+
+    // When
+    BuildStartException actualException = null;
+    try {
+      instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+    }
+    catch (BuildStartException ex) {
+      actualException = ex;
+    }
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(actualException).isNotNull();
+    then(myProbeFile.exists()).isFalse();
+  }
+
+  @Test
+  public void shouldThrowBuildStartExceptionAndNotCacheWhenProbeFailed() throws Exception {
+    // Given
+    myCtx.checking(new Expectations() {{
+      oneOf(myTempFilesCheckCache).isChecked(USER, myTempDirectory);
+      will(returnValue(false));
+
+      oneOf(myCommandLineExecutor).runProcess(myProbeSetup, 60);
+      will(returnValue(createResult(125, "su: Authentication failure\n")));
+
+      never(myTempFilesCheckCache).setChecked(USER, myTempDirectory);
+    }});
+
+    final TempFilesCheckResource instance = createInstance();
+
+    // When
+    BuildStartException actualException = null;
+    try {
+      instance.publishBeforeBuild(new CommandLineExecutionContext(0));
+    }
+    catch (BuildStartException ex) {
+      actualException = ex;
+    }
+
+    // Then
+    myCtx.assertIsSatisfied();
+    then(actualException).isNotNull();
+    //noinspection ConstantConditions
+    then(actualException.getMessage().contains("exit code 125: su: Authentication failure,")).isTrue();
+    then(actualException.getMessage().contains("no required permissions")).isFalse();
+    then(myProbeFile.exists()).isFalse();
+  }
+
+  @NotNull
+  private TempFilesCheckResource createInstance() {
+    return new TempFilesCheckResource(myTempFilesCheckCache, myCommandLineExecutor, USER, myTempDirectory, myProbeFile, myProbeSetup);
+  }
+
+  @NotNull
+  private static ExecResult createResult(final int exitCode) {
+    return createResult(exitCode, "");
+  }
+
+  private static ExecResult createResult(final int exitCode, @NotNull final String stderr) {
+    final ExecResult result = new ExecResult();
+    result.setExitCode(exitCode);
+    result.setStderr(stderr);
+    return result;
+  }
+
+  private static void delete(@NotNull final File file) {
+    final File[] files = file.listFiles();
+    if(files != null) {
+      for (File child: files) {
+        delete(child);
+      }
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+}
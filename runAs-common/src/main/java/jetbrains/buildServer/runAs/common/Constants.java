@@ -13,6 +13,8 @@ public class Constants {
     public static final String CONFIG_PASSWORD = "teamcity.runAs.password";
     public static final String ADDITIONAL_ARGS = "teamcity.runAs.additionalCommandLine";
     public static final String RUN_AS_ENABLED = "teamcity.agent.runAs.enabled";
+    public static final String RUN_AS_SUDO_ENABLED = "teamcity.agent.runAs.sudo.enabled";
+    public static final String RUN_AS_STATE = "teamcity.agent.runAs.state";
     public static final String CREDENTIALS_PROFILE_ID = "teamcity.runAs.profileId";
     public static final String WINDOWS_INTEGRITY_LEVEL = "teamcity.runAs.windowsIntegrityLlevel";
     public static final String LOGGING_LEVEL = "teamcity.runAs.loggingLevel";
@@ -24,4 +26,22 @@ public class Constants {
     public static final String RUN_AS_LOG_ENABLED = "teamcity.runAs.log.enabled";
     public static final String RUN_AS_ACL = "teamcity.runAs.acl";
     public static final String RUN_AS_ACL_DEFAULTS_ENABLED = "teamcity.runAs.acl.defaults.enabled";
+    public static final String RUN_AS_ACL_PARALLELISM = "teamcity.runAs.acl.parallelism";
+    public static final String RUN_AS_ACL_DIFF_ENABLED = "teamcity.runAs.acl.diff.enabled";
+    public static final String RUN_AS_ACL_CACHE_TTL = "teamcity.runAs.acl.cache.ttl";
+    public static final String RUN_AS_HELPER_ENABLED = "teamcity.runAs.helper.enabled";
+    public static final String RUN_AS_EXEC_PARALLELISM = "teamcity.runAs.exec.parallelism";
+    public static final String RUN_AS_PROBE_TIMEOUT = "teamcity.runAs.probe.timeout";
+    public static final String RUN_AS_LAUNCHER = "teamcity.runAs.launcher";
+    // the agent runs steps via "sudo -n -E" when the agent user has NOPASSWD and SETENV sudoers rules, passwords of users are not checked then
+    public static final String RUN_AS_SUDO_MODE_ENABLED = "teamcity.runAs.sudoMode.enabled";
+
+    // Values of RUN_AS_STATE
+    public static final String RUN_AS_STATE_ENABLED = "enabled";
+    public static final String RUN_AS_STATE_DISABLED = "disabled";
+    public static final String RUN_AS_STATE_UNKNOWN = "unknown";
+
+    // Values of RUN_AS_LAUNCHER
+    public static final String RUN_AS_LAUNCHER_SOCAT = "socat";
+    public static final String RUN_AS_LAUNCHER_PTY = "pty";
 }
\ No newline at end of file